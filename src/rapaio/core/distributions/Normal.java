@@ -186,6 +186,11 @@ public class Normal implements Distribution {
         return var;
     }
 
+    @Override
+    public double sd() {
+        return sd;
+    }
+
     @Override
     public double skewness() {
         return 0;
@@ -77,6 +77,10 @@ public class KDE implements Serializable {
         return sum / (values.length * bandwidth);
     }
 
+    public double[] getValues() {
+        return values;
+    }
+
     public KFunc getKernel() {
         return kernel;
     }
@@ -89,7 +89,11 @@ abstract class FactorBase extends AbstractVar {
 
     @Override
     public void addIndex(int value) {
-        addLabel(dict.get(value));
+        if (value < 0 || value >= dict.size()) {
+            throw new IllegalArgumentException("Index value is not a valid level index: " + value);
+        }
+        grow(rows + 1);
+        data[rows++] = value;
     }
 
     @Override
@@ -38,7 +38,6 @@ import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -232,9 +231,9 @@ public interface Frame extends Serializable, Printable {
      * Builds a new frame only with rows not specified in mapping.
      */
     default Frame removeRows(Mapping mapping) {
-        Set<Integer> remove = mapping.rowStream().mapToObj(i -> i).collect(Collectors.toSet());
-        List<Integer> map = IntStream.range(0, rowCount()).filter(row -> !remove.contains(row)).mapToObj(i -> i).collect(toList());
-        return mapRows(Mapping.wrap(map));
+        BitSet remove = new BitSet(rowCount());
+        mapping.rowStream().forEach(remove::set);
+        return mapRows(Mapping.from(IntStream.range(0, rowCount()).filter(row -> !remove.get(row))));
     }
 
     /**
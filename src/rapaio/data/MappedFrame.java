@@ -27,7 +27,6 @@ package rapaio.data;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -74,9 +73,7 @@ public class MappedFrame extends AbstractFrame {
         if (df instanceof MappedFrame) {
             MappedFrame mappedFrame = (MappedFrame) df;
             this.source = mappedFrame.sourceFrame();
-            this.mapping = Mapping.wrap(mapping.rowStream()
-                    .map(row -> mappedFrame.mapping().get(row))
-                    .mapToObj(row -> row).collect(Collectors.toList()));
+            this.mapping = Mapping.from(mapping.rowStream().map(row -> mappedFrame.mapping().get(row)));
         } else {
             this.source = df;
             this.mapping = mapping;
@@ -103,11 +100,17 @@ public class MappedFrame extends AbstractFrame {
         return names.length;
     }
 
-    protected Frame sourceFrame() {
+    /**
+     * @return frame which contains the mapped rows
+     */
+    public Frame sourceFrame() {
         return source;
     }
 
-    protected Mapping mapping() {
+    /**
+     * @return mapping of the rows of this frame to the rows of the source frame
+     */
+    public Mapping mapping() {
         return mapping;
     }
 
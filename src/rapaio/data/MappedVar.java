@@ -24,8 +24,6 @@
 
 package rapaio.data;
 
-import java.util.stream.Collectors;
-
 /**
  * A variable which wraps rows from another variable. The row selection
  * and order is specified by a mapping given at construction time.
@@ -69,7 +67,7 @@ public class MappedVar extends AbstractVar {
     private MappedVar(Var var, Mapping mapping) {
         withName(var.name());
         if (var instanceof MappedVar) {
-            this.mapping = Mapping.wrap(mapping.rowStream().map(row -> ((MappedVar) var).mapping().get(row)).mapToObj(row -> row).collect(Collectors.toList()));
+            this.mapping = Mapping.from(mapping.rowStream().map(row -> ((MappedVar) var).mapping().get(row)));
             this.source = ((MappedVar) var).source();
         } else {
             this.mapping = mapping;
@@ -25,10 +25,9 @@
 package rapaio.data;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -41,6 +40,10 @@ import java.util.stream.IntStream;
  * mapping at creation time will be transformed into a mapped of the
  * solid frame which is referenced by the wrapped frame.
  * <p>
+ * Rows are stored in primitive form. The static builders choose the most
+ * compact representation for the given rows: an interval for consecutive rows,
+ * a bit set for dense ascending subsets and an int array otherwise.
+ * <p>
  * User: <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
  */
 public interface Mapping extends Serializable {
@@ -48,21 +51,37 @@ public interface Mapping extends Serializable {
     // static builders
 
     /**
+     * Builds an empty mapping. The mapping stays an interval as long as
+     * consecutive rows are added to it.
+     *
      * @return an empty mapping
      */
     static Mapping empty() {
-        return new ListMapping();
+        return new IntervalMapping(0, 0);
     }
 
     /**
-     * Builds a mapping having the mapped values specified as parameter,
-     * the list of values being used as reference inside mapping.
+     * Builds a mapping having the mapped values specified as parameter.
+     * The values are stored in the most compact primitive form, thus
+     * further changes to the given list are not reflected in the mapping.
      *
      * @param mapping list of mapped values
-     * @return new mapping which wraps the given list of indexed values
+     * @return new mapping which contains the given list of indexed values
      */
     static Mapping wrap(List<Integer> mapping) {
-        return new ListMapping(mapping, false);
+        return copy(mapping);
+    }
+
+    /**
+     * Builds a mapping having the mapped values specified as parameter.
+     * If the most compact form of the values is an array, the given array
+     * is used as reference inside mapping.
+     *
+     * @param mapping array of mapped values
+     * @return new mapping which wraps the given array of indexed values
+     */
+    static Mapping wrap(int[] mapping) {
+        return CompactMappings.compact(mapping, mapping.length, false);
     }
 
     /**
@@ -73,7 +92,12 @@ public interface Mapping extends Serializable {
      * @return new mapping which is build on a copy of the list of values
      */
     static Mapping copy(List<Integer> mapping) {
-        return new ListMapping(mapping, false);
+        int[] rows = new int[mapping.size()];
+        int pos = 0;
+        for (int row : mapping) {
+            rows[pos++] = row;
+        }
+        return CompactMappings.compact(rows, rows.length, false);
     }
 
     /**
@@ -84,7 +108,17 @@ public interface Mapping extends Serializable {
      * @return new mapping which is build on a copy of the array of values
      */
     static Mapping copy(int... mapping) {
-        return new ListMapping(mapping);
+        return CompactMappings.compact(mapping, mapping.length, true);
+    }
+
+    /**
+     * Builds a mapping from the values of a stream of row numbers.
+     *
+     * @param rows stream of mapped values
+     * @return new mapping which contains the values from the stream
+     */
+    static Mapping from(IntStream rows) {
+        return wrap(rows.toArray());
     }
 
     static Mapping range(int end) {
@@ -95,6 +129,19 @@ public interface Mapping extends Serializable {
         return new IntervalMapping(start, end);
     }
 
+    /**
+     * Builds a mapping which reads rows from a range of an array, without copying them.
+     * Later changes of the array values are visible through the mapping, while any
+     * change of the mapping converts it into an independent array mapping.
+     *
+     * @param rows  array of rows
+     * @param start first position of the range, inclusive
+     * @param end   last position of the range, exclusive
+     */
+    static Mapping view(int[] rows, int start, int end) {
+        return new ArrayViewMapping(rows, start, end);
+    }
+
     /**
      * @return the size of mapping
      */
@@ -157,69 +204,144 @@ public interface Mapping extends Serializable {
     }
 }
 
-final class ListMapping implements Mapping {
+/**
+ * Utility which chooses the most compact representation for a set of rows.
+ */
+final class CompactMappings {
 
-    private static final long serialVersionUID = 5485844129188037454L;
-    private final List<Integer> mapping;
+    private CompactMappings() {
+    }
 
-    ListMapping() {
-        this.mapping = new ArrayList<>();
+    /**
+     * Builds the cheapest mapping for the first {@code size} values from rows.
+     *
+     * @param rows array of mapped values
+     * @param size number of values used from the array
+     * @param copy if true the array is never used as reference
+     * @return compact mapping with the given values
+     */
+    static Mapping compact(int[] rows, int size, boolean copy) {
+        if (size == 0) {
+            return new IntervalMapping(0, 0);
+        }
+        boolean consecutive = true;
+        boolean ascending = true;
+        for (int i = 1; i < size; i++) {
+            if (rows[i] != rows[i - 1] + 1) {
+                consecutive = false;
+            }
+            if (rows[i] <= rows[i - 1]) {
+                ascending = false;
+                break;
+            }
+        }
+        if (consecutive && rows[0] >= 0) {
+            return new IntervalMapping(rows[0], rows[size - 1] + 1);
+        }
+        if (ascending && rows[0] >= 0 && BitSetMapping.isDense(rows[0], rows[size - 1], size)) {
+            return new BitSetMapping(rows, size);
+        }
+        return new ArrayMapping(copy ? Arrays.copyOf(rows, size) : rows, size);
     }
+}
 
-    ListMapping(int[] rows) {
-        mapping = IntStream.of(rows).boxed().collect(Collectors.toList());
+/**
+ * Mapping which stores rows in a growable array of primitive int values.
+ */
+final class ArrayMapping implements Mapping {
+
+    private static final long serialVersionUID = 5485844129188037454L;
+    private int[] data;
+    private int size;
+
+    ArrayMapping() {
+        this(new int[8], 0);
     }
 
-    ListMapping(List<Integer> mapping, boolean copy) {
-        this.mapping = copy ? mapping.subList(0, mapping.size()) : mapping;
+    ArrayMapping(int[] data, int size) {
+        this.data = data;
+        this.size = size;
     }
 
     public int size() {
-        return mapping.size();
+        return size;
     }
 
     public int get(int pos) {
-        if (mapping.size() > pos)
-            return mapping.get(pos);
+        if (pos >= 0 && pos < size)
+            return data[pos];
         throw new IllegalArgumentException("Value at pos " + pos + " does not exists");
     }
 
-    public void add(int pos) {
-        mapping.add(pos);
+    public void add(int row) {
+        ensureCapacity(size + 1);
+        data[size++] = row;
     }
 
-    public void addAll(Collection<Integer> pos) {
-        mapping.addAll(pos);
+    public void addAll(Collection<Integer> rows) {
+        ensureCapacity(size + rows.size());
+        for (int row : rows) {
+            data[size++] = row;
+        }
     }
 
     @Override
     public void remove(int pos) {
-        mapping.remove(pos);
+        if (pos < 0 || pos >= size)
+            throw new IllegalArgumentException("Value at pos " + pos + " does not exists");
+        System.arraycopy(data, pos + 1, data, pos, size - pos - 1);
+        size--;
     }
 
     @Override
     public void removeAll(Collection<Integer> positions) {
-        positions.forEach(mapping::remove);
+        boolean[] removed = new boolean[size];
+        for (int pos : positions) {
+            if (pos >= 0 && pos < size)
+                removed[pos] = true;
+        }
+        int len = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed[i])
+                data[len++] = data[i];
+        }
+        size = len;
     }
 
     @Override
     public void clear() {
-        mapping.clear();
+        size = 0;
     }
 
     public IntStream rowStream() {
-        return mapping.stream().mapToInt(i -> i);
+        return Arrays.stream(data, 0, size);
+    }
+
+    @Override
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1) + 1));
+        }
     }
 }
 
+/**
+ * Mapping which stores an interval of consecutive rows [start, end).
+ * Consecutive rows added at the end of the interval extends the interval,
+ * any other change converts it into an array mapping.
+ */
 final class IntervalMapping implements Mapping {
 
     private static final long serialVersionUID = -7421133121383028265L;
 
-    private final int start;
-    private final int end;
-    private boolean onList = false;
-    private ListMapping listMapping;
+    private int start;
+    private int end;
+    private boolean onArray = false;
+    private ArrayMapping arrayMapping;
 
     IntervalMapping(int start, int end) {
         this.start = start;
@@ -228,67 +350,357 @@ final class IntervalMapping implements Mapping {
 
     @Override
     public int size() {
-        if (onList)
-            return listMapping.size();
+        if (onArray)
+            return arrayMapping.size();
         return end - start;
     }
 
     @Override
     public int get(int pos) {
-        if (onList)
-            return listMapping.get(pos);
-        return pos + start;
+        if (onArray)
+            return arrayMapping.get(pos);
+        if (pos >= 0 && pos < end - start)
+            return pos + start;
+        throw new IllegalArgumentException("Value at pos " + pos + " does not exists");
     }
 
     @Override
     public void add(int row) {
-        if (!onList) {
-            onList = true;
-            listMapping = new ListMapping(IntStream.range(start, end).toArray());
+        if (!onArray) {
+            if (start == end && row >= 0) {
+                start = row;
+                end = row + 1;
+                return;
+            }
+            if (row == end) {
+                end++;
+                return;
+            }
+            toArray(1);
         }
-        listMapping.add(row);
+        arrayMapping.add(row);
     }
 
     @Override
     public void addAll(Collection<Integer> rows) {
-        if (!onList) {
-            onList = true;
-            listMapping = new ListMapping(IntStream.range(start, end).toArray());
+        if (!onArray) {
+            toArray(rows.size());
         }
-        listMapping.addAll(rows);
+        arrayMapping.addAll(rows);
     }
 
     @Override
     public void remove(int pos) {
-        if (!onList) {
-            onList = true;
-            listMapping = new ListMapping(IntStream.range(start, end).toArray());
+        if (!onArray) {
+            if (pos == 0 && start < end) {
+                start++;
+                return;
+            }
+            if (pos == end - start - 1 && start < end) {
+                end--;
+                return;
+            }
+            toArray(0);
         }
-        listMapping.remove(pos);
+        arrayMapping.remove(pos);
     }
 
     @Override
     public void removeAll(Collection<Integer> positions) {
-        if (!onList) {
-            onList = true;
-            listMapping = new ListMapping(IntStream.range(start, end).toArray());
+        if (!onArray) {
+            toArray(0);
         }
-        listMapping.removeAll(positions);
+        arrayMapping.removeAll(positions);
     }
 
     @Override
     public void clear() {
-        if (!onList) {
-            onList = true;
-            listMapping = new ListMapping(IntStream.range(start, end).toArray());
+        if (onArray) {
+            arrayMapping.clear();
+        } else {
+            start = 0;
+            end = 0;
         }
-        listMapping.clear();
     }
 
     @Override
     public IntStream rowStream() {
-        if (onList)
-            return listMapping.rowStream();
+        if (onArray)
+            return arrayMapping.rowStream();
         return IntStream.range(start, end);
     }
-}
\ No newline at end of file
+
+    private void toArray(int extra) {
+        int len = end - start;
+        int[] rows = new int[len + Math.max(extra, 1)];
+        for (int i = 0; i < len; i++) {
+            rows[i] = start + i;
+        }
+        onArray = true;
+        arrayMapping = new ArrayMapping(rows, len);
+    }
+}
+
+/**
+ * Mapping which reads rows from a range [start, end) of an array which is not owned
+ * by the mapping. Any change converts it into an array mapping.
+ */
+final class ArrayViewMapping implements Mapping {
+
+    private static final long serialVersionUID = 2605127476316214352L;
+
+    private final int[] rows;
+    private final int start;
+    private final int end;
+    private ArrayMapping arrayMapping;
+
+    ArrayViewMapping(int[] rows, int start, int end) {
+        this.rows = rows;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int size() {
+        if (arrayMapping != null)
+            return arrayMapping.size();
+        return end - start;
+    }
+
+    @Override
+    public int get(int pos) {
+        if (arrayMapping != null)
+            return arrayMapping.get(pos);
+        if (pos >= 0 && pos < end - start)
+            return rows[start + pos];
+        throw new IllegalArgumentException("Value at pos " + pos + " does not exists");
+    }
+
+    @Override
+    public void add(int row) {
+        toArray(1).add(row);
+    }
+
+    @Override
+    public void addAll(Collection<Integer> rows) {
+        toArray(rows.size()).addAll(rows);
+    }
+
+    @Override
+    public void remove(int pos) {
+        toArray(0).remove(pos);
+    }
+
+    @Override
+    public void removeAll(Collection<Integer> positions) {
+        toArray(0).removeAll(positions);
+    }
+
+    @Override
+    public void clear() {
+        toArray(0).clear();
+    }
+
+    @Override
+    public IntStream rowStream() {
+        if (arrayMapping != null)
+            return arrayMapping.rowStream();
+        return Arrays.stream(rows, start, end);
+    }
+
+    @Override
+    public int[] toArray() {
+        if (arrayMapping != null)
+            return arrayMapping.toArray();
+        return Arrays.copyOfRange(rows, start, end);
+    }
+
+    private ArrayMapping toArray(int extra) {
+        if (arrayMapping == null) {
+            int[] copy = new int[end - start + Math.max(extra, 1)];
+            System.arraycopy(rows, start, copy, 0, end - start);
+            arrayMapping = new ArrayMapping(copy, end - start);
+        }
+        return arrayMapping;
+    }
+}
+
+/**
+ * Mapping which stores strictly ascending rows as a bit set. Together with the bits,
+ * the mapping keeps for each word the number of rows which are stored in previous
+ * words, which allows finding the row at a given position with a binary search.
+ * Adding rows in ascending order keeps the bit set representation, any other
+ * change converts it into an array mapping.
+ */
+final class BitSetMapping implements Mapping {
+
+    private static final long serialVersionUID = 3180466924546155493L;
+
+    /**
+     * A bit set is used when it needs at least two times less memory than an array.
+     * Each word costs 8 bytes for bits and 4 bytes for rank, each array row costs 4 bytes.
+     */
+    static boolean isDense(int first, int last, int size) {
+        long words = (last >>> 6) - (first >>> 6) + 1;
+        return words * 12 * 2 <= (long) size * 4;
+    }
+
+    private final int offset;
+    private long[] words;
+    private int[] rank;
+    private int wordCount;
+    private int size;
+    private int last;
+    private boolean onArray = false;
+    private ArrayMapping arrayMapping;
+
+    BitSetMapping(int[] rows, int size) {
+        this.offset = rows[0] >>> 6;
+        this.wordCount = (rows[size - 1] >>> 6) - offset + 1;
+        this.words = new long[wordCount];
+        this.rank = new int[wordCount];
+        for (int i = 0; i < size; i++) {
+            int w = (rows[i] >>> 6) - offset;
+            words[w] |= 1L << rows[i];
+        }
+        int count = 0;
+        for (int w = 0; w < wordCount; w++) {
+            rank[w] = count;
+            count += Long.bitCount(words[w]);
+        }
+        this.size = size;
+        this.last = rows[size - 1];
+    }
+
+    @Override
+    public int size() {
+        if (onArray)
+            return arrayMapping.size();
+        return size;
+    }
+
+    @Override
+    public int get(int pos) {
+        if (onArray)
+            return arrayMapping.get(pos);
+        if (pos < 0 || pos >= size)
+            throw new IllegalArgumentException("Value at pos " + pos + " does not exists");
+
+        // find the last word which has rank less or equal than position
+        int low = 0;
+        int high = wordCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rank[mid] <= pos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long word = words[low];
+        for (int k = pos - rank[low]; k > 0; k--) {
+            word &= word - 1;
+        }
+        return ((low + offset) << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    public void add(int row) {
+        if (!onArray) {
+            if (row > last) {
+                int w = (row >>> 6) - offset;
+                if (w >= words.length) {
+                    int capacity = Math.max(w + 1, words.length + (words.length >> 1) + 1);
+                    words = Arrays.copyOf(words, capacity);
+                    rank = Arrays.copyOf(rank, capacity);
+                }
+                for (int i = wordCount; i <= w; i++) {
+                    rank[i] = size;
+                }
+                wordCount = Math.max(wordCount, w + 1);
+                words[w] |= 1L << row;
+                last = row;
+                size++;
+                return;
+            }
+            toArray(1);
+        }
+        arrayMapping.add(row);
+    }
+
+    @Override
+    public void addAll(Collection<Integer> rows) {
+        if (!onArray) {
+            toArray(rows.size());
+        }
+        arrayMapping.addAll(rows);
+    }
+
+    @Override
+    public void remove(int pos) {
+        if (!onArray) {
+            toArray(0);
+        }
+        arrayMapping.remove(pos);
+    }
+
+    @Override
+    public void removeAll(Collection<Integer> positions) {
+        if (!onArray) {
+            toArray(0);
+        }
+        arrayMapping.removeAll(positions);
+    }
+
+    @Override
+    public void clear() {
+        if (!onArray) {
+            toArray(0);
+        }
+        arrayMapping.clear();
+    }
+
+    @Override
+    public IntStream rowStream() {
+        if (onArray)
+            return arrayMapping.rowStream();
+        return IntStream.range(0, wordCount)
+                .flatMap(w -> {
+                    long word = words[w];
+                    int[] rows = new int[Long.bitCount(word)];
+                    for (int i = 0; i < rows.length; i++) {
+                        rows[i] = ((w + offset) << 6) + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                    return IntStream.of(rows);
+                });
+    }
+
+    @Override
+    public int[] toArray() {
+        if (onArray)
+            return arrayMapping.toArray();
+        return rowsArray(0);
+    }
+
+    private int[] rowsArray(int extra) {
+        int[] rows = new int[size + extra];
+        int pos = 0;
+        for (int w = 0; w < wordCount; w++) {
+            long word = words[w];
+            while (word != 0) {
+                rows[pos++] = ((w + offset) << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return rows;
+    }
+
+    private void toArray(int extra) {
+        int[] rows = rowsArray(Math.max(extra, 1));
+        onArray = true;
+        arrayMapping = new ArrayMapping(rows, size);
+        words = null;
+        rank = null;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Utility used by off-heap variables to map a region of a file into memory.
+ * <p>
+ * A single mapped buffer is limited to 2GB, therefore the region is split into
+ * segments with a fixed number of elements which is a power of two. The element
+ * with a given row is found at position {@code row & SEGMENT_MASK} in the
+ * segment {@code row >>> SEGMENT_SHIFT}.
+ * <p>
+ * Values are stored in little endian byte order, independent of the platform.
+ *
+ * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
+ */
+final class OffHeapBuffers {
+
+    static final int SEGMENT_SHIFT = 27;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private OffHeapBuffers() {
+    }
+
+    /**
+     * Maps a file region which contains a given number of elements of a given byte size.
+     *
+     * @param channel      file channel
+     * @param position     position of the first byte of the region
+     * @param elements     number of elements in region
+     * @param elementBytes number of bytes of each element
+     * @param readOnly     if true the region is mapped read only, otherwise changes are written back to file
+     * @return array of segments
+     * @throws IOException if the mapping fails
+     */
+    static ByteBuffer[] map(FileChannel channel, long position, int elements, int elementBytes, boolean readOnly) throws IOException {
+        if (elements < 0) {
+            throw new IllegalArgumentException("Illegal row count: " + elements);
+        }
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        int count = Math.max(1, (elements + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long len = Math.min(SEGMENT_SIZE, elements - ((long) i << SEGMENT_SHIFT));
+            long start = position + ((long) i << SEGMENT_SHIFT) * elementBytes;
+            segments[i] = channel.map(mode, start, len * elementBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return segments;
+    }
+
+    /**
+     * Writes values from a heap buffer to a channel, at the current channel position.
+     */
+    static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index variable which keeps its values outside of the java heap, in a memory
+ * mapped region of a file. Values are stored as little endian 32 bit integers, with
+ * Integer.MIN_VALUE as placeholder for missing values, the same as {@link Index}.
+ * <p>
+ * Since the values are not stored in java heap, a variable can have a size which
+ * exceeds the available memory. A file mapped read only can be shared between
+ * multiple processes, the pages being loaded by the operating system on demand.
+ * <p>
+ * The variable has a fixed size: values can be changed if the file is mapped
+ * for writing, but rows can't be added or removed.
+ *
+ * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
+ */
+public final class OffHeapIndex extends AbstractVar {
+
+    /**
+     * Maps a whole file which contains only integer values.
+     *
+     * @param file     file with values
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap index variable
+     * @throws IOException if the file could not be mapped
+     */
+    public static OffHeapIndex map(File file, boolean readOnly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            return map(raf.getChannel(), 0, (int) (raf.length() / Integer.BYTES), readOnly);
+        }
+    }
+
+    /**
+     * Maps a region of a file which contains integer values.
+     * The mapping remains valid after the channel is closed.
+     *
+     * @param channel  file channel
+     * @param position position of the first value in file
+     * @param rows     number of values
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap index variable
+     * @throws IOException if the region could not be mapped
+     */
+    public static OffHeapIndex map(FileChannel channel, long position, int rows, boolean readOnly) throws IOException {
+        return new OffHeapIndex(OffHeapBuffers.map(channel, position, rows, Integer.BYTES, readOnly), rows);
+    }
+
+    /**
+     * Writes the values of a variable into a file and maps the file for reading and writing.
+     *
+     * @param source source variable
+     * @param file   destination file
+     * @return new instance of off-heap index variable with values copied from source
+     * @throws IOException if the file could not be written or mapped
+     */
+    public static OffHeapIndex copy(Var source, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            write(source, raf.getChannel());
+            return map(raf.getChannel(), 0, source.rowCount(), false).withName(source.name());
+        }
+    }
+
+    /**
+     * Writes the values of a variable as little endian integers, at the current channel position.
+     *
+     * @param source  source variable
+     * @param channel destination channel
+     * @throws IOException if the values could not be written
+     */
+    public static void write(Var source, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < source.rowCount(); i++) {
+            if (!buffer.hasRemaining()) {
+                OffHeapBuffers.write(channel, buffer);
+            }
+            buffer.putInt(source.missing(i) ? MISSING_VALUE : source.index(i));
+        }
+        OffHeapBuffers.write(channel, buffer);
+    }
+
+    private static final long serialVersionUID = 4416823340170437528L;
+
+    private static final int MISSING_VALUE = Integer.MIN_VALUE;
+
+    private final transient IntBuffer[] segments;
+    private final int rows;
+
+    private OffHeapIndex(ByteBuffer[] buffers, int rows) {
+        this.segments = new IntBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            segments[i] = buffers[i].asIntBuffer();
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public OffHeapIndex withName(String name) {
+        return (OffHeapIndex) super.withName(name);
+    }
+
+    @Override
+    public VarType type() {
+        return VarType.INDEX;
+    }
+
+    /**
+     * @return true if the values can't be changed
+     */
+    public boolean isReadOnly() {
+        return segments[0].isReadOnly();
+    }
+
+    @Override
+    public int rowCount() {
+        return rows;
+    }
+
+    @Override
+    public void addRows(int rowCount) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public int index(int row) {
+        return segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].get(row & OffHeapBuffers.SEGMENT_MASK);
+    }
+
+    @Override
+    public void setIndex(int row, int value) {
+        segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].put(row & OffHeapBuffers.SEGMENT_MASK, value);
+    }
+
+    @Override
+    public void addIndex(int value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public double value(int row) {
+        if (missing(row))
+            return Double.NaN;
+        return index(row);
+    }
+
+    @Override
+    public void setValue(int row, double value) {
+        setIndex(row, (int) Math.rint(value));
+    }
+
+    @Override
+    public void addValue(double value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String label(int row) {
+        if (missing(row))
+            return "?";
+        return String.valueOf(value(row));
+    }
+
+    @Override
+    public void setLabel(int row, String value) {
+        if ("?".equals(value)) {
+            setMissing(row);
+            return;
+        }
+        setIndex(row, Integer.parseInt(value));
+    }
+
+    @Override
+    public void addLabel(String value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String[] levels() {
+        throw new IllegalArgumentException("Operation not available for index vectors.");
+    }
+
+    @Override
+    public void setLevels(String[] dict) {
+        throw new IllegalArgumentException("Operation not available for index vectors.");
+    }
+
+    @Override
+    public boolean binary(int row) {
+        return index(row) == 1;
+    }
+
+    @Override
+    public void setBinary(int row, boolean value) {
+        setIndex(row, value ? 1 : 0);
+    }
+
+    @Override
+    public void addBinary(boolean value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public long stamp(int row) {
+        return index(row);
+    }
+
+    @Override
+    public void setStamp(int row, long value) {
+        setIndex(row, Math.toIntExact(value));
+    }
+
+    @Override
+    public void addStamp(long value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public boolean missing(int row) {
+        return index(row) == MISSING_VALUE;
+    }
+
+    @Override
+    public void setMissing(int row) {
+        setIndex(row, MISSING_VALUE);
+    }
+
+    @Override
+    public void addMissing() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void remove(int row) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public Var newInstance(int rows) {
+        return Index.empty(rows);
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapIndex[name:" + name() + ", rowCount:" + rowCount() + "]";
+    }
+
+    /**
+     * @return an index variable which holds a copy of the values in java heap
+     */
+    @Override
+    public Index solidCopy() {
+        Index index = Index.empty(rows).withName(name());
+        for (int i = 0; i < rows; i++) {
+            index.setIndex(i, index(i));
+        }
+        return index;
+    }
+
+    /**
+     * Off-heap variables are serialized as solid copies.
+     */
+    private Object writeReplace() {
+        return solidCopy();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nominal variable which keeps its level indexes outside of the java heap, in a memory
+ * mapped region of a file. Indexes are stored as little endian 32 bit integers,
+ * while the levels are kept in java heap. As for {@link Nominal}, the first level
+ * is always the missing value placeholder "?", with index 0.
+ * <p>
+ * The variable has a fixed size: values can be changed if the file is mapped
+ * for writing, but rows can't be added or removed. New levels can be added
+ * through set operations, but they are not persisted in file.
+ *
+ * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
+ */
+public final class OffHeapNominal extends AbstractVar {
+
+    /**
+     * Maps a whole file which contains only level indexes.
+     *
+     * @param file     file with level indexes
+     * @param levels   levels of the variable
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap nominal variable
+     * @throws IOException if the file could not be mapped
+     */
+    public static OffHeapNominal map(File file, String[] levels, boolean readOnly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            return map(raf.getChannel(), 0, (int) (raf.length() / Integer.BYTES), levels, readOnly);
+        }
+    }
+
+    /**
+     * Maps a region of a file which contains level indexes.
+     * The mapping remains valid after the channel is closed.
+     *
+     * @param channel  file channel
+     * @param position position of the first index in file
+     * @param rows     number of values
+     * @param levels   levels of the variable
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap nominal variable
+     * @throws IOException if the region could not be mapped
+     */
+    public static OffHeapNominal map(FileChannel channel, long position, int rows, String[] levels, boolean readOnly) throws IOException {
+        return new OffHeapNominal(OffHeapBuffers.map(channel, position, rows, Integer.BYTES, readOnly), rows, levels);
+    }
+
+    /**
+     * Writes the level indexes of a nominal variable into a file and maps the file for reading and writing.
+     *
+     * @param source source variable
+     * @param file   destination file
+     * @return new instance of off-heap nominal variable with values and levels copied from source
+     * @throws IOException if the file could not be written or mapped
+     */
+    public static OffHeapNominal copy(Var source, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            write(source, raf.getChannel());
+            return map(raf.getChannel(), 0, source.rowCount(), source.levels(), false).withName(source.name());
+        }
+    }
+
+    /**
+     * Writes the level indexes of a variable as little endian integers, at the current channel position.
+     *
+     * @param source  source variable
+     * @param channel destination channel
+     * @throws IOException if the values could not be written
+     */
+    public static void write(Var source, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < source.rowCount(); i++) {
+            if (!buffer.hasRemaining()) {
+                OffHeapBuffers.write(channel, buffer);
+            }
+            buffer.putInt(source.index(i));
+        }
+        OffHeapBuffers.write(channel, buffer);
+    }
+
+    private static final long serialVersionUID = -6934217856930557735L;
+
+    private static final String missingValue = "?";
+    private static final int missingIndex = 0;
+
+    private final transient IntBuffer[] segments;
+    private final int rows;
+    private List<String> dict;
+    private Map<String, Integer> reverse;
+
+    private OffHeapNominal(ByteBuffer[] buffers, int rows, String[] levels) {
+        this.segments = new IntBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            segments[i] = buffers[i].asIntBuffer();
+        }
+        this.rows = rows;
+        this.dict = new ArrayList<>();
+        this.reverse = new HashMap<>();
+        this.dict.add(missingValue);
+        this.reverse.put(missingValue, missingIndex);
+        for (String level : levels) {
+            if (!reverse.containsKey(level)) {
+                reverse.put(level, dict.size());
+                dict.add(level);
+            }
+        }
+    }
+
+    @Override
+    public OffHeapNominal withName(String name) {
+        return (OffHeapNominal) super.withName(name);
+    }
+
+    @Override
+    public VarType type() {
+        return VarType.NOMINAL;
+    }
+
+    /**
+     * @return true if the values can't be changed
+     */
+    public boolean isReadOnly() {
+        return segments[0].isReadOnly();
+    }
+
+    @Override
+    public int rowCount() {
+        return rows;
+    }
+
+    @Override
+    public void addRows(int rowCount) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public int index(int row) {
+        return segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].get(row & OffHeapBuffers.SEGMENT_MASK);
+    }
+
+    @Override
+    public void setIndex(int row, int value) {
+        segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].put(row & OffHeapBuffers.SEGMENT_MASK, value);
+    }
+
+    @Override
+    public void addIndex(int value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public double value(int row) {
+        return index(row);
+    }
+
+    @Override
+    public void setValue(int row, double value) {
+        setIndex(row, (int) Math.rint(value));
+    }
+
+    @Override
+    public void addValue(double value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String label(int row) {
+        return dict.get(index(row));
+    }
+
+    @Override
+    public void setLabel(int row, String value) {
+        Integer idx = reverse.get(value);
+        if (idx == null) {
+            dict.add(value);
+            reverse.put(value, reverse.size());
+            idx = reverse.size() - 1;
+        }
+        setIndex(row, idx);
+    }
+
+    @Override
+    public void addLabel(String value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String[] levels() {
+        return dict.toArray(new String[dict.size()]);
+    }
+
+    /**
+     * Renames the levels of the variable, each old level being replaced by the level from
+     * the same position. If multiple old levels are collapsed into the same new level
+     * the stored indexes are rewritten, which is not possible when the variable is read only.
+     *
+     * @param dict new levels
+     */
+    @Override
+    public void setLevels(String... dict) {
+        List<String> oldDict = this.dict;
+        if (dict.length > 0 && !dict[0].equals(missingValue)) {
+            String[] newDict = new String[dict.length + 1];
+            newDict[0] = missingValue;
+            System.arraycopy(dict, 0, newDict, 1, dict.length);
+            dict = newDict;
+        }
+
+        if (this.dict.size() > dict.length) {
+            throw new IllegalArgumentException("new levels does not contains all old labels");
+        }
+
+        this.dict = new ArrayList<>();
+        this.reverse = new HashMap<>();
+        this.dict.add(missingValue);
+        this.reverse.put(missingValue, missingIndex);
+
+        int[] pos = new int[oldDict.size()];
+        boolean changed = false;
+        for (int i = 0; i < dict.length; i++) {
+            String term = dict[i];
+            if (!reverse.containsKey(term)) {
+                this.dict.add(term);
+                this.reverse.put(term, this.reverse.size());
+            }
+            if (i < oldDict.size()) {
+                pos[i] = this.reverse.get(term);
+                changed |= pos[i] != i;
+            }
+        }
+
+        if (changed) {
+            for (int i = 0; i < rows; i++) {
+                setIndex(i, pos[index(i)]);
+            }
+        }
+    }
+
+    @Override
+    public boolean binary(int row) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public void setBinary(int row, boolean value) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public void addBinary(boolean value) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public long stamp(int row) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public void setStamp(int row, long value) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public void addStamp(long value) {
+        throw new IllegalArgumentException("This call is not allowed");
+    }
+
+    @Override
+    public boolean missing(int row) {
+        return missingIndex == index(row);
+    }
+
+    @Override
+    public void setMissing(int row) {
+        setIndex(row, missingIndex);
+    }
+
+    @Override
+    public void addMissing() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void remove(int row) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public Var newInstance(int rows) {
+        return Nominal.empty(rows, levels());
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapNominal[name:" + name() + ", rowCount:" + rowCount() + "]";
+    }
+
+    /**
+     * @return a nominal variable which holds a copy of the values in java heap
+     */
+    @Override
+    public Nominal solidCopy() {
+        Nominal nominal = Nominal.empty(rows, levels()).withName(name());
+        for (int i = 0; i < rows; i++) {
+            nominal.setIndex(i, index(i));
+        }
+        return nominal;
+    }
+
+    /**
+     * Off-heap variables are serialized as solid copies.
+     */
+    private Object writeReplace() {
+        return solidCopy();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Numeric variable which keeps its values outside of the java heap, in a memory
+ * mapped region of a file. Values are stored as little endian doubles, with
+ * Double.NaN as placeholder for missing values, the same as {@link Numeric}.
+ * <p>
+ * Since the values are not stored in java heap, a variable can have a size which
+ * exceeds the available memory. A file mapped read only can be shared between
+ * multiple processes, the pages being loaded by the operating system on demand.
+ * <p>
+ * The variable has a fixed size: values can be changed if the file is mapped
+ * for writing, but rows can't be added or removed.
+ *
+ * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
+ */
+public final class OffHeapNumeric extends AbstractVar {
+
+    /**
+     * Maps a whole file which contains only double values.
+     *
+     * @param file     file with values
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap numeric variable
+     * @throws IOException if the file could not be mapped
+     */
+    public static OffHeapNumeric map(File file, boolean readOnly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            return map(raf.getChannel(), 0, (int) (raf.length() / Double.BYTES), readOnly);
+        }
+    }
+
+    /**
+     * Maps a region of a file which contains double values.
+     * The mapping remains valid after the channel is closed.
+     *
+     * @param channel  file channel
+     * @param position position of the first value in file
+     * @param rows     number of values
+     * @param readOnly if true changes are not allowed
+     * @return new instance of off-heap numeric variable
+     * @throws IOException if the region could not be mapped
+     */
+    public static OffHeapNumeric map(FileChannel channel, long position, int rows, boolean readOnly) throws IOException {
+        return new OffHeapNumeric(OffHeapBuffers.map(channel, position, rows, Double.BYTES, readOnly), rows);
+    }
+
+    /**
+     * Writes the values of a variable into a file and maps the file for reading and writing.
+     *
+     * @param source source variable
+     * @param file   destination file
+     * @return new instance of off-heap numeric variable with values copied from source
+     * @throws IOException if the file could not be written or mapped
+     */
+    public static OffHeapNumeric copy(Var source, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            write(source, raf.getChannel());
+            return map(raf.getChannel(), 0, source.rowCount(), false).withName(source.name());
+        }
+    }
+
+    /**
+     * Writes the values of a variable as little endian doubles, at the current channel position.
+     *
+     * @param source  source variable
+     * @param channel destination channel
+     * @throws IOException if the values could not be written
+     */
+    public static void write(Var source, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < source.rowCount(); i++) {
+            if (!buffer.hasRemaining()) {
+                OffHeapBuffers.write(channel, buffer);
+            }
+            buffer.putDouble(source.value(i));
+        }
+        OffHeapBuffers.write(channel, buffer);
+    }
+
+    private static final long serialVersionUID = -1457212370462138428L;
+
+    private final transient DoubleBuffer[] segments;
+    private final int rows;
+
+    private OffHeapNumeric(ByteBuffer[] buffers, int rows) {
+        this.segments = new DoubleBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            segments[i] = buffers[i].asDoubleBuffer();
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public OffHeapNumeric withName(String name) {
+        return (OffHeapNumeric) super.withName(name);
+    }
+
+    @Override
+    public VarType type() {
+        return VarType.NUMERIC;
+    }
+
+    /**
+     * @return true if the values can't be changed
+     */
+    public boolean isReadOnly() {
+        return segments[0].isReadOnly();
+    }
+
+    @Override
+    public int rowCount() {
+        return rows;
+    }
+
+    @Override
+    public void addRows(int rowCount) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public double value(int row) {
+        return segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].get(row & OffHeapBuffers.SEGMENT_MASK);
+    }
+
+    @Override
+    public void setValue(int row, double value) {
+        segments[row >>> OffHeapBuffers.SEGMENT_SHIFT].put(row & OffHeapBuffers.SEGMENT_MASK, value);
+    }
+
+    @Override
+    public void addValue(double value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public int index(int row) {
+        return (int) Math.rint(value(row));
+    }
+
+    @Override
+    public void setIndex(int row, int value) {
+        setValue(row, value);
+    }
+
+    @Override
+    public void addIndex(int value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String label(int row) {
+        if (missing(row))
+            return "?";
+        return String.valueOf(value(row));
+    }
+
+    @Override
+    public void setLabel(int row, String value) {
+        if ("?".equals(value)) {
+            setMissing(row);
+            return;
+        }
+        if ("Inf".equals(value)) {
+            setValue(row, Double.POSITIVE_INFINITY);
+            return;
+        }
+        if ("-Inf".equals(value)) {
+            setValue(row, Double.NEGATIVE_INFINITY);
+            return;
+        }
+        setValue(row, Double.parseDouble(value));
+    }
+
+    @Override
+    public void addLabel(String value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public String[] levels() {
+        throw new RuntimeException("Operation not available for numeric vectors.");
+    }
+
+    @Override
+    public void setLevels(String[] dict) {
+        throw new RuntimeException("Operation not available for numeric vectors.");
+    }
+
+    @Override
+    public boolean binary(int row) {
+        return value(row) == 1.0;
+    }
+
+    @Override
+    public void setBinary(int row, boolean value) {
+        setValue(row, value ? 1 : 0);
+    }
+
+    @Override
+    public void addBinary(boolean value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public long stamp(int row) {
+        return (long) Math.rint(value(row));
+    }
+
+    @Override
+    public void setStamp(int row, long value) {
+        setValue(row, value);
+    }
+
+    @Override
+    public void addStamp(long value) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public boolean missing(int row) {
+        double value = value(row);
+        return value != value;
+    }
+
+    @Override
+    public void setMissing(int row) {
+        setValue(row, Double.NaN);
+    }
+
+    @Override
+    public void addMissing() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void remove(int row) {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalArgumentException("Operation not available for off-heap variables.");
+    }
+
+    @Override
+    public Var newInstance(int rows) {
+        return Numeric.empty(rows);
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapNumeric[name:" + name() + ", rowCount:" + rowCount() + "]";
+    }
+
+    /**
+     * @return a numeric variable which holds a copy of the values in java heap
+     */
+    @Override
+    public Numeric solidCopy() {
+        Numeric numeric = Numeric.empty(rows).withName(name());
+        for (int i = 0; i < rows; i++) {
+            numeric.setValue(i, value(i));
+        }
+        return numeric;
+    }
+
+    /**
+     * Off-heap variables are serialized as solid copies.
+     */
+    private Object writeReplace() {
+        return solidCopy();
+    }
+}
@@ -24,6 +24,7 @@
 
 package rapaio.data;
 
+import java.io.Serializable;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -42,7 +43,7 @@ import java.util.stream.IntStream;
  *
  * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
  */
-public interface VRange {
+public interface VRange extends Serializable {
 
     static VRange all() {
         return new VRangeByName(VRangeByName.ALL);
@@ -87,6 +88,8 @@ public interface VRange {
 
 class VRangeByName implements VRange {
 
+    private static final long serialVersionUID = 4722094358745716541L;
+
     static final String DELIMITER = ",";
     static final String RANGE = "~";
     static final String ALL = "all";
@@ -62,6 +62,18 @@ public interface RowSampler extends Serializable {
         return new Bootstrap(p);
     }
 
+    /**
+     * Bootstrap sample where each drawn row appears once, with its weight
+     * multiplied by the number of draws.
+     */
+    static RowSampler weightedBootstrap() {
+        return new WeightedBootstrap(1.0);
+    }
+
+    static RowSampler weightedBootstrap(double p) {
+        return new WeightedBootstrap(p);
+    }
+
     static RowSampler subsampler(double p) {
         return new SubSampler(p);
     }
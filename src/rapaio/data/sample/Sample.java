@@ -28,6 +28,8 @@ import rapaio.data.Frame;
 import rapaio.data.Mapping;
 import rapaio.data.Var;
 
+import java.util.BitSet;
+
 /**
  * A sample taken from a data set, eventually from a corresponding set of weights.
  *
@@ -46,4 +48,15 @@ public final class Sample {
         this.weights = weights;
         this.mapping = mapping;
     }
+
+    /**
+     * @param rowCount number of rows of the sampled data frame
+     * @return rows of the sampled data frame which are not contained in the sample
+     */
+    public BitSet outOfBag(int rowCount) {
+        BitSet oob = new BitSet(rowCount);
+        oob.set(0, rowCount);
+        mapping.rowStream().forEach(oob::clear);
+        return oob;
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data.sample;
+
+import rapaio.core.SamplingTools;
+import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.Numeric;
+import rapaio.data.Var;
+
+import static rapaio.sys.WS.formatFlex;
+
+/**
+ * Implements bootstrap row sampling through multiplicity weights.
+ * <p>
+ * Rows are drawn with replacement as in {@link Bootstrap}, but each selected row
+ * appears only once in the sample, in the original order, with its weight multiplied
+ * by the number of times it was drawn. This avoids mappings with duplicated rows
+ * and keeps the rows of the sample sorted.
+ * <p>
+ * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>.
+ */
+final class WeightedBootstrap implements RowSampler {
+
+    private static final long serialVersionUID = 3517402948107713394L;
+    private final double percent;
+
+    public WeightedBootstrap(double percent) {
+        this.percent = percent;
+    }
+
+    @Override
+    public Sample nextSample(Frame df, Var weights) {
+        int[] counts = new int[df.rowCount()];
+        for (int row : SamplingTools.sampleWR(df.rowCount(), (int) (percent * df.rowCount()))) {
+            counts[row]++;
+        }
+        int size = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                size++;
+            }
+        }
+        int[] rows = new int[size];
+        Numeric sampleWeights = Numeric.empty(size).withName(weights.name());
+        for (int i = 0, pos = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                rows[pos] = i;
+                sampleWeights.setValue(pos, weights.value(i) * counts[i]);
+                pos++;
+            }
+        }
+        Mapping map = Mapping.wrap(rows);
+        return new Sample(df.mapRows(map), sampleWeights, map);
+    }
+
+    @Override
+    public String name() {
+        return "WeightedBootstrap(p=" + formatFlex(percent) + ")";
+    }
+}
@@ -372,6 +372,6 @@ public class VSpots implements Stream<VSpot>, Serializable {
      * @return new mapped variable
      */
     public MappedVar toMappedVar() {
-        return MappedVar.byRows(source, Mapping.wrap(stream.map(VSpot::row).collect(Collectors.toList())));
+        return MappedVar.byRows(source, Mapping.from(stream.mapToInt(VSpot::row)));
     }
 }
@@ -152,21 +152,23 @@ public class GBTRegression extends AbstractRegression implements Printable {
 
             Frame xm = x.bindVars(gradient);
             BTRegression tree = regressor.newInstance();
+            if (tree instanceof RTree) {
+                ((RTree) tree).withLeafCache();
+            }
 
             // frame sampling
 
             Mapping samplerMapping = sampler().nextSample(xm, weights).mapping;
             Frame xmLearn = xm.mapRows(samplerMapping);
-            Frame xLearn = x.mapRows(samplerMapping);
 
             // build regions
 
             tree.train(xmLearn, "target");
 
-            // fit residuals
+            // fit residuals, on the training frame such that recorded leaves are used
 
             tree.boostFit(
-                    xLearn,
+                    xmLearn,
                     MappedVar.byRows(y, samplerMapping),
                     MappedVar.byRows(fitLearn, samplerMapping),
                     lossFunction);
@@ -0,0 +1,203 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static rapaio.io.BlockGzipOutputStream.*;
+
+/**
+ * Input stream which decompresses in parallel the gzip members of a file written
+ * by {@link BlockGzipOutputStream}.
+ * <p>
+ * Member boundaries are found from the member size stored in the extra field of each
+ * member header. Members are decompressed concurrently, a bounded number of them ahead
+ * of the reader, and their content is returned in order.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class BlockGzipInputStream extends InputStream {
+
+    /**
+     * Opens a gzip file for reading. Files written by {@link BlockGzipOutputStream} are
+     * decompressed in parallel, any other gzip file is decompressed sequentially.
+     *
+     * @param file    gzip file
+     * @param threads number of threads used for decompression
+     */
+    static InputStream open(File file, int threads) throws IOException {
+        if (threads > 1) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (memberSize(raf.getChannel(), 0) > 0) {
+                    return new BlockGzipInputStream(file, threads);
+                }
+            }
+        }
+        return new GZIPInputStream(new FileInputStream(file), 1 << 16);
+    }
+
+    /**
+     * @return size of the block gzip member which starts at the given position, or -1 if
+     * there is no such member
+     */
+    private static int memberSize(FileChannel channel, long position) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return -1;
+            }
+        }
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[3] != FLAG_EXTRA
+                || header[10] != 8 || header[11] != 0
+                || header[12] != SUBFIELD_ID1 || header[13] != SUBFIELD_ID2 || header[14] != 4 || header[15] != 0) {
+            return -1;
+        }
+        return readInt(header, 16);
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private long position = 0;
+
+    private byte[] current = new byte[0];
+    private int pos = 0;
+
+    private BlockGzipInputStream(File file, int threads) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+        this.pool = new ForkJoinPool(threads);
+        this.maxPending = threads * 2;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == current.length && !fill()) {
+            return -1;
+        }
+        return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == current.length && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - pos;
+    }
+
+    private boolean fill() throws IOException {
+        while (true) {
+            while (pending.size() < maxPending && position < size) {
+                int memberSize = memberSize(channel, position);
+                if (memberSize < HEADER_SIZE + TRAILER_SIZE || position + memberSize > size) {
+                    throw new IOException("invalid block gzip member at position: " + position);
+                }
+                long start = position;
+                pending.add(pool.submit(() -> decompress(start, memberSize)));
+                position += memberSize;
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                current = pending.poll().get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("error at decompressing gzip block", e.getCause() == null ? e : e.getCause());
+            }
+            pos = 0;
+            if (current.length > 0) {
+                return true;
+            }
+        }
+    }
+
+    private byte[] decompress(long start, int memberSize) throws IOException, DataFormatException {
+        byte[] member = new byte[memberSize];
+        ByteBuffer buffer = ByteBuffer.wrap(member);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of gzip file");
+            }
+        }
+        int crc = readInt(member, memberSize - TRAILER_SIZE);
+        byte[] content = new byte[readInt(member, memberSize - 4)];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, HEADER_SIZE, memberSize - HEADER_SIZE - TRAILER_SIZE);
+            int len = 0;
+            while (len < content.length) {
+                int count = inflater.inflate(content, len, content.length - len);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                len += count;
+            }
+            if (len != content.length) {
+                throw new IOException("corrupted gzip block at position: " + start);
+            }
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(content);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("crc check failed for gzip block at position: " + start);
+        }
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        raf.close();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream which compresses independent blocks of content in parallel.
+ * <p>
+ * Each block of content is compressed into a separate gzip member and members are
+ * written in order, thus the output is a valid multi member gzip file which can be read
+ * by any gzip reader. Each member header contains an extra field with the size of the
+ * whole member, which allows {@link BlockGzipInputStream} to decompress members
+ * in parallel.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class BlockGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1 << 20;
+
+    // header with extra field: magic, method, flags, mtime, xfl, os, xlen, subfield id, subfield length, member size
+    static final int HEADER_SIZE = 20;
+    static final int TRAILER_SIZE = 8;
+    static final int FLAG_EXTRA = 4;
+    static final byte SUBFIELD_ID1 = 'R';
+    static final byte SUBFIELD_ID2 = 'P';
+
+    private final OutputStream out;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int len = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    /**
+     * @param out     destination stream
+     * @param threads number of threads used for compression, if 1 the blocks are compressed in calling thread
+     */
+    BlockGzipOutputStream(OutputStream out, int threads) {
+        this.out = out;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.maxPending = threads * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (len == block.length) {
+            submit();
+        }
+        block[len++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int length) throws IOException {
+        while (length > 0) {
+            if (len == block.length) {
+                submit();
+            }
+            int count = Math.min(length, block.length - len);
+            System.arraycopy(b, off, block, len, count);
+            len += count;
+            off += count;
+            length -= count;
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] content = block;
+        int size = len;
+        block = new byte[BLOCK_SIZE];
+        len = 0;
+        empty = false;
+        if (pool == null) {
+            out.write(compress(content, size));
+            return;
+        }
+        pending.add(pool.submit(() -> compress(content, size)));
+        while (pending.size() > maxPending) {
+            writePending();
+        }
+    }
+
+    private void writePending() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("error at compressing gzip block", e.getCause() == null ? e : e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (len > 0 || empty) {
+                // a gzip file contains at least one member
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writePending();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Compresses the content as a complete gzip member.
+     */
+    static byte[] compress(byte[] content, int size) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] member = new byte[HEADER_SIZE + size + size / 8 + 64];
+        int pos = HEADER_SIZE;
+        try {
+            deflater.setInput(content, 0, size);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == member.length) {
+                    member = Arrays.copyOf(member, member.length * 2);
+                }
+                pos += deflater.deflate(member, pos, member.length - pos);
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, size);
+        member = Arrays.copyOf(member, pos + TRAILER_SIZE);
+        writeInt(member, pos, (int) crc.getValue());
+        writeInt(member, pos + 4, size);
+
+        member[0] = (byte) 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = Deflater.DEFLATED;
+        member[3] = FLAG_EXTRA;
+        // mtime and extra flags are zero
+        member[9] = (byte) 0xff;
+        member[10] = 8;
+        member[12] = SUBFIELD_ID1;
+        member[13] = SUBFIELD_ID2;
+        member[14] = 4;
+        writeInt(member, 16, member.length);
+        return member;
+    }
+
+    static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) value;
+        buf[pos + 1] = (byte) (value >>> 8);
+        buf[pos + 2] = (byte) (value >>> 16);
+        buf[pos + 3] = (byte) (value >>> 24);
+    }
+
+    static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+    }
+}
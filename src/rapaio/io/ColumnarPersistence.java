@@ -0,0 +1,373 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import rapaio.data.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Native rapaio binary format which stores a frame column by column.
+ * <p>
+ * The file starts with a header which contains the row count and, for each
+ * variable, the name, the type, the levels for nominal and ordinal variables and
+ * the position of the data blocks. Each variable is stored after that as a contiguous
+ * block of typed little endian values, aligned at 8 bytes:
+ * <ul>
+ * <li>numeric: 64 bit doubles, missing values are stored as Double.NaN</li>
+ * <li>index: 32 bit integers, missing values are stored as Integer.MIN_VALUE</li>
+ * <li>stamp: 64 bit integers, missing values are stored as Long.MIN_VALUE</li>
+ * <li>nominal and ordinal: 32 bit level indexes, missing values have index 0</li>
+ * <li>binary: bit set of values, plus a bit set of missing values if any</li>
+ * <li>text: length prefixed UTF-8 strings, missing values have length -1</li>
+ * </ul>
+ * <p>
+ * When memory mapping is enabled, which is the default, numeric, index, stamp and
+ * nominal variables are read as off-heap variables which maps the blocks from file,
+ * without copying the values. Binary, ordinal and text variables are always
+ * loaded in java heap.
+ *
+ * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
+ */
+public class ColumnarPersistence {
+
+    private static final byte[] MAGIC = "RAPAIOCF".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private boolean memoryMapped = true;
+    private boolean readOnly = true;
+
+    /**
+     * @param memoryMapped if true the variables are mapped from file, otherwise they are loaded in java heap
+     */
+    public ColumnarPersistence withMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * @param readOnly if false, changes on memory mapped variables are written back to file
+     */
+    public ColumnarPersistence withReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public Frame read(String fileName) throws IOException {
+        return read(new File(fileName));
+    }
+
+    public Frame read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer start = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, start, 0);
+            byte[] magic = new byte[MAGIC.length];
+            start.get(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("file is not in rapaio columnar format: " + file.getAbsolutePath());
+            }
+            int version = start.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported rapaio columnar format version: " + version);
+            }
+            int headerLength = start.getInt();
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, MAGIC.length + 8);
+
+            int rows = header.getInt();
+            int count = header.getInt();
+            List<Var> vars = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = getString(header);
+                VarType type = VarType.valueOf(getString(header));
+                String[] levels = new String[header.getInt()];
+                for (int j = 0; j < levels.length; j++) {
+                    levels[j] = getString(header);
+                }
+                long dataPosition = header.getLong();
+                long dataLength = header.getLong();
+                long missingPosition = header.getLong();
+                long missingLength = header.getLong();
+
+                Var var = readVar(channel, type, rows, levels, dataPosition, dataLength, missingPosition, missingLength);
+                vars.add(var.withName(name));
+            }
+            return SolidFrame.byVars(rows, vars);
+        }
+    }
+
+    private Var readVar(FileChannel channel, VarType type, int rows, String[] levels,
+                        long dataPosition, long dataLength, long missingPosition, long missingLength) throws IOException {
+        switch (type) {
+            case NUMERIC:
+                OffHeapNumeric numeric = OffHeapNumeric.map(channel, dataPosition, rows, readOnly);
+                return memoryMapped ? numeric : numeric.solidCopy();
+            case INDEX:
+                OffHeapIndex index = OffHeapIndex.map(channel, dataPosition, rows, readOnly);
+                return memoryMapped ? index : index.solidCopy();
+            case STAMP:
+                OffHeapStamp stamp = OffHeapStamp.map(channel, dataPosition, rows, readOnly);
+                return memoryMapped ? stamp : stamp.solidCopy();
+            case NOMINAL:
+                OffHeapNominal nominal = OffHeapNominal.map(channel, dataPosition, rows, levels, readOnly);
+                return memoryMapped ? nominal : nominal.solidCopy();
+            case ORDINAL:
+                OffHeapNominal codes = OffHeapNominal.map(channel, dataPosition, rows, levels, true);
+                Ordinal ordinal = Ordinal.empty(rows, levels);
+                for (int i = 0; i < rows; i++) {
+                    ordinal.setIndex(i, codes.index(i));
+                }
+                return ordinal;
+            case BINARY:
+                LongBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, dataPosition, dataLength)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                LongBuffer missing = missingLength == 0 ? null
+                        : channel.map(FileChannel.MapMode.READ_ONLY, missingPosition, missingLength)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                Binary binary = Binary.empty(rows);
+                for (int i = 0; i < rows; i++) {
+                    if (missing != null && (missing.get(i >>> 6) & (1L << i)) != 0) {
+                        continue;
+                    }
+                    binary.setBinary(i, (values.get(i >>> 6) & (1L << i)) != 0);
+                }
+                return binary;
+            case TEXT:
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, dataPosition, dataLength)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                Text text = Text.empty(rows);
+                for (int i = 0; i < rows; i++) {
+                    int len = buffer.getInt();
+                    if (len < 0) {
+                        continue;
+                    }
+                    byte[] bytes = new byte[len];
+                    buffer.get(bytes);
+                    text.setLabel(i, new String(bytes, StandardCharsets.UTF_8));
+                }
+                return text;
+            default:
+                throw new IllegalArgumentException("variable type not supported: " + type.name());
+        }
+    }
+
+    public void write(Frame df, String fileName) throws IOException {
+        write(df, new File(fileName));
+    }
+
+    public void write(Frame df, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            // the header has a fixed length, independent of the block positions,
+            // thus it is written twice: before blocks to reserve space and after with positions
+
+            long[][] blocks = new long[df.varCount()][4];
+            ByteBuffer header = buildHeader(df, blocks);
+            long position = align(MAGIC.length + 8 + header.remaining());
+
+            for (int i = 0; i < df.varCount(); i++) {
+                Var var = df.var(i);
+                channel.position(position);
+                blocks[i][0] = position;
+                writeBlock(var, channel);
+                blocks[i][1] = channel.position() - position;
+                position = align(channel.position());
+
+                if (var.type() == VarType.BINARY && var.stream().incomplete().count() > 0) {
+                    channel.position(position);
+                    blocks[i][2] = position;
+                    writeBits(var, channel, true);
+                    blocks[i][3] = channel.position() - position;
+                    position = align(channel.position());
+                }
+            }
+            raf.setLength(position);
+
+            header = buildHeader(df, blocks);
+            ByteBuffer start = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            start.put(MAGIC).putInt(VERSION).putInt(header.remaining());
+            start.flip();
+            channel.position(0);
+            while (start.hasRemaining()) {
+                channel.write(start);
+            }
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+    }
+
+    private ByteBuffer buildHeader(Frame df, long[][] blocks) {
+        List<byte[]> names = new ArrayList<>();
+        int len = 8;
+        for (int i = 0; i < df.varCount(); i++) {
+            Var var = df.var(i);
+            byte[] name = var.name().getBytes(StandardCharsets.UTF_8);
+            byte[] type = var.type().name().getBytes(StandardCharsets.US_ASCII);
+            names.add(name);
+            names.add(type);
+            len += 8 + name.length + type.length + 4 + 32;
+            if (var.type().isNominal()) {
+                for (String level : var.levels()) {
+                    len += 4 + level.getBytes(StandardCharsets.UTF_8).length;
+                }
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(df.rowCount());
+        header.putInt(df.varCount());
+        for (int i = 0; i < df.varCount(); i++) {
+            Var var = df.var(i);
+            putBytes(header, names.get(2 * i));
+            putBytes(header, names.get(2 * i + 1));
+            if (var.type().isNominal()) {
+                String[] levels = var.levels();
+                header.putInt(levels.length);
+                for (String level : levels) {
+                    putBytes(header, level.getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                header.putInt(0);
+            }
+            for (long value : blocks[i]) {
+                header.putLong(value);
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    private void writeBlock(Var var, FileChannel channel) throws IOException {
+        switch (var.type()) {
+            case NUMERIC:
+                OffHeapNumeric.write(var, channel);
+                break;
+            case INDEX:
+                OffHeapIndex.write(var, channel);
+                break;
+            case STAMP:
+                OffHeapStamp.write(var, channel);
+                break;
+            case NOMINAL:
+            case ORDINAL:
+                OffHeapNominal.write(var, channel);
+                break;
+            case BINARY:
+                writeBits(var, channel, false);
+                break;
+            case TEXT:
+                writeText(var, channel);
+                break;
+            default:
+                throw new IllegalArgumentException("variable type not supported: " + var.type().name());
+        }
+    }
+
+    private void writeBits(Var var, FileChannel channel, boolean missing) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < var.rowCount(); i += 64) {
+            long word = 0;
+            for (int j = i; j < Math.min(i + 64, var.rowCount()); j++) {
+                boolean bit = missing ? var.missing(j) : !var.missing(j) && var.binary(j);
+                if (bit) {
+                    word |= 1L << j;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            buffer.putLong(word);
+        }
+        flush(channel, buffer);
+    }
+
+    private void writeText(Var var, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < var.rowCount(); i++) {
+            byte[] bytes = var.missing(i) ? null : var.label(i).getBytes(StandardCharsets.UTF_8);
+            int len = bytes == null ? 0 : bytes.length;
+            if (buffer.remaining() < 4 + len) {
+                flush(channel, buffer);
+                if (buffer.capacity() < 4 + len) {
+                    buffer = ByteBuffer.allocate(4 + len).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(len);
+                buffer.put(bytes);
+            }
+        }
+        flush(channel, buffer);
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
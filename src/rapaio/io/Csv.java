@@ -24,19 +24,36 @@
 
 package rapaio.io;
 
+import rapaio.core.RandomSource;
 import rapaio.data.*;
 import rapaio.util.func.SPredicate;
 
 import java.io.*;
-import java.text.DecimalFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.GZIPInputStream;
 
 import static java.util.stream.Collectors.toSet;
 
 /**
  * Comma separated file reader and writer utility.
+ * <p>
+ * Files can be read in parallel, by specifying a pool size. In this case the file
+ * is split into byte ranges at line boundaries and each range is parsed by its own
+ * worker. The resulting columns are merged at the end, the types of the
+ * columns being promoted if needed and the nominal levels reconciled in the order
+ * of the rows.
  *
  * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
  */
@@ -55,6 +72,14 @@ public class Csv {
     private Predicate<Integer> skipRows = row -> false;
     private Predicate<Integer> skipCols = row -> false;
     private Frame template;
+    private int poolSize = 0;
+    private int sampleRows = 0;
+    private boolean sampleReservoir = false;
+    private boolean typePromotion = false;
+    private Charset charset = Charset.defaultCharset();
+
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    private static final int WRITE_BLOCK_ROWS = 1 << 12;
 
     public Csv() {
         naValues.add("?");
@@ -80,6 +105,19 @@ public class Csv {
         return this;
     }
 
+    /**
+     * Sets the character encoding used to read and write csv content, which is the platform
+     * default charset if not specified.
+     * Files are split into chunks at line terminator bytes when read in parallel, thus the
+     * charset must encode line terminators as in ASCII.
+     *
+     * @param charset character encoding
+     */
+    public Csv withCharset(Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
     public Csv withTrimSpaces(boolean trimSpaces) {
         this.trimSpaces = trimSpaces;
         return this;
@@ -160,28 +198,109 @@ public class Csv {
         return this;
     }
 
+    /**
+     * Sets the pool size used to read files in parallel and to format rows in parallel when writing.
+     * - poolSize == 0 the file is read or written in the calling thread
+     * - poolSize &lt; 0 the pool size is the number of CPUs
+     * - poolSize &gt; 0 the pool size is this value
+     * <p>
+     * Parallel reading is available for uncompressed files and for gzip files written
+     * with {@link #writeGz(Frame, File)}, which are decompressed in parallel.
+     *
+     * @param poolSize specified pool size
+     */
+    public Csv withPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of rows used to infer the variable types before the file is parsed.
+     * <p>
+     * When the sample size is positive, a first pass parses only the sample rows in order
+     * to decide the variable types and the nominal levels, which are then used to parse
+     * the whole file without conversions. Variables which have only missing values in
+     * the sample are typed value by value, as usual. A value which does not fit into
+     * the type inferred from the sample produces an error with the variable name and
+     * the line number, unless type promotion is enabled with {@link #withTypePromotion(boolean)}.
+     * <p>
+     * When the sample size is 0, which is the default, the types are inferred value by value,
+     * variables being converted to the next default type when a value does not fit.
+     * Sampling is used only when files are read.
+     *
+     * @param sampleRows number of sample rows
+     */
+    public Csv withSampleRows(int sampleRows) {
+        this.sampleRows = sampleRows;
+        return this;
+    }
+
+    /**
+     * Specifies if variables read with types inferred from a sample are converted to the
+     * next default type when a value does not fit, as it happens without sampling.
+     * <p>
+     * In order to convert the values already parsed, the raw values of the variables with
+     * inferred types other than the last default type are kept while the file is parsed,
+     * thus promotion costs memory and time. It is disabled by default, in which case
+     * such values produce an error. Promotion is never used for streams, whose batches
+     * share the same types.
+     *
+     * @param typePromotion true if inferred types can be promoted
+     */
+    public Csv withTypePromotion(boolean typePromotion) {
+        this.typePromotion = typePromotion;
+        return this;
+    }
+
+    /**
+     * Specifies how the sample rows used for type inference are selected. If false, which
+     * is the default, the first rows are used, otherwise the sample rows are
+     * selected randomly from the whole file with reservoir sampling.
+     *
+     * @param sampleReservoir true for reservoir sampling, false for first rows
+     */
+    public Csv withSampleReservoir(boolean sampleReservoir) {
+        this.sampleReservoir = sampleReservoir;
+        return this;
+    }
+
+    private int threads() {
+        return poolSize < 0 ? Runtime.getRuntime().availableProcessors() : poolSize;
+    }
+
     public Frame read(File file) {
         try {
+            if (poolSize != 0 || sampleRows > 0) {
+                return readFile(file);
+            }
             return read(new FileInputStream(file));
         } catch (IOException e) {
             throw new RuntimeException("error at reading file: " + file.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Reads a gzip compressed csv file. If a pool size is specified and the file
+     * was written with {@link #writeGz(Frame, File)}, the gzip members are
+     * decompressed in parallel.
+     */
     public Frame readGz(File file) {
         try {
+            if (poolSize != 0) {
+                return read(BlockGzipInputStream.open(file, threads()));
+            }
             return read(new GZIPInputStream(new FileInputStream(file)));
         } catch (IOException e) {
             throw new RuntimeException("error at reading file", e);
         }
     }
 
+    public Frame readGz(String fileName) {
+        return readGz(new File(fileName));
+    }
+
     public Frame read(String fileName) {
-        try {
-            return read(new FileInputStream(fileName));
-        } catch (IOException e) {
-            throw new RuntimeException("error at reading file", e);
-        }
+        return read(new File(fileName));
     }
 
     public Frame read(Class<?> clazz, String resource) throws IOException {
@@ -193,13 +312,8 @@ public class Csv {
     }
 
     public Frame read(InputStream inputStream) throws IOException {
-        int rows = 0;
-        int allRowsNum = 0;
-        List<String> names = new ArrayList<>();
-        List<VarSlot> varSlots = new ArrayList<>();
-
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, charset))) {
+            List<String> names = new ArrayList<>();
             if (header) {
                 String line = reader.readLine();
                 if (line == null) {
@@ -207,221 +321,809 @@ public class Csv {
                 }
                 names = parseLine(line);
             }
+            Chunk chunk = new Chunk(names, 0, 0);
+            chunk.read(reader);
+            return buildFrame(names, Collections.singletonList(chunk), null, false);
+        }
+    }
 
-            while (skipRows.test(allRowsNum)) {
-                reader.readLine();
-                allRowsNum += 1;
-            }
+    public Stream<Frame> stream(String fileName, int batchSize) {
+        return stream(new File(fileName), batchSize);
+    }
 
-            boolean first = true;
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
+    public Stream<Frame> stream(File file, int batchSize) {
+        try {
+            List<Var> schema = null;
+            if (sampleRows > 0) {
+                long[] dataStart = new long[1];
+                List<String> names = readHeader(file, dataStart);
+                if (names != null) {
+                    schema = inferSchema(file, dataStart[0], names);
                 }
+            }
+            return stream(new FileInputStream(file), batchSize, schema);
+        } catch (IOException e) {
+            throw new RuntimeException("error at reading file: " + file.getAbsolutePath(), e);
+        }
+    }
 
-                allRowsNum += 1;
-                if (skipRows.test(allRowsNum - 1)) {
-                    continue;
+    /**
+     * Reads csv content as a stream of frames with at most {@code batchSize} rows each.
+     * Only the current batch is kept in memory, thus content of any size can be processed.
+     * <p>
+     * Variable types are given by the template or type hints, otherwise they are
+     * inferred from the first batch, which is used as a sample. All the following
+     * batches are parsed with the same types, and a value which does not fit produces
+     * an error. Variables with only missing values take their type from the first batch
+     * in which they have values. Nominal variables of a batch contains all
+     * the levels of the previous batches in the same order, thus level indexes
+     * have the same meaning in all batches.
+     * <p>
+     * The stream must be closed in order to release the underlying input stream.
+     *
+     * @param inputStream csv content
+     * @param batchSize   maximum number of rows in a batch
+     * @return stream of frame batches
+     */
+    public Stream<Frame> stream(InputStream inputStream, int batchSize) throws IOException {
+        return stream(inputStream, batchSize, null);
+    }
+
+    private Stream<Frame> stream(InputStream inputStream, int batchSize, List<Var> schema) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        Reader reader = new InputStreamReader(inputStream, charset);
+        try {
+            Iterator<Frame> it = new BatchIterator(reader, batchSize, schema);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(() -> {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            throw new RuntimeException("error at closing csv stream", e);
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the header of a file.
+     *
+     * @param file      csv file
+     * @param dataStart output parameter, the position of the first data line is stored in its first element
+     * @return variable names, empty if the file has no header, or null if the file has no content
+     */
+    private List<String> readHeader(File file, long[] dataStart) throws IOException {
+        List<String> names = new ArrayList<>();
+        dataStart[0] = 0;
+        if (header) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+                int ch;
+                while ((ch = is.read()) != -1 && ch != '\n' && ch != '\r') {
+                    bytes.write(ch);
                 }
+                if (ch == -1 && bytes.size() == 0) {
+                    return null;
+                }
+                dataStart[0] = bytes.size() + (ch == -1 ? 0 : 1);
+                if (ch == '\r' && is.read() == '\n') {
+                    dataStart[0]++;
+                }
+            }
+            names = parseLine(new String(bytes.toByteArray(), charset));
+        }
+        return names;
+    }
+
+    /**
+     * Parses a sample of rows to infer the variable types and nominal levels.
+     *
+     * @return variables used as templates for each column, null elements for columns
+     * which could not be inferred, or null if sampling is not used
+     */
+    private List<Var> inferSchema(File file, long dataStart, List<String> names) throws IOException {
+        if (sampleRows <= 0) {
+            return null;
+        }
+        Chunk sample = new Chunk(names, 0, 0);
+        try (Reader reader = new InputStreamReader(new RangeInputStream(file, dataStart, file.length()), charset)) {
+            CsvLineReader lines = new CsvLineReader(reader);
+            if (sampleReservoir) {
+                sample.readReservoir(lines, newTokenizer(), sampleRows);
+            } else {
+                sample.read(lines, newTokenizer(), sampleRows);
+            }
+        }
+        List<Var> schema = new ArrayList<>();
+        for (VarSlot slot : sample.slots) {
+            Var var = slot.var();
+            schema.add(allMissing(var) ? null : var.newInstance(0).withName(varName(names, schema.size())));
+        }
+        return schema;
+    }
+
+    /**
+     * @return true if all values are missing, in which case the variable type could not be inferred
+     */
+    private static boolean allMissing(Var var) {
+        for (int i = 0; i < var.rowCount(); i++) {
+            if (!var.missing(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Frame readFile(File file) throws IOException {
+        long[] dataStart = new long[1];
+        List<String> names = readHeader(file, dataStart);
+        if (names == null) {
+            return null;
+        }
+        List<Var> schema = inferSchema(file, dataStart[0], names);
+
+        if (poolSize == 0) {
+            Chunk chunk = new Chunk(names, schema, typePromotion, 0, 0);
+            try (Reader reader = new InputStreamReader(new RangeInputStream(file, dataStart[0], file.length()), charset)) {
+                chunk.read(reader);
+            }
+            return buildFrame(names, Collections.singletonList(chunk), schema, typePromotion);
+        }
 
+        int threads = threads();
+        long[] bounds = chunkBounds(file, dataStart[0], threads * 4);
+        int count = bounds.length - 1;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // count lines of each chunk to be able to compute the row numbers
 
-                // build vectors with initial types
-                if (first) {
-                    List<String> row = parseLine(line);
-                    first = false;
-                    for (int i = names.size(); i < row.size(); i++) {
-                        names.add("V" + (i + 1));
+            int[] lines = new int[count];
+            runParallel(pool, count, i -> lines[i] = countLines(file, bounds[i], bounds[i + 1]));
+            int[] firstLine = new int[count];
+            for (int i = 1; i < count; i++) {
+                firstLine[i] = firstLine[i - 1] + lines[i - 1];
+            }
+            int[] kept = new int[count];
+            runParallel(pool, count, i -> kept[i] = (int) IntStream.range(firstLine[i], firstLine[i] + lines[i])
+                    .filter(line -> !skipRows.test(line)).count());
+
+            List<Chunk> chunks = new ArrayList<>();
+            int keptBefore = 0;
+            for (int i = 0; i < count; i++) {
+                chunks.add(new Chunk(names, schema, typePromotion, firstLine[i], keptBefore));
+                keptBefore += kept[i];
+            }
+            runParallel(pool, count, i -> {
+                Chunk chunk = chunks.get(i);
+                if (chunk.kept + kept[i] <= startRow || chunk.kept >= endRow) {
+                    return;
+                }
+                try (Reader reader = new InputStreamReader(new RangeInputStream(file, bounds[i], bounds[i + 1]), charset)) {
+                    chunk.read(reader);
+                }
+            });
+            return buildFrame(names, chunks, schema, typePromotion);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the data section of a file into ranges which starts at line boundaries.
+     */
+    private long[] chunkBounds(File file, long start, int count) throws IOException {
+        long len = file.length() - start;
+        count = (int) Math.max(1, Math.min(count, len / MIN_CHUNK_SIZE));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(start);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+            for (int i = 1; i < count; i++) {
+                long pos = Math.max(start + len * i / count, bounds.get(bounds.size() - 1)) - 1;
+                boolean found = false;
+                while (!found) {
+                    buffer.clear();
+                    int read = channel.read(buffer, pos);
+                    if (read <= 0) {
+                        break;
                     }
-                    for (String colName : names) {
-                        if (template != null) {
-                            String[] vn = template.varNames();
-                            boolean found = false;
-                            for (String name : vn) {
-                                if (name.equals(colName)) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (found) {
-                                varSlots.add(new VarSlot(this, template.var(colName), 0));
-                                continue;
-                            }
-                        }
-                        if (typeFieldHints.containsKey(colName)) {
-                            varSlots.add(new VarSlot(this, typeFieldHints.get(colName), 0));
-                        } else {
-                            // default type
-                            varSlots.add(new VarSlot(this, 0));
+                    for (int j = 0; j < read; j++) {
+                        if (buffer.get(j) == '\n') {
+                            pos += j + 1;
+                            found = true;
+                            break;
                         }
                     }
+                    if (!found) {
+                        pos += read;
+                    }
                 }
-
-                if (rows < startRow) {
-                    rows++;
-                    continue;
+                if (!found || pos >= start + len) {
+                    break;
                 }
-                if (rows == endRow) break;
-                List<String> row = parseLine(line);
-                rows++;
-                int len = Math.max(row.size(), names.size());
-                for (int i = 0; i < len; i++) {
-                    // we have a value in row for which we did not defined a var slot
-                    if (i >= varSlots.size()) {
-                        names.add("V" + (i + 1));
-                        varSlots.add(new VarSlot(this, varSlots.get(0).var.rowCount()));
-                        continue;
-                    }
-                    // we have missing values at the end of the row
-                    if (i >= row.size()) {
-                        varSlots.get(i).addValue("?");
-                        continue;
+                if (pos > bounds.get(bounds.size() - 1)) {
+                    bounds.add(pos);
+                }
+            }
+        }
+        bounds.add(start + len);
+        return bounds.stream().mapToLong(v -> v).toArray();
+    }
+
+    /**
+     * Counts the lines from a byte range, using the same line terminators as {@link BufferedReader#readLine()}.
+     */
+    private int countLines(File file, long start, long end) throws IOException {
+        int lines = 0;
+        int prev = '\n';
+        try (InputStream is = new RangeInputStream(file, start, end)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte ch = buffer[i];
+                    if (ch == '\r' || (ch == '\n' && prev != '\r')) {
+                        lines++;
                     }
-                    // gaussian behavior
-                    varSlots.get(i).addValue(row.get(i));
+                    prev = ch;
                 }
             }
         }
-        List<Var> variables = new ArrayList<>();
-        for (int i = 0; i < varSlots.size(); i++) {
-            String name = names.size() > i ? names.get(i) : "V" + (i + 1);
-            variables.add(varSlots.get(i).var().withName(name));
+        if (prev != '\n' && prev != '\r') {
+            lines++;
         }
-        return SolidFrame.byVars(rows - startRow, variables);
+        return lines;
     }
 
-    List<String> parseLine(String line) {
-        List<String> data = new ArrayList<>();
-        int start = 0;
-        int colNum = 0;
-        int end;
-        while (start < line.length()) {
-            end = start;
-            boolean inQuotas = false;
-            while (end < line.length()) {
-                char ch = line.charAt(end++);
-                if (!inQuotas && ch == '"') {
-                    inQuotas = true;
-                    continue;
+    private interface ChunkTask {
+        void run(int chunk) throws IOException;
+    }
+
+    private static void runParallel(ForkJoinPool pool, int count, ChunkTask task) throws IOException {
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    task.run(i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                if (inQuotas && ch == escapeChar) {
-                    if (end < line.length() && line.charAt(end) == '\"') {
-                        end++;
-                        continue;
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading file", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private VarSlot newSlot(String name, int rows) {
+        if (template != null && Arrays.asList(template.varNames()).contains(name)) {
+            return new VarSlot(this, template.var(name), rows);
+        }
+        if (typeFieldHints.containsKey(name)) {
+            VarSlot slot = new VarSlot(this, typeFieldHints.get(name), rows);
+            slot.var().withName(name);
+            return slot;
+        }
+        // default type
+        return new VarSlot(this, rows);
+    }
+
+    private boolean hasFixedType(String name) {
+        return (template != null && Arrays.asList(template.varNames()).contains(name)) || typeFieldHints.containsKey(name);
+    }
+
+    private static String varName(List<String> names, int col) {
+        return col < names.size() ? names.get(col) : "V" + (col + 1);
+    }
+
+    /**
+     * Creates a slot for a column, using the schema variable if available. Schema types
+     * are fixed, unless promotion is allowed and the type was inferred.
+     */
+    private VarSlot newSlot(List<Var> schema, boolean promote, int col, String name, int rows) {
+        if (schema != null && col < schema.size() && schema.get(col) != null) {
+            return (promote && !hasFixedType(name))
+                    ? new VarSlot(this, rows, schema.get(col))
+                    : new VarSlot(this, schema.get(col), rows);
+        }
+        return newSlot(name, rows);
+    }
+
+    private Frame buildFrame(List<String> names, List<Chunk> chunks, List<Var> schema, boolean promote) {
+        int cols = names.size();
+        int rows = 0;
+        for (Chunk chunk : chunks) {
+            cols = Math.max(cols, chunk.slots.size());
+            rows += chunk.rows;
+        }
+        List<Var> variables = new ArrayList<>();
+        for (int i = 0; i < cols; i++) {
+            String name = varName(names, i);
+            if (chunks.size() == 1 && chunks.get(0).slots.size() > i) {
+                variables.add(chunks.get(0).slots.get(i).var().withName(name));
+                continue;
+            }
+            VarSlot slot = newSlot(schema, promote, i, name, 0);
+            for (Chunk chunk : chunks) {
+                slot.append(chunk.slots.size() > i ? chunk.slots.get(i) : null, chunk.rows);
+            }
+            variables.add(slot.var().withName(name));
+        }
+        return SolidFrame.byVars(rows, variables);
+    }
+
+    /**
+     * Parses a contiguous sequence of lines into var slots.
+     */
+    private final class Chunk {
+
+        private final List<String> names;
+        // variables used as templates for the slots, null if not available
+        private final List<Var> schema;
+        // true if the inferred types of the schema can be promoted
+        private final boolean promote;
+        private final List<VarSlot> slots = new ArrayList<>();
+        // number of the next line to be read
+        private int lineNum;
+        // number of rows which are not skipped, read before and in this chunk
+        private int kept;
+        // number of rows added to var slots
+        private int rows = 0;
+        // true if there are no more rows to be read after this chunk
+        private boolean last = false;
+
+        Chunk(List<String> names, int firstLine, int kept) {
+            this(names, null, false, firstLine, kept);
+        }
+
+        Chunk(List<String> names, List<Var> schema, boolean promote, int firstLine, int kept) {
+            this.names = names;
+            this.schema = schema;
+            this.promote = promote;
+            this.lineNum = firstLine;
+            this.kept = kept;
+        }
+
+        void read(Reader reader) throws IOException {
+            read(new CsvLineReader(reader), newTokenizer(), Integer.MAX_VALUE);
+        }
+
+        void read(CsvLineReader lines, CsvTokenizer tokenizer, int maxRows) throws IOException {
+            while (rows < maxRows && nextRow(lines)) {
+                tokenizer.tokenize(lines.buffer(), lines.start(), lines.end());
+                addRow(tokenizer, lineNum - 1);
+            }
+        }
+
+        /**
+         * Reads all rows and keeps a uniform random sample of them, selected with reservoir sampling.
+         */
+        void readReservoir(CsvLineReader lines, CsvTokenizer tokenizer, int size) throws IOException {
+            List<char[]> reservoir = new ArrayList<>();
+            List<Integer> reservoirLines = new ArrayList<>();
+            int seen = 0;
+            while (nextRow(lines)) {
+                seen++;
+                int pos = reservoir.size() < size ? reservoir.size() : RandomSource.nextInt(seen);
+                if (pos < size) {
+                    char[] line = Arrays.copyOfRange(lines.buffer(), lines.start(), lines.end());
+                    if (pos == reservoir.size()) {
+                        reservoir.add(line);
+                        reservoirLines.add(lineNum - 1);
+                    } else {
+                        reservoir.set(pos, line);
+                        reservoirLines.set(pos, lineNum - 1);
                     }
                 }
-                if (inQuotas && ch == '"') {
-                    if (escapeChar == '\"') {
-                        if (end < line.length() && line.charAt(end) == '\"') {
-                            end++;
-                            continue;
-                        }
-                    }
-                    inQuotas = false;
+            }
+            for (int i = 0; i < reservoir.size(); i++) {
+                char[] line = reservoir.get(i);
+                tokenizer.tokenize(line, 0, line.length);
+                addRow(tokenizer, reservoirLines.get(i));
+            }
+        }
+
+        /**
+         * Advances to the next line which is not skipped.
+         *
+         * @return false if there are no more rows to be read
+         */
+        private boolean nextRow(CsvLineReader lines) throws IOException {
+            while (lines.next()) {
+                if (skipRows.test(lineNum++)) {
                     continue;
                 }
-                if (!inQuotas && (ch == separatorChar)) {
-                    end--;
+                int row = kept++;
+                if (row < startRow) {
+                    continue;
+                }
+                if (row >= endRow) {
                     break;
                 }
+                return true;
             }
+            last = true;
+            return false;
+        }
 
-            if (!skipCols.test(colNum)) {
-                data.add(clean(line.substring(start, end)));
+        /**
+         * @param line number of the data line, starting with 0 for the first line after the header
+         */
+        private void addRow(CsvTokenizer tokens, int line) {
+            int len = Math.max(tokens.count(), names.size());
+            while (slots.size() < len) {
+                slots.add(newSlot(schema, promote, slots.size(), varName(names, slots.size()), rows));
             }
-
-            start = end + 1;
-            colNum += 1;
+            char[] buffer = tokens.buffer();
+            for (int i = 0; i < slots.size(); i++) {
+                if (i < tokens.count()) {
+                    try {
+                        slots.get(i).addValue(buffer, tokens.start(i), tokens.end(i));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException(String.format("Error at line %d of file: %s",
+                                line + (header ? 2 : 1), ex.getMessage()), ex);
+                    }
+                } else {
+                    // we have missing values at the end of the row
+                    slots.get(i).addMissing();
+                }
+            }
+            rows++;
         }
-        return data;
     }
 
     /**
-     * Clean the string token. - remove trailing and leading spaces, before and
-     * after removing quotes - remove leading and trailing quotes - remove
-     * escape quota character
-     *
-     * @param tok if (trimSpaces) {
-     * @return string cleaned
+     * Reads consecutive chunks of rows as frames which share the same schema.
      */
-    private String clean(String tok) {
-        if (trimSpaces) {
-            tok = tok.trim();
+    private final class BatchIterator implements Iterator<Frame> {
+
+        private final CsvLineReader lines;
+        private final CsvTokenizer tokenizer = newTokenizer();
+        private final int batchSize;
+        private List<String> names = new ArrayList<>();
+        private List<Var> schema;
+        private int lineNum = 0;
+        private int kept = 0;
+        private boolean done = false;
+        private Frame next;
+
+        BatchIterator(Reader reader, int batchSize, List<Var> schema) throws IOException {
+            this.lines = new CsvLineReader(reader);
+            this.batchSize = batchSize;
+            this.schema = schema;
+            if (header) {
+                if (lines.next()) {
+                    tokenizer.tokenize(lines.buffer(), lines.start(), lines.end());
+                    names = tokenizer.tokens();
+                } else {
+                    done = true;
+                }
+            }
         }
-        if (quotes && !tok.isEmpty()) {
-            if (tok.charAt(0) == '\"') {
-                tok = tok.substring(1);
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                next = readBatch();
             }
-            if (tok.charAt(tok.length() - 1) == '\"') {
-                tok = tok.substring(0, tok.length() - 1);
+            return next != null;
+        }
+
+        @Override
+        public Frame next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Frame batch = next;
+            next = null;
+            return batch;
         }
-        if (quotes) {
-            char[] line = new char[tok.length()];
-            int len = 0;
-            for (int i = 0; i < tok.length(); i++) {
-                if (len < tok.length() - 1 && tok.charAt(i) == escapeChar && tok.charAt(i + 1) == '\"') {
-                    line[len++] = '\"';
-                    i++;
-                    continue;
+
+        private Frame readBatch() {
+            Chunk chunk = new Chunk(names, schema, false, lineNum, kept);
+            try {
+                chunk.read(lines, tokenizer, batchSize);
+            } catch (IOException e) {
+                throw new RuntimeException("error at reading csv batch", e);
+            }
+            lineNum = chunk.lineNum;
+            kept = chunk.kept;
+            done = chunk.last;
+            if (chunk.rows == 0) {
+                done = true;
+                return null;
+            }
+            Frame batch = buildFrame(names, Collections.singletonList(chunk), schema, false);
+
+            // the types and nominal levels of this batch are used for the next batch,
+            // columns with all values missing keep the previous type, if any
+            List<Var> nextSchema = new ArrayList<>();
+            for (int i = 0; i < batch.varCount(); i++) {
+                Var var = batch.var(i);
+                if (allMissing(var)) {
+                    nextSchema.add(schema != null && i < schema.size() ? schema.get(i) : null);
+                } else {
+                    nextSchema.add(var.newInstance(0).withName(var.name()));
                 }
-                line[len++] = tok.charAt(i);
             }
-            tok = String.valueOf(line, 0, len);
+            schema = nextSchema;
+            return batch;
+        }
+    }
+
+    /**
+     * Input stream over a byte range of a file.
+     */
+    private static final class RangeInputStream extends InputStream {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(File file, long start, long end) throws IOException {
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = raf.getChannel();
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            len = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
         }
-        if (trimSpaces) {
-            tok = tok.trim();
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
         }
-        return tok;
+    }
+
+    List<String> parseLine(String line) {
+        CsvTokenizer tokenizer = newTokenizer();
+        tokenizer.tokenize(line.toCharArray(), 0, line.length());
+        return tokenizer.tokens();
+    }
+
+    private CsvTokenizer newTokenizer() {
+        return new CsvTokenizer(separatorChar, escapeChar, quotes, trimSpaces, skipCols);
     }
 
     public void write(Frame df, File file) throws IOException {
-        try (OutputStream os = new FileOutputStream(file)) {
-            write(df, os);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(df, channel);
         }
     }
 
     public void write(Frame df, String fileName) {
         try {
-            try (OutputStream os = new FileOutputStream(fileName)) {
-                write(df, os);
-            }
+            write(df, new File(fileName));
+        } catch (IOException e) {
+            throw new RuntimeException("error at writing file", e);
+        }
+    }
+
+    /**
+     * Writes the frame as a gzip compressed csv file. Content is compressed in independent
+     * blocks, each one as a gzip member, which are compressed in parallel if a pool size
+     * is specified. The result is a valid gzip file.
+     */
+    public void writeGz(Frame df, File file) throws IOException {
+        write(df, new BlockGzipOutputStream(new FileOutputStream(file), poolSize == 0 ? 1 : threads()));
+    }
+
+    public void writeGz(Frame df, String fileName) {
+        try {
+            writeGz(df, new File(fileName));
         } catch (IOException e) {
             throw new RuntimeException("error at writing file", e);
         }
     }
 
     public void write(Frame df, OutputStream os) throws IOException {
+        try (WritableByteChannel channel = Channels.newChannel(os)) {
+            write(df, channel);
+        }
+    }
 
-        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os)))) {
-            if (header) {
-                for (int i = 0; i < df.varNames().length; i++) {
-                    if (i != 0) {
-                        writer.append(separatorChar);
-                    }
-                    writer.append(df.varNames()[i]);
+    /**
+     * Writes the frame as blocks of rows formatted into byte buffers. If a pool size
+     * is specified, consecutive blocks are formatted in parallel and written in order.
+     */
+    private void write(Frame df, WritableByteChannel channel) throws IOException {
+        RowBlock block = new RowBlock(df);
+        if (header) {
+            block.formatHeader();
+            block.writeTo(channel);
+        }
+        int rows = df.rowCount();
+        if (poolSize == 0) {
+            for (int start = 0; start < rows; start += WRITE_BLOCK_ROWS) {
+                block.formatRows(start, Math.min(rows, start + WRITE_BLOCK_ROWS));
+                block.writeTo(channel);
+            }
+            return;
+        }
+        int threads = threads();
+        RowBlock[] blocks = new RowBlock[threads * 2];
+        blocks[0] = block;
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = new RowBlock(df);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int start = 0; start < rows; start += blocks.length * WRITE_BLOCK_ROWS) {
+                int first = start;
+                int count = Math.min(blocks.length, (rows - start + WRITE_BLOCK_ROWS - 1) / WRITE_BLOCK_ROWS);
+                runParallel(pool, count, i -> {
+                    int from = first + i * WRITE_BLOCK_ROWS;
+                    blocks[i].formatRows(from, Math.min(rows, from + WRITE_BLOCK_ROWS));
+                });
+                for (int i = 0; i < count; i++) {
+                    blocks[i].writeTo(channel);
                 }
-                writer.append("\n");
             }
-            DecimalFormat format = new DecimalFormat("0.###############################");
-            for (int i = 0; i < df.rowCount(); i++) {
-                for (int j = 0; j < df.varCount(); j++) {
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reusable byte buffer which contains formatted rows.
+     */
+    private final class RowBlock {
+
+        private final Frame df;
+        private final Var[] vars;
+        private final byte[] separator = String.valueOf(separatorChar).getBytes(charset);
+        private final byte[] escape = String.valueOf(escapeChar).getBytes(charset);
+        private byte[] buf = new byte[1 << 16];
+        private int len;
+
+        RowBlock(Frame df) {
+            this.df = df;
+            this.vars = new Var[df.varCount()];
+            for (int i = 0; i < vars.length; i++) {
+                vars[i] = df.var(i);
+            }
+        }
+
+        void formatHeader() {
+            len = 0;
+            String[] names = df.varNames();
+            for (int i = 0; i < names.length; i++) {
+                if (i != 0) {
+                    append(separator);
+                }
+                append(names[i].getBytes(charset));
+            }
+            appendByte('\n');
+        }
+
+        void formatRows(int start, int end) {
+            len = 0;
+            for (int row = start; row < end; row++) {
+                for (int j = 0; j < vars.length; j++) {
                     if (j != 0) {
-                        writer.append(separatorChar);
-                    }
-                    if (df.var(j).missing(i)) {
-                        writer.append("?");
-                        continue;
-                    }
-                    if (df.var(j).type().isNominal() || df.var(j).type().equals(VarType.TEXT)) {
-                        writer.append(unclean(df.label(i, j)));
-                    } else {
-                        writer.append(format.format(df.value(i, j)));
+                        append(separator);
                     }
+                    formatValue(vars[j], row);
+                }
+                appendByte('\n');
+            }
+        }
+
+        private void formatValue(Var var, int row) {
+            if (var.missing(row)) {
+                appendByte('?');
+                return;
+            }
+            ensure(CsvNumberFormat.MAX_LENGTH);
+            switch (var.type()) {
+                case NUMERIC:
+                    len = CsvNumberFormat.format(var.value(row), buf, len);
+                    break;
+                case BINARY:
+                    buf[len++] = (byte) (var.binary(row) ? '1' : '0');
+                    break;
+                case INDEX:
+                    formatLong(var.index(row));
+                    break;
+                case STAMP:
+                    formatLong(var.stamp(row));
+                    break;
+                default:
+                    formatLabel(var.label(row));
+            }
+        }
+
+        private void formatLong(long value) {
+            if (value < 0) {
+                buf[len++] = '-';
+                if (value == Long.MIN_VALUE) {
+                    append(String.valueOf(value).substring(1).getBytes(charset));
+                    return;
                 }
-                writer.append("\n");
+                value = -value;
+            }
+            len = CsvNumberFormat.format(value, buf, len);
+        }
+
+        private void formatLabel(String label) {
+            ensure(label.length() * 2 + 2);
+            int start = len;
+            if (quotes) {
+                buf[len++] = '\"';
+            }
+            for (int i = 0; i < label.length(); i++) {
+                char ch = label.charAt(i);
+                if (ch >= 0x80 || escape.length != 1) {
+                    // not ascii content, encode the whole label
+                    len = start;
+                    append(unclean(label).getBytes(charset));
+                    return;
+                }
+                if (ch == '\"') {
+                    buf[len++] = escape[0];
+                }
+                buf[len++] = (byte) ch;
+            }
+            if (quotes) {
+                buf[len++] = '\"';
+            }
+        }
+
+        private void appendByte(char ch) {
+            ensure(1);
+            buf[len++] = (byte) ch;
+        }
+
+        private void append(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        private void ensure(int size) {
+            if (buf.length < len + size) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + size));
+            }
+        }
+
+        void writeTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
-            writer.flush();
         }
     }
 
@@ -443,39 +1145,87 @@ public class Csv {
 
     static class VarSlot {
 
+        private static final String MISSING = "?";
+
         private final Csv parent;
+        private final char[][] naValues;
 
         private final VarType type;
         private Var var;
-        private Text text;
+        // raw tokens, kept while the default type can still change
+        private Tokens tokens;
+        // index of nominal labels, built on first use
+        private LabelIndex labels;
 
         /**
          * Constructor for slot which does not have a predefined type, it tries the best by using default types
          */
         public VarSlot(Csv parent, int rows) {
             this.parent = parent;
+            this.naValues = naValues(parent);
             this.type = null;
             this.var = parent.defaultTypes[0].newInstance(rows);
-            this.text = Text.empty();
+            this.tokens = new Tokens(rows);
         }
 
         public VarSlot(Csv parent, VarType varType, int rows) {
             this.parent = parent;
+            this.naValues = naValues(parent);
             this.type = varType;
             this.var = varType.newInstance(rows);
-            this.text = null;
+            this.tokens = null;
         }
 
         public VarSlot(Csv parent, Var template, int rows) {
             this.parent = parent;
+            this.naValues = naValues(parent);
             this.type = template.type();
-            this.var = template.newInstance(rows);
-            this.text = null;
+            this.var = template.newInstance(rows).withName(template.name());
+            this.tokens = null;
         }
 
-        public void addValue(String value) {
-            if (parent.naValues.contains(value)) {
-                value = "?";
+        /**
+         * Constructor for slot with a type inferred from a sample, which starts with the type
+         * and levels of the sample and is promoted through the remaining default types
+         */
+        public VarSlot(Csv parent, int rows, Var sample) {
+            this.parent = parent;
+            this.naValues = naValues(parent);
+            this.type = null;
+            this.var = sample.newInstance(rows).withName(sample.name());
+            VarType[] defaultTypes = parent.defaultTypes;
+            this.tokens = (var.type() == defaultTypes[defaultTypes.length - 1]) ? null : new Tokens(rows);
+        }
+
+        private static char[][] naValues(Csv parent) {
+            char[][] values = new char[parent.naValues.size()][];
+            int pos = 0;
+            for (String value : parent.naValues) {
+                values[pos++] = value.toCharArray();
+            }
+            return values;
+        }
+
+        private boolean isNA(char[] buf, int start, int end) {
+            for (char[] naValue : naValues) {
+                if (CsvTokenizer.equals(buf, start, end, naValue)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void addMissing() {
+            var.addLabel(MISSING);
+            if (tokens != null) {
+                tokens.addMissing();
+            }
+        }
+
+        public void addValue(char[] buf, int start, int end) {
+            if (isNA(buf, start, end)) {
+                addMissing();
+                return;
             }
             if (type == null) {
 
@@ -485,9 +1235,9 @@ public class Csv {
 
                     // try first to add value to the current default type
                     try {
-                        var.addLabel(value);
-                        if (text != null) {
-                            text.addLabel(value);
+                        add(buf, start, end);
+                        if (tokens != null) {
+                            tokens.add(buf, start, end);
                         }
                         return;
                     } catch (Throwable th) {
@@ -495,7 +1245,7 @@ public class Csv {
                         if (var.type() == parent.defaultTypes[parent.defaultTypes.length - 1]) {
                             throw new IllegalArgumentException(
                                     String.format("Could not parse value %s in type %s. Error: %s",
-                                            value, var.type(), th.getMessage()));
+                                            new String(buf, start, end - start), var.type(), th.getMessage()));
                         }
                     }
 
@@ -512,16 +1262,16 @@ public class Csv {
                     for (int i = pos; i < parent.defaultTypes.length; i++) {
                         try {
                             var = parent.defaultTypes[i].newInstance();
-                            if (text != null && text.rowCount() > 0)
-                                text.stream().forEach(s -> var.addLabel(s.label()));
+                            labels = null;
+                            replay(tokens);
                             if (i == parent.defaultTypes.length - 1)
-                                text = null;
+                                tokens = null;
                             break;
                         } catch (Exception th) {
                             if (i == parent.defaultTypes.length - 1) {
                                 throw new IllegalArgumentException(
                                         String.format("Could not parse value %s in type %s. Error: %s",
-                                                value, var.type(), th.getMessage()));
+                                                new String(buf, start, end - start), var.type(), th.getMessage()));
                             }
                         }
                     }
@@ -531,11 +1281,143 @@ public class Csv {
                 // for non-default values
 
                 try {
-                    var.addLabel(value);
+                    add(buf, start, end);
                 } catch (Throwable th) {
                     throw new IllegalArgumentException(
                             String.format("Could not parse value %s in type %s for variable with name: %s. Error: %s",
-                                    value, var.type(), var.name(), th.getMessage()));
+                                    new String(buf, start, end - start), var.type(), var.name(), th.getMessage()));
+                }
+            }
+        }
+
+        /**
+         * Adds a token to the current variable. Common formats are parsed directly from
+         * the character buffer and anything else falls back to {@link Var#addLabel(String)},
+         * which also produces the parsing errors.
+         */
+        private void add(char[] buf, int start, int end) {
+            switch (var.type()) {
+                case NUMERIC:
+                    double value = CsvTokenizer.parseDouble(buf, start, end);
+                    if (!Double.isNaN(value)) {
+                        var.addValue(value);
+                        return;
+                    }
+                    break;
+                case INDEX:
+                    int index = CsvTokenizer.parseInt(buf, start, end);
+                    if (index != Integer.MIN_VALUE) {
+                        var.addIndex(index);
+                        return;
+                    }
+                    break;
+                case BINARY:
+                    if (end - start == 1 && (buf[start] == '1' || buf[start] == '0')) {
+                        var.addBinary(buf[start] == '1');
+                        return;
+                    }
+                    if (CsvTokenizer.equalsIgnoreCase(buf, start, end, "true")) {
+                        var.addBinary(true);
+                        return;
+                    }
+                    if (CsvTokenizer.equalsIgnoreCase(buf, start, end, "false")) {
+                        var.addBinary(false);
+                        return;
+                    }
+                    break;
+                case NOMINAL:
+                case ORDINAL:
+                    if (labels == null) {
+                        labels = new LabelIndex();
+                        String[] levels = var.levels();
+                        for (int i = 0; i < levels.length; i++) {
+                            labels.put(levels[i], i);
+                        }
+                    }
+                    int level = labels.get(buf, start, end);
+                    if (level >= 0) {
+                        var.addIndex(level);
+                        return;
+                    }
+                    String label = new String(buf, start, end - start);
+                    var.addLabel(label);
+                    labels.put(label, var.index(var.rowCount() - 1));
+                    return;
+                default:
+            }
+            var.addLabel(new String(buf, start, end - start));
+        }
+
+        private void replay(Tokens values) {
+            char[] data = values.data();
+            for (int i = 0; i < values.size(); i++) {
+                if (values.missing(i)) {
+                    var.addLabel(MISSING);
+                } else {
+                    add(data, values.start(i), values.end(i));
+                }
+            }
+        }
+
+        /**
+         * Appends the values from a var slot built from another chunk of rows.
+         *
+         * @param other var slot with values, or null if the chunk has no such column
+         * @param rows  number of rows of the other chunk
+         */
+        public void append(VarSlot other, int rows) {
+            if (other == null) {
+                for (int i = 0; i < rows; i++) {
+                    addMissing();
+                }
+                return;
+            }
+            if (type == null && other.var.type() != var.type()) {
+                if (other.tokens != null) {
+                    // other slot has all tokens, thus they are parsed again
+                    char[] data = other.tokens.data();
+                    for (int i = 0; i < other.tokens.size(); i++) {
+                        if (other.tokens.missing(i)) {
+                            addMissing();
+                        } else {
+                            addValue(data, other.tokens.start(i), other.tokens.end(i));
+                        }
+                    }
+                    return;
+                }
+                // other slot has the last default type, promote this slot to the same type
+                var = other.var.type().newInstance();
+                labels = null;
+                replay(tokens);
+                tokens = null;
+            }
+            appendValues(var, other.var);
+            if (tokens != null) {
+                tokens.addAll(other.tokens);
+            }
+        }
+
+        private static void appendValues(Var dst, Var src) {
+            for (int i = 0; i < src.rowCount(); i++) {
+                if (src.missing(i)) {
+                    dst.addMissing();
+                    continue;
+                }
+                switch (dst.type()) {
+                    case NUMERIC:
+                        dst.addValue(src.value(i));
+                        break;
+                    case BINARY:
+                        dst.addBinary(src.binary(i));
+                        break;
+                    case INDEX:
+                        dst.addIndex(src.index(i));
+                        break;
+                    case STAMP:
+                        dst.addStamp(src.stamp(i));
+                        break;
+                    default:
+                        dst.addLabel(src.label(i));
                 }
             }
         }
@@ -544,5 +1426,140 @@ public class Csv {
             return var;
         }
     }
-}
 
+    /**
+     * Raw tokens stored contiguously in a single character array.
+     */
+    private static final class Tokens {
+
+        private char[] data = new char[256];
+        private int length = 0;
+        private int[] ends = new int[16];
+        private int size = 0;
+        private final BitSet missing = new BitSet();
+
+        Tokens(int rows) {
+            for (int i = 0; i < rows; i++) {
+                addMissing();
+            }
+        }
+
+        void add(char[] buf, int start, int end) {
+            if (data.length < length + end - start) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + end - start));
+            }
+            System.arraycopy(buf, start, data, length, end - start);
+            length += end - start;
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            ends[size++] = length;
+        }
+
+        void addMissing() {
+            missing.set(size);
+            add(data, 0, 0);
+        }
+
+        void addAll(Tokens other) {
+            for (int i = 0; i < other.size; i++) {
+                if (other.missing(i)) {
+                    addMissing();
+                } else {
+                    add(other.data, other.start(i), other.end(i));
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        char[] data() {
+            return data;
+        }
+
+        boolean missing(int i) {
+            return missing.get(i);
+        }
+
+        int start(int i) {
+            return i == 0 ? 0 : ends[i - 1];
+        }
+
+        int end(int i) {
+            return ends[i];
+        }
+    }
+
+    /**
+     * Open addressing hash index from labels to level indexes, which can be
+     * queried with characters from a buffer without creating strings.
+     */
+    private static final class LabelIndex {
+
+        private String[] keys = new String[16];
+        private int[] values = new int[16];
+        private int size = 0;
+
+        int get(char[] buf, int start, int end) {
+            int mask = keys.length - 1;
+            for (int i = hash(buf, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key.length() == end - start && matches(key, buf, start)) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                String[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = new String[oldKeys.length * 2];
+                values = new int[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        put(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int i = spread(key.hashCode()) & mask;
+            while (keys[i] != null) {
+                if (keys[i].equals(key)) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        private static boolean matches(String key, char[] buf, int start) {
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(char[] buf, int start, int end) {
+            // same as String.hashCode
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + buf[i];
+            }
+            return spread(h);
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a character stream into a reusable buffer.
+ * <p>
+ * Lines are terminated by any of {@code '\n'}, {@code '\r'} or {@code "\r\n"},
+ * the same rules used by {@link java.io.BufferedReader#readLine()}. After a successful
+ * call to {@link #next()} the current line is available in {@link #buffer()} between
+ * {@link #start()} inclusive and {@link #end()} exclusive, until the next call.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class CsvLineReader {
+
+    private final Reader reader;
+    private char[] buffer = new char[1 << 16];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private boolean skipLF = false;
+
+    private int start;
+    private int end;
+
+    CsvLineReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return false if there are no more lines
+     */
+    boolean next() throws IOException {
+        int scan = pos;
+        while (true) {
+            if (skipLF) {
+                if (scan == limit && !fill()) {
+                    return false;
+                }
+                scan = pos;
+                if (buffer[pos] == '\n') {
+                    pos++;
+                    scan++;
+                }
+                skipLF = false;
+            }
+            while (scan < limit) {
+                char ch = buffer[scan];
+                if (ch == '\n' || ch == '\r') {
+                    start = pos;
+                    end = scan;
+                    pos = scan + 1;
+                    skipLF = ch == '\r';
+                    return true;
+                }
+                scan++;
+            }
+            int scanned = scan - pos;
+            if (!fill()) {
+                if (pos == limit) {
+                    return false;
+                }
+                // last line without terminator
+                start = pos;
+                end = limit;
+                pos = limit;
+                return true;
+            }
+            scan = pos + scanned;
+        }
+    }
+
+    /**
+     * Moves the unconsumed characters at the beginning of the buffer and reads more characters.
+     *
+     * @return false if the end of the stream was reached and no characters were added
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read;
+        do {
+            read = reader.read(buffer, limit, buffer.length - limit);
+        } while (read == 0);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    char[] buffer() {
+        return buffer;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+}
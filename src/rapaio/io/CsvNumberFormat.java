@@ -0,0 +1,369 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.math.BigInteger;
+
+/**
+ * Formats double values with the shortest decimal representation which is read back
+ * as the same double value.
+ * <p>
+ * The implementation follows the Ryu algorithm of Ulf Adams (Ryū: fast float-to-string
+ * conversion, PLDI 2018). Digits are written as ASCII bytes into a caller buffer,
+ * thus no objects are created for formatting a value.
+ * <p>
+ * Values are written in plain notation when the decimal point is close to the
+ * significant digits, otherwise in scientific notation, and integer values are
+ * written without a fraction part. Infinite values are written as {@code Inf} and
+ * {@code -Inf}, as they are understood by numeric variables.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class CsvNumberFormat {
+
+    /**
+     * Maximum number of bytes written for a value.
+     */
+    static final int MAX_LENGTH = 32;
+
+    private static final int MANTISSA_BITS = 52;
+    private static final int EXPONENT_BIAS = 1023;
+
+    private static final int POW5_BITCOUNT = 125;
+    private static final int POW5_INV_BITCOUNT = 125;
+    private static final int POW5_TABLE_SIZE = 326;
+    private static final int POW5_INV_TABLE_SIZE = 342;
+
+    // 5^i normalized to POW5_BITCOUNT bits, split in low and high 64 bits
+    private static final long[] POW5_LO = new long[POW5_TABLE_SIZE];
+    private static final long[] POW5_HI = new long[POW5_TABLE_SIZE];
+    // 2^(bits(5^i) - 1 + POW5_INV_BITCOUNT) / 5^i + 1, split in low and high 64 bits
+    private static final long[] POW5_INV_LO = new long[POW5_INV_TABLE_SIZE];
+    private static final long[] POW5_INV_HI = new long[POW5_INV_TABLE_SIZE];
+
+    static {
+        BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        BigInteger five = BigInteger.valueOf(5);
+        for (int i = 0; i < POW5_INV_TABLE_SIZE; i++) {
+            BigInteger pow = five.pow(i);
+            int len = pow.bitLength();
+            if (i < POW5_TABLE_SIZE) {
+                BigInteger split = len > POW5_BITCOUNT
+                        ? pow.shiftRight(len - POW5_BITCOUNT)
+                        : pow.shiftLeft(POW5_BITCOUNT - len);
+                POW5_LO[i] = split.and(mask).longValue();
+                POW5_HI[i] = split.shiftRight(64).longValue();
+            }
+            BigInteger inv = BigInteger.ONE.shiftLeft(len - 1 + POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE);
+            POW5_INV_LO[i] = inv.and(mask).longValue();
+            POW5_INV_HI[i] = inv.shiftRight(64).longValue();
+        }
+    }
+
+    private CsvNumberFormat() {
+    }
+
+    /**
+     * Writes the shortest round-trip representation of the value.
+     *
+     * @param value value to be formatted
+     * @param buf   destination buffer, which must have at least {@link #MAX_LENGTH} bytes available
+     * @param pos   position of the first written byte
+     * @return position after the last written byte
+     */
+    static int format(double value, byte[] buf, int pos) {
+        if (Double.isNaN(value)) {
+            return ascii("NaN", buf, pos);
+        }
+        if (Double.isInfinite(value)) {
+            return ascii(value > 0 ? "Inf" : "-Inf", buf, pos);
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0) {
+            buf[pos++] = '-';
+        }
+        if (value == 0) {
+            buf[pos++] = '0';
+            return pos;
+        }
+        double abs = Math.abs(value);
+        if (abs < 1e15 && abs == Math.rint(abs)) {
+            // small integers are exact, write them directly
+            return format((long) abs, buf, pos);
+        }
+
+        long ieeeMantissa = bits & ((1L << MANTISSA_BITS) - 1);
+        int ieeeExponent = (int) ((bits >>> MANTISSA_BITS) & 0x7ff);
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - EXPONENT_BIAS - MANTISSA_BITS - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - EXPONENT_BIAS - MANTISSA_BITS - 2;
+            m2 = ieeeMantissa | (1L << MANTISSA_BITS);
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        // step 2: determine the interval of valid decimal representations
+        long mv = 4 * m2;
+        int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+
+        // step 3: convert to a decimal power base
+        long vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV_LO[q], POW5_INV_HI[q], i);
+            vp = mulShift(mv + 2, POW5_INV_LO[q], POW5_INV_HI[q], i);
+            vm = mulShift(mv - 1 - mmShift, POW5_INV_LO[q], POW5_INV_HI[q], i);
+            if (q <= 21) {
+                // only one of mp, mv, and mm can be a multiple of 5, if any
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = multipleOfPowerOf5(mv - 1 - mmShift, q);
+                } else {
+                    vp -= multipleOfPowerOf5(mv + 2, q) ? 1 : 0;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift(mv, POW5_LO[i], POW5_HI[i], j);
+            vp = mulShift(mv + 2, POW5_LO[i], POW5_HI[i], j);
+            vm = mulShift(mv - 1 - mmShift, POW5_LO[i], POW5_HI[i], j);
+            if (q <= 1) {
+                // mv has at least q trailing zero bits, since it is a multiple of 4
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    --vp;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        // step 4: find the shortest decimal representation in the interval
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            // general case, which happens rarely
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // round even if the exact number is .....50..0
+                lastRemovedDigit = 4;
+            }
+            output = vr + (((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5) ? 1 : 0);
+        } else {
+            // common case
+            boolean roundUp = false;
+            if (vp / 100 > vm / 100) {
+                // remove two digits at a time
+                roundUp = vr % 100 >= 50;
+                vr /= 100;
+                vp /= 100;
+                vm /= 100;
+                removed += 2;
+            }
+            while (vp / 10 > vm / 10) {
+                roundUp = vr % 10 >= 5;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + ((vr == vm || roundUp) ? 1 : 0);
+        }
+        return format(output, e10 + removed, buf, pos);
+    }
+
+    /**
+     * Writes the decimal digits of a non negative long value.
+     */
+    static int format(long value, byte[] buf, int pos) {
+        int len = decimalLength(value);
+        for (int i = pos + len - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + len;
+    }
+
+    /**
+     * Writes the value {@code digits * 10^exp}.
+     */
+    private static int format(long digits, int exp, byte[] buf, int pos) {
+        int len = decimalLength(digits);
+        // number of digits before the decimal point
+        int point = len + exp;
+        if (exp >= 0 && point <= 21) {
+            pos = format(digits, buf, pos);
+            for (int i = 0; i < exp; i++) {
+                buf[pos++] = '0';
+            }
+            return pos;
+        }
+        if (exp < 0 && point > 0) {
+            int end = format(digits, buf, pos + 1);
+            System.arraycopy(buf, pos + 1, buf, pos, point);
+            buf[pos + point] = '.';
+            return end;
+        }
+        if (point <= 0 && point > -6) {
+            buf[pos++] = '0';
+            buf[pos++] = '.';
+            for (int i = 0; i < -point; i++) {
+                buf[pos++] = '0';
+            }
+            return format(digits, buf, pos);
+        }
+
+        // scientific notation
+        int end = format(digits, buf, pos + 1);
+        buf[pos] = buf[pos + 1];
+        if (len > 1) {
+            buf[pos + 1] = '.';
+        } else {
+            end--;
+        }
+        buf[end++] = 'E';
+        int e = point - 1;
+        if (e < 0) {
+            buf[end++] = '-';
+            e = -e;
+        }
+        return format(e, buf, end);
+    }
+
+    private static int ascii(String text, byte[] buf, int pos) {
+        for (int i = 0; i < text.length(); i++) {
+            buf[pos++] = (byte) text.charAt(i);
+        }
+        return pos;
+    }
+
+    private static int decimalLength(long value) {
+        long pow = 10;
+        for (int len = 1; len < 19; len++) {
+            if (value < pow) {
+                return len;
+            }
+            pow *= 10;
+        }
+        return 19;
+    }
+
+    /**
+     * @return floor(log10(2^e)) for 0 &lt;= e &lt;= 1650
+     */
+    private static int log10Pow2(int e) {
+        return (e * 78913) >>> 18;
+    }
+
+    /**
+     * @return floor(log10(5^e)) for 0 &lt;= e &lt;= 2620
+     */
+    private static int log10Pow5(int e) {
+        return (e * 732923) >>> 20;
+    }
+
+    /**
+     * @return ceil(log2(5^e)) for 1 &lt;= e &lt;= 3528, and 1 for e = 0
+     */
+    private static int pow5bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    private static boolean multipleOfPowerOf5(long value, int p) {
+        int count = 0;
+        while (value > 0 && value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count >= p;
+    }
+
+    /**
+     * Computes (m * mul) &gt;&gt; j, where mul is a 128 bits unsigned value given by its
+     * low and high 64 bits and the result fits into 64 bits.
+     */
+    private static long mulShift(long m, long mulLo, long mulHi, int j) {
+        long high0 = multiplyHigh(m, mulLo);
+        long low1 = m * mulHi;
+        long high1 = multiplyHigh(m, mulHi);
+        long sum = high0 + low1;
+        if (Long.compareUnsigned(sum, high0) < 0) {
+            high1++;
+        }
+        int dist = j - 64;
+        return dist == 0 ? sum : (high1 << (64 - dist)) | (sum >>> dist);
+    }
+
+    /**
+     * @return high 64 bits of the unsigned 128 bits product
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x0 = x & 0xffffffffL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xffffffffL;
+        long y1 = y >>> 32;
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long p11 = x1 * y1;
+        long middle = (p00 >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+}
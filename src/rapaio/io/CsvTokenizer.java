@@ -0,0 +1,359 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Splits csv lines into tokens without allocating objects for each line or token.
+ * <p>
+ * The tokenizer scans a line from a character buffer and writes the cleaned tokens,
+ * with spaces trimmed, quotes removed and escaped quotes replaced, into its own reusable
+ * buffer. The tokens are available as offsets into that buffer until the next line
+ * is tokenized.
+ * <p>
+ * It contains also number parsers which works directly on character buffers. They
+ * return a sentinel value when the token can't be parsed by the fast path and
+ * the caller has to fall back to the standard parsing methods.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class CsvTokenizer {
+
+    private final char separatorChar;
+    private final char escapeChar;
+    private final boolean quotes;
+    private final boolean trimSpaces;
+    private final Predicate<Integer> skipCols;
+
+    private boolean[] skipKnown = new boolean[16];
+    private boolean[] skip = new boolean[16];
+
+    private char[] buffer = new char[256];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count;
+
+    CsvTokenizer(char separatorChar, char escapeChar, boolean quotes, boolean trimSpaces, Predicate<Integer> skipCols) {
+        this.separatorChar = separatorChar;
+        this.escapeChar = escapeChar;
+        this.quotes = quotes;
+        this.trimSpaces = trimSpaces;
+        this.skipCols = skipCols;
+    }
+
+    /**
+     * Tokenizes the characters from {@code line} between {@code from} inclusive and {@code to} exclusive.
+     *
+     * @return number of tokens, skipped columns are not counted
+     */
+    int tokenize(char[] line, int from, int to) {
+        count = 0;
+        int pos = 0;
+        int start = from;
+        int colNum = 0;
+        int end;
+        while (start < to) {
+            end = start;
+            boolean inQuotas = false;
+            while (end < to) {
+                char ch = line[end++];
+                if (!inQuotas && ch == '"') {
+                    inQuotas = true;
+                    continue;
+                }
+                if (inQuotas && ch == escapeChar) {
+                    if (end < to && line[end] == '\"') {
+                        end++;
+                        continue;
+                    }
+                }
+                if (inQuotas && ch == '"') {
+                    if (escapeChar == '\"') {
+                        if (end < to && line[end] == '\"') {
+                            end++;
+                            continue;
+                        }
+                    }
+                    inQuotas = false;
+                    continue;
+                }
+                if (!inQuotas && (ch == separatorChar)) {
+                    end--;
+                    break;
+                }
+            }
+
+            if (!skipCol(colNum)) {
+                pos = clean(line, start, end, pos);
+            }
+
+            start = end + 1;
+            colNum += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Clean the token and appends it to the buffer. - remove trailing and leading spaces,
+     * before and after removing quotes - remove leading and trailing quotes - remove
+     * escape quota character
+     */
+    private int clean(char[] line, int start, int end, int pos) {
+        if (trimSpaces) {
+            while (start < end && line[start] <= ' ') start++;
+            while (end > start && line[end - 1] <= ' ') end--;
+        }
+        if (quotes && start < end) {
+            if (line[start] == '\"') {
+                start++;
+            }
+            if (start < end && line[end - 1] == '\"') {
+                end--;
+            }
+        }
+        if (buffer.length < pos + end - start) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pos + end - start));
+        }
+        int tokStart = pos;
+        if (quotes) {
+            for (int i = start; i < end; i++) {
+                if (i < end - 1 && line[i] == escapeChar && line[i + 1] == '\"') {
+                    buffer[pos++] = '\"';
+                    i++;
+                    continue;
+                }
+                buffer[pos++] = line[i];
+            }
+        } else {
+            System.arraycopy(line, start, buffer, pos, end - start);
+            pos += end - start;
+        }
+        int tokEnd = pos;
+        if (trimSpaces) {
+            while (tokStart < tokEnd && buffer[tokStart] <= ' ') tokStart++;
+            while (tokEnd > tokStart && buffer[tokEnd - 1] <= ' ') tokEnd--;
+        }
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = tokStart;
+        ends[count] = tokEnd;
+        count++;
+        return pos;
+    }
+
+    private boolean skipCol(int col) {
+        if (col >= skipKnown.length) {
+            skipKnown = Arrays.copyOf(skipKnown, Math.max(col + 1, skipKnown.length * 2));
+            skip = Arrays.copyOf(skip, skipKnown.length);
+        }
+        if (!skipKnown[col]) {
+            skip[col] = skipCols.test(col);
+            skipKnown[col] = true;
+        }
+        return skip[col];
+    }
+
+    char[] buffer() {
+        return buffer;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return ends[i];
+    }
+
+    String token(int i) {
+        return new String(buffer, starts[i], ends[i] - starts[i]);
+    }
+
+    List<String> tokens() {
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(token(i));
+        }
+        return tokens;
+    }
+
+    // number parsing
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parses a decimal number of the form {@code [+-]digits[.digits][(e|E)[+-]digits]}.
+     * <p>
+     * The value is computed exactly when the significand has at most 15 digits and
+     * the decimal exponent is at most 22 in absolute value, since both the significand
+     * and the power of ten are exact doubles and a single rounding is done.
+     *
+     * @return parsed value or Double.NaN if the token is not handled by the fast path
+     */
+    static double parseDouble(char[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long significand = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            any = true;
+            int d = buf[i++] - '0';
+            if (significand == 0 && d == 0) {
+                continue;
+            }
+            if (++digits > 15) {
+                return Double.NaN;
+            }
+            significand = significand * 10 + d;
+        }
+        if (i < end && buf[i] == '.') {
+            i++;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                any = true;
+                int d = buf[i++] - '0';
+                exponent--;
+                if (significand == 0 && d == 0) {
+                    continue;
+                }
+                if (++digits > 15) {
+                    return Double.NaN;
+                }
+                significand = significand * 10 + d;
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExp = buf[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return Double.NaN;
+            }
+            int exp = 0;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                exp = exp * 10 + (buf[i++] - '0');
+                if (exp > 1000) {
+                    return Double.NaN;
+                }
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        double value;
+        if (significand == 0) {
+            value = 0.0;
+        } else if (exponent == 0) {
+            value = significand;
+        } else if (exponent > 0 && exponent <= 22) {
+            value = significand * POW10[exponent];
+        } else if (exponent < 0 && exponent >= -22) {
+            value = significand / POW10[-exponent];
+        } else {
+            return Double.NaN;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses an integer of the form {@code [+-]digits} with at most 9 digits.
+     *
+     * @return parsed value or Integer.MIN_VALUE if the token is not handled by the fast path
+     */
+    static int parseInt(char[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            return Integer.MIN_VALUE;
+        }
+        int value = 0;
+        while (i < end) {
+            char ch = buf[i++];
+            if (ch < '0' || ch > '9') {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return true if the token is equal with the given text, ignoring case
+     */
+    static boolean equalsIgnoreCase(char[] buf, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (Character.toLowerCase(buf[i]) != Character.toLowerCase(text.charAt(i - start))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the token is equal with the given text
+     */
+    static boolean equals(char[] buf, int start, int end, char[] text) {
+        if (end - start != text.length) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buf[i] != text[i - start]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
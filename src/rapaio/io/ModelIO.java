@@ -0,0 +1,86 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores and restores models in a compact and versioned binary format.
+ * <p>
+ * A model file starts with a magic marker and a format version, followed by the
+ * class name of the model and its content as written by {@link ModelWritable#writeModel(ModelOutput)}.
+ * Unlike {@link JavaIO}, only the learned artifacts are stored, as flat arrays of values.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class ModelIO {
+
+    private static final byte[] MAGIC = "RAPAIOMF".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+
+    public static void write(ModelWritable model, String file) throws IOException {
+        write(model, new File(file));
+    }
+
+    public static void write(ModelWritable model, File file) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            write(model, os);
+        }
+    }
+
+    public static void write(ModelWritable model, OutputStream os) throws IOException {
+        ModelOutput out = new ModelOutput(new BufferedOutputStream(os, 1 << 16));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeModel(model);
+        out.flush();
+    }
+
+    public static <T> T read(String file) throws IOException {
+        return read(new File(file));
+    }
+
+    public static <T> T read(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return read(is);
+        }
+    }
+
+    public static <T> T read(InputStream is) throws IOException {
+        ModelInput in = new ModelInput(new BufferedInputStream(is, 1 << 16));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a binary model file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary model format version: " + version);
+        }
+        return in.readModel();
+    }
+}
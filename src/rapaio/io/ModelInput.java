@@ -0,0 +1,134 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import rapaio.data.VarType;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data input used to read models written by {@link ModelOutput}.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class ModelInput extends DataInputStream {
+
+    public ModelInput(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Decodes a model block read with {@link #readBlock()}.
+     */
+    public static Object decode(byte[] block) throws IOException {
+        return new ModelInput(new ByteArrayInputStream(block)).readModel();
+    }
+
+    public String readString() throws IOException {
+        int len = readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String[] readStrings() throws IOException {
+        String[] values = new String[readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString();
+        }
+        return values;
+    }
+
+    public double[] readDoubles() throws IOException {
+        double[] values = new double[readInt()];
+        byte[] bytes = new byte[values.length * 8];
+        readFully(bytes);
+        ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    public int[] readInts() throws IOException {
+        int[] values = new int[readInt()];
+        byte[] bytes = new byte[values.length * 4];
+        readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    public VarType[] readVarTypes() throws IOException {
+        VarType[] all = VarType.values();
+        VarType[] types = new VarType[readInt()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = all[readByte()];
+        }
+        return types;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T readSerializable() throws IOException {
+        byte[] bytes = new byte[readInt()];
+        readFully(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (T) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads a nested model written with {@link ModelOutput#writeModel(Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T readModel() throws IOException {
+        String className = readString();
+        try {
+            Method method = Class.forName(className).getMethod("readModel", ModelInput.class);
+            return (T) method.invoke(null, this);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("cannot read model " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("cannot read model " + className, e);
+        }
+    }
+
+    /**
+     * Reads a model block written with {@link ModelOutput#writeBlock(Object)}, without decoding it.
+     */
+    public byte[] readBlock() throws IOException {
+        byte[] block = new byte[readInt()];
+        readFully(block);
+        return block;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import rapaio.data.VarType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data output used to write models in the compact binary model format.
+ * <p>
+ * Besides the primitive values of {@link DataOutputStream} it writes length prefixed
+ * strings and arrays. Numeric arrays are written in bulk, nested models are written
+ * with their class name, optionally as length prefixed blocks which can be decoded later.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class ModelOutput extends DataOutputStream {
+
+    public ModelOutput(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Writes an UTF-8 string, which can be null.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        write(bytes);
+    }
+
+    public void writeStrings(String[] values) throws IOException {
+        writeInt(values.length);
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    public void writeDoubles(double[] values) throws IOException {
+        writeInt(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asDoubleBuffer().put(values);
+        write(buffer.array());
+    }
+
+    public void writeInts(int[] values) throws IOException {
+        writeInt(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        write(buffer.array());
+    }
+
+    public void writeVarTypes(VarType[] types) throws IOException {
+        writeInt(types.length);
+        for (VarType type : types) {
+            writeByte(type.ordinal());
+        }
+    }
+
+    /**
+     * Writes a small parameter object, like a filter or a kernel function, with
+     * java serialization.
+     */
+    public void writeSerializable(Serializable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(value);
+        }
+        writeInt(bytes.size());
+        bytes.writeTo(this);
+    }
+
+    /**
+     * Writes a nested model, preceded by its class name.
+     *
+     * @param model model to be written
+     * @throws IllegalArgumentException if the model does not support the binary format
+     */
+    public void writeModel(Object model) throws IOException {
+        if (!(model instanceof ModelWritable)) {
+            throw new IllegalArgumentException("model " + model.getClass().getName()
+                    + " does not support binary model format");
+        }
+        writeString(model.getClass().getName());
+        ((ModelWritable) model).writeModel(this);
+    }
+
+    /**
+     * Writes a nested model as a length prefixed block, which can be read later
+     * with {@link ModelInput#readBlock()} and decoded with {@link ModelInput#decode(byte[])}.
+     */
+    public void writeBlock(Object model) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ModelOutput block = new ModelOutput(bytes);
+        block.writeModel(model);
+        block.flush();
+        writeInt(bytes.size());
+        bytes.writeTo(this);
+    }
+}
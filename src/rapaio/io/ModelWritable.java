@@ -0,0 +1,45 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import java.io.IOException;
+
+/**
+ * Model which can be stored in the compact binary model format handled by {@link ModelIO}.
+ * <p>
+ * Implementations write their state in {@link #writeModel(ModelOutput)} and must declare
+ * a public static method {@code readModel(ModelInput)} which reads it back in the same order.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public interface ModelWritable {
+
+    /**
+     * Writes the learned state of the model.
+     *
+     * @param out model output
+     */
+    void writeModel(ModelOutput out) throws IOException;
+}
@@ -27,8 +27,11 @@ package rapaio.ml.classifier;
 import rapaio.data.*;
 import rapaio.data.filter.FFilter;
 import rapaio.data.sample.RowSampler;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
 import rapaio.printer.format.TextTable;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -216,6 +219,52 @@ public abstract class AbstractClassifier implements Classifier {
         return sb.toString();
     }
 
+    /**
+     * Writes the state shared by all classifiers in the binary model format:
+     * input filters, input and target names and types, target levels and running parameters.
+     */
+    protected void writeBase(ModelOutput out) throws IOException {
+        out.writeSerializable(new ArrayList<>(inputFilters));
+        out.writeBoolean(learned);
+        out.writeInt(poolSize);
+        out.writeInt(runs);
+        out.writeBoolean(inputNames != null);
+        if (inputNames == null) {
+            return;
+        }
+        out.writeStrings(inputNames);
+        out.writeVarTypes(inputTypes);
+        out.writeStrings(targetNames);
+        out.writeVarTypes(targetTypes);
+        out.writeInt(dict.size());
+        for (Map.Entry<String, String[]> e : dict.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeStrings(e.getValue());
+        }
+    }
+
+    /**
+     * Reads the state written by {@link #writeBase(ModelOutput)}.
+     */
+    protected void readBase(ModelInput in) throws IOException {
+        inputFilters = in.readSerializable();
+        learned = in.readBoolean();
+        poolSize = in.readInt();
+        runs = in.readInt();
+        if (!in.readBoolean()) {
+            return;
+        }
+        inputNames = in.readStrings();
+        inputTypes = in.readVarTypes();
+        targetNames = in.readStrings();
+        targetTypes = in.readVarTypes();
+        int size = in.readInt();
+        dict = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            dict.put(in.readString(), in.readStrings());
+        }
+    }
+
     @Override
     public AbstractClassifier withRunPoolSize(int poolSize) {
         this.poolSize = poolSize < 0 ? Runtime.getRuntime().availableProcessors() : poolSize;
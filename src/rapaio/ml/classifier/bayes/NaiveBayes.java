@@ -29,6 +29,9 @@ import rapaio.data.Frame;
 import rapaio.data.Var;
 import rapaio.data.VarType;
 import rapaio.data.filter.FFilter;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.AbstractClassifier;
 import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.bayes.estimator.*;
@@ -36,6 +39,7 @@ import rapaio.ml.common.Capabilities;
 import rapaio.sys.WS;
 import rapaio.util.Tag;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -51,7 +55,7 @@ import java.util.stream.IntStream;
  *
  * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
  */
-public class NaiveBayes extends AbstractClassifier {
+public class NaiveBayes extends AbstractClassifier implements ModelWritable {
 
     private static final long serialVersionUID = -7602854063045679683L;
     private static final Logger logger = Logger.getLogger(NaiveBayes.class.getName());
@@ -223,6 +227,68 @@ public class NaiveBayes extends AbstractClassifier {
 		return sumLog;
 	}
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeDouble(laplaceSmoother);
+        out.writeModel(numData.numEstimator);
+        out.writeModel(nomData.nomEstimator);
+        out.writeModel(binData.binEstimator);
+        out.writeBoolean(priors != null);
+        if (priors == null) {
+            return;
+        }
+        String[] labels = priors.keySet().toArray(new String[0]);
+        out.writeStrings(labels);
+        out.writeDoubles(Arrays.stream(labels).mapToDouble(priors::get).toArray());
+        writeEstimators(out, numData.numMap);
+        writeEstimators(out, nomData.nomMap);
+        writeEstimators(out, binData.binMap);
+    }
+
+    private static void writeEstimators(ModelOutput out, Map<String, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, ?> e : map.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeModel(e.getValue());
+        }
+    }
+
+    private static <T> Map<String, T> readEstimators(ModelInput in) throws IOException {
+        int size = in.readInt();
+        Map<String, T> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String name = in.readString();
+            map.put(name, in.readModel());
+        }
+        return map;
+    }
+
+    /**
+     * Reads a model written with {@link #writeModel(ModelOutput)}. The prior supplier takes its default value.
+     */
+    public static NaiveBayes readModel(ModelInput in) throws IOException {
+        NaiveBayes nb = new NaiveBayes();
+        nb.readBase(in);
+        nb.laplaceSmoother = in.readDouble();
+        nb.numData.numEstimator = in.readModel();
+        nb.nomData.nomEstimator = in.readModel();
+        nb.binData.binEstimator = in.readModel();
+        if (!in.readBoolean()) {
+            return nb;
+        }
+        String[] labels = in.readStrings();
+        double[] values = in.readDoubles();
+        nb.priors = new HashMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            nb.priors.put(labels[i], values[i]);
+        }
+        nb.numData.numMap = readEstimators(in);
+        nb.nomData.nomMap = readEstimators(in);
+        nb.binData.binMap = readEstimators(in);
+        return nb;
+    }
+
     @Override
     public String summary() {
         StringBuilder sb = new StringBuilder();
@@ -28,7 +28,11 @@ import rapaio.core.distributions.Distribution;
 import rapaio.core.distributions.Normal;
 import rapaio.core.stat.OnlineStat;
 import rapaio.data.Frame;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -38,7 +42,7 @@ import java.util.stream.Collectors;
  * <p>
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> on 5/18/15.
  */
-public class GaussianPdf implements NumericEstimator {
+public class GaussianPdf implements NumericEstimator, ModelWritable {
 
     private static final long serialVersionUID = -5974296887792054267L;
 
@@ -88,6 +92,31 @@ public class GaussianPdf implements NumericEstimator {
         return new GaussianPdf();
     }
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        String[] labels = normals.keySet().toArray(new String[0]);
+        double[] mus = new double[labels.length];
+        double[] sds = new double[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            mus[i] = normals.get(labels[i]).mean();
+            sds[i] = normals.get(labels[i]).sd();
+        }
+        out.writeStrings(labels);
+        out.writeDoubles(mus);
+        out.writeDoubles(sds);
+    }
+
+    public static GaussianPdf readModel(ModelInput in) throws IOException {
+        GaussianPdf pdf = new GaussianPdf();
+        String[] labels = in.readStrings();
+        double[] mus = in.readDoubles();
+        double[] sds = in.readDoubles();
+        for (int i = 0; i < labels.length; i++) {
+            pdf.normals.put(labels[i], new Normal(mus[i], sds[i]));
+        }
+        return pdf;
+    }
+
     @Override
     public String learningInfo() {
         return "GaussianPdf {" + normals.entrySet().stream().map(e -> e.getKey() + "~" + e.getValue().name()).collect(Collectors.joining(", ")) + '}';
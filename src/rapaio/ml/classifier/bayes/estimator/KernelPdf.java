@@ -28,8 +28,13 @@ import rapaio.core.distributions.empirical.KDE;
 import rapaio.core.distributions.empirical.KFunc;
 import rapaio.core.distributions.empirical.KFuncGaussian;
 import rapaio.data.Frame;
+import rapaio.data.Numeric;
 import rapaio.data.Var;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,7 +42,7 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> on 5/18/15.
  */
-public class KernelPdf implements NumericEstimator {
+public class KernelPdf implements NumericEstimator, ModelWritable {
 
     private static final long serialVersionUID = 7974390604811353859L;
 
@@ -86,6 +91,29 @@ public class KernelPdf implements NumericEstimator {
         return new KernelPdf(kfunc, bandwidth);
     }
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        out.writeSerializable(kfunc);
+        out.writeDouble(bandwidth);
+        out.writeInt(kde.size());
+        for (Map.Entry<String, KDE> e : kde.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeDouble(e.getValue().getBandwidth());
+            out.writeDoubles(e.getValue().getValues());
+        }
+    }
+
+    public static KernelPdf readModel(ModelInput in) throws IOException {
+        KernelPdf pdf = new KernelPdf(in.readSerializable(), in.readDouble());
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String label = in.readString();
+            double bw = in.readDouble();
+            pdf.kde.put(label, new KDE(Numeric.wrap(in.readDoubles()), pdf.kfunc, bw));
+        }
+        return pdf;
+    }
+
     @Override
     public String learningInfo() {
         return name() + "{ " + kfunc.summary() + " }";
@@ -26,8 +26,12 @@ package rapaio.ml.classifier.bayes.estimator;
 
 import rapaio.data.Frame;
 import rapaio.data.Var;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.bayes.NaiveBayes;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,7 +40,7 @@ import java.util.Map;
  * <p>
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> on 5/18/15.
  */
-public class MultinomialPmf implements NominalEstimator, BinaryEstimator {
+public class MultinomialPmf implements NominalEstimator, BinaryEstimator, ModelWritable {
 
     private static final long serialVersionUID = 3019563706421891472L;
     private double[][] density;
@@ -101,6 +105,50 @@ public class MultinomialPmf implements NominalEstimator, BinaryEstimator {
         return density[invTreeTarget.get(targetLabel)][invTreeTest.get(testLabel)];
     }
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        out.writeBoolean(density != null);
+        if (density == null) {
+            return;
+        }
+        out.writeDouble(defaultP);
+        writeDict(out, invTreeTarget);
+        writeDict(out, invTreeTest);
+        for (double[] row : density) {
+            out.writeDoubles(row);
+        }
+    }
+
+    private static void writeDict(ModelOutput out, Map<String, Integer> inv) throws IOException {
+        String[] dict = new String[inv.size()];
+        inv.forEach((label, index) -> dict[index] = label);
+        out.writeStrings(dict);
+    }
+
+    private static Map<String, Integer> readDict(ModelInput in) throws IOException {
+        String[] dict = in.readStrings();
+        Map<String, Integer> inv = new HashMap<>();
+        for (int i = 0; i < dict.length; i++) {
+            inv.put(dict[i], i);
+        }
+        return inv;
+    }
+
+    public static MultinomialPmf readModel(ModelInput in) throws IOException {
+        MultinomialPmf pmf = new MultinomialPmf();
+        if (!in.readBoolean()) {
+            return pmf;
+        }
+        pmf.defaultP = in.readDouble();
+        pmf.invTreeTarget = readDict(in);
+        pmf.invTreeTest = readDict(in);
+        pmf.density = new double[pmf.invTreeTarget.size()][];
+        for (int i = 0; i < pmf.density.length; i++) {
+            pmf.density[i] = in.readDoubles();
+        }
+        return pmf;
+    }
+
     @Override
     public MultinomialPmf newInstance() {
         return new MultinomialPmf();
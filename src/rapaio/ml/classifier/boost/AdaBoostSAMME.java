@@ -25,6 +25,8 @@
 package rapaio.ml.classifier.boost;
 
 import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.Numeric;
 import rapaio.data.Var;
 import rapaio.data.VarType;
 import rapaio.data.filter.FFilter;
@@ -35,6 +37,7 @@ import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.Classifier;
 import rapaio.ml.classifier.tree.CTree;
 import rapaio.ml.common.Capabilities;
+import rapaio.util.Util;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -51,20 +54,27 @@ public class AdaBoostSAMME extends AbstractClassifier {
 
     private static final long serialVersionUID = -9154973036108114765L;
     private static final double delta_error = 10e-10;
+    private static final int FIT_BLOCK_SIZE = 1024;
 
     // parameters
 
     private Classifier weak = CTree.newCART().withMaxDepth(6).withMinCount(6);
     private boolean stopOnError = false;
     private double shrinkage = 1.0;
+    // validation frame is not part of the model, only the number of built learners is
+    private transient Frame validation;
+    private int patience = 0;
 
     // model artifacts
 
     private List<Double> a;
     private List<Classifier> h;
-    private Var w;
     private double k;
 
+    // training state, row weights are updated in place
+    private transient double[] w;
+    private transient int[] y;
+
     public AdaBoostSAMME() {
         this.a = new ArrayList<>();
         this.h = new ArrayList<>();
@@ -78,6 +88,7 @@ public class AdaBoostSAMME extends AbstractClassifier {
                 .withClassifier(this.weak.newInstance())
                 .withStopOnError(stopOnError)
                 .withShrinkage(shrinkage)
+                .withValidation(validation, patience)
                 .withSampler(sampler())
                 .withRuns(runs())
                 .withRunningHook(runningHook())
@@ -131,6 +142,25 @@ public class AdaBoostSAMME extends AbstractClassifier {
         return this;
     }
 
+    /**
+     * Enables early stopping on a validation frame. After each round the misclassification
+     * error of the validation frame is computed incrementally from the accumulated votes,
+     * and training stops when it did not improve for a number of consecutive rounds given
+     * by patience. The model is truncated to the learners with the smallest validation error.
+     *
+     * @param validation validation frame with the same variables as the training frame,
+     *                   or null to disable early stopping
+     * @param patience   number of rounds without improvement before training stops
+     */
+    public AdaBoostSAMME withValidation(Frame validation, int patience) {
+        if (validation != null && patience < 1) {
+            throw new IllegalArgumentException("patience must be at least 1");
+        }
+        this.validation = validation;
+        this.patience = patience;
+        return this;
+    }
+
     @Override
     protected boolean coreTrain(Frame df, Var weights) {
 
@@ -138,41 +168,82 @@ public class AdaBoostSAMME extends AbstractClassifier {
 
         h = new ArrayList<>();
         a = new ArrayList<>();
-        w = weights.solidCopy();
 
-        double total = w.stream().mapToDouble().reduce(0.0, (x, y) -> x + y);
-        for (int i = 0; i < w.rowCount(); i++) {
-            w.setValue(i, w.value(i) / total);
+        Var target = df.var(firstTargetName());
+        y = new int[df.rowCount()];
+        w = new double[df.rowCount()];
+        for (int i = 0; i < w.length; i++) {
+            y[i] = target.index(i);
+            w[i] = weights.value(i);
         }
+        normalizeWeights();
+
+        // validation votes are updated only with the learners added in the last round
+        Frame vx = (validation == null) ? null : prepareFit(validation);
+        double[] votes = (vx == null) ? null : new double[vx.rowCount() * firstTargetLevels().length];
+        double bestError = Double.POSITIVE_INFINITY;
+        int bestSize = 0;
+        int bestRound = 0;
 
         for (int i = 0; i < runs(); i++) {
+            int size = h.size();
             boolean success = learnRound(df);
+            if (vx != null) {
+                addVotes(size, h.size(), vx, votes);
+                double error = validationError(vx, votes);
+                if (error < bestError) {
+                    bestError = error;
+                    bestSize = h.size();
+                    bestRound = i;
+                }
+            }
             if (!success && stopOnError) {
                 break;
             }
             if (runningHook() != null) {
                 runningHook().accept(this, i + 1);
             }
+            if (vx != null && i - bestRound >= patience) {
+                break;
+            }
         }
+        if (vx != null) {
+            h = new ArrayList<>(h.subList(0, bestSize));
+            a = new ArrayList<>(a.subList(0, bestSize));
+        }
+        w = null;
+        y = null;
         return true;
     }
 
+    private double validationError(Frame vx, double[] votes) {
+        Var target = vx.var(firstTargetName());
+        String[] levels = firstTargetLevels();
+        int errors = 0;
+        for (int i = 0; i < vx.rowCount(); i++) {
+            int best = bestIndex(votes, i * levels.length, levels.length);
+            if (best == 0 || !levels[best].equals(target.label(i))) {
+                errors++;
+            }
+        }
+        return errors / (double) vx.rowCount();
+    }
+
     private boolean learnRound(Frame df) {
 
         Classifier hh = weak.newInstance();
 
-        Sample sample = sampler().nextSample(df, w);
+        // the sampler sees the current weights through a view over the weights array
+        Sample sample = sampler().nextSample(df, Numeric.wrap(w));
         hh.train(sample.df, sample.weights.solidCopy(), targetNames());
 
-        CFit fit = hh.fit(df, true, false);
+        int[] fit = predict(hh, df);
 
-        double err = 0;
-        for (int j = 0; j < df.rowCount(); j++) {
-            if (fit.firstClasses().index(j) != df.var(firstTargetName()).index(j)) {
-                err += w.value(j);
-            }
-        }
-        err /= w.stream().mapToDouble().sum();
+        double err = Util.rangeStream(w.length, runPoolSize() != 0)
+                .filter(j -> fit[j] != y[j])
+                .mapToDouble(j -> w[j])
+                .reduce(0.0, Double::sum);
+        err /= Util.rangeStream(w.length, runPoolSize() != 0).mapToDouble(j -> w[j]).sum();
         double alpha = Math.log((1.0 - err) / err) + Math.log(k - 1.0);
         if (err == 0) {
             if (h.isEmpty()) {
@@ -187,47 +258,125 @@ public class AdaBoostSAMME extends AbstractClassifier {
         h.add(hh);
         a.add(alpha);
 
-        for (int j = 0; j < w.rowCount(); j++) {
-            if (fit.firstClasses().index(j) != df.var(firstTargetName()).index(j)) {
-                w.setValue(j, w.value(j) * Math.exp(alpha * shrinkage));
-            }
-        }
-        double total = w.stream().mapToDouble().reduce(0.0, (x, y) -> x + y);
-        for (int i = 0; i < w.rowCount(); i++) {
-            w.setValue(i, w.value(i) / total);
-        }
+        double factor = Math.exp(alpha * shrinkage);
+        Util.rangeStream(w.length, runPoolSize() != 0).filter(j -> fit[j] != y[j]).forEach(j -> w[j] *= factor);
+        normalizeWeights();
 
         return true;
     }
 
+    private void normalizeWeights() {
+        double total = Util.rangeStream(w.length, runPoolSize() != 0).mapToDouble(j -> w[j]).reduce(0.0, Double::sum);
+        Util.rangeStream(w.length, runPoolSize() != 0).forEach(j -> w[j] /= total);
+    }
+
     @Override
     protected CFit coreFit(Frame df, boolean withClasses, boolean withDistributions) {
-        CFit fit = CFit.build(this, df, withClasses, true);
+        double[] votes = new double[df.rowCount() * firstTargetLevels().length];
+        addVotes(0, h.size(), df, votes);
+        return buildFit(df, votes, withClasses, withDistributions);
+    }
+
+    /**
+     * Fits the model after each weak learner. Votes are accumulated incrementally,
+     * so all stages are computed with a single fit of each weak learner.
+     *
+     * @return list with one fit for each weak learner, in the order in which they were built
+     */
+    public List<CFit> fitStages(Frame df, boolean withClasses, boolean withDistributions) {
+        BaseFitSetup setup = baseFit(df, withClasses, withDistributions);
+        Frame workDf = prepareFit(setup.df);
+        double[] votes = new double[workDf.rowCount() * firstTargetLevels().length];
+        List<CFit> stages = new ArrayList<>();
         for (int i = 0; i < h.size(); i++) {
-            CFit hp = h.get(i).fit(df, true, false);
-            for (int j = 0; j < df.rowCount(); j++) {
-                int index = hp.firstClasses().index(j);
-                fit.firstDensity().setValue(j, index, fit.firstDensity().value(j, index) + a.get(i));
+            addVotes(i, i + 1, workDf, votes);
+            stages.add(buildFit(workDf, votes, setup.withClasses, setup.withDistributions));
+        }
+        return stages;
+    }
+
+    /**
+     * Predicts the classes of all rows with a weak learner, rows are scored in parallel blocks.
+     */
+    private int[] predict(Classifier hh, Frame df) {
+        int[] classes = new int[df.rowCount()];
+        int blocks = (df.rowCount() + FIT_BLOCK_SIZE - 1) / FIT_BLOCK_SIZE;
+        Util.rangeStream(blocks, runPoolSize() != 0).forEach(block -> {
+            int start = block * FIT_BLOCK_SIZE;
+            int end = Math.min(df.rowCount(), start + FIT_BLOCK_SIZE);
+            int[] blockClasses = new int[end - start];
+            predictInto(hh, df, start, end, blockClasses);
+            System.arraycopy(blockClasses, 0, classes, start, blockClasses.length);
+        });
+        return classes;
+    }
+
+    /**
+     * Adds the votes of weak learners [from, to) to a shared accumulator with one slot for each
+     * target level of each row. Rows are scored in parallel blocks, which write disjoint slots.
+     */
+    private void addVotes(int from, int to, Frame df, double[] votes) {
+        int levels = firstTargetLevels().length;
+        int blocks = (df.rowCount() + FIT_BLOCK_SIZE - 1) / FIT_BLOCK_SIZE;
+        Util.rangeStream(blocks, runPoolSize() != 0).forEach(block -> {
+            int start = block * FIT_BLOCK_SIZE;
+            int end = Math.min(df.rowCount(), start + FIT_BLOCK_SIZE);
+            int[] classes = new int[end - start];
+            for (int i = from; i < to; i++) {
+                predictInto(h.get(i), df, start, end, classes);
+                double alpha = a.get(i);
+                for (int row = start; row < end; row++) {
+                    votes[row * levels + classes[row - start]] += alpha;
+                }
             }
+        });
+    }
+
+    /**
+     * Writes the classes predicted by a weak learner for rows [start, end) from the first
+     * position of the classes array. Compiled trees write their classes without
+     * building a fit object.
+     */
+    private void predictInto(Classifier hh, Frame df, int start, int end, int[] classes) {
+        if (hh instanceof CTree && ((CTree) hh).fitClassesInto(df, start, end, classes)) {
+            return;
+        }
+        Frame blockDf = (start == 0 && end == df.rowCount()) ? df : df.mapRows(Mapping.range(start, end));
+        CFit fit = hh.fit(blockDf, true, false);
+        for (int row = start; row < end; row++) {
+            classes[row - start] = fit.firstClasses().index(row - start);
         }
+    }
 
-        // simply fit
-        for (int i = 0; i < fit.firstDensity().rowCount(); i++) {
-
-            double max = 0;
-            int best = 0;
-            double total = 0;
-            for (int j = 1; j < fit.firstDensity().varCount(); j++) {
-                total += fit.firstDensity().value(i, j);
-                if (fit.firstDensity().value(i, j) > max) {
-                    best = j;
-                    max = fit.firstDensity().value(i, j);
+    private static int bestIndex(double[] votes, int offset, int levels) {
+        double max = 0;
+        int best = 0;
+        for (int j = 1; j < levels; j++) {
+            if (votes[offset + j] > max) {
+                best = j;
+                max = votes[offset + j];
+            }
+        }
+        return best;
+    }
+
+    private CFit buildFit(Frame df, double[] votes, boolean withClasses, boolean withDistributions) {
+        CFit fit = CFit.build(this, df, withClasses, withDistributions);
+        int levels = firstTargetLevels().length;
+        for (int i = 0; i < df.rowCount(); i++) {
+            int offset = i * levels;
+            if (withDistributions) {
+                double total = 0;
+                for (int j = 1; j < levels; j++) {
+                    total += votes[offset + j];
+                }
+                for (int j = 1; j < levels; j++) {
+                    fit.firstDensity().setValue(i, j, votes[offset + j] / total);
                 }
             }
-            for (int j = 1; j < fit.firstDensity().varCount(); j++) {
-                fit.firstDensity().setValue(i, j, fit.firstDensity().value(i, j) / total);
+            if (withClasses) {
+                fit.firstClasses().setIndex(i, bestIndex(votes, offset, levels));
             }
-            fit.firstClasses().setIndex(i, best);
         }
         return fit;
     }
@@ -26,32 +26,44 @@ package rapaio.ml.classifier.boost;
 
 import rapaio.data.*;
 import rapaio.data.sample.RowSampler;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.AbstractClassifier;
 import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.Classifier;
+import rapaio.ml.common.BinMatrix;
 import rapaio.ml.common.Capabilities;
 import rapaio.ml.regression.RFit;
 import rapaio.experiment.ml.regression.boost.gbt.BTRegression;
 import rapaio.experiment.ml.regression.boost.gbt.GBTLossFunction;
 import rapaio.ml.regression.tree.RTree;
-import rapaio.sys.WS;
+import rapaio.ml.regression.tree.RTreeNumericMethod;
+import rapaio.util.Util;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> at 12/12/14.
  */
-public class GBTClassifier extends AbstractClassifier implements Classifier {
+public class GBTClassifier extends AbstractClassifier implements Classifier, ModelWritable {
 
     private static final long serialVersionUID = -2979235364091072967L;
+    private static final String RESIDUAL_NAME = "##tt##";
     int K;
     double[][] f;
     double[][] p;
     private double shrinkage = 1.0;
+    // validation frame is not part of the model, only the number of built rounds is
+    private transient Frame validation;
+    private int patience = 0;
 
     // prediction artifact
-    private BTRegression classifier = RTree.buildCART().withMaxDepth(4);
+    private BTRegression classifier = RTree.buildCART().withMaxDepth(4).withNumericMethod(RTreeNumericMethod.BINNED);
     private List<List<BTRegression>> trees;
 
     public GBTClassifier() {
@@ -64,6 +76,7 @@ public class GBTClassifier extends AbstractClassifier implements Classifier {
                 .withSampler(sampler())
                 .withShrinkage(shrinkage)
                 .withTree(classifier.newInstance())
+                .withValidation(validation, patience)
                 .withRuns(runs());
     }
 
@@ -102,6 +115,25 @@ public class GBTClassifier extends AbstractClassifier implements Classifier {
         return this;
     }
 
+    /**
+     * Enables early stopping on a validation frame. After each round the multinomial
+     * deviance of the validation frame is computed incrementally, and training stops
+     * when it did not improve for a number of consecutive rounds given by patience.
+     * The model is truncated to the round with the smallest validation deviance.
+     *
+     * @param validation validation frame with the same variables as the training frame,
+     *                   or null to disable early stopping
+     * @param patience   number of rounds without improvement before training stops
+     */
+    public GBTClassifier withValidation(Frame validation, int patience) {
+        if (validation != null && patience < 1) {
+            throw new IllegalArgumentException("patience must be at least 1");
+        }
+        this.validation = validation;
+        this.patience = patience;
+        return this;
+    }
+
     @Override
     public GBTClassifier withSampler(RowSampler sampler) {
         return (GBTClassifier) super.withSampler(sampler);
@@ -113,118 +145,273 @@ public class GBTClassifier extends AbstractClassifier implements Classifier {
         // algorithm described by ESTL pag. 387
 
         K = firstTargetLevels().length - 1;
-        f = new double[df.rowCount()][K];
-        p = new double[df.rowCount()][K];
+        int n = df.rowCount();
+        f = new double[K][n];
+        p = new double[K][n];
         trees = new ArrayList<>();
         for (int i = 0; i < K; i++) {
             trees.add(new ArrayList<>());
         }
+
+        // gradients are the residuals used as regression targets, hessians are
+        // scaled such that the Newton step of a leaf is (K-1)/K sum(r) / sum(|r|(1-|r|))
+        Var target = df.var(firstTargetName());
+        Frame x = df.removeVars(targetNames());
+        double[][] gradients = new double[K][n];
+        double[][] hessians = new double[K][n];
+        Frame[] train = new Frame[K];
+        for (int k = 0; k < K; k++) {
+            train[k] = x.bindVars(Numeric.wrap(gradients[k]).withName(RESIDUAL_NAME));
+        }
+        BinMatrix bins = (classifier instanceof RTree) ? ((RTree) classifier).buildBins(x) : null;
+
+        // validation scores are updated only with the trees of the last round
+        Frame vx = (validation == null) ? null : prepareFit(validation);
+        int[] vy = (vx == null) ? null : targetIndexes(vx.var(firstTargetName()));
+        double[][] fv = (vx == null) ? null : new double[K][vx.rowCount()];
+        double bestDeviance = Double.POSITIVE_INFINITY;
+        int bestRounds = 0;
+
         for (int m = 0; m < runs(); m++) {
-            buildAdditionalTree(df, weights);
+            buildAdditionalTrees(x, target, weights, train, gradients, hessians, bins);
             if (runningHook() != null) {
                 runningHook().accept(this, m);
             }
+            if (vx == null) {
+                continue;
+            }
+            for (int k = 0; k < K; k++) {
+                addScores(trees.get(k).get(m), vx, fv[k]);
+            }
+            double deviance = deviance(vy, fv);
+            if (deviance < bestDeviance) {
+                bestDeviance = deviance;
+                bestRounds = m + 1;
+            } else if (m + 1 - bestRounds >= patience) {
+                break;
+            }
+        }
+        if (vx != null) {
+            truncate(x, bestRounds);
         }
         return true;
     }
 
-    private void buildAdditionalTree(Frame df, Var weights) {
-
-        // a) Set p_k(x)
+    /**
+     * Computes indexes of target labels in the training dictionary,
+     * missing or unknown labels are marked with -1.
+     */
+    private int[] targetIndexes(Var target) {
+        String[] levels = firstTargetLevels();
+        Map<String, Integer> index = new HashMap<>();
+        for (int k = 1; k < levels.length; k++) {
+            index.put(levels[k], k - 1);
+        }
+        int[] y = new int[target.rowCount()];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = target.missing(i) ? -1 : index.getOrDefault(target.label(i), -1);
+        }
+        return y;
+    }
 
-        for (int i = 0; i < df.rowCount(); i++) {
-            double sum = 0;
+    /**
+     * Multinomial deviance of the scores, rows with unknown labels are ignored.
+     */
+    private double deviance(int[] y, double[][] scores) {
+        double deviance = 0;
+        for (int i = 0; i < y.length; i++) {
+            if (y[i] < 0) {
+                continue;
+            }
+            double max = Double.NEGATIVE_INFINITY;
             for (int k = 0; k < K; k++) {
-                sum += Math.pow(Math.E, f[i][k]);
+                max = Math.max(max, scores[k][i]);
             }
+            double sum = 0;
             for (int k = 0; k < K; k++) {
-                p[i][k] = Math.pow(Math.E, f[i][k]) / sum;
-                if (Double.isNaN(p[i][k])) {
-                    WS.println("ERROR");
-                }
+                sum += Math.exp(scores[k][i] - max);
             }
+            deviance -= scores[y[i]][i] - max - Math.log(sum);
         }
+        return deviance;
+    }
 
-        // b)
-
+    /**
+     * Removes the rounds after the given number of rounds and their contribution to training scores.
+     */
+    private void truncate(Frame x, int rounds) {
         for (int k = 0; k < K; k++) {
-
-            Numeric r = Numeric.empty().withName("##tt##");
-            for (int i = 0; i < df.rowCount(); i++) {
-                double y_i = (df.var(firstTargetName()).index(i) == k + 1) ? 1 : 0;
-                r.addValue(y_i - p[i][k]);
+            List<BTRegression> list = trees.get(k);
+            while (list.size() > rounds) {
+                BTRegression tree = list.remove(list.size() - 1);
+                RFit rr = tree.fit(x, false);
+                for (int i = 0; i < x.rowCount(); i++) {
+                    f[k][i] -= shrinkage * rr.firstFit().value(i);
+                }
             }
+        }
+    }
 
-            Frame x = df.removeVars(targetNames());
-            Frame train = x.bindVars(r);
-
-            BTRegression tree = classifier.newInstance();
+    private void buildAdditionalTrees(Frame x, Var target, Var weights, Frame[] train,
+                                      double[][] gradients, double[][] hessians, BinMatrix bins) {
 
-            Mapping samplerMapping = sampler().nextSample(x, weights).mapping;
-            tree.train(train.mapRows(samplerMapping), weights.mapRows(samplerMapping), "##tt##");
+        // a) Set p_k(x)
 
-            tree.boostFit(x, r, r, new ClassifierLossFunction(K));
+        for (int i = 0; i < x.rowCount(); i++) {
+            double sum = 0;
+            for (int k = 0; k < K; k++) {
+                sum += Math.exp(f[k][i]);
+            }
+            for (int k = 0; k < K; k++) {
+                p[k][i] = Math.exp(f[k][i]) / sum;
+            }
+        }
 
-            RFit rr = tree.fit(train, true);
+        // b) compute residuals and fit one tree for each class, trees of
+        // the same iteration use the same sample and are built in parallel
+
+        Mapping samplerMapping = sampler().nextSample(x, weights).mapping;
+        Var sampleWeights = weights.mapRows(samplerMapping);
+        double scale = K / (K - 1.0);
+        BTRegression[] round = new BTRegression[K];
+        Util.rangeStream(K, runPoolSize() != 0).forEach(k -> {
+            for (int i = 0; i < x.rowCount(); i++) {
+                double r = ((target.index(i) == k + 1) ? 1 : 0) - p[k][i];
+                gradients[k][i] = r;
+                hessians[k][i] = scale * Math.abs(r) * (1 - Math.abs(r));
+            }
 
-            for (int i = 0; i < df.rowCount(); i++) {
-                f[i][k] += shrinkage * rr.firstFit().value(i);
+            BTRegression tree = classifier.newInstance();
+            if (tree instanceof RTree && bins != null) {
+                ((RTree) tree).withSharedBins(bins);
             }
-            trees.get(k).add(tree);
+            tree.train(train[k].mapRows(samplerMapping), sampleWeights, RESIDUAL_NAME);
+
+            if (tree instanceof RTree) {
+                ((RTree) tree).boostFit(x, gradients[k], hessians[k], shrinkage, f[k]);
+            } else {
+                Var r = train[k].var(RESIDUAL_NAME);
+                tree.boostFit(x, r, r, new ClassifierLossFunction(K));
+                RFit rr = tree.fit(train[k], true);
+                for (int i = 0; i < x.rowCount(); i++) {
+                    f[k][i] += shrinkage * rr.firstFit().value(i);
+                }
+            }
+            round[k] = tree;
+        });
+        for (int k = 0; k < K; k++) {
+            trees.get(k).add(round[k]);
         }
     }
 
     @Override
     public CFit coreFit(Frame df, boolean withClasses, boolean withDistributions) {
-        CFit cr = CFit.build(this, df, withClasses, withDistributions);
+        double[][] scores = new double[K][df.rowCount()];
         for (int k = 0; k < K; k++) {
             for (BTRegression tree : trees.get(k)) {
-                RFit rr = tree.fit(df, false);
-                for (int i = 0; i < df.rowCount(); i++) {
-                    double p = cr.firstDensity().value(i, k + 1);
-                    p += shrinkage * rr.firstFit().value(i);
-                    cr.firstDensity().setValue(i, k + 1, p);
-                }
+                addScores(tree, df, scores[k]);
             }
         }
+        return buildFit(df, scores, withClasses, withDistributions);
+    }
 
-        // make probabilities
-
-        for (int i = 0; i < df.rowCount(); i++) {
-            double t = 0.0;
+    /**
+     * Fits the model after each boosting round. Cumulative scores are updated
+     * incrementally with the trees of each round, so all stages are computed
+     * in a single pass over the trees.
+     *
+     * @return list with one fit for each round, in the order of rounds
+     */
+    public List<CFit> fitStages(Frame df, boolean withClasses, boolean withDistributions) {
+        BaseFitSetup setup = baseFit(df, withClasses, withDistributions);
+        Frame workDf = prepareFit(setup.df);
+        double[][] scores = new double[K][workDf.rowCount()];
+        List<CFit> stages = new ArrayList<>();
+        int rounds = trees.isEmpty() ? 0 : trees.get(0).size();
+        for (int m = 0; m < rounds; m++) {
             for (int k = 0; k < K; k++) {
-                t += Math.exp(cr.firstDensity().value(i, k + 1));
-            }
-            if (t != 0) {
-                for (int k = 0; k < K; k++) {
-                    cr.firstDensity().setValue(i, k + 1, Math.exp(cr.firstDensity().value(i, k + 1)) / t);
-                }
+                addScores(trees.get(k).get(m), workDf, scores[k]);
             }
+            stages.add(buildFit(workDf, scores, setup.withClasses, setup.withDistributions));
+        }
+        return stages;
+    }
+
+    private void addScores(BTRegression tree, Frame df, double[] scores) {
+        RFit rr = tree.fit(df, false);
+        for (int i = 0; i < df.rowCount(); i++) {
+            scores[i] += shrinkage * rr.firstFit().value(i);
         }
+    }
 
+    private CFit buildFit(Frame df, double[][] scores, boolean withClasses, boolean withDistributions) {
+        CFit cr = CFit.build(this, df, withClasses, withDistributions);
         for (int i = 0; i < df.rowCount(); i++) {
+
+            // make probabilities
+
+            double t = 0.0;
+            for (int k = 0; k < K; k++) {
+                t += Math.exp(scores[k][i]);
+            }
             int maxIndex = 0;
             double maxValue = Double.NEGATIVE_INFINITY;
-            double total = 0;
             for (int k = 0; k < K; k++) {
-                if (cr.firstDensity().value(i, k + 1) > maxValue) {
-                    maxValue = cr.firstDensity().value(i, k + 1);
+                double p = (t != 0) ? Math.exp(scores[k][i]) / t : scores[k][i];
+                if (withDistributions) {
+                    cr.firstDensity().setValue(i, k + 1, p);
+                }
+                if (p > maxValue) {
+                    maxValue = p;
                     maxIndex = k + 1;
                 }
-                total += cr.firstDensity().value(i, k + 1);
             }
-            // this does not work directly since we have also negative scores
-            // why is that happening?
-
-//            for (int k = 0; k < K; k++) {
-//                double p = cr.firstDensity().value(i, k + 1);
-//                p /= total;
-//                cr.firstDensity().setValue(i, k + 1, p);
-//            }
-            cr.firstClasses().setIndex(i, maxIndex);
+            if (withClasses) {
+                cr.firstClasses().setIndex(i, maxIndex);
+            }
         }
         return cr;
     }
+
+    /**
+     * Writes the boosted trees in binary model format. Training scores are not stored.
+     */
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeDouble(shrinkage);
+        out.writeInt(K);
+        out.writeBoolean(trees != null);
+        if (trees == null) {
+            return;
+        }
+        for (List<BTRegression> list : trees) {
+            out.writeInt(list.size());
+            for (BTRegression tree : list) {
+                out.writeModel(tree);
+            }
+        }
+    }
+
+    public static GBTClassifier readModel(ModelInput in) throws IOException {
+        GBTClassifier gbt = new GBTClassifier();
+        gbt.readBase(in);
+        gbt.shrinkage = in.readDouble();
+        gbt.K = in.readInt();
+        if (!in.readBoolean()) {
+            return gbt;
+        }
+        gbt.trees = new ArrayList<>(gbt.K);
+        for (int k = 0; k < gbt.K; k++) {
+            int size = in.readInt();
+            List<BTRegression> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(in.readModel());
+            }
+            gbt.trees.add(list);
+        }
+        return gbt;
+    }
 }
 
 class ClassifierLossFunction implements GBTLossFunction {
@@ -30,7 +30,6 @@ import rapaio.data.Nominal;
 import rapaio.ml.classifier.CFit;
 
 import java.io.Serializable;
-import java.util.List;
 
 /**
  * Describes and implements how a class is obtained from density for ensemble methods.
@@ -41,26 +40,18 @@ public enum BaggingMode implements Serializable {
 
     VOTING {
         @Override
-        public void computeDensity(String[] dictionary, List<CFit> treeFits, Nominal classes, Frame densities) {
-            treeFits.stream().map(CFit::firstClasses).forEach(d -> {
-                for (int i = 0; i < d.rowCount(); i++) {
-                    int best = d.index(i);
-                    densities.setValue(i, best, densities.value(i, best) + 1);
-                }
-            });
+        void accumulate(CFit fit, double[] buffer, int levels) {
+            Nominal classes = fit.firstClasses();
             for (int i = 0; i < classes.rowCount(); i++) {
-                DVector dv = DVector.empty(false, dictionary);
-                for (int j = 1; j < dictionary.length; j++) {
-                    dv.increment(j, densities.value(i, j));
-                }
-                dv.normalize();
-                for (int j = 1; j < dictionary.length; j++) {
-                    densities.setValue(i, j, dv.get(j));
-                }
-                classes.setValue(i, dv.findBestIndex());
+                buffer[i * levels + classes.index(i)]++;
             }
         }
 
+        @Override
+        int firstLevel() {
+            return 1;
+        }
+
         @Override
         boolean needsClass() {
             return true;
@@ -73,36 +64,24 @@ public enum BaggingMode implements Serializable {
     },
     DISTRIBUTION {
         @Override
-        public void computeDensity(String[] dictionary, List<CFit> treeFits, Nominal classes, Frame densities) {
-            for (int i = 0; i < densities.rowCount(); i++) {
-                for (int j = 0; j < densities.varCount(); j++) {
-                    densities.setValue(i, j, 0);
-                }
-            }
-            treeFits.stream().map(CFit::firstDensity).forEach(d -> {
-                for (int i = 0; i < densities.rowCount(); i++) {
-                    double t = 0.0;
-                    for (int j = 0; j < densities.varCount(); j++) {
-                        t += d.value(i, j);
-                    }
-                    for (int j = 0; j < densities.varCount(); j++) {
-                        densities.setValue(i, j, densities.value(i, j) + d.value(i, j) / t);
-                    }
-                }
-            });
-            for (int i = 0; i < classes.rowCount(); i++) {
-                DVector dv = DVector.empty(false, dictionary);
-                for (int j = 0; j < dictionary.length; j++) {
-                    dv.increment(j, densities.value(i, j));
+        void accumulate(CFit fit, double[] buffer, int levels) {
+            Frame d = fit.firstDensity();
+            for (int i = 0; i < d.rowCount(); i++) {
+                double t = 0.0;
+                for (int j = 0; j < levels; j++) {
+                    t += d.value(i, j);
                 }
-                dv.normalize();
-                for (int j = 0; j < dictionary.length; j++) {
-                    densities.setValue(i, j, dv.get(j));
+                for (int j = 0; j < levels; j++) {
+                    buffer[i * levels + j] += d.value(i, j) / t;
                 }
-                classes.setValue(i, dv.findBestIndex());
             }
         }
 
+        @Override
+        int firstLevel() {
+            return 0;
+        }
+
         @Override
         boolean needsClass() {
             return false;
@@ -114,9 +93,38 @@ public enum BaggingMode implements Serializable {
         }
     };
 
-    abstract void computeDensity(String[] dictionary, List<CFit> treeFits, Nominal classes, Frame densities);
+    /**
+     * Adds the predictions of one ensemble member for a block of rows into a buffer
+     * which holds one slot for each row of the block and each target level.
+     */
+    abstract void accumulate(CFit fit, double[] buffer, int levels);
+
+    /**
+     * @return first target level used from the accumulated buffer
+     */
+    abstract int firstLevel();
 
     abstract boolean needsClass();
 
     abstract boolean needsDensity();
+
+    /**
+     * Computes the classes and densities of rows [start, end) from a buffer
+     * filled with {@link #accumulate(CFit, double[], int)}.
+     */
+    void computeFit(String[] dictionary, double[] buffer, int start, int end, Nominal classes, Frame densities) {
+        int levels = dictionary.length;
+        DVector dv = DVector.empty(false, dictionary);
+        for (int row = start; row < end; row++) {
+            int offset = (row - start) * levels;
+            for (int j = 0; j < levels; j++) {
+                dv.set(j, j < firstLevel() ? 0 : buffer[offset + j]);
+            }
+            dv.normalize();
+            for (int j = firstLevel(); j < levels; j++) {
+                densities.setValue(row, j, dv.get(j));
+            }
+            classes.setValue(row, dv.findBestIndex());
+        }
+    }
 }
@@ -25,13 +25,18 @@
 package rapaio.ml.classifier.ensemble;
 
 import rapaio.core.CoreTools;
+import rapaio.core.RandomSource;
 import rapaio.core.distributions.Distribution;
+import rapaio.core.stat.OnlineStat;
 import rapaio.core.tools.DVector;
 import rapaio.data.*;
 import rapaio.data.filter.FFilter;
 import rapaio.data.filter.Filters;
 import rapaio.data.sample.Sample;
 import rapaio.data.sample.RowSampler;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.AbstractClassifier;
 import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.Classifier;
@@ -43,26 +48,34 @@ import rapaio.ml.eval.Confusion;
 import rapaio.util.Pair;
 import rapaio.util.Util;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiConsumer;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-
-import static java.util.stream.Collectors.*;
+import java.util.stream.Stream;
 
 /**
  * Breiman random forest implementation.
  * <p>
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> on 4/16/15.
  */
-public class CForest extends AbstractClassifier {
+public class CForest extends AbstractClassifier implements ModelWritable {
 
     private static final long serialVersionUID = -145958939373105497L;
+    private static final int FIT_BLOCK_SIZE = 1024;
+    private static final int PERM_VI_MIN_RUNS = 10;
 
     private boolean oobComp = false;
     private boolean freqVIComp = false;
     private boolean gainVIComp = false;
     private boolean permVIComp = false;
+    private double permVIPrecision = 0;
 
     private Classifier c = CTree.newCART();
     private BaggingMode baggingMode = BaggingMode.DISTRIBUTION;
@@ -70,12 +83,14 @@ public class CForest extends AbstractClassifier {
     // learning artifacts
     private double oobError = Double.NaN;
     private List<Classifier> predictors = new ArrayList<>();
-    private Map<Integer, DVector> oobDensities;
+    private transient AtomicIntegerArray oobVotes;
     private Var oobFit;
     private Var oobTrueClass;
     private Map<String, List<Double>> freqVIMap = new HashMap<>();
     private Map<String, List<Double>> gainVIMap = new HashMap<>();
     private Map<String, List<Double>> permVIMap = new HashMap<>();
+    private transient Map<String, OnlineStat> permVIStats;
+    private transient Set<String> permVIStopped;
 
     private CForest() {
         withRuns(10);
@@ -118,6 +133,7 @@ public class CForest extends AbstractClassifier {
                 .withFreqVIComp(freqVIComp)
                 .withGainVIComp(gainVIComp)
                 .withPermVIComp(permVIComp)
+                .withPermVIPrecision(permVIPrecision)
                 .withClassifier(c.newInstance())
                 .withSampler(sampler());
     }
@@ -141,6 +157,17 @@ public class CForest extends AbstractClassifier {
         return this;
     }
 
+    /**
+     * Stops the permutation importance computation for a variable after at least ten
+     * runs, when the half width of the 95% confidence interval of its mean score is
+     * less than or equal with the given precision. Scores are measured in number of
+     * out of bag rows. The default value 0 computes scores for all runs.
+     */
+    public CForest withPermVIPrecision(double permVIPrecision) {
+        this.permVIPrecision = permVIPrecision;
+        return this;
+    }
+
     public CForest withOobComp(boolean oobCompute) {
         this.oobComp = oobCompute;
         return this;
@@ -255,15 +282,9 @@ public class CForest extends AbstractClassifier {
     @Override
     protected boolean coreTrain(Frame df, Var weights) {
 
-        double totalOobInstances = 0;
-        double totalOobError = 0;
         if (oobComp) {
-            oobDensities = new HashMap<>();
+            oobVotes = new AtomicIntegerArray(df.rowCount() * firstTargetLevels().length);
             oobTrueClass = df.var(firstTargetName()).solidCopy();
-            oobFit = Nominal.empty(df.rowCount(), firstTargetLevels());
-            for (int i = 0; i < df.rowCount(); i++) {
-                oobDensities.put(i, DVector.empty(false, firstTargetLevels()));
-            }
         }
         if (freqVIComp && c instanceof CTree) {
             freqVIMap.clear();
@@ -273,109 +294,128 @@ public class CForest extends AbstractClassifier {
         }
         if (permVIComp) {
             permVIMap.clear();
+            permVIStats = new HashMap<>();
+            permVIStopped = ConcurrentHashMap.newKeySet();
         }
 
-        if (runPoolSize() == 0) {
-            predictors = new ArrayList<>();
-            for (int i = 0; i < runs(); i++) {
-                Pair<Classifier, List<Integer>> weak = buildWeakPredictor(df, weights);
-                predictors.add(weak._1);
-                if (oobComp) {
-                    oobCompute(df, weak);
-                }
-                if (freqVIComp && c instanceof CTree) {
-                    freqVICompute(weak);
-                }
-                if (gainVIComp && c instanceof CTree) {
-                    gainVICompute(weak);
-                }
-                if (permVIComp) {
-                    permVICompute(df, weak);
-                }
-                if (runningHook() != null) {
-                    runningHook().accept(this, i + 1);
-                }
+        // each weak tree contributes to oob and importance accumulators as soon
+        // as it is built, so its out of bag rows can be released; in parallel mode
+        // the running hook is called in completion order, and oob error is computed
+        // once at the end
+        boolean parallel = runPoolSize() != 0;
+        predictors = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger();
+        Util.rangeStream(runs(), parallel).forEach(run -> {
+            Pair<Classifier, BitSet> weak = buildWeakPredictor(df, weights);
+            if (oobComp) {
+                oobCompute(df, weak);
+            }
+            if (freqVIComp && c instanceof CTree) {
+                freqVICompute(weak);
+            }
+            if (gainVIComp && c instanceof CTree) {
+                gainVICompute(weak);
             }
-        } else {
-            // build in parallel the trees, than oob and running hook cannot run at the
-            // same moment when weak tree was built
-            // for a real running hook behavior run without threading
-            predictors = new ArrayList<>();
-            List<Pair<Classifier, List<Integer>>> list = Util.rangeStream(runs(), runPoolSize() > 0).boxed()
-                    .map(s -> buildWeakPredictor(df, weights))
-                    .collect(Collectors.toList());
-            for (int i = 0; i < list.size(); i++) {
-                Pair<Classifier, List<Integer>> weak = list.get(i);
+            if (permVIComp) {
+                permVICompute(df, weak);
+            }
+            synchronized (predictors) {
                 predictors.add(weak._1);
-                if (oobComp) {
-                    oobCompute(df, weak);
-                }
-                if (freqVIComp && c instanceof CTree) {
-                    freqVICompute(weak);
-                }
-                if (gainVIComp && c instanceof CTree) {
-                    gainVICompute(weak);
-                }
-                if (permVIComp) {
-                    permVICompute(df, weak);
+                if (oobComp && !parallel) {
+                    oobUpdate();
                 }
                 if (runningHook() != null) {
-                    runningHook().accept(this, i + 1);
+                    runningHook().accept(this, completed.incrementAndGet());
                 }
             }
+        });
+        if (oobComp) {
+            oobUpdate();
+            oobVotes = null;
         }
         return true;
     }
 
-    private void permVICompute(Frame df, Pair<Classifier, List<Integer>> weak) {
+    /**
+     * Computes for each input variable the decrease in the number of out of bag rows
+     * correctly predicted by a weak predictor, when the values of that variable are permuted.
+     * Variables are processed in parallel and permutations are made on row indexes,
+     * so no values are copied.
+     */
+    private void permVICompute(Frame df, Pair<Classifier, BitSet> weak) {
         Classifier c = weak._1;
-        List<Integer> oobIndexes = weak._2;
-
-        // build oob data frame
-        Frame oobFrame = df.mapRows(Mapping.wrap(oobIndexes));
-
-        // build accuracy on oob data frame
-        CFit fit = c.fit(oobFrame);
-        double refScore = new Confusion(
-                oobFrame.var(firstTargetName()),
-                fit.firstClasses())
-                .acceptedCases();
-
-        // now for each input variable do computation
-        for (String varName : inputNames()) {
-
-            // shuffle values from variable
-            Var shuffled = Filters.shuffle(oobFrame.var(varName));
-
-            // build oob frame with shuffled variable
-            Frame oobReduced = oobFrame.removeVars(varName).bindVars(shuffled);
-
-            // compute accuracy on oob shuffled frame
+        int[] oobRows = weak._2.stream().toArray();
+        if (oobRows.length == 0) {
+            return;
+        }
+        Frame oobFrame = df.mapRows(Mapping.wrap(oobRows));
+        Var target = oobFrame.var(firstTargetName());
+        double refScore = acceptedCases(c, oobFrame, target);
 
-            CFit pfit = c.fit(oobReduced);
-            double acc = new Confusion(
-                    oobReduced.var(firstTargetName()),
-                    pfit.firstClasses()
-            ).acceptedCases();
+        Stream<String> names = Arrays.stream(inputNames());
+        if (runPoolSize() != 0) {
+            names = names.parallel();
+        }
+        names.filter(varName -> !permVIStopped.contains(varName)).forEach(varName -> {
+            int[] shuffled = Arrays.copyOf(oobRows, oobRows.length);
+            for (int i = shuffled.length; i > 1; i--) {
+                int j = RandomSource.nextInt(i);
+                int tmp = shuffled[i - 1];
+                shuffled[i - 1] = shuffled[j];
+                shuffled[j] = tmp;
+            }
+            Var permuted = df.var(varName).mapRows(Mapping.wrap(shuffled));
+            Frame oobPermuted = oobFrame.removeVars(varName).bindVars(permuted);
+            addPermVIScore(varName, refScore - acceptedCases(c, oobPermuted, target));
+        });
+    }
 
-            if (!permVIMap.containsKey(varName)) {
-                permVIMap.put(varName, new ArrayList<>());
+    private int acceptedCases(Classifier c, Frame df, Var target) {
+        int levels = firstTargetLevels().length;
+        int accepted = 0;
+        if (c instanceof CTree) {
+            double[] votes = new double[df.rowCount() * levels];
+            if (((CTree) c).fitInto(df, 0, df.rowCount(), true, votes)) {
+                for (int i = 0; i < df.rowCount(); i++) {
+                    if (votes[i * levels + target.index(i)] > 0) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            }
+        }
+        CFit fit = c.fit(df, true, false);
+        for (int i = 0; i < df.rowCount(); i++) {
+            if (fit.firstClasses().index(i) == target.index(i)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Adds a permutation score and stops further computation for the variable
+     * when the confidence interval of its mean score is narrow enough.
+     */
+    private void addPermVIScore(String varName, double score) {
+        synchronized (permVIMap) {
+            permVIMap.computeIfAbsent(varName, name -> new ArrayList<>()).add(score);
+            OnlineStat stat = permVIStats.computeIfAbsent(varName, name -> OnlineStat.empty());
+            stat.update(score);
+            if (permVIPrecision > 0 && stat.n() >= PERM_VI_MIN_RUNS
+                    && 1.96 * Math.sqrt(stat.variance() / stat.n()) <= permVIPrecision) {
+                permVIStopped.add(varName);
             }
-            permVIMap.get(varName).add(refScore - acc);
         }
     }
 
-    private void gainVICompute(Pair<Classifier, List<Integer>> weak) {
+    private void gainVICompute(Pair<Classifier, BitSet> weak) {
         CTree weakTree = (CTree) weak._1;
         DVector scores = DVector.empty(false, inputNames());
         collectGainVI(weakTree.getRoot(), scores);
         for (int j = 0; j < inputNames().length; j++) {
             String varName = inputName(j);
-            double score = scores.get(varName);
-            if (!gainVIMap.containsKey(varName)) {
-                gainVIMap.put(varName, new ArrayList<>());
-            }
-            gainVIMap.get(varName).add(score);
+            addVIScore(gainVIMap, varName, scores.get(varName));
         }
     }
 
@@ -388,17 +428,13 @@ public class CForest extends AbstractClassifier {
         node.getChildren().forEach(child -> collectGainVI(child, dv));
     }
 
-    private void freqVICompute(Pair<Classifier, List<Integer>> weak) {
+    private void freqVICompute(Pair<Classifier, BitSet> weak) {
         CTree weakTree = (CTree) weak._1;
         DVector scores = DVector.empty(false, inputNames());
         collectFreqVI(weakTree.getRoot(), scores);
         for (int j = 0; j < inputNames().length; j++) {
             String varName = inputName(j);
-            double score = scores.get(varName);
-            if (!freqVIMap.containsKey(varName)) {
-                freqVIMap.put(varName, new ArrayList<>());
-            }
-            freqVIMap.get(varName).add(score);
+            addVIScore(freqVIMap, varName, scores.get(varName));
         }
     }
 
@@ -411,25 +447,42 @@ public class CForest extends AbstractClassifier {
         node.getChildren().forEach(child -> collectFreqVI(child, dv));
     }
 
-    private void oobCompute(Frame df, Pair<Classifier, List<Integer>> weak) {
-        double totalOobError;
-        double totalOobInstances;
-        List<Integer> oobIndexes = weak._2;
-        Frame oobTest = df.mapRows(Mapping.wrap(oobIndexes));
-        CFit fit = weak._1.fit(oobTest);
+    private static void addVIScore(Map<String, List<Double>> map, String varName, double score) {
+        synchronized (map) {
+            map.computeIfAbsent(varName, name -> new ArrayList<>()).add(score);
+        }
+    }
+
+    /**
+     * Adds the votes of a weak predictor for its out of bag rows.
+     */
+    private void oobCompute(Frame df, Pair<Classifier, BitSet> weak) {
+        int[] oobRows = weak._2.stream().toArray();
+        Frame oobTest = df.mapRows(Mapping.wrap(oobRows));
+        CFit fit = weak._1.fit(oobTest, true, false);
+        int levels = firstTargetLevels().length;
         for (int j = 0; j < oobTest.rowCount(); j++) {
-            int fitIndex = fit.firstClasses().index(j);
-            oobDensities.get(oobIndexes.get(j)).increment(fitIndex, 1.0);
+            oobVotes.incrementAndGet(oobRows[j] * levels + fit.firstClasses().index(j));
         }
-        oobFit.clear();
-        totalOobError = 0.0;
-        totalOobInstances = 0.0;
-        for (Map.Entry<Integer, DVector> e : oobDensities.entrySet()) {
-            if (e.getValue().sum() > 0) {
-                int bestIndex = e.getValue().findBestIndex();
-                String bestLevel = firstTargetLevels()[bestIndex];
-                oobFit.setLabel(e.getKey(), bestLevel);
-                if (!bestLevel.equals(oobTrueClass.label(e.getKey()))) {
+    }
+
+    /**
+     * Computes out of bag predictions and error from the accumulated votes.
+     */
+    private void oobUpdate() {
+        String[] levels = firstTargetLevels();
+        DVector dv = DVector.empty(false, levels);
+        oobFit = Nominal.empty(oobTrueClass.rowCount(), levels);
+        double totalOobError = 0.0;
+        double totalOobInstances = 0.0;
+        for (int row = 0; row < oobTrueClass.rowCount(); row++) {
+            for (int j = 0; j < levels.length; j++) {
+                dv.set(j, oobVotes.get(row * levels.length + j));
+            }
+            if (dv.sum() > 0) {
+                String bestLevel = levels[dv.findBestIndex()];
+                oobFit.setLabel(row, bestLevel);
+                if (!bestLevel.equals(oobTrueClass.label(row))) {
                     totalOobError++;
                 }
                 totalOobInstances++;
@@ -438,7 +491,7 @@ public class CForest extends AbstractClassifier {
         oobError = (totalOobInstances > 0) ? totalOobError / totalOobInstances : 0.0;
     }
 
-    private Pair<Classifier, List<Integer>> buildWeakPredictor(Frame df, Var weights) {
+    private Pair<Classifier, BitSet> buildWeakPredictor(Frame df, Var weights) {
         Classifier weak = c.newInstance();
 
         Sample sample = sampler().nextSample(df, weights);
@@ -447,24 +500,141 @@ public class CForest extends AbstractClassifier {
         Var trainWeights = sample.weights;
 
         weak.train(trainFrame, trainWeights, firstTargetName());
-        List<Integer> oobIndexes = new ArrayList<>();
-        if (oobComp) {
-            Set<Integer> out = sample.mapping.rowStream().boxed().collect(toSet());
-            oobIndexes = IntStream.range(0, df.rowCount()).filter(row -> !out.contains(row)).boxed().collect(toList());
-        }
-        return Pair.from(weak, oobIndexes);
+        BitSet oob = (oobComp || permVIComp) ? sample.outOfBag(df.rowCount()) : new BitSet();
+        return Pair.from(weak, oob);
     }
 
     @Override
     protected CFit coreFit(Frame df, boolean withClasses, boolean withDensities) {
         CFit cp = CFit.build(this, df, true, true);
-        List<CFit> treeFits = predictors.stream().parallel()
-                .map(pred -> pred.fit(df, baggingMode.needsClass(), baggingMode.needsDensity()))
-                .collect(Collectors.toList());
-        baggingMode.computeDensity(firstTargetLevels(), new ArrayList<>(treeFits), cp.firstClasses(), cp.firstDensity());
+        int levels = firstTargetLevels().length;
+        int blocks = (df.rowCount() + FIT_BLOCK_SIZE - 1) / FIT_BLOCK_SIZE;
+
+        // rows are scored in blocks, each block runs all predictors and accumulates
+        // their votes or densities into a single buffer
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int start = block * FIT_BLOCK_SIZE;
+            int end = Math.min(df.rowCount(), start + FIT_BLOCK_SIZE);
+            double[] buffer = new double[(end - start) * levels];
+            Frame blockDf = null;
+            for (Classifier predictor : predictors) {
+                if (predictor instanceof CTree
+                        && ((CTree) predictor).fitInto(df, start, end, baggingMode.needsClass(), buffer)) {
+                    continue;
+                }
+                if (blockDf == null) {
+                    blockDf = df.mapRows(Mapping.range(start, end));
+                }
+                CFit fit = predictor.fit(blockDf, baggingMode.needsClass(), baggingMode.needsDensity());
+                baggingMode.accumulate(fit, buffer, levels);
+            }
+            baggingMode.computeFit(firstTargetLevels(), buffer, start, end, cp.firstClasses(), cp.firstDensity());
+        });
         return cp;
     }
 
+    /**
+     * Writes the forest in binary model format. Each predictor is written as a separate
+     * block, out of bag predictions of the training rows are not stored.
+     */
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeBoolean(oobComp);
+        out.writeBoolean(freqVIComp);
+        out.writeBoolean(gainVIComp);
+        out.writeBoolean(permVIComp);
+        out.writeString(baggingMode.name());
+        out.writeDouble(oobError);
+        writeVIMap(out, freqVIMap);
+        writeVIMap(out, gainVIMap);
+        writeVIMap(out, permVIMap);
+        out.writeInt(predictors.size());
+        for (Classifier predictor : predictors) {
+            out.writeBlock(predictor);
+        }
+    }
+
+    private static void writeVIMap(ModelOutput out, Map<String, List<Double>> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, List<Double>> e : map.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeDoubles(e.getValue().stream().mapToDouble(Double::doubleValue).toArray());
+        }
+    }
+
+    private static Map<String, List<Double>> readVIMap(ModelInput in) throws IOException {
+        int size = in.readInt();
+        Map<String, List<Double>> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String name = in.readString();
+            List<Double> values = new ArrayList<>();
+            for (double value : in.readDoubles()) {
+                values.add(value);
+            }
+            map.put(name, values);
+        }
+        return map;
+    }
+
+    /**
+     * Reads a forest written with {@link #writeModel(ModelOutput)}. Predictors are
+     * decoded lazily, at their first use.
+     */
+    public static CForest readModel(ModelInput in) throws IOException {
+        CForest rf = new CForest();
+        rf.readBase(in);
+        rf.oobComp = in.readBoolean();
+        rf.freqVIComp = in.readBoolean();
+        rf.gainVIComp = in.readBoolean();
+        rf.permVIComp = in.readBoolean();
+        rf.baggingMode = BaggingMode.valueOf(in.readString());
+        rf.oobError = in.readDouble();
+        rf.freqVIMap = readVIMap(in);
+        rf.gainVIMap = readVIMap(in);
+        rf.permVIMap = readVIMap(in);
+        byte[][] blocks = new byte[in.readInt()][];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = in.readBlock();
+        }
+        rf.predictors = new LazyPredictors(blocks);
+        return rf;
+    }
+
+    /**
+     * Predictor list which decodes each predictor from its binary block on first access.
+     */
+    private static class LazyPredictors extends AbstractList<Classifier> implements Serializable {
+
+        private static final long serialVersionUID = 5174618283592466727L;
+        private final byte[][] blocks;
+        private final AtomicReferenceArray<Classifier> decoded;
+
+        LazyPredictors(byte[][] blocks) {
+            this.blocks = blocks;
+            this.decoded = new AtomicReferenceArray<>(blocks.length);
+        }
+
+        @Override
+        public Classifier get(int index) {
+            Classifier c = decoded.get(index);
+            if (c == null) {
+                try {
+                    decoded.compareAndSet(index, null, (Classifier) ModelInput.decode(blocks[index]));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                c = decoded.get(index);
+            }
+            return c;
+        }
+
+        @Override
+        public int size() {
+            return blocks.length;
+        }
+    }
+
     @Override
     public CForest withRunningHook(BiConsumer<Classifier, Integer> runningHook) {
         return (CForest) super.withRunningHook(runningHook);
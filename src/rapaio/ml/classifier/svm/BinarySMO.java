@@ -32,28 +32,36 @@ import rapaio.math.MTools;
 import rapaio.core.RandomSource;
 import rapaio.data.Frame;
 import rapaio.data.Mapping;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
 import rapaio.data.Var;
 import rapaio.data.VarType;
 import rapaio.data.filter.FFilter;
 import rapaio.data.sample.Sample;
 import rapaio.data.sample.RowSampler;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.AbstractClassifier;
 import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.Classifier;
+import rapaio.ml.classifier.svm.kernel.AbstractKernel;
 import rapaio.ml.classifier.svm.kernel.Kernel;
 import rapaio.ml.classifier.svm.kernel.PolyKernel;
 import rapaio.ml.common.Capabilities;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.BitSet;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static rapaio.sys.WS.formatFlex;
 
 /**
  * Class for building a binary support vector machine.
  */
-public class BinarySMO extends AbstractClassifier implements Serializable {
+public class BinarySMO extends AbstractClassifier implements Serializable, ModelWritable {
 
     private static final long serialVersionUID = 1208515184777030598L;
 
@@ -85,6 +93,7 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
     private int classIndex2 = 2;
     private boolean oneVsAll = false;
     private int maxRuns = Integer.MAX_VALUE;
+    private int kernelCacheSize = AbstractKernel.DEFAULT_CACHE_SIZE;
     private double C = 1.0; // complexity parameter
     private double tol = 1e-3; // tolerance of accuracy
     private Frame train;
@@ -126,6 +135,7 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
                 .withSecondClassIndex(classIndex2)
                 .withOneVsAll(oneVsAll)
                 .withMaxRuns(maxRuns)
+                .withKernelCacheSize(kernelCacheSize)
                 .withInputFilters(inputFilters());
     }
 
@@ -134,6 +144,20 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
         return this;
     }
 
+    /**
+     * Sets the memory budget of the kernel cache, which keeps the kernel rows
+     * of the most recently optimized instances.
+     *
+     * @param megabytes kernel cache size in megabytes
+     */
+    public BinarySMO withKernelCacheSize(int megabytes) {
+        if (megabytes < 1) {
+            throw new IllegalArgumentException("kernel cache size must be at least one megabyte");
+        }
+        this.kernelCacheSize = megabytes;
+        return this;
+    }
+
     public BinarySMO withC(double c) {
         this.C = c;
         return this;
@@ -328,7 +352,7 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
         sparseIndices = null;
 
         // init kernel
-        kernel.buildKernel(inputNames(), df);
+        kernel.buildKernel(inputNames(), df, kernelCacheSize);
 
         // Initialize error cache
         fCache = new double[df.rowCount()];
@@ -507,6 +531,12 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
                     }
                 }
             }
+        } else if (df == train && fCache != null) {
+            // while training the kernel values of an instance are taken from its cached kernel row
+            double[] k = kernel.computeRow(train, row, supportVectors);
+            for (int i = supportVectors.nextSetBit(0); i != -1; i = supportVectors.nextSetBit(i + 1)) {
+                result += target[i] * alpha[i] * k[i];
+            }
         } else {
             for (int i = supportVectors.nextSetBit(0); i != -1; i = supportVectors.nextSetBit(i + 1)) {
                 result += target[i] * alpha[i] * kernel.compute(train, i, df, row);
@@ -517,6 +547,83 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
     }
 
 
+    /**
+     * Writes the machine in binary model format. For linear machines only the sparse weight
+     * vector is stored, otherwise only the input values of the support vectors are stored,
+     * together with their multipliers and classes.
+     */
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeDouble(C);
+        out.writeDouble(tol);
+        out.writeInt(classIndex1);
+        out.writeInt(classIndex2);
+        out.writeBoolean(oneVsAll);
+        out.writeInt(maxRuns);
+        out.writeSerializable(kernel);
+        out.writeBoolean(hasLearned());
+        if (!hasLearned()) {
+            return;
+        }
+        out.writeDouble(b);
+        out.writeInt(targetIndex);
+        if (kernel.isLinear()) {
+            out.writeDoubles(sparseWeights);
+            out.writeInts(sparseIndices);
+            return;
+        }
+        int[] rows = supportVectors.stream().toArray();
+        double[] svAlpha = new double[rows.length];
+        double[] svTarget = new double[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            svAlpha[i] = alpha[rows[i]];
+            svTarget[i] = target[rows[i]];
+        }
+        out.writeDoubles(svAlpha);
+        out.writeDoubles(svTarget);
+        for (String name : inputNames()) {
+            double[] values = new double[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                values[i] = train.value(rows[i], name);
+            }
+            out.writeDoubles(values);
+        }
+    }
+
+    public static BinarySMO readModel(ModelInput in) throws IOException {
+        BinarySMO smo = new BinarySMO();
+        smo.readBase(in);
+        smo.C = in.readDouble();
+        smo.tol = in.readDouble();
+        smo.classIndex1 = in.readInt();
+        smo.classIndex2 = in.readInt();
+        smo.oneVsAll = in.readBoolean();
+        smo.maxRuns = in.readInt();
+        smo.kernel = in.readSerializable();
+        if (!in.readBoolean()) {
+            return smo;
+        }
+        smo.b = in.readDouble();
+        smo.targetIndex = in.readInt();
+        if (smo.kernel.isLinear()) {
+            smo.sparseWeights = in.readDoubles();
+            smo.sparseIndices = in.readInts();
+            return smo;
+        }
+        smo.alpha = in.readDoubles();
+        smo.target = in.readDoubles();
+        smo.supportVectors = new BitSet();
+        smo.supportVectors.set(0, smo.alpha.length);
+        String[] names = smo.inputNames();
+        Var[] vars = new Var[names.length];
+        for (int i = 0; i < names.length; i++) {
+            vars[i] = Numeric.wrap(in.readDoubles()).withName(names[i]);
+        }
+        smo.train = SolidFrame.byVars(smo.alpha.length, vars);
+        return smo;
+    }
+
     /**
      * Examines instance.
      *
@@ -763,14 +870,15 @@ public class BinarySMO extends AbstractClassifier implements Serializable {
             }
         }
 
-        // Update error cache using new Lagrange multipliers
-        for (int j = I0.nextSetBit(0); j != -1; j = I0.nextSetBit(j + 1)) {
-            if ((j != i1) && (j != i2)) {
-                fCache[j] +=
-                        y1 * (a1 - alph1) * kernel.compute(train, i1, train, j) +
-                                y2 * (a2 - alph2) * kernel.compute(train, i2, train, j);
-            }
-        }
+        // Update error cache using new Lagrange multipliers, the kernel rows of the
+        // two instances are taken from the kernel cache, which keeps them for later
+        // kernel values of the support vectors
+        double[] k1 = kernel.computeRow(train, i1, I0);
+        double[] k2 = kernel.computeRow(train, i2, I0);
+        double c1 = y1 * (a1 - alph1);
+        double c2 = y2 * (a2 - alph2);
+        IntStream rows = (runPoolSize() != 0) ? I0.stream().parallel() : I0.stream();
+        rows.filter(j -> j != i1 && j != i2).forEach(j -> fCache[j] += c1 * k1[j] + c2 * k2[j]);
 
         // Update error cache for i1 and i2
         fCache[i1] += y1 * (a1 - alph1) * k11 + y2 * (a2 - alph2) * k12;
@@ -26,8 +26,10 @@ package rapaio.ml.classifier.svm.kernel;
 
 import rapaio.data.Frame;
 import rapaio.ml.classifier.svm.kernel.cache.KernelCache;
-import rapaio.ml.classifier.svm.kernel.cache.MapKernelCache;
-import rapaio.ml.classifier.svm.kernel.cache.SolidKernelCache;
+import rapaio.ml.classifier.svm.kernel.cache.LRUKernelCache;
+
+import java.util.BitSet;
+import java.util.stream.IntStream;
 
 /**
  * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a> at 1/16/15.
@@ -35,18 +37,21 @@ import rapaio.ml.classifier.svm.kernel.cache.SolidKernelCache;
 public abstract class AbstractKernel implements Kernel {
 
     private static final long serialVersionUID = -2216556261751685749L;
+    public static final int DEFAULT_CACHE_SIZE = 100;
+    private static final int PARALLEL_ROW_SIZE = 1024;
 
     protected String[] varNames;
-    private KernelCache cache;
+    private transient KernelCache cache;
 
     @Override
     public void buildKernel(String[] varNames, Frame df) {
+        buildKernel(varNames, df, DEFAULT_CACHE_SIZE);
+    }
+
+    @Override
+    public void buildKernel(String[] varNames, Frame df, int cacheSize) {
         this.varNames = varNames;
-        if (df.rowCount() <= 10_000) {
-            cache = new SolidKernelCache(df);
-        } else {
-            cache = new MapKernelCache();
-        }
+        cache = new LRUKernelCache(df, cacheSize);
     }
 
     @Override
@@ -72,6 +77,9 @@ public abstract class AbstractKernel implements Kernel {
 
     @Override
     public double compute(Frame df1, int row1, Frame df2, int row2) {
+        if (cache == null) {
+            return eval(df1, row1, df2, row2);
+        }
         Double value = cache.retrieve(df1, row1, df2, row2);
         if (value == null) {
             value = eval(df1, row1, df2, row2);
@@ -81,11 +89,35 @@ public abstract class AbstractKernel implements Kernel {
     }
 
 
+    /**
+     * Only the values which are missing from the cached kernel row are evaluated,
+     * in parallel when there are many rows.
+     */
+    @Override
+    public double[] computeRow(Frame df, int row, BitSet rows) {
+        double[] cached = (cache == null) ? null : cache.row(df, row);
+        double[] values = (cached == null) ? new double[df.rowCount()] : cached;
+        IntStream stream = (rows.cardinality() >= PARALLEL_ROW_SIZE) ? rows.stream().parallel() : rows.stream();
+        stream.forEach(i -> {
+            if (cached == null) {
+                values[i] = eval(df, row, df, i);
+            } else if (Double.isNaN(values[i])) {
+                // the value could be cached already in the row of the other instance,
+                // which is not used otherwise, thus its recency is not changed
+                Double value = cache.peek(df, i, df, row);
+                values[i] = (value == null) ? eval(df, row, df, i) : value;
+            }
+        });
+        return values;
+    }
+
     public abstract double eval(Frame df1, int row1, Frame df2, int row2);
 
     @Override
     public void clean() {
-        cache.clear();
+        if (cache != null) {
+            cache.clear();
+        }
     }
 }
 
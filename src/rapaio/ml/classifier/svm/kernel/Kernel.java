@@ -27,6 +27,7 @@ package rapaio.ml.classifier.svm.kernel;
 import rapaio.data.Frame;
 
 import java.io.Serializable;
+import java.util.BitSet;
 
 /**
  * Kernel function interface
@@ -43,8 +44,31 @@ public interface Kernel extends Serializable {
 
     void buildKernel(String[] varNames, Frame df);
 
+    /**
+     * Builds the kernel with a memory budget for the kernel cache.
+     *
+     * @param cacheSize kernel cache size in megabytes
+     */
+    default void buildKernel(String[] varNames, Frame df, int cacheSize) {
+        buildKernel(varNames, df);
+    }
+
     double compute(Frame df1, int row1, Frame df2, int row2);
 
+    /**
+     * Computes kernel values between a row of a data frame and some rows of the same data frame.
+     * The returned array is indexed by the rows of the data frame, only the values of the given
+     * rows are guaranteed to be computed. It can be shared with the kernel cache and must not
+     * be modified.
+     */
+    default double[] computeRow(Frame df, int row, BitSet rows) {
+        double[] values = new double[df.rowCount()];
+        for (int i = rows.nextSetBit(0); i != -1; i = rows.nextSetBit(i + 1)) {
+            values[i] = compute(df, row, df, i);
+        }
+        return values;
+    }
+
     default void clean() {
     }
 }
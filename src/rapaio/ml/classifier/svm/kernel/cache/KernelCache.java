@@ -41,5 +41,24 @@ public interface KernelCache extends Serializable {
 
     void store(Frame df1, int row1, Frame df2, int row2, double value);
 
+    /**
+     * Retrieves a cached value like {@link #retrieve(Frame, int, Frame, int)}, without
+     * counting it as a use of the cached entries for eviction purposes.
+     */
+    default Double peek(Frame df1, int row1, Frame df2, int row2) {
+        return retrieve(df1, row1, df2, row2);
+    }
+
+    /**
+     * Returns the cached kernel row of an instance, which holds the kernel values
+     * between the instance and all instances of the data frame. The row is created if
+     * it is not cached, and values which are not computed yet are NaN.
+     *
+     * @return kernel row, or null if the cache does not keep rows for the data frame
+     */
+    default double[] row(Frame df, int row) {
+        return null;
+    }
+
     void clear();
 }
@@ -0,0 +1,191 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.svm.kernel.cache;
+
+import rapaio.data.Frame;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Kernel cache which keeps kernel rows of a data frame, in the manner of LibSVM.
+ * <p>
+ * Each row is an array of primitive values with the kernel values between one instance
+ * and all instances of the data frame, which are filled as they are computed. The number
+ * of rows is bounded by a memory budget given in megabytes, and the least recently used
+ * rows are evicted first. A single kernel value is found in the row of any of its two
+ * instances.
+ * <p>
+ * All operations are thread safe. Lookups do not lock, rows are created and evicted
+ * under a lock, and a value written concurrently in a row is either missing or final.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class LRUKernelCache implements KernelCache {
+
+    private static final long serialVersionUID = 3946011318587230614L;
+
+    private final Frame df;
+    private final int capacity;
+
+    // cached rows indexed by instance, with the time of the last use
+    private transient AtomicReferenceArray<double[]> rows;
+    private transient AtomicLongArray stamps;
+    private transient AtomicLong clock;
+    // instances which have cached rows, guarded by this
+    private transient int[] cached;
+    private transient int size;
+
+    /**
+     * @param df        data frame for which kernel rows are cached
+     * @param megabytes memory budget for cached rows, at least two rows are always kept
+     */
+    public LRUKernelCache(Frame df, int megabytes) {
+        if (megabytes < 1) {
+            throw new IllegalArgumentException("kernel cache size must be at least one megabyte");
+        }
+        this.df = df;
+        long rowBytes = 8L * Math.max(1, df.rowCount());
+        this.capacity = (int) Math.max(2, Math.min(df.rowCount(), megabytes * 1024L * 1024L / rowBytes));
+        this.rows = new AtomicReferenceArray<>(df.rowCount());
+        this.stamps = new AtomicLongArray(df.rowCount());
+        this.clock = new AtomicLong();
+        this.cached = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * @return maximum number of kernel rows kept in cache
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    private double[] lookup(int row) {
+        double[] values = rows.get(row);
+        if (values != null) {
+            stamps.lazySet(row, clock.incrementAndGet());
+        }
+        return values;
+    }
+
+    @Override
+    public Double retrieve(Frame df1, int row1, Frame df2, int row2) {
+        if (df1 != df || df2 != df || rows == null) {
+            return null;
+        }
+        double[] values = lookup(row1);
+        if (values != null && !Double.isNaN(values[row2])) {
+            return values[row2];
+        }
+        values = lookup(row2);
+        return (values == null || Double.isNaN(values[row1])) ? null : values[row1];
+    }
+
+    /**
+     * Lookups of values do not change the recency of the cached rows.
+     */
+    @Override
+    public Double peek(Frame df1, int row1, Frame df2, int row2) {
+        if (df1 != df || df2 != df || rows == null) {
+            return null;
+        }
+        double[] values = rows.get(row1);
+        if (values != null && !Double.isNaN(values[row2])) {
+            return values[row2];
+        }
+        values = rows.get(row2);
+        return (values == null || Double.isNaN(values[row1])) ? null : values[row1];
+    }
+
+    /**
+     * Values are stored only in the rows of the two instances which are already cached,
+     * rows are created only through {@link #row(Frame, int)}.
+     */
+    @Override
+    public void store(Frame df1, int row1, Frame df2, int row2, double value) {
+        if (df1 != df || df2 != df || rows == null) {
+            return;
+        }
+        double[] values1 = rows.get(row1);
+        double[] values2 = rows.get(row2);
+        if (values1 != null) {
+            values1[row2] = value;
+        }
+        if (values2 != null) {
+            values2[row1] = value;
+        }
+    }
+
+    @Override
+    public double[] row(Frame df, int row) {
+        if (df != this.df || rows == null) {
+            return null;
+        }
+        double[] values = lookup(row);
+        if (values != null) {
+            return values;
+        }
+        synchronized (this) {
+            values = rows.get(row);
+            if (values != null) {
+                return values;
+            }
+            if (size == capacity) {
+                evictLeastRecent();
+            }
+            values = new double[df.rowCount()];
+            Arrays.fill(values, Double.NaN);
+            cached[size++] = row;
+            stamps.set(row, clock.incrementAndGet());
+            rows.set(row, values);
+            return values;
+        }
+    }
+
+    private void evictLeastRecent() {
+        int pos = 0;
+        for (int i = 1; i < size; i++) {
+            if (stamps.get(cached[i]) < stamps.get(cached[pos])) {
+                pos = i;
+            }
+        }
+        rows.set(cached[pos], null);
+        cached[pos] = cached[--size];
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (rows == null) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            rows.set(cached[i], null);
+        }
+        size = 0;
+    }
+}
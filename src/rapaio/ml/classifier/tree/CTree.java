@@ -31,15 +31,24 @@ import rapaio.data.Var;
 import rapaio.data.VarType;
 import rapaio.data.filter.FFilter;
 import rapaio.data.stream.FSpot;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
 import rapaio.ml.classifier.AbstractClassifier;
 import rapaio.ml.classifier.CFit;
+import rapaio.ml.common.BinHistograms;
+import rapaio.ml.common.BinMatrix;
 import rapaio.ml.common.Capabilities;
+import rapaio.ml.common.RowPartition;
+import rapaio.ml.common.RowPredicate;
 import rapaio.ml.common.VarSelector;
 import rapaio.sys.WS;
 import rapaio.util.FJPool;
 import rapaio.util.Pair;
 import rapaio.util.Tag;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -52,7 +61,7 @@ import static java.util.stream.Collectors.joining;
  *
  * @author <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a>
  */
-public class CTree extends AbstractClassifier {
+public class CTree extends AbstractClassifier implements ModelWritable {
 
     private static final long serialVersionUID = 1203926824359387358L;
 
@@ -61,6 +70,9 @@ public class CTree extends AbstractClassifier {
     private int minCount = 1;
     private int maxDepth = -1;
     private double minGain = -1000;
+    private boolean presort = true;
+    private int maxBins = BinMatrix.MAX_BINS;
+    private boolean parallelSubtrees = false;
 
     private VarSelector varSelector = VarSelector.ALL;
     private Map<String, CTreePurityTest> customTestMap = new HashMap<>();
@@ -75,6 +87,12 @@ public class CTree extends AbstractClassifier {
 
     private transient Map<CTreeNode, Map<String, Mapping>> sortingCache = new HashMap<>();
 
+    // quantized numeric variables, available only while the tree is grown
+    private transient BinMatrix bins;
+
+    // flat arrays form of the tree, built at first fit and discarded when the tree changes
+    private transient volatile CTreeCompiled compiled;
+
     // static builders
 
     public CTree() {
@@ -138,6 +156,9 @@ public class CTree extends AbstractClassifier {
                 .withMinCount(minCount)
                 .withMinGain(minGain)
                 .withMaxDepth(maxDepth)
+                .withPresort(presort)
+                .withMaxBins(maxBins)
+                .withParallelSubtrees(parallelSubtrees)
                 .withFunction(function)
                 .withMissingHandler(splitter)
                 .withVarSelector(varSelector().newInstance())
@@ -202,6 +223,73 @@ public class CTree extends AbstractClassifier {
         return this;
     }
 
+    public boolean presort() {
+        return presort;
+    }
+
+    /**
+     * Configures if the numeric variables are sorted only once, at the root node, with row
+     * orderings partitioned for each child node, instead of being sorted again at each node.
+     * Both methods produce the same tree, presorting is faster for deep trees but
+     * requires additional memory for the row orderings.
+     *
+     * @param presort true if presorting is used
+     */
+    public CTree withPresort(boolean presort) {
+        this.presort = presort;
+        return this;
+    }
+
+    public boolean parallelSubtrees() {
+        return parallelSubtrees;
+    }
+
+    /**
+     * Configures if the subtrees of a node are learned as independent fork join tasks,
+     * each with its own variable selection state. It has effect only if the tree is
+     * trained in parallel, with a run pool size different than zero, and complements the
+     * parallel evaluation of variables, which does not help when there are few variables.
+     *
+     * @param parallelSubtrees true if sibling subtrees are learned in parallel
+     */
+    public CTree withParallelSubtrees(boolean parallelSubtrees) {
+        this.parallelSubtrees = parallelSubtrees;
+        return this;
+    }
+
+    public int maxBins() {
+        return maxBins;
+    }
+
+    /**
+     * Configures the maximum number of bins used to quantize numeric variables
+     * tested with {@link CTreePurityTest#NumericBinned}, including the bin for missing values.
+     *
+     * @param maxBins maximum number of bins, between 2 and {@link BinMatrix#MAX_BINS}
+     */
+    public CTree withMaxBins(int maxBins) {
+        if (maxBins < 2 || maxBins > BinMatrix.MAX_BINS) {
+            throw new IllegalArgumentException("number of bins must be between 2 and " + BinMatrix.MAX_BINS);
+        }
+        this.maxBins = maxBins;
+        return this;
+    }
+
+    BinMatrix bins() {
+        return bins;
+    }
+
+    /**
+     * @return test used for the given variable, a test for variable type has priority over a custom test
+     */
+    CTreePurityTest resolveTest(String varName, VarType varType) {
+        CTreePurityTest test = customTestMap.get(varName);
+        if (testMap.containsKey(varType)) {
+            test = testMap.get(varType);
+        }
+        return test;
+    }
+
     public CTree withTest(VarType varType, CTreePurityTest test) {
         this.testMap.put(varType, test);
         return this;
@@ -293,18 +381,31 @@ public class CTree extends AbstractClassifier {
     protected boolean coreTrain(Frame df, Var weights) {
 
         additionalValidation(df);
+        compiled = null;
 
         this.varSelector.withVarNames(inputNames());
 
         int rows = df.rowCount();
-        root = new CTreeNode(null, "root", spot -> true);
+        root = new CTreeNode(null, "root", RowPredicate.all());
+        CTreePresort sorted = presort ? CTreePresort.build(this, df) : null;
+        List<String> binned = new ArrayList<>();
+        for (String varName : inputNames()) {
+            CTreePurityTest test = resolveTest(varName, df.var(varName).type());
+            if (test != null && test.usesBins() && df.var(varName).type().isNumeric()) {
+                binned.add(varName);
+            }
+        }
+        bins = binned.isEmpty() ? null : BinMatrix.build(df, binned, maxBins);
+        BinHistograms histograms = binned.isEmpty() ? null : BinHistograms.root();
         if (runPoolSize() == 0) {
-            root.learn(this, df, weights, maxDepth() < 0 ? Integer.MAX_VALUE : maxDepth());
+            root.learn(this, RowPartition.of(df, weights), maxDepth() < 0 ? Integer.MAX_VALUE : maxDepth(), sorted, histograms, varSelector);
         } else {
-            FJPool.run(runPoolSize(), () -> root.learn(this, df, weights, maxDepth < 0 ? Integer.MAX_VALUE : maxDepth));
+            FJPool.run(runPoolSize(), () -> root.learn(this, RowPartition.of(df, weights), maxDepth < 0 ? Integer.MAX_VALUE : maxDepth, sorted, histograms, varSelector));
         }
+        bins = null;
         this.root.fillId(1);
         pruning.get().prune(this, (pruningDf == null) ? df : pruningDf, false);
+        compiled = null;
         return true;
     }
 
@@ -314,11 +415,17 @@ public class CTree extends AbstractClassifier {
 
     public void prune(Frame df, boolean all) {
         pruning.get().prune(this, df, all);
+        compiled = null;
     }
 
     @Override
     protected CFit coreFit(Frame df, boolean withClasses, boolean withDensities) {
         CFit prediction = CFit.build(this, df, withClasses, withDensities);
+        CTreeCompiled flat = compiled();
+        if (flat != null) {
+            flat.fit(df, prediction, withClasses, withDensities);
+            return prediction;
+        }
         df.stream().forEach(spot -> {
             Pair<Integer, DVector> res = fitPoint(this, spot, root);
             int index = res._1;
@@ -333,6 +440,55 @@ public class CTree extends AbstractClassifier {
         return prediction;
     }
 
+    private CTreeCompiled compiled() {
+        CTreeCompiled flat = compiled;
+        if (flat == null) {
+            flat = CTreeCompiled.compile(this);
+            compiled = flat;
+        }
+        return flat;
+    }
+
+    /**
+     * Adds the predictions for rows [start, end) of the given data frame into a buffer,
+     * without building a fit object. The buffer holds one slot for each target level
+     * for each row, starting with row start. For votes one is added to the slot of
+     * the predicted class, otherwise the predicted density is added.
+     *
+     * @return false if the tree has input filters or can't be compiled, in which case
+     * nothing is added and {@link #fit(Frame, boolean, boolean)} should be used instead
+     */
+    public boolean fitInto(Frame df, int start, int end, boolean votes, double[] buffer) {
+        if (!inputFilters().isEmpty()) {
+            return false;
+        }
+        CTreeCompiled flat = compiled();
+        if (flat == null) {
+            return false;
+        }
+        flat.fitInto(df, start, end, votes, buffer);
+        return true;
+    }
+
+    /**
+     * Writes the predicted class indexes for rows [start, end) of the given data frame
+     * into an array, starting with row start, without building a fit object.
+     *
+     * @return false if the tree has input filters or can't be compiled, in which case
+     * nothing is written and {@link #fit(Frame, boolean, boolean)} should be used instead
+     */
+    public boolean fitClassesInto(Frame df, int start, int end, int[] classes) {
+        if (!inputFilters().isEmpty()) {
+            return false;
+        }
+        CTreeCompiled flat = compiled();
+        if (flat == null) {
+            return false;
+        }
+        flat.fitClassesInto(df, start, end, classes);
+        return true;
+    }
+
     protected Pair<Integer, DVector> fitPoint(CTree tree, FSpot spot, CTreeNode node) {
         if (node.isLeaf())
             return Pair.from(node.getBestIndex(), node.getDensity().solidCopy().normalize());
@@ -358,6 +514,34 @@ public class CTree extends AbstractClassifier {
         return Pair.from(dv.findBestIndex(), dv);
     }
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeInt(minCount);
+        out.writeInt(maxDepth);
+        out.writeDouble(minGain);
+        out.writeBoolean(root != null);
+        if (root != null) {
+            root.writeTree(out);
+        }
+    }
+
+    /**
+     * Reads a tree written with {@link #writeModel(ModelOutput)}. Numeric parameters and the
+     * learned nodes are restored, the test, purity and missing strategies take default values.
+     */
+    public static CTree readModel(ModelInput in) throws IOException {
+        CTree tree = new CTree();
+        tree.readBase(in);
+        tree.minCount = in.readInt();
+        tree.maxDepth = in.readInt();
+        tree.minGain = in.readDouble();
+        if (in.readBoolean()) {
+            tree.root = CTreeNode.readTree(in);
+        }
+        return tree;
+    }
+
     private void additionalValidation(Frame df) {
         df.varStream().forEach(var -> {
             if (customTestMap.containsKey(var.name()))
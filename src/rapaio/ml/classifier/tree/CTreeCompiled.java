@@ -0,0 +1,190 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.tree;
+
+import rapaio.core.tools.DVector;
+import rapaio.data.Frame;
+import rapaio.data.stream.FSpot;
+import rapaio.ml.classifier.CFit;
+import rapaio.ml.common.FlatTree;
+import rapaio.util.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Classification tree compiled into flat arrays, which holds for each node the
+ * normalized density, the best class index and the total weight of the node.
+ * Predictions are identical with the ones obtained by following the tree nodes.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class CTreeCompiled {
+
+    /**
+     * @return compiled tree, or null if the tree has predicates which can't be compiled
+     */
+    static CTreeCompiled compile(CTree tree) {
+        List<CTreeNode> nodes = new ArrayList<>();
+        LinkedList<CTreeNode> queue = new LinkedList<>();
+        queue.add(tree.getRoot());
+        while (!queue.isEmpty()) {
+            CTreeNode node = queue.removeFirst();
+            nodes.add(node);
+            if (!node.isLeaf()) {
+                queue.addAll(node.getChildren());
+            }
+        }
+        int n = nodes.size();
+        int levels = tree.firstTargetLevels().length;
+        int[] childCounts = new int[n];
+        List<Predicate<FSpot>> predicates = new ArrayList<>(n);
+        int[] bestIndexes = new int[n];
+        double[] densities = new double[n * levels];
+        double[] weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            CTreeNode node = nodes.get(i);
+            childCounts[i] = node.isLeaf() ? 0 : node.getChildren().size();
+            predicates.add(node.getPredicate());
+            bestIndexes[i] = node.getBestIndex();
+            weights[i] = node.getDensity().sum();
+            DVector density = node.getDensity().solidCopy().normalize();
+            for (int j = 0; j < levels; j++) {
+                densities[i * levels + j] = density.get(j);
+            }
+        }
+        FlatTree flat = FlatTree.compile(childCounts, predicates);
+        return (flat == null) ? null : new CTreeCompiled(tree.firstTargetLevels(), flat, bestIndexes, densities, weights);
+    }
+
+    private final String[] dict;
+    private final FlatTree flat;
+    private final int[] bestIndexes;
+    private final double[] densities;
+    private final double[] weights;
+
+    private CTreeCompiled(String[] dict, FlatTree flat, int[] bestIndexes, double[] densities, double[] weights) {
+        this.dict = dict;
+        this.flat = flat;
+        this.bestIndexes = bestIndexes;
+        this.densities = densities;
+        this.weights = weights;
+    }
+
+    void fit(Frame df, CFit prediction, boolean withClasses, boolean withDensities) {
+        FlatTree.Binding binding = flat.bind(df);
+        int levels = dict.length;
+        for (int row = 0; row < df.rowCount(); row++) {
+            int node = binding.walk(row);
+            if (flat.isLeaf(node)) {
+                if (withClasses)
+                    prediction.firstClasses().setIndex(row, bestIndexes[node]);
+                if (withDensities)
+                    for (int j = 0; j < levels; j++) {
+                        prediction.firstDensity().setValue(row, j, densities[node * levels + j]);
+                    }
+                continue;
+            }
+            Pair<Integer, DVector> res = fitMissing(binding, row, node);
+            if (withClasses)
+                prediction.firstClasses().setIndex(row, res._1);
+            if (withDensities)
+                for (int j = 0; j < levels; j++) {
+                    prediction.firstDensity().setValue(row, j, res._2.get(j));
+                }
+        }
+    }
+
+    void fitInto(Frame df, int start, int end, boolean votes, double[] buffer) {
+        FlatTree.Binding binding = flat.bind(df);
+        int levels = dict.length;
+        for (int row = start; row < end; row++) {
+            int offset = (row - start) * levels;
+            int node = binding.walk(row);
+            if (flat.isLeaf(node)) {
+                if (votes) {
+                    buffer[offset + bestIndexes[node]]++;
+                } else {
+                    for (int j = 0; j < levels; j++) {
+                        buffer[offset + j] += densities[node * levels + j];
+                    }
+                }
+                continue;
+            }
+            Pair<Integer, DVector> res = fitMissing(binding, row, node);
+            if (votes) {
+                buffer[offset + res._1]++;
+            } else {
+                for (int j = 0; j < levels; j++) {
+                    buffer[offset + j] += res._2.get(j);
+                }
+            }
+        }
+    }
+
+    void fitClassesInto(Frame df, int start, int end, int[] classes) {
+        FlatTree.Binding binding = flat.bind(df);
+        for (int row = start; row < end; row++) {
+            int node = binding.walk(row);
+            classes[row - start] = flat.isLeaf(node) ? bestIndexes[node] : fitMissing(binding, row, node)._1;
+        }
+    }
+
+    private Pair<Integer, DVector> fitNode(FlatTree.Binding binding, int row, int node) {
+        if (flat.isLeaf(node)) {
+            DVector dv = DVector.empty(false, dict);
+            for (int j = 0; j < dict.length; j++) {
+                dv.set(j, densities[node * dict.length + j]);
+            }
+            return Pair.from(bestIndexes[node], dv);
+        }
+        int child = binding.next(node, row);
+        if (child >= 0) {
+            return fitNode(binding, row, child);
+        }
+        return fitMissing(binding, row, node);
+    }
+
+    /**
+     * Combines the predictions of all children, weighted by their total weight,
+     * when no child accepts the row.
+     */
+    private Pair<Integer, DVector> fitMissing(FlatTree.Binding binding, int row, int node) {
+        DVector dv = DVector.empty(false, dict);
+        double w = 0.0;
+        int end = flat.childStart(node) + flat.childCount(node);
+        for (int child = flat.childStart(node); child < end; child++) {
+            DVector d = fitNode(binding, row, child)._2;
+            dv.increment(d, weights[child]);
+            w += weights[child];
+        }
+        for (int i = 0; i < dict.length; i++) {
+            dv.set(i, dv.get(i) / w);
+        }
+        return Pair.from(dv.findBestIndex(), dv);
+    }
+}
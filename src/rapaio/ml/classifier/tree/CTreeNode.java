@@ -26,18 +26,27 @@ package rapaio.ml.classifier.tree;
 
 import rapaio.core.tools.DVector;
 import rapaio.data.Frame;
+import rapaio.data.Mapping;
 import rapaio.data.Var;
 import rapaio.data.stream.FSpot;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.ml.common.BinHistograms;
+import rapaio.ml.common.RowPartition;
+import rapaio.ml.common.RowPredicate;
 import rapaio.ml.common.VarSelector;
 import rapaio.util.Pair;
 import rapaio.util.func.SPredicate;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -48,6 +57,9 @@ import java.util.stream.IntStream;
 public class CTreeNode implements Serializable {
 
     private static final long serialVersionUID = -5045581827808911763L;
+
+    // nodes with fewer rows learn their subtrees in the current task
+    private static final int MIN_TASK_ROWS = 64;
     private final CTreeNode parent;
     private final String groupName;
     private final SPredicate<FSpot> predicate;
@@ -114,12 +126,130 @@ public class CTreeNode implements Serializable {
         return next;
     }
 
+    /**
+     * Writes the tree rooted in this node as flat arrays of node fields, with nodes in preorder.
+     */
+    void writeTree(ModelOutput out) throws IOException {
+        List<CTreeNode> nodes = new ArrayList<>();
+        collect(this, nodes);
+        int n = nodes.size();
+        String[] levels = density.levels();
+        int len = levels.length;
+
+        int[] childCounts = new int[n];
+        int[] ids = new int[n];
+        int[] bestIndexes = new int[n];
+        String[] groupNames = new String[n];
+        String[] testNames = new String[n];
+        double[] scores = new double[n];
+        double[] densities = new double[n * len];
+        double[] counters = new double[n * len];
+        List<SPredicate<FSpot>> predicates = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            CTreeNode node = nodes.get(i);
+            childCounts[i] = node.children.size();
+            ids[i] = node.id;
+            bestIndexes[i] = node.bestIndex;
+            groupNames[i] = node.groupName;
+            testNames[i] = node.bestCandidate == null ? null : node.bestCandidate.getTestName();
+            scores[i] = node.bestCandidate == null ? Double.NaN : node.bestCandidate.getScore();
+            for (int j = 0; j < len; j++) {
+                densities[i * len + j] = node.density.get(j);
+                counters[i * len + j] = node.counter.get(j);
+            }
+            predicates.add(node.predicate);
+        }
+        out.writeStrings(levels);
+        out.writeInts(childCounts);
+        out.writeInts(ids);
+        out.writeInts(bestIndexes);
+        out.writeStrings(groupNames);
+        out.writeStrings(testNames);
+        out.writeDoubles(scores);
+        out.writeDoubles(densities);
+        out.writeDoubles(counters);
+        RowPredicate.writeAll(out, predicates);
+    }
+
+    private static void collect(CTreeNode node, List<CTreeNode> nodes) {
+        nodes.add(node);
+        for (CTreeNode child : node.children) {
+            collect(child, nodes);
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #writeTree(ModelOutput)} and returns its root.
+     */
+    static CTreeNode readTree(ModelInput in) throws IOException {
+        String[] levels = in.readStrings();
+        int[] childCounts = in.readInts();
+        int[] ids = in.readInts();
+        int[] bestIndexes = in.readInts();
+        String[] groupNames = in.readStrings();
+        String[] testNames = in.readStrings();
+        double[] scores = in.readDoubles();
+        double[] densities = in.readDoubles();
+        double[] counters = in.readDoubles();
+        RowPredicate[] predicates = RowPredicate.readAll(in);
+
+        int len = levels.length;
+        CTreeNode[] nodes = new CTreeNode[childCounts.length];
+        int[] parents = new int[childCounts.length];
+        int[] remaining = Arrays.copyOf(childCounts, childCounts.length);
+        int parent = -1;
+        for (int i = 0; i < nodes.length; i++) {
+            while (parent >= 0 && remaining[parent] == 0) {
+                parent = parents[parent];
+            }
+            parents[i] = parent;
+            CTreeNode node = new CTreeNode(parent < 0 ? null : nodes[parent], groupNames[i], predicates[i]);
+            node.id = ids[i];
+            node.bestIndex = bestIndexes[i];
+            node.leaf = childCounts[i] == 0;
+            node.density = DVector.empty(false, levels);
+            node.counter = DVector.empty(false, levels);
+            for (int j = 0; j < len; j++) {
+                node.density.set(j, densities[i * len + j]);
+                node.counter.set(j, counters[i * len + j]);
+            }
+            if (testNames[i] != null) {
+                node.bestCandidate = new CTreeCandidate(scores[i], testNames[i]);
+            }
+            if (parent >= 0) {
+                nodes[parent].children.add(node);
+                nodes[parent].bestCandidate.addGroup(node.groupName, node.predicate);
+                remaining[parent]--;
+            }
+            nodes[i] = node;
+            if (childCounts[i] > 0) {
+                parent = i;
+            }
+        }
+        return nodes[0];
+    }
+
     public void cut() {
         leaf = true;
         children.clear();
     }
 
     public void learn(CTree tree, Frame df, Var weights, int depth) {
+        learn(tree, RowPartition.of(df, weights), depth, null, null, tree.varSelector());
+    }
+
+    /**
+     * Learns the sub tree of this node.
+     *
+     * @param rows       rows of this node in the training workspace
+     * @param presort    row orderings of numeric variables for this node, or null if not used
+     * @param histograms histograms of quantized variables for this node, or null if not used
+     * @param varSel     variable selector of this node
+     */
+    void learn(CTree tree, RowPartition rows, int depth, CTreePresort presort, BinHistograms histograms,
+               VarSelector varSel) {
+        Frame df = rows.frame();
+        Var weights = rows.weights();
         density = DVector.fromWeights(false, df.var(tree.firstTargetName()), weights);
         counter = DVector.fromCount(false, df.var(tree.firstTargetName()));
         bestIndex = density.findBestIndex();
@@ -132,7 +262,6 @@ public class CTreeNode implements Serializable {
             return;
         }
 
-        VarSelector varSel = tree.varSelector();
         String[] nextVarNames = varSel.nextAllVarNames();
         List<CTreeCandidate> candidateList = new ArrayList<>();
         Queue<String> exhaustList = new ConcurrentLinkedQueue<>();
@@ -160,7 +289,8 @@ public class CTreeNode implements Serializable {
                             " [" + df.var(testCol).type().name() + "]");
                 }
                 CTreeCandidate candidate = test.computeCandidate(
-                        tree, df, weights, testCol, tree.firstTargetName(), tree.getFunction());
+                        tree, df, weights, testCol, tree.firstTargetName(), tree.getFunction(),
+                        presort == null ? null : presort.sortedRows(testCol), histograms);
                 if (candidate != null) {
                     candidateList.add(candidate);
                     m--;
@@ -191,7 +321,8 @@ public class CTreeNode implements Serializable {
                                         " [" + df.var(testCol).type().name() + "]");
                             }
                             CTreeCandidate candidate = test.computeCandidate(
-                                    tree, df, weights, testCol, tree.firstTargetName(), tree.getFunction());
+                                    tree, df, weights, testCol, tree.firstTargetName(), tree.getFunction(),
+                                    presort == null ? null : presort.sortedRows(testCol), histograms);
                             if (candidate == null) {
                                 exhaustList.add(testCol);
                             }
@@ -218,16 +349,44 @@ public class CTreeNode implements Serializable {
         String testName = bestCandidate.getTestName();
 
         // now that we have a best candidate, do the effective split
-        Pair<List<Frame>, List<Var>> frames = tree.getMissingHandler().performSplit(df, weights, bestCandidate);
+        Pair<List<Mapping>, List<Var>> split = tree.getMissingHandler().performMapping(df, weights, bestCandidate);
 
+        List<CTreePresort> childPresorts = new ArrayList<>();
         for (int i = 0; i < bestCandidate.getGroupNames().size(); i++) {
             CTreeNode child = new CTreeNode(this, bestCandidate.getGroupNames().get(i), bestCandidate.getGroupPredicates().get(i));
             children.add(child);
+            childPresorts.add(presort == null ? null : presort.split(df.rowCount(), split._1.get(i)));
+        }
+
+        List<BinHistograms> childHistograms = null;
+        if (histograms != null) {
+            childHistograms = histograms.children(df.rowCount(), split._1.stream().mapToInt(Mapping::size).toArray());
         }
-        tree.varSelector().removeVarNames(exhaustList);
+
+        // the frame of this node is not valid after its rows are partitioned between children
+        List<RowPartition> childRows = rows.split(split._1, split._2);
+
+        if (tree.parallelSubtrees() && children.size() > 1 && rows.rowCount() >= MIN_TASK_ROWS
+                && ForkJoinTask.inForkJoinPool()) {
+            // each subtree is an independent task, with its own variable selection state
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                final int index = i;
+                final List<BinHistograms> hist = childHistograms;
+                tasks.add(ForkJoinTask.adapt(() -> children.get(index).learn(tree,
+                        childRows.get(index), depth - 1, childPresorts.set(index, null),
+                        hist == null ? null : hist.get(index), varSel.copyWithout(exhaustList))));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            return;
+        }
+
+        varSel.removeVarNames(exhaustList);
         for (int i = 0; i < children.size(); i++) {
-            children.get(i).learn(tree, frames._1.get(i), frames._2.get(i), depth - 1);
+            CTreePresort childPresort = childPresorts.set(i, null);
+            children.get(i).learn(tree, childRows.get(i), depth - 1, childPresort,
+                    childHistograms == null ? null : childHistograms.get(i), varSel);
         }
-        tree.varSelector().addVarNames(exhaustList);
+        varSel.addVarNames(exhaustList);
     }
 }
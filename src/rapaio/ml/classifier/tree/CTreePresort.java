@@ -0,0 +1,169 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.tree;
+
+import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.Var;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Row orderings of the numeric test variables of a tree node.
+ * <p>
+ * The orderings are computed once, by sorting, at the root node. For each child node
+ * they are obtained by a stable partition of the parent orderings, in linear time,
+ * so numeric split search does not need to sort again at each node.
+ * <p>
+ * Each ordering contains row numbers of the node data frame, with rows having
+ * missing values first, followed by the other rows in ascending order of values.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class CTreePresort {
+
+    /**
+     * Sorts the numeric variables of the data frame which are tested with tests
+     * able to use row orderings.
+     */
+    static CTreePresort build(CTree tree, Frame df) {
+        Map<String, int[]> sorted = new HashMap<>();
+        for (String varName : tree.inputNames()) {
+            Var var = df.var(varName);
+            CTreePurityTest test = tree.resolveTest(varName, var.type());
+            if (test != null && test.usesSortedRows() && var.type().isNumeric()) {
+                sorted.put(varName, sort(var));
+            }
+        }
+        return new CTreePresort(sorted);
+    }
+
+    private final Map<String, int[]> sorted;
+
+    private CTreePresort(Map<String, int[]> sorted) {
+        this.sorted = sorted;
+    }
+
+    /**
+     * @return row ordering of the given variable, or null if the variable is not sorted
+     */
+    int[] sortedRows(String varName) {
+        return sorted.get(varName);
+    }
+
+    /**
+     * Builds the row orderings of a child node.
+     *
+     * @param rowCount number of rows of this node
+     * @param mapping  rows of this node which are distributed to the child node, in
+     *                 the order of the rows of the child node
+     */
+    CTreePresort split(int rowCount, Mapping mapping) {
+        int[] childRows = new int[rowCount];
+        Arrays.fill(childRows, -1);
+        for (int i = 0; i < mapping.size(); i++) {
+            childRows[mapping.get(i)] = i;
+        }
+        Map<String, int[]> childSorted = new HashMap<>();
+        for (Map.Entry<String, int[]> e : sorted.entrySet()) {
+            int[] rows = new int[mapping.size()];
+            int len = 0;
+            for (int row : e.getValue()) {
+                int childRow = childRows[row];
+                if (childRow >= 0) {
+                    rows[len++] = childRow;
+                }
+            }
+            childSorted.put(e.getKey(), rows);
+        }
+        return new CTreePresort(childSorted);
+    }
+
+    static int[] sort(Var var) {
+        int n = var.rowCount();
+        int[] rows = new int[n];
+        double[] values = new double[n];
+        int missing = 0;
+        for (int i = 0; i < n; i++) {
+            if (var.missing(i)) {
+                rows[missing++] = i;
+            }
+        }
+        int len = 0;
+        for (int i = 0; i < n; i++) {
+            if (!var.missing(i)) {
+                rows[missing + len] = i;
+                values[len++] = var.value(i);
+            }
+        }
+        int[] sortedRows = mergeSort(Arrays.copyOfRange(rows, missing, n), Arrays.copyOf(values, len));
+        System.arraycopy(sortedRows, 0, rows, missing, len);
+        return rows;
+    }
+
+    /**
+     * Bottom up merge sort of rows by their values.
+     *
+     * @return sorted rows, which can be the given array or a new one
+     */
+    private static int[] mergeSort(int[] rows, double[] values) {
+        int n = rows.length;
+        int[] rowsBuff = new int[n];
+        double[] valuesBuff = new double[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    if (values[j] < values[i]) {
+                        rowsBuff[k] = rows[j];
+                        valuesBuff[k++] = values[j++];
+                    } else {
+                        rowsBuff[k] = rows[i];
+                        valuesBuff[k++] = values[i++];
+                    }
+                }
+                while (i < mid) {
+                    rowsBuff[k] = rows[i];
+                    valuesBuff[k++] = values[i++];
+                }
+                while (j < hi) {
+                    rowsBuff[k] = rows[j];
+                    valuesBuff[k++] = values[j++];
+                }
+            }
+            int[] rowsTmp = rows;
+            rows = rowsBuff;
+            rowsBuff = rowsTmp;
+            double[] valuesTmp = values;
+            values = valuesBuff;
+            valuesBuff = valuesTmp;
+        }
+        return rows;
+    }
+}
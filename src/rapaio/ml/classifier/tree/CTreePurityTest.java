@@ -31,10 +31,16 @@ import rapaio.data.Index;
 import rapaio.data.RowComparators;
 import rapaio.data.Var;
 import rapaio.data.filter.var.VFRefSort;
+import rapaio.ml.common.BinHistograms;
+import rapaio.ml.common.BinMatrix;
+import rapaio.ml.common.RowPredicate;
 import rapaio.sys.WS;
 import rapaio.util.Tagged;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Impurity test implementation
@@ -68,6 +74,19 @@ public interface CTreePurityTest extends Tagged, Serializable {
 
         @Override
         public CTreeCandidate computeCandidate(CTree c, Frame df, Var weights, String testName, String targetName, CTreePurityFunction function) {
+            Var sort = new VFRefSort(RowComparators.numeric(df.var(testName), true)).fitApply(Index.seq(df.rowCount()));
+            int[] sortedRows = new int[sort.rowCount()];
+            for (int i = 0; i < sortedRows.length; i++) {
+                sortedRows[i] = sort.index(i);
+            }
+            return computeCandidate(c, df, weights, testName, targetName, function, sortedRows);
+        }
+
+        @Override
+        public CTreeCandidate computeCandidate(CTree c, Frame df, Var weights, String testName, String targetName, CTreePurityFunction function, int[] sortedRows) {
+            if (sortedRows == null) {
+                return computeCandidate(c, df, weights, testName, targetName, function);
+            }
             Var test = df.var(testName);
             Var target = df.var(targetName);
 
@@ -79,13 +98,11 @@ public interface CTreePurityTest extends Tagged, Serializable {
                 dt.update(row, target.index(i), weights.value(i));
             }
 
-            Var sort = new VFRefSort(RowComparators.numeric(test, true)).fitApply(Index.seq(df.rowCount()));
-
             CTreeCandidate best = null;
             double bestScore = 0.0;
 
             for (int i = 0; i < df.rowCount(); i++) {
-                int row = sort.index(i);
+                int row = sortedRows[i];
 
                 if (test.missing(row)) continue;
 
@@ -94,7 +111,7 @@ public interface CTreePurityTest extends Tagged, Serializable {
 
                 if (i >= misCount + c.minCount() - 1 &&
                         i < df.rowCount() - c.minCount() &&
-                        test.value(sort.index(i)) < test.value(sort.index(i + 1))) {
+                        test.value(row) < test.value(sortedRows[i + 1])) {
 
                     double currentScore = function.compute(dt);
                     if (best != null) {
@@ -103,19 +120,120 @@ public interface CTreePurityTest extends Tagged, Serializable {
                         if (comp == 0 && RandomSource.nextDouble() > 0.5) continue;
                     }
                     best = new CTreeCandidate(bestScore, testName);
-                    double testValue = (test.value(sort.index(i)) + test.value(sort.index(i + 1))) / 2.0;
+                    double testValue = (test.value(row) + test.value(sortedRows[i + 1])) / 2.0;
                     best.addGroup(
                             String.format("%s <= %s", testName, WS.formatFlex(testValue)),
-                            spot -> !spot.missing(testName) && spot.value(testName) <= testValue);
+                            RowPredicate.numLessEqual(testName, testValue));
                     best.addGroup(
                             String.format("%s > %s", testName, WS.formatFlex(testValue)),
-                            spot -> !spot.missing(testName) && spot.value(testName) > testValue);
+                            RowPredicate.numGreater(testName, testValue));
 
                     bestScore = currentScore;
                 }
             }
             return best;
         }
+
+        @Override
+        public boolean usesSortedRows() {
+            return true;
+        }
+    };
+    CTreePurityTest NumericBinned = new CTreePurityTest() {
+        private static final long serialVersionUID = 4406381296154856310L;
+
+        @Override
+        public String name() {
+            return "NumericBinned";
+        }
+
+        @Override
+        public CTreeCandidate computeCandidate(CTree c, Frame df, Var weights, String testName, String targetName, CTreePurityFunction function) {
+            return computeCandidate(c, df, weights, testName, targetName, function, null, null);
+        }
+
+        @Override
+        public CTreeCandidate computeCandidate(CTree c, Frame df, Var weights, String testName, String targetName, CTreePurityFunction function,
+                                               int[] sortedRows, BinHistograms histograms) {
+            BinMatrix.Column column = (c.bins() == null) ? null : c.bins().column(testName);
+            int[] bins = (column == null) ? null : column.bins(df.var(testName));
+            if (bins == null) {
+                return NumericBinary.computeCandidate(c, df, weights, testName, targetName, function, sortedRows);
+            }
+            Var target = df.var(targetName);
+            int levels = target.levels().length;
+            int stride = levels + 1;
+
+            // for each bin the row count followed by weights of each target level
+            double[] hist = (histograms == null) ? null : histograms.subtract(testName, stride);
+            if (hist == null) {
+                hist = new double[column.binCount() * stride];
+                for (int i = 0; i < bins.length; i++) {
+                    int pos = bins[i] * stride;
+                    hist[pos]++;
+                    hist[pos + 1 + target.index(i)] += weights.value(i);
+                }
+            }
+            if (histograms != null) {
+                histograms.put(testName, hist);
+            }
+
+            DTable dt = DTable.empty(DTable.NUMERIC_DEFAULT_LABELS, target.levels(), false);
+            int total = 0;
+            for (int bin = 0; bin < column.binCount(); bin++) {
+                int pos = bin * stride;
+                int row = (bin == column.missingBin()) ? 0 : 2;
+                if (row == 2) {
+                    total += (int) hist[pos];
+                }
+                for (int j = 0; j < levels; j++) {
+                    if (hist[pos + 1 + j] != 0) {
+                        dt.update(row, j, hist[pos + 1 + j]);
+                    }
+                }
+            }
+
+            CTreeCandidate best = null;
+            double bestScore = 0.0;
+            int left = 0;
+            for (int bin = 0; bin < column.missingBin() - 1; bin++) {
+                int pos = bin * stride;
+                if (hist[pos] == 0) {
+                    continue;
+                }
+                left += (int) hist[pos];
+                for (int j = 0; j < levels; j++) {
+                    if (hist[pos + 1 + j] != 0) {
+                        dt.update(2, j, -hist[pos + 1 + j]);
+                        dt.update(1, j, hist[pos + 1 + j]);
+                    }
+                }
+                if (left < Math.max(1, c.minCount()) || total - left < Math.max(1, c.minCount())) {
+                    continue;
+                }
+                double currentScore = function.compute(dt);
+                if (best != null) {
+                    int comp = Double.compare(bestScore, currentScore);
+                    if (comp > 0) continue;
+                    if (comp == 0 && RandomSource.nextDouble() > 0.5) continue;
+                }
+                best = new CTreeCandidate(currentScore, testName);
+                double testValue = column.threshold(bin);
+                best.addGroup(
+                        String.format("%s <= %s", testName, WS.formatFlex(testValue)),
+                        RowPredicate.numLessEqual(testName, testValue));
+                best.addGroup(
+                        String.format("%s > %s", testName, WS.formatFlex(testValue)),
+                        RowPredicate.numGreater(testName, testValue));
+                bestScore = currentScore;
+            }
+            return best;
+        }
+
+        @Override
+        public boolean usesBins() {
+            return true;
+        }
     };
     CTreePurityTest BinaryBinary = new CTreePurityTest() {
 
@@ -137,8 +255,8 @@ public interface CTreePurityTest extends Tagged, Serializable {
             }
 
             CTreeCandidate best = new CTreeCandidate(function.compute(dt), testName);
-            best.addGroup(testName + " == 1", spot -> spot.binary(testName));
-            best.addGroup(testName + " != 1", spot -> !spot.binary(testName));
+            best.addGroup(testName + " == 1", RowPredicate.binEqual(testName, true));
+            best.addGroup(testName + " != 1", RowPredicate.binEqual(testName, false));
             return best;
 
         }
@@ -168,7 +286,7 @@ public interface CTreePurityTest extends Tagged, Serializable {
                 final String label = test.levels()[i];
                 candidate.addGroup(
                         String.format("%s == %s", testName, label),
-                        spot -> !spot.missing(testName) && spot.label(testName).equals(label));
+                        RowPredicate.nomEqual(testName, label, true));
             }
             return candidate;
         }
@@ -213,12 +331,242 @@ public interface CTreePurityTest extends Tagged, Serializable {
                     if (comp == 0 && RandomSource.nextDouble() > 0.5) continue;
                 }
                 best = new CTreeCandidate(currentScore, testName);
-                best.addGroup(testName + " == " + testLabel, spot -> spot.label(testName).equals(testLabel));
-                best.addGroup(testName + " != " + testLabel, spot -> !spot.label(testName).equals(testLabel));
+                best.addGroup(testName + " == " + testLabel, RowPredicate.nomEqual(testName, testLabel, false));
+                best.addGroup(testName + " != " + testLabel, RowPredicate.nomNotEqual(testName, testLabel, false));
             }
             return best;
         }
     };
 
+    /**
+     * Binary partition of the levels of a nominal variable into two groups.
+     * <p>
+     * Levels are sorted by a score and only the prefixes of that ordering are
+     * evaluated, which takes O(L log L) instead of the O(2^L) of an exhaustive search.
+     * For a binary target the score is the rate of the second class, for which the
+     * ordering is known to contain the optimal partition for gini and entropy
+     * (Breiman et al., 1984). For more than two classes the levels are ordered by the
+     * projection of their class distribution on the first principal component
+     * (Coppersmith, Hong and Hosking, 1999), which is a heuristic.
+     * <p>
+     * Rows with missing values are sent to the missing handler.
+     */
+    CTreePurityTest NominalPartition = new CTreePurityTest() {
+
+        private static final long serialVersionUID = 6313212405318807427L;
+
+        @Override
+        public String name() {
+            return "NominalPartition";
+        }
+
+        @Override
+        public CTreeCandidate computeCandidate(CTree c, Frame df, Var weights, String testName, String targetName, CTreePurityFunction function) {
+            Var test = df.var(testName);
+            Var target = df.var(targetName);
+            String[] testLevels = test.levels();
+            String[] targetLevels = target.levels();
+
+            // row counts and class weights for each level of the test variable
+            int[] counts = new int[testLevels.length];
+            double[][] hist = new double[testLevels.length][targetLevels.length];
+            for (int i = 0; i < df.rowCount(); i++) {
+                int index = test.index(i);
+                counts[index]++;
+                hist[index][target.index(i)] += weights.value(i);
+            }
+            int presentCount = 0;
+            for (int i = 1; i < testLevels.length; i++) {
+                if (counts[i] > 0) {
+                    presentCount++;
+                }
+            }
+            if (presentCount < 2) {
+                return null;
+            }
+            int[] present = new int[presentCount];
+            int total = 0;
+            for (int i = 1, pos = 0; i < testLevels.length; i++) {
+                if (counts[i] > 0) {
+                    present[pos++] = i;
+                    total += counts[i];
+                }
+            }
+            double[] keys = levelKeys(hist, present);
+            int[] order = IntStream.range(0, presentCount).boxed()
+                    .sorted((a, b) -> Double.compare(keys[a], keys[b]))
+                    .mapToInt(Integer::intValue).toArray();
+
+            DTable dt = DTable.empty(new String[]{"?", "in", "not-in"}, targetLevels, false);
+            for (int j = 1; j < targetLevels.length; j++) {
+                dt.update(0, j, hist[0][j]);
+                for (int level : present) {
+                    dt.update(2, j, hist[level][j]);
+                }
+            }
+
+            int bestPrefix = -1;
+            double bestScore = 0.0;
+            int left = 0;
+            int minCount = Math.max(1, c.minCount());
+            for (int k = 0; k < presentCount - 1; k++) {
+                int level = present[order[k]];
+                left += counts[level];
+                for (int j = 1; j < targetLevels.length; j++) {
+                    if (hist[level][j] != 0) {
+                        dt.moveOnCol(2, 1, j, hist[level][j]);
+                    }
+                }
+                if (left < minCount || total - left < minCount) {
+                    continue;
+                }
+                double currentScore = function.compute(dt);
+                if (bestPrefix >= 0) {
+                    int comp = Double.compare(bestScore, currentScore);
+                    if (comp > 0) continue;
+                    if (comp == 0 && RandomSource.nextDouble() > 0.5) continue;
+                }
+                bestPrefix = k;
+                bestScore = currentScore;
+            }
+            if (bestPrefix < 0) {
+                return null;
+            }
+            List<String> labels = new ArrayList<>();
+            for (int k = 0; k <= bestPrefix; k++) {
+                labels.add(testLevels[present[order[k]]]);
+            }
+            CTreeCandidate best = new CTreeCandidate(bestScore, testName);
+            String text = RowPredicate.formatLabels(labels);
+            best.addGroup(testName + " in " + text, RowPredicate.nomIn(testName, labels, true));
+            best.addGroup(testName + " not in " + text, RowPredicate.nomNotIn(testName, labels, true));
+            return best;
+        }
+
+        /**
+         * Computes the sort key of each present level from its class distribution.
+         */
+        private double[] levelKeys(double[][] hist, int[] present) {
+            int classes = hist[0].length - 1;
+            double[][] p = new double[present.length][classes];
+            double[] levelWeights = new double[present.length];
+            for (int k = 0; k < present.length; k++) {
+                for (int j = 0; j < classes; j++) {
+                    levelWeights[k] += hist[present[k]][j + 1];
+                }
+                for (int j = 0; j < classes; j++) {
+                    p[k][j] = levelWeights[k] > 0 ? hist[present[k]][j + 1] / levelWeights[k] : 0.0;
+                }
+            }
+            double[] keys = new double[present.length];
+            if (classes <= 2) {
+                for (int k = 0; k < present.length; k++) {
+                    keys[k] = p[k][classes - 1];
+                }
+                return keys;
+            }
+
+            // weighted covariance matrix of the class distributions
+            double totalWeight = 0;
+            double[] mean = new double[classes];
+            for (int k = 0; k < present.length; k++) {
+                totalWeight += levelWeights[k];
+                for (int j = 0; j < classes; j++) {
+                    mean[j] += levelWeights[k] * p[k][j];
+                }
+            }
+            if (totalWeight <= 0) {
+                return keys;
+            }
+            for (int j = 0; j < classes; j++) {
+                mean[j] /= totalWeight;
+            }
+            double[][] cov = new double[classes][classes];
+            for (int k = 0; k < present.length; k++) {
+                for (int i = 0; i < classes; i++) {
+                    double di = p[k][i] - mean[i];
+                    for (int j = 0; j < classes; j++) {
+                        cov[i][j] += levelWeights[k] * di * (p[k][j] - mean[j]);
+                    }
+                }
+            }
+
+            // first principal component with power iteration, starting from the axis with largest variance
+            double[] v = new double[classes];
+            int start = 0;
+            for (int j = 1; j < classes; j++) {
+                if (cov[j][j] > cov[start][start]) {
+                    start = j;
+                }
+            }
+            v[start] = 1.0;
+            for (int iter = 0; iter < 100; iter++) {
+                double[] next = new double[classes];
+                double norm = 0;
+                for (int i = 0; i < classes; i++) {
+                    for (int j = 0; j < classes; j++) {
+                        next[i] += cov[i][j] * v[j];
+                    }
+                    norm += next[i] * next[i];
+                }
+                if (norm <= 0) {
+                    break;
+                }
+                norm = Math.sqrt(norm);
+                double delta = 0;
+                for (int i = 0; i < classes; i++) {
+                    next[i] /= norm;
+                    delta += Math.abs(next[i] - v[i]);
+                }
+                v = next;
+                if (delta < 1e-10) {
+                    break;
+                }
+            }
+            for (int k = 0; k < present.length; k++) {
+                for (int j = 0; j < classes; j++) {
+                    keys[k] += p[k][j] * v[j];
+                }
+            }
+            return keys;
+        }
+    };
+
     CTreeCandidate computeCandidate(CTree c, Frame df, Var w, String testName, String targetName, CTreePurityFunction function);
+
+    /**
+     * Computes a candidate using an already available ordering of the rows.
+     *
+     * @param sortedRows rows of the data frame ordered ascending by the values of
+     *                   the test variable, with missing values first, or null if not available
+     */
+    default CTreeCandidate computeCandidate(CTree c, Frame df, Var w, String testName, String targetName, CTreePurityFunction function, int[] sortedRows) {
+        return computeCandidate(c, df, w, testName, targetName, function);
+    }
+
+    /**
+     * @return true if the test can use row orderings computed once at the root of the tree
+     */
+    default boolean usesSortedRows() {
+        return false;
+    }
+
+    /**
+     * Computes a candidate using row orderings and histograms of quantized variables
+     * available for the current node.
+     *
+     * @param sortedRows rows ordered ascending by the values of the test variable, or null if not available
+     * @param histograms histograms of the current node, or null if not available
+     */
+    default CTreeCandidate computeCandidate(CTree c, Frame df, Var w, String testName, String targetName, CTreePurityFunction function,
+                                            int[] sortedRows, BinHistograms histograms) {
+        return computeCandidate(c, df, w, testName, targetName, function, sortedRows);
+    }
+
+    /**
+     * @return true if the test uses numeric variables quantized once before the tree is grown
+     */
+    default boolean usesBins() {
+        return false;
+    }
 }
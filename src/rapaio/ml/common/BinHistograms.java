@@ -0,0 +1,121 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Histograms over bins of quantized variables computed at a tree node.
+ * <p>
+ * When a node is split in exactly two children which together contain all the rows of
+ * the node, the histogram of a child can be obtained by subtracting the histogram of its
+ * sibling from the histogram of the parent, without scanning the rows of the child.
+ * <p>
+ * A histogram is an array of values grouped by bins. Each bin has the same number of
+ * values, with the first one being the number of rows which falls into that bin.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public final class BinHistograms {
+
+    /**
+     * @return histograms for the root node of a tree
+     */
+    public static BinHistograms root() {
+        return new BinHistograms(null, null);
+    }
+
+    private final BinHistograms parent;
+    private final BinHistograms sibling;
+    private final Map<String, double[]> histograms = new ConcurrentHashMap<>();
+
+    private BinHistograms(BinHistograms parent, BinHistograms sibling) {
+        this.parent = parent;
+        this.sibling = sibling;
+    }
+
+    /**
+     * Stores the histogram of a variable computed for this node.
+     */
+    public void put(String varName, double[] histogram) {
+        histograms.put(varName, histogram);
+    }
+
+    /**
+     * Computes the histogram of a variable by subtracting the histogram of the sibling
+     * from the histogram of the parent. Bins with no rows left are cleared, to not carry
+     * rounding errors.
+     *
+     * @param varName variable name
+     * @param stride  number of values of each bin
+     * @return histogram of the variable for this node, or null if the parent or the sibling
+     * histogram is not available
+     */
+    public double[] subtract(String varName, int stride) {
+        if (parent == null || sibling == null) {
+            return null;
+        }
+        double[] parentHist = parent.histograms.get(varName);
+        double[] siblingHist = sibling.histograms.get(varName);
+        if (parentHist == null || siblingHist == null) {
+            return null;
+        }
+        double[] hist = new double[parentHist.length];
+        for (int i = 0; i < hist.length; i += stride) {
+            if (parentHist[i] - siblingHist[i] <= 0) {
+                continue;
+            }
+            for (int j = i; j < i + stride; j++) {
+                hist[j] = parentHist[j] - siblingHist[j];
+            }
+        }
+        return hist;
+    }
+
+    /**
+     * Builds histograms for the children of this node. Subtraction is enabled only
+     * if there are two children which contain together all the rows of this node.
+     *
+     * @param rowCount       number of rows of this node
+     * @param childRowCounts number of rows of each child
+     */
+    public List<BinHistograms> children(int rowCount, int... childRowCounts) {
+        if (childRowCounts.length == 2 && childRowCounts[0] + childRowCounts[1] == rowCount) {
+            BinHistograms first = new BinHistograms(null, null);
+            List<BinHistograms> list = new ArrayList<>();
+            list.add(first);
+            list.add(new BinHistograms(this, first));
+            return list;
+        }
+        List<BinHistograms> list = new ArrayList<>();
+        for (int i = 0; i < childRowCounts.length; i++) {
+            list.add(new BinHistograms(null, null));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.MappedVar;
+import rapaio.data.Var;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numeric variables of a training data frame quantized into a small number of bins.
+ * <p>
+ * Quantization is done once, before a tree is grown. Each value is replaced by the
+ * number of its bin, stored as a byte, so split search can accumulate histograms
+ * over bins instead of sorting rows at each node. Bins are delimited by thresholds
+ * placed at the middle between consecutive distinct values, which makes a split
+ * between two bins identical with a numeric split on the original values.
+ * <p>
+ * The bin codes are stored by rows of the source variable, so nodes which work on
+ * mapped frames of the training frame can read them without any copy.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public final class BinMatrix {
+
+    /**
+     * Maximum number of bins, including the bin reserved for missing values
+     */
+    public static final int MAX_BINS = 256;
+
+    /**
+     * Quantizes the given numeric variables of a data frame.
+     *
+     * @param df       training data frame
+     * @param varNames names of the numeric variables to be quantized
+     * @param maxBins  maximum number of bins for each variable, including the bin for missing values
+     */
+    public static BinMatrix build(Frame df, Collection<String> varNames, int maxBins) {
+        if (maxBins < 2 || maxBins > MAX_BINS) {
+            throw new IllegalArgumentException("number of bins must be between 2 and " + MAX_BINS);
+        }
+        Map<String, Column> columns = new HashMap<>();
+        for (String varName : varNames) {
+            columns.put(varName, new Column(df.var(varName), maxBins - 1));
+        }
+        return new BinMatrix(columns);
+    }
+
+    private final Map<String, Column> columns;
+
+    private BinMatrix(Map<String, Column> columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @return quantized variable with the given name, or null if the variable was not quantized
+     */
+    public Column column(String varName) {
+        return columns.get(varName);
+    }
+
+    /**
+     * Quantized numeric variable.
+     */
+    public static final class Column {
+
+        private final Var source;
+        private final byte[] codes;
+        private final double[] thresholds;
+
+        private Column(Var var, int maxValueBins) {
+            int n = var.rowCount();
+            source = (var instanceof MappedVar) ? ((MappedVar) var).source() : var;
+            int[] rows = sourceRows(var);
+
+            double[] values = new double[n];
+            int len = 0;
+            for (int i = 0; i < n; i++) {
+                if (!var.missing(i)) {
+                    values[len++] = var.value(i);
+                }
+            }
+            values = Arrays.copyOf(values, len);
+            Arrays.sort(values);
+            thresholds = thresholds(values, maxValueBins);
+
+            codes = new byte[source.rowCount()];
+            for (int i = 0; i < n; i++) {
+                codes[rows[i]] = (byte) (var.missing(i) ? thresholds.length + 1 : bin(var.value(i)));
+            }
+        }
+
+        private static double[] thresholds(double[] values, int maxValueBins) {
+            int distinct = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (i == 0 || values[i] != values[i - 1]) {
+                    distinct++;
+                }
+            }
+            double[] cuts = new double[Math.min(distinct, maxValueBins)];
+            int len = 0;
+            if (distinct <= maxValueBins) {
+                for (int i = 1; i < values.length; i++) {
+                    if (values[i] != values[i - 1]) {
+                        cuts[len++] = (values[i - 1] + values[i]) / 2.0;
+                    }
+                }
+                return Arrays.copyOf(cuts, len);
+            }
+            for (int j = 1; j < maxValueBins; j++) {
+                double last = values[(int) ((long) j * values.length / maxValueBins) - 1];
+                int next = upperBound(values, last);
+                if (next == values.length) {
+                    break;
+                }
+                double threshold = (last + values[next]) / 2.0;
+                if (len == 0 || threshold > cuts[len - 1]) {
+                    cuts[len++] = threshold;
+                }
+            }
+            return Arrays.copyOf(cuts, len);
+        }
+
+        private static int upperBound(double[] values, double value) {
+            int lo = 0;
+            int hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] <= value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static int[] sourceRows(Var var) {
+            int[] rows = new int[var.rowCount()];
+            Mapping mapping = (var instanceof MappedVar) ? ((MappedVar) var).mapping() : null;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = (mapping == null) ? i : mapping.get(i);
+            }
+            return rows;
+        }
+
+        /**
+         * @return bin of a non missing value
+         */
+        public int bin(double value) {
+            int lo = 0;
+            int hi = thresholds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (value <= thresholds[mid]) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return number of bins, including the bin for missing values
+         */
+        public int binCount() {
+            return thresholds.length + 2;
+        }
+
+        /**
+         * @return bin which contains missing values, which is the last bin
+         */
+        public int missingBin() {
+            return thresholds.length + 1;
+        }
+
+        /**
+         * @return value which separates the given bin from the next one, values less than
+         * or equal with threshold are in the given bin or before
+         */
+        public double threshold(int bin) {
+            return thresholds[bin];
+        }
+
+        /**
+         * Reads bins for all rows of a variable, which must be the quantized variable or
+         * a variable mapped over the same source variable.
+         *
+         * @return array with bins for each row, or null if the variable does not share
+         * the source of the quantized variable
+         */
+        public int[] bins(Var var) {
+            if (var != source && !(var instanceof MappedVar && ((MappedVar) var).source() == source)) {
+                return null;
+            }
+            int[] rows = sourceRows(var);
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = codes[rows[i]] & 0xFF;
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import rapaio.data.Frame;
+import rapaio.data.Var;
+import rapaio.data.stream.FSpot;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Structure of a decision tree compiled into flat arrays, used for fast prediction.
+ * <p>
+ * Nodes are numbered in breadth first order, so the children of a node have consecutive
+ * numbers. Each node, except the root, keeps the test which routes rows from its parent
+ * to it, described by the kind of the row predicate, the index of the tested feature and
+ * the reference value, label or label set. A tree can be compiled only if all its nodes
+ * use {@link RowPredicate} instances.
+ * <p>
+ * Predictions are made against a {@link Binding}, which resolves once the tested
+ * features to the variables of a data frame, so no spot objects or lookups by name
+ * are needed for each row.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public final class FlatTree implements Serializable {
+
+    private static final long serialVersionUID = -4587101529436211672L;
+
+    /**
+     * Compiles a tree given in breadth first order.
+     *
+     * @param childCounts number of children of each node, 0 for leaves
+     * @param predicates  predicates of each node, the one of the root is not used
+     * @return compiled tree, or null if there are predicates which are not row predicates
+     */
+    public static FlatTree compile(int[] childCounts, List<? extends Predicate<FSpot>> predicates) {
+        int n = childCounts.length;
+        int[] childStart = new int[n];
+        byte[] kinds = new byte[n];
+        int[] features = new int[n];
+        double[] values = new double[n];
+        String[] labels = new String[n];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Set<String>[] labelSets = new Set[n];
+        boolean[] excludeMissing = new boolean[n];
+        Map<String, Integer> featureIndex = new HashMap<>();
+
+        int offset = 1;
+        for (int i = 0; i < n; i++) {
+            childStart[i] = offset;
+            offset += childCounts[i];
+            if (i == 0) {
+                kinds[i] = (byte) RowPredicate.Kind.ALL.ordinal();
+                continue;
+            }
+            if (!(predicates.get(i) instanceof RowPredicate)) {
+                return null;
+            }
+            RowPredicate p = (RowPredicate) predicates.get(i);
+            kinds[i] = (byte) p.kind().ordinal();
+            if (p.kind() != RowPredicate.Kind.ALL) {
+                features[i] = featureIndex.computeIfAbsent(p.testName(), name -> featureIndex.size());
+            }
+            values[i] = p.value();
+            labels[i] = p.label();
+            labelSets[i] = p.labels();
+            excludeMissing[i] = p.excludeMissing();
+        }
+        String[] featureNames = new String[featureIndex.size()];
+        featureIndex.forEach((name, index) -> featureNames[index] = name);
+        return new FlatTree(childStart, childCounts.clone(), kinds, features, values, labels, labelSets,
+                excludeMissing, featureNames);
+    }
+
+    private static final int ALL = RowPredicate.Kind.ALL.ordinal();
+    private static final int NUM_LE = RowPredicate.Kind.NUM_LE.ordinal();
+    private static final int NUM_GT = RowPredicate.Kind.NUM_GT.ordinal();
+    private static final int BIN_EQ = RowPredicate.Kind.BIN_EQ.ordinal();
+    private static final int NOM_EQ = RowPredicate.Kind.NOM_EQ.ordinal();
+    private static final int NOM_IN = RowPredicate.Kind.NOM_IN.ordinal();
+    private static final int NOM_NOT_IN = RowPredicate.Kind.NOM_NOT_IN.ordinal();
+
+    private final int[] childStart;
+    private final int[] childCount;
+    private final byte[] kinds;
+    private final int[] features;
+    private final double[] values;
+    private final String[] labels;
+    private final Set<String>[] labelSets;
+    private final boolean[] excludeMissing;
+    private final String[] featureNames;
+
+    private FlatTree(int[] childStart, int[] childCount, byte[] kinds, int[] features, double[] values,
+                     String[] labels, Set<String>[] labelSets, boolean[] excludeMissing, String[] featureNames) {
+        this.childStart = childStart;
+        this.childCount = childCount;
+        this.kinds = kinds;
+        this.features = features;
+        this.values = values;
+        this.labels = labels;
+        this.labelSets = labelSets;
+        this.excludeMissing = excludeMissing;
+        this.featureNames = featureNames;
+    }
+
+    public int nodeCount() {
+        return childCount.length;
+    }
+
+    public boolean isLeaf(int node) {
+        return childCount[node] == 0;
+    }
+
+    public int childStart(int node) {
+        return childStart[node];
+    }
+
+    public int childCount(int node) {
+        return childCount[node];
+    }
+
+    /**
+     * Resolves tested features to the variables of the given data frame.
+     */
+    public Binding bind(Frame df) {
+        return new Binding(df);
+    }
+
+    /**
+     * Tree bound to the variables of a data frame.
+     */
+    public final class Binding {
+
+        private final Var[] vars;
+        private final boolean[] nominal;
+        private final int[] labelIndexes;
+        private final boolean[][] memberships;
+
+        private Binding(Frame df) {
+            vars = new Var[featureNames.length];
+            nominal = new boolean[featureNames.length];
+            for (int i = 0; i < featureNames.length; i++) {
+                vars[i] = df.var(featureNames[i]);
+                nominal[i] = vars[i].type().isNominal();
+            }
+            labelIndexes = new int[kinds.length];
+            memberships = new boolean[kinds.length][];
+            for (int i = 0; i < kinds.length; i++) {
+                labelIndexes[i] = -1;
+                if (labelSets[i] != null) {
+                    if (nominal[features[i]]) {
+                        String[] levels = vars[features[i]].levels();
+                        memberships[i] = new boolean[levels.length];
+                        for (int j = 0; j < levels.length; j++) {
+                            memberships[i][j] = labelSets[i].contains(levels[j]);
+                        }
+                    }
+                    continue;
+                }
+                if (labels[i] != null && nominal[features[i]]) {
+                    String[] levels = vars[features[i]].levels();
+                    for (int j = 0; j < levels.length; j++) {
+                        if (labels[i].equals(levels[j])) {
+                            labelIndexes[i] = j;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return first child of the node which accepts the given row, or -1 if there is none
+         */
+        public int next(int node, int row) {
+            int end = childStart[node] + childCount[node];
+            for (int child = childStart[node]; child < end; child++) {
+                if (test(child, row)) {
+                    return child;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return leaf reached by the given row, or the interior node where no child accepts the row
+         */
+        public int walk(int row) {
+            int node = 0;
+            while (childCount[node] > 0) {
+                int child = next(node, row);
+                if (child < 0) {
+                    break;
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        private boolean test(int node, int row) {
+            int kind = kinds[node];
+            if (kind == ALL) {
+                return true;
+            }
+            Var var = vars[features[node]];
+            if (kind == NUM_LE) {
+                return !var.missing(row) && var.value(row) <= values[node];
+            }
+            if (kind == NUM_GT) {
+                return !var.missing(row) && var.value(row) > values[node];
+            }
+            if (kind == BIN_EQ) {
+                return var.binary(row) == (values[node] == 1);
+            }
+            if (excludeMissing[node] && var.missing(row)) {
+                return false;
+            }
+            if (kind == NOM_IN || kind == NOM_NOT_IN) {
+                boolean member = nominal[features[node]]
+                        ? memberships[node][var.index(row)]
+                        : labelSets[node].contains(var.label(row));
+                return (kind == NOM_IN) == member;
+            }
+            boolean equal = nominal[features[node]]
+                    ? var.index(row) == labelIndexes[node]
+                    : labels[node].equals(var.label(row));
+            return (kind == NOM_EQ) == equal;
+        }
+    }
+}
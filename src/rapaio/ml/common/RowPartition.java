@@ -0,0 +1,182 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import rapaio.data.Frame;
+import rapaio.data.MappedFrame;
+import rapaio.data.MappedVar;
+import rapaio.data.Mapping;
+import rapaio.data.Numeric;
+import rapaio.data.VRange;
+import rapaio.data.Var;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Training workspace which keeps the rows and weights of a tree in shared arrays.
+ * <p>
+ * Each node owns a range [start, end) of the arrays. When a node is split, its range is
+ * partitioned in place between the children, so the frame and weights of a node are
+ * views over the source frame of the training data and over the shared weights, with
+ * no copy of rows and no chains of mapped frames. The node frame is no longer valid
+ * after its range is partitioned.
+ * <p>
+ * When the children of a node have rows in common, as it happens when rows with missing
+ * values are distributed to all children, the children can't fit in the range of the
+ * parent and receive new arrays, which are shared by their subtrees.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public final class RowPartition {
+
+    /**
+     * Builds a workspace with all the rows of the given data frame.
+     */
+    public static RowPartition of(Frame df, Var weights) {
+        Frame source = df;
+        int[] rows;
+        if (df instanceof MappedFrame) {
+            source = ((MappedFrame) df).sourceFrame();
+            rows = ((MappedFrame) df).mapping().toArray();
+        } else {
+            rows = new int[df.rowCount()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+        }
+        double[] w = new double[df.rowCount()];
+        int[] positions = new int[df.rowCount()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = weights.value(i);
+            positions[i] = i;
+        }
+        return new RowPartition(source, VRange.of(df.varNames()), rows, positions, Numeric.wrap(w), 0, rows.length);
+    }
+
+    private final Frame source;
+    private final VRange varRange;
+    private final int[] rows;
+    // positions of the rows in the data frame of the workspace
+    private final int[] positions;
+    private final Numeric weights;
+    private final int start;
+    private final int end;
+
+    private RowPartition(Frame source, VRange varRange, int[] rows, int[] positions, Numeric weights, int start, int end) {
+        this.source = source;
+        this.varRange = varRange;
+        this.rows = rows;
+        this.positions = positions;
+        this.weights = weights;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int rowCount() {
+        return end - start;
+    }
+
+    /**
+     * @param i row of this range
+     * @return position of the row in the data frame the workspace was built from
+     */
+    public int position(int i) {
+        return positions[start + i];
+    }
+
+    /**
+     * @return frame with the rows of this range, as a view over the source frame
+     */
+    public Frame frame() {
+        return MappedFrame.byRow(source, Mapping.view(rows, start, end), varRange);
+    }
+
+    /**
+     * @return weights of the rows of this range, as a view over shared weights
+     */
+    public Var weights() {
+        return MappedVar.byRows(weights, Mapping.range(start, end));
+    }
+
+    /**
+     * Partitions the range between children.
+     *
+     * @param mappings positions of rows in this range which goes to each child,
+     *                 in the order of the rows of the children
+     * @param weights  weights of the rows of each child
+     * @return ranges of the children
+     */
+    public List<RowPartition> split(List<Mapping> mappings, List<Var> weights) {
+        int len = end - start;
+        int total = 0;
+        boolean[] used = new boolean[len];
+        boolean disjoint = true;
+        for (Mapping mapping : mappings) {
+            total += mapping.size();
+            for (int i = 0; i < mapping.size() && disjoint; i++) {
+                int pos = mapping.get(i);
+                disjoint = !used[pos];
+                used[pos] = true;
+            }
+        }
+
+        int[] childRows = new int[total];
+        int[] childPositions = new int[total];
+        double[] childWeights = new double[total];
+        int next = 0;
+        for (int k = 0; k < mappings.size(); k++) {
+            Mapping mapping = mappings.get(k);
+            Var w = weights.get(k);
+            for (int i = 0; i < mapping.size(); i++) {
+                childRows[next] = rows[start + mapping.get(i)];
+                childPositions[next] = positions[start + mapping.get(i)];
+                childWeights[next++] = w.value(i);
+            }
+        }
+
+        int[] targetRows = childRows;
+        int[] targetPositions = childPositions;
+        Numeric targetWeights = Numeric.wrap(childWeights);
+        int from = 0;
+        if (disjoint) {
+            System.arraycopy(childRows, 0, rows, start, total);
+            System.arraycopy(childPositions, 0, positions, start, total);
+            for (int i = 0; i < total; i++) {
+                this.weights.setValue(start + i, childWeights[i]);
+            }
+            targetRows = rows;
+            targetPositions = positions;
+            targetWeights = this.weights;
+            from = start;
+        }
+        List<RowPartition> children = new ArrayList<>(mappings.size());
+        for (Mapping mapping : mappings) {
+            children.add(new RowPartition(source, varRange, targetRows, targetPositions, targetWeights, from, from + mapping.size()));
+            from += mapping.size();
+        }
+        return children;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import rapaio.data.stream.FSpot;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.util.func.SPredicate;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Row predicate used by tree models to route instances to child nodes.
+ * <p>
+ * Unlike an arbitrary lambda, a row predicate is described by a kind, a test variable
+ * and a reference value or label, which allows it to be stored in the binary model format.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public final class RowPredicate implements SPredicate<FSpot> {
+
+    private static final long serialVersionUID = 2467321452236897634L;
+
+    public enum Kind {
+        /**
+         * accepts all rows
+         */
+        ALL,
+        /**
+         * non missing numeric value less than or equal with reference value
+         */
+        NUM_LE,
+        /**
+         * non missing numeric value greater than reference value
+         */
+        NUM_GT,
+        /**
+         * binary value equal with reference value, 1 for true and 0 for false
+         */
+        BIN_EQ,
+        /**
+         * label equal with reference label
+         */
+        NOM_EQ,
+        /**
+         * label not equal with reference label
+         */
+        NOM_NE,
+        /**
+         * label contained in reference label set
+         */
+        NOM_IN,
+        /**
+         * label not contained in reference label set
+         */
+        NOM_NOT_IN
+    }
+
+    private static final RowPredicate ALL = new RowPredicate(Kind.ALL, null, Double.NaN, null, false);
+
+    public static RowPredicate all() {
+        return ALL;
+    }
+
+    public static RowPredicate numLessEqual(String testName, double value) {
+        return new RowPredicate(Kind.NUM_LE, testName, value, null, true);
+    }
+
+    public static RowPredicate numGreater(String testName, double value) {
+        return new RowPredicate(Kind.NUM_GT, testName, value, null, true);
+    }
+
+    public static RowPredicate binEqual(String testName, boolean value) {
+        return new RowPredicate(Kind.BIN_EQ, testName, value ? 1 : 0, null, false);
+    }
+
+    /**
+     * @param excludeMissing if true, rows with missing values are not accepted
+     */
+    public static RowPredicate nomEqual(String testName, String label, boolean excludeMissing) {
+        return new RowPredicate(Kind.NOM_EQ, testName, Double.NaN, label, excludeMissing);
+    }
+
+    /**
+     * @param excludeMissing if true, rows with missing values are not accepted
+     */
+    public static RowPredicate nomNotEqual(String testName, String label, boolean excludeMissing) {
+        return new RowPredicate(Kind.NOM_NE, testName, Double.NaN, label, excludeMissing);
+    }
+
+    /**
+     * @param excludeMissing if true, rows with missing values are not accepted
+     */
+    public static RowPredicate nomIn(String testName, Collection<String> labels, boolean excludeMissing) {
+        return new RowPredicate(Kind.NOM_IN, testName, Double.NaN, encodeLabels(labels), excludeMissing);
+    }
+
+    /**
+     * @param excludeMissing if true, rows with missing values are not accepted
+     */
+    public static RowPredicate nomNotIn(String testName, Collection<String> labels, boolean excludeMissing) {
+        return new RowPredicate(Kind.NOM_NOT_IN, testName, Double.NaN, encodeLabels(labels), excludeMissing);
+    }
+
+    /**
+     * Formats a label set for group names, listing at most a few labels.
+     */
+    public static String formatLabels(Collection<String> labels) {
+        StringBuilder sb = new StringBuilder("{");
+        int count = 0;
+        for (String label : labels) {
+            if (count == 10) {
+                sb.append(", ... (").append(labels.size() - count).append(" more)");
+                break;
+            }
+            sb.append(count > 0 ? ", " : "").append(label);
+            count++;
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Label sets are stored in the label slot as a sequence of length prefixed labels,
+     * which keeps the binary format unchanged for the other kinds.
+     */
+    private static String encodeLabels(Collection<String> labels) {
+        StringBuilder sb = new StringBuilder();
+        for (String label : labels) {
+            sb.append(label.length()).append(':').append(label);
+        }
+        return sb.toString();
+    }
+
+    private static Set<String> decodeLabels(String encoded) {
+        Set<String> set = new HashSet<>();
+        int pos = 0;
+        while (pos < encoded.length()) {
+            int sep = encoded.indexOf(':', pos);
+            int len = Integer.parseInt(encoded.substring(pos, sep));
+            set.add(encoded.substring(sep + 1, sep + 1 + len));
+            pos = sep + 1 + len;
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    private final Kind kind;
+    private final String testName;
+    private final double value;
+    private final String label;
+    private final boolean excludeMissing;
+    private final Set<String> labelSet;
+
+    private RowPredicate(Kind kind, String testName, double value, String label, boolean excludeMissing) {
+        this.kind = kind;
+        this.testName = testName;
+        this.value = value;
+        this.label = label;
+        this.excludeMissing = excludeMissing;
+        this.labelSet = (kind == Kind.NOM_IN || kind == Kind.NOM_NOT_IN) ? decodeLabels(label) : null;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public String testName() {
+        return testName;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    public boolean excludeMissing() {
+        return excludeMissing;
+    }
+
+    /**
+     * @return reference label set for set membership kinds, null otherwise
+     */
+    public Set<String> labels() {
+        return labelSet;
+    }
+
+    @Override
+    public boolean test(FSpot spot) {
+        switch (kind) {
+            case ALL:
+                return true;
+            case NUM_LE:
+                return !spot.missing(testName) && spot.value(testName) <= value;
+            case NUM_GT:
+                return !spot.missing(testName) && spot.value(testName) > value;
+            case BIN_EQ:
+                return spot.binary(testName) == (value == 1);
+            case NOM_EQ:
+                return !(excludeMissing && spot.missing(testName)) && label.equals(spot.label(testName));
+            case NOM_IN:
+                return !(excludeMissing && spot.missing(testName)) && labelSet.contains(spot.label(testName));
+            case NOM_NOT_IN:
+                return !(excludeMissing && spot.missing(testName)) && !labelSet.contains(spot.label(testName));
+            default:
+                return !(excludeMissing && spot.missing(testName)) && !label.equals(spot.label(testName));
+        }
+    }
+
+    /**
+     * Writes a list of row predicates as parallel arrays of kinds, names, values and labels.
+     *
+     * @throws IllegalArgumentException if one of the predicates is not a row predicate
+     */
+    public static void writeAll(ModelOutput out, List<? extends SPredicate<FSpot>> predicates) throws IOException {
+        int n = predicates.size();
+        int[] kinds = new int[n];
+        String[] names = new String[n];
+        double[] values = new double[n];
+        String[] labels = new String[n];
+        for (int i = 0; i < n; i++) {
+            if (!(predicates.get(i) instanceof RowPredicate)) {
+                throw new IllegalArgumentException("only row predicates can be stored in binary model format");
+            }
+            RowPredicate p = (RowPredicate) predicates.get(i);
+            kinds[i] = p.kind.ordinal() | (p.excludeMissing ? 0x100 : 0);
+            names[i] = p.testName;
+            values[i] = p.value;
+            labels[i] = p.label;
+        }
+        out.writeInts(kinds);
+        out.writeStrings(names);
+        out.writeDoubles(values);
+        out.writeStrings(labels);
+    }
+
+    /**
+     * Reads an array of row predicates written by {@link #writeAll(ModelOutput, List)}.
+     */
+    public static RowPredicate[] readAll(ModelInput in) throws IOException {
+        int[] kinds = in.readInts();
+        String[] names = in.readStrings();
+        double[] values = in.readDoubles();
+        String[] labels = in.readStrings();
+        Kind[] all = Kind.values();
+        RowPredicate[] predicates = new RowPredicate[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            Kind kind = all[kinds[i] & 0xff];
+            predicates[i] = kind == Kind.ALL ? ALL :
+                    new RowPredicate(kind, names[i], values[i], labels[i], (kinds[i] & 0x100) != 0);
+        }
+        return predicates;
+    }
+
+    @Override
+    public String toString() {
+        String ref = labelSet != null ? labelSet.toString() : label;
+        return "RowPredicate{" + kind.name() + (testName == null ? "" : ", " + testName)
+                + (ref == null ? (Double.isNaN(value) ? "" : ", " + value) : ", " + ref) + "}";
+    }
+}
@@ -112,6 +112,19 @@ public class VarSelector implements Serializable {
         return mCount;
     }
 
+    /**
+     * Builds a selector with the same settings and the same available variables,
+     * except the given ones. Since the new selector has its own state, it can be used
+     * for a branch of a tree which is built concurrently with other branches.
+     */
+    public VarSelector copyWithout(Collection<String> removed) {
+        VarSelector sel = new VarSelector(mVars);
+        sel.mCount = mCount;
+        sel.varNames.addAll(varNames);
+        sel.varNames.removeAll(removed);
+        return sel;
+    }
+
     public void removeVarNames(Collection<String> varName) {
         this.varNames.removeAll(varName);
     }
@@ -27,7 +27,10 @@ package rapaio.ml.regression;
 import rapaio.data.*;
 import rapaio.data.filter.FFilter;
 import rapaio.data.sample.RowSampler;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -179,6 +182,42 @@ public abstract class AbstractRegression implements Regression {
         return targetTypes;
     }
 
+    /**
+     * Writes the state shared by all regressions in the binary model format:
+     * input filters, input and target names and types and running parameters.
+     */
+    protected void writeBase(ModelOutput out) throws IOException {
+        out.writeSerializable(new ArrayList<>(inputFilters));
+        out.writeBoolean(hasLearned);
+        out.writeInt(poolSize);
+        out.writeInt(runs);
+        out.writeBoolean(inputNames != null);
+        if (inputNames == null) {
+            return;
+        }
+        out.writeStrings(inputNames);
+        out.writeVarTypes(inputTypes);
+        out.writeStrings(targetNames);
+        out.writeVarTypes(targetTypes);
+    }
+
+    /**
+     * Reads the state written by {@link #writeBase(ModelOutput)}.
+     */
+    protected void readBase(ModelInput in) throws IOException {
+        inputFilters = in.readSerializable();
+        hasLearned = in.readBoolean();
+        poolSize = in.readInt();
+        runs = in.readInt();
+        if (!in.readBoolean()) {
+            return;
+        }
+        inputNames = in.readStrings();
+        inputTypes = in.readVarTypes();
+        targetNames = in.readStrings();
+        targetTypes = in.readVarTypes();
+    }
+
     @Override
     public Regression withPoolSize(int poolSize) {
         this.poolSize = poolSize < 0 ? Runtime.getRuntime().availableProcessors() : poolSize;
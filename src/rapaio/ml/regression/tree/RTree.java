@@ -30,7 +30,14 @@ import rapaio.data.Mapping;
 import rapaio.data.Var;
 import rapaio.data.VarType;
 import rapaio.data.stream.FSpot;
+import rapaio.io.ModelInput;
+import rapaio.io.ModelOutput;
+import rapaio.io.ModelWritable;
+import rapaio.ml.common.BinHistograms;
+import rapaio.ml.common.BinMatrix;
 import rapaio.ml.common.Capabilities;
+import rapaio.ml.common.RowPartition;
+import rapaio.ml.common.RowPredicate;
 import rapaio.ml.common.VarSelector;
 import rapaio.ml.regression.AbstractRegression;
 import rapaio.ml.regression.RFit;
@@ -39,9 +46,11 @@ import rapaio.experiment.ml.regression.boost.gbt.GBTLossFunction;
 import rapaio.util.Pair;
 import rapaio.util.func.SPredicate;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -54,12 +63,13 @@ import static rapaio.sys.WS.formatFlex;
  * <p>
  * Created by <a href="mailto:padreati@yahoo.com>Aurelian Tutuianu</a> on 11/24/14.
  */
-public class RTree extends AbstractRegression implements BTRegression {
+public class RTree extends AbstractRegression implements BTRegression, ModelWritable {
 
     private static final long serialVersionUID = -2748764643670512376L;
 
     int minCount = 1;
     int maxDepth = -1;
+    int maxBins = BinMatrix.MAX_BINS;
 
     RTreeNominalMethod nominalMethod = RTreeNominalMethod.BINARY;
     RTreeNumericMethod numericMethod = RTreeNumericMethod.BINARY;
@@ -72,6 +82,20 @@ public class RTree extends AbstractRegression implements BTRegression {
     private Node root;
     private int rows;
 
+    // quantized numeric variables, available only while the tree is grown
+    private transient BinMatrix bins;
+    private transient BinMatrix sharedBins;
+
+    // flat arrays form of the tree, built at first fit and discarded when the tree changes
+    private transient volatile RTreeCompiled compiled;
+
+    // leaf reached by each training row, recorded while learning and kept only until the next boosting step
+    private transient boolean cacheLeaves;
+    private transient Frame leavesFrame;
+    private transient Node[] leaves;
+    // positions of training rows which were distributed by the splitter instead of a rule
+    private transient BitSet remains;
+
     private RTree() {
     }
 
@@ -110,6 +134,7 @@ public class RTree extends AbstractRegression implements BTRegression {
                 .withNumericMethod(numericMethod)
                 .withNominalMethod(nominalMethod)
                 .withMaxDepth(maxDepth)
+                .withMaxBins(maxBins)
                 .withSplitter(splitter)
                 .withFunction(function)
                 .withVarSelector(varSelector);
@@ -147,9 +172,146 @@ public class RTree extends AbstractRegression implements BTRegression {
                 .withAllowMissingTargetValues(false);
     }
 
+    /**
+     * Boosting step which replaces the value of each leaf with the minimum of the loss function
+     * for the rows of x which reach it. Rows are grouped by leaf in a single pass, from the leaf
+     * assignments recorded while learning when x is the training frame, or by routing them once
+     * through the compiled form of the tree otherwise.
+     */
     @Override
     public void boostFit(Frame x, Var y, Var fx, GBTLossFunction lossFunction) {
-        root.boostFit(x, y, fx, lossFunction);
+        RTreeCompiled flat = (compiled != null) ? compiled : RTreeCompiled.compile(root);
+        if (flat == null) {
+            root.boostFit(x, y, fx, lossFunction);
+            compiled = null;
+            leavesFrame = null;
+            leaves = null;
+            return;
+        }
+        int[] rowLeaves = leaves(flat, x);
+        int[] counts = new int[flat.nodeCount()];
+        for (int leaf : rowLeaves) {
+            if (leaf >= 0) {
+                counts[leaf]++;
+            }
+        }
+        int[][] rows = new int[flat.nodeCount()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < rowLeaves.length; i++) {
+            if (rowLeaves[i] >= 0) {
+                rows[rowLeaves[i]][counts[rowLeaves[i]]++] = i;
+            }
+        }
+        for (int i = 0; i < flat.nodeCount(); i++) {
+            if (flat.node(i).isLeaf()) {
+                Mapping mapping = Mapping.wrap(rows[i]);
+                flat.node(i).setValue(lossFunction.findMinimum(y.mapRows(mapping), fx.mapRows(mapping)));
+            }
+        }
+        compiled = null;
+    }
+
+    /**
+     * Records at the next training the leaf reached by each training row, which is used
+     * by the next boosting step on the same training frame instead of routing the rows again.
+     */
+    public RTree withLeafCache() {
+        this.cacheLeaves = true;
+        return this;
+    }
+
+    /**
+     * @return leaf reached by each row of x, or -1 if the row stops in an interior node;
+     * recorded leaves are consumed by this call
+     */
+    private int[] leaves(RTreeCompiled flat, Frame x) {
+        int[] result = (x == leavesFrame && leaves != null) ? flat.leaves(x, leaves) : flat.leaves(x);
+        leavesFrame = null;
+        leaves = null;
+        return result;
+    }
+
+    /**
+     * Records the node as the leaf of the rows which reached it by matching rules only.
+     */
+    private void recordLeaf(Node node, RowPartition rows) {
+        if (leaves == null) {
+            return;
+        }
+        for (int i = 0; i < rows.rowCount(); i++) {
+            int pos = rows.position(i);
+            if (!remains.get(pos)) {
+                leaves[pos] = node;
+            }
+        }
+    }
+
+    /**
+     * Marks the rows of a child after the first matched ones as distributed by the splitter,
+     * those rows and their copies in other children are routed again by the boosting step.
+     */
+    private void recordRemains(RowPartition rows, int matched) {
+        if (leaves == null) {
+            return;
+        }
+        for (int i = matched; i < rows.rowCount(); i++) {
+            remains.set(rows.position(i));
+        }
+    }
+
+    /**
+     * Newton boosting step for the rows of x, with given gradients and hessians for
+     * each row. The value of each leaf becomes the ratio between the sums of the gradients
+     * and of the hessians of the rows which reach it, or 0 when the ratio is not defined.
+     * The shrunk fitted value of each row is added to its score.
+     * <p>
+     * Rows are grouped by the leaf assignments recorded while learning when x is the training
+     * frame, or routed once through the compiled form of the tree otherwise, so no data frames
+     * are mapped and the rows are not predicted again after the leaves are updated.
+     *
+     * @throws IllegalStateException if the tree can't be compiled
+     */
+    public void boostFit(Frame x, double[] gradients, double[] hessians, double shrinkage, double[] scores) {
+        RTreeCompiled flat = (compiled != null) ? compiled : RTreeCompiled.compile(root);
+        if (flat == null) {
+            throw new IllegalStateException("boosting step requires a tree with row predicates");
+        }
+        int[] leaves = leaves(flat, x);
+        double[] g = new double[flat.nodeCount()];
+        double[] h = new double[flat.nodeCount()];
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] >= 0) {
+                g[leaves[i]] += gradients[i];
+                h[leaves[i]] += hessians[i];
+            }
+        }
+        for (int i = 0; i < flat.nodeCount(); i++) {
+            if (flat.node(i).isLeaf()) {
+                double value = (h[i] == 0) ? 0 : g[i] / h[i];
+                flat.node(i).setValue(Double.isNaN(value) ? 0 : value);
+            }
+        }
+        compiled = null;
+
+        int missing = 0;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] >= 0) {
+                scores[i] += shrinkage * flat.node(leaves[i]).getValue();
+            } else {
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            // rows which are not routed to a single leaf are predicted from the updated tree
+            int[] rows = IntStream.range(0, leaves.length).filter(i -> leaves[i] < 0).toArray();
+            Var fit = fit(x.mapRows(Mapping.wrap(rows)), false).firstFit();
+            for (int i = 0; i < rows.length; i++) {
+                scores[rows[i]] += shrinkage * fit.value(i);
+            }
+        }
     }
 
     public RTree withVarSelector(VarSelector varSelector) {
@@ -167,6 +329,53 @@ public class RTree extends AbstractRegression implements BTRegression {
         return this;
     }
 
+    /**
+     * Configures the maximum number of bins used to quantize numeric variables
+     * when the numeric method is {@link RTreeNumericMethod#BINNED}, including the bin for missing values.
+     *
+     * @param maxBins maximum number of bins, between 2 and {@link BinMatrix#MAX_BINS}
+     */
+    public RTree withMaxBins(int maxBins) {
+        if (maxBins < 2 || maxBins > BinMatrix.MAX_BINS) {
+            throw new IllegalArgumentException("number of bins must be between 2 and " + BinMatrix.MAX_BINS);
+        }
+        this.maxBins = maxBins;
+        return this;
+    }
+
+    BinMatrix bins() {
+        return bins;
+    }
+
+    /**
+     * Quantizes the numeric variables of a data frame as required by the numeric method
+     * of this tree, so that the result can be shared by trees trained on frames which
+     * are mapped from the same variables.
+     *
+     * @return quantized variables, or null if the numeric method does not use bins
+     */
+    public BinMatrix buildBins(Frame df) {
+        if (!numericMethod.usesBins()) {
+            return null;
+        }
+        List<String> binned = new ArrayList<>();
+        for (String varName : df.varNames()) {
+            if (df.var(varName).type().isNumeric()) {
+                binned.add(varName);
+            }
+        }
+        return binned.isEmpty() ? null : BinMatrix.build(df, binned, maxBins);
+    }
+
+    /**
+     * Uses for the next training the given quantized variables, built with
+     * {@link #buildBins(Frame)}, instead of quantizing the training frame.
+     */
+    public RTree withSharedBins(BinMatrix bins) {
+        this.sharedBins = bins;
+        return this;
+    }
+
     public RTree withNumericMethod(RTreeNumericMethod numericMethod) {
         this.numericMethod = numericMethod;
         return this;
@@ -202,10 +411,30 @@ public class RTree extends AbstractRegression implements BTRegression {
         }
 
         rows = df.rowCount();
+        compiled = null;
+        leavesFrame = cacheLeaves ? df : null;
+        leaves = cacheLeaves ? new Node[df.rowCount()] : null;
+        remains = cacheLeaves ? new BitSet(df.rowCount()) : null;
+        cacheLeaves = false;
 
-        root = new Node(null, "root", spot -> true);
+        root = new Node(null, "root", RowPredicate.all());
         this.varSelector.withVarNames(inputNames());
-        root.learn(this, df, weights, maxDepth < 0 ? Integer.MAX_VALUE : maxDepth);
+        List<String> binned = new ArrayList<>();
+        if (numericMethod.usesBins()) {
+            for (String varName : inputNames()) {
+                if (df.var(varName).type().isNumeric()) {
+                    binned.add(varName);
+                }
+            }
+        }
+        if (!binned.isEmpty()) {
+            bins = (sharedBins != null) ? sharedBins : BinMatrix.build(df, binned, maxBins);
+        }
+        root.learn(this, RowPartition.of(df, weights), maxDepth < 0 ? Integer.MAX_VALUE : maxDepth,
+                binned.isEmpty() ? null : BinHistograms.root());
+        bins = null;
+        sharedBins = null;
+        remains = null;
         return true;
     }
 
@@ -213,6 +442,18 @@ public class RTree extends AbstractRegression implements BTRegression {
     protected RFit coreFit(Frame df, boolean withResiduals) {
         RFit pred = RFit.build(this, df, withResiduals);
 
+        if (RTreePredictor.STANDARD.name().equals(predictor.name())) {
+            RTreeCompiled flat = compiled;
+            if (flat == null) {
+                flat = RTreeCompiled.compile(root);
+                compiled = flat;
+            }
+            if (flat != null) {
+                flat.fit(df, pred.fit(firstTargetName()));
+                pred.buildComplete();
+                return pred;
+            }
+        }
         df.stream().forEach(spot -> {
             Pair<Double, Double> result = predictor.predict(spot, root);
             pred.fit(firstTargetName()).setValue(spot.row(), result._1);
@@ -221,6 +462,105 @@ public class RTree extends AbstractRegression implements BTRegression {
         return pred;
     }
 
+    @Override
+    public void writeModel(ModelOutput out) throws IOException {
+        writeBase(out);
+        out.writeInt(minCount);
+        out.writeInt(maxDepth);
+        out.writeInt(rows);
+        out.writeBoolean(root != null);
+        if (root == null) {
+            return;
+        }
+        List<Node> nodes = new ArrayList<>();
+        collect(root, nodes);
+        int n = nodes.size();
+        int[] childCounts = new int[n];
+        String[] groupNames = new String[n];
+        String[] testNames = new String[n];
+        double[] scores = new double[n];
+        double[] values = new double[n];
+        double[] weights = new double[n];
+        List<SPredicate<FSpot>> predicates = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Node node = nodes.get(i);
+            childCounts[i] = node.leaf ? 0 : node.children.size();
+            groupNames[i] = node.groupName;
+            testNames[i] = node.bestCandidate == null ? null : node.bestCandidate.testName;
+            scores[i] = node.bestCandidate == null ? Double.NaN : node.bestCandidate.score;
+            values[i] = node.value;
+            weights[i] = node.weight;
+            predicates.add(node.predicate);
+        }
+        out.writeInts(childCounts);
+        out.writeStrings(groupNames);
+        out.writeStrings(testNames);
+        out.writeDoubles(scores);
+        out.writeDoubles(values);
+        out.writeDoubles(weights);
+        RowPredicate.writeAll(out, predicates);
+    }
+
+    private static void collect(Node node, List<Node> nodes) {
+        nodes.add(node);
+        if (!node.leaf) {
+            for (Node child : node.children) {
+                collect(child, nodes);
+            }
+        }
+    }
+
+    /**
+     * Reads a tree written with {@link #writeModel(ModelOutput)}. Numeric parameters and the
+     * learned nodes are restored, split methods, test function and splitter take default values.
+     */
+    public static RTree readModel(ModelInput in) throws IOException {
+        RTree tree = new RTree();
+        tree.readBase(in);
+        tree.minCount = in.readInt();
+        tree.maxDepth = in.readInt();
+        tree.rows = in.readInt();
+        if (!in.readBoolean()) {
+            return tree;
+        }
+        int[] childCounts = in.readInts();
+        String[] groupNames = in.readStrings();
+        String[] testNames = in.readStrings();
+        double[] scores = in.readDoubles();
+        double[] values = in.readDoubles();
+        double[] weights = in.readDoubles();
+        RowPredicate[] predicates = RowPredicate.readAll(in);
+
+        Node[] nodes = new Node[childCounts.length];
+        int[] parents = new int[childCounts.length];
+        int[] remaining = Arrays.copyOf(childCounts, childCounts.length);
+        int parent = -1;
+        for (int i = 0; i < nodes.length; i++) {
+            while (parent >= 0 && remaining[parent] == 0) {
+                parent = parents[parent];
+            }
+            parents[i] = parent;
+            Node node = new Node(parent < 0 ? null : nodes[parent], groupNames[i], predicates[i]);
+            node.leaf = childCounts[i] == 0;
+            node.value = values[i];
+            node.weight = weights[i];
+            if (testNames[i] != null) {
+                node.bestCandidate = new Candidate(scores[i], testNames[i]);
+            }
+            if (parent >= 0) {
+                nodes[parent].children.add(node);
+                nodes[parent].bestCandidate.addGroup(node.groupName, node.predicate);
+                remaining[parent]--;
+            }
+            nodes[i] = node;
+            if (childCounts[i] > 0) {
+                parent = i;
+            }
+        }
+        tree.root = nodes[0];
+        return tree;
+    }
+
     @Override
     public String summary() {
         StringBuilder sb = new StringBuilder();
@@ -324,6 +664,18 @@ public class RTree extends AbstractRegression implements BTRegression {
         }
 
         public void learn(RTree tree, Frame df, Var weights, int depth) {
+            learn(tree, RowPartition.of(df, weights), depth, null);
+        }
+
+        /**
+         * Learns the sub tree of this node.
+         *
+         * @param rows       rows of this node in the training workspace
+         * @param histograms histograms of quantized variables for this node, or null if not used
+         */
+        void learn(RTree tree, RowPartition rows, int depth, BinHistograms histograms) {
+            Frame df = rows.frame();
+            Var weights = rows.weights();
             value = WeightedMean.from(df.var(tree.firstTargetName()), weights).value();
             weight = weights.stream().complete().mapToDouble().sum();
             if (weight == 0) {
@@ -332,6 +684,7 @@ public class RTree extends AbstractRegression implements BTRegression {
             }
 
             if (df.rowCount() == 0 || df.rowCount() <= tree.minCount || depth <= 1) {
+                tree.recordLeaf(this, rows);
                 return;
             }
 
@@ -343,7 +696,7 @@ public class RTree extends AbstractRegression implements BTRegression {
 
                 if (df.var(testCol).type().isNumeric()) {
                     tree.numericMethod.computeCandidate(
-                            tree, df, weights, testCol, tree.firstTargetName(), tree.function)
+                            tree, df, weights, testCol, tree.firstTargetName(), tree.function, histograms)
                             .ifPresent(candidates::add);
                 } else {
                     tree.nominalMethod.computeCandidate(
@@ -355,6 +708,7 @@ public class RTree extends AbstractRegression implements BTRegression {
             Collections.sort(candidateList);
 
             if (candidateList.isEmpty()) {
+                tree.recordLeaf(this, rows);
                 return;
             }
             leaf = false;
@@ -364,15 +718,26 @@ public class RTree extends AbstractRegression implements BTRegression {
 
             if (bestCandidate.getGroupNames().isEmpty()) {
                 leaf = true;
+                tree.recordLeaf(this, rows);
                 return;
             }
 
-            Pair<List<Frame>, List<Var>> frames = tree.splitter.performSplit(df, weights, bestCandidate);
-            children = new ArrayList<>(frames._1.size());
-            for (int i = 0; i < frames._1.size(); i++) {
+            int[] matched = new int[bestCandidate.getGroupPredicates().size()];
+            Pair<List<Mapping>, List<Var>> split = tree.splitter.performMapping(df, weights, bestCandidate, matched);
+            List<BinHistograms> childHistograms = null;
+            if (histograms != null) {
+                childHistograms = histograms.children(df.rowCount(), split._1.stream().mapToInt(Mapping::size).toArray());
+            }
+            List<RowPartition> childRows = rows.split(split._1, split._2);
+            for (int i = 0; i < childRows.size(); i++) {
+                tree.recordRemains(childRows.get(i), matched[i]);
+            }
+            children = new ArrayList<>(split._1.size());
+            for (int i = 0; i < split._1.size(); i++) {
                 Node child = new Node(this, bestCandidate.getGroupNames().get(i), bestCandidate.getGroupPredicates().get(i));
                 children.add(child);
-                child.learn(tree, frames._1.get(i), frames._2.get(i), depth - 1);
+                child.learn(tree, childRows.get(i), depth - 1,
+                        childHistograms == null ? null : childHistograms.get(i));
             }
         }
 
@@ -0,0 +1,185 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.regression.tree;
+
+import rapaio.core.stat.Mean;
+import rapaio.core.stat.WeightedMean;
+import rapaio.data.Frame;
+import rapaio.data.Numeric;
+import rapaio.data.Var;
+import rapaio.data.stream.FSpot;
+import rapaio.ml.common.FlatTree;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Regression tree compiled into flat arrays, which holds for each node the fitted
+ * value and the weight. Predictions are identical with the ones of the
+ * {@link RTreePredictor#STANDARD} predictor.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+final class RTreeCompiled {
+
+    /**
+     * @return compiled tree, or null if the tree has predicates which can't be compiled
+     */
+    static RTreeCompiled compile(RTree.Node root) {
+        List<RTree.Node> nodes = new ArrayList<>();
+        LinkedList<RTree.Node> queue = new LinkedList<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            RTree.Node node = queue.removeFirst();
+            nodes.add(node);
+            if (!node.isLeaf()) {
+                queue.addAll(node.getChildren());
+            }
+        }
+        int n = nodes.size();
+        int[] childCounts = new int[n];
+        List<Predicate<FSpot>> predicates = new ArrayList<>(n);
+        double[] values = new double[n];
+        double[] weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            RTree.Node node = nodes.get(i);
+            childCounts[i] = node.isLeaf() ? 0 : node.getChildren().size();
+            predicates.add(node.getPredicate());
+            values[i] = node.getValue();
+            weights[i] = node.getWeight();
+        }
+        FlatTree flat = FlatTree.compile(childCounts, predicates);
+        return (flat == null) ? null : new RTreeCompiled(flat, nodes.toArray(new RTree.Node[0]), values, weights);
+    }
+
+    private final FlatTree flat;
+    private final RTree.Node[] nodes;
+    private final double[] values;
+    private final double[] weights;
+
+    private RTreeCompiled(FlatTree flat, RTree.Node[] nodes, double[] values, double[] weights) {
+        this.flat = flat;
+        this.nodes = nodes;
+        this.values = values;
+        this.weights = weights;
+    }
+
+    int nodeCount() {
+        return nodes.length;
+    }
+
+    RTree.Node node(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * @return for each row the index of the leaf reached by it, or -1 if the row stops
+     * in an interior node where no child accepts it
+     */
+    int[] leaves(Frame df) {
+        FlatTree.Binding binding = flat.bind(df);
+        int[] leaves = new int[df.rowCount()];
+        for (int row = 0; row < df.rowCount(); row++) {
+            int node = binding.walk(row);
+            leaves[row] = flat.isLeaf(node) ? node : -1;
+        }
+        return leaves;
+    }
+
+    /**
+     * Same as {@link #leaves(Frame)}, but takes the leaf of a row from the given nodes,
+     * when the node of the row is not null. Only the other rows are routed through the tree.
+     *
+     * @param known for each row the leaf it reached while learning, or null if not known
+     */
+    int[] leaves(Frame df, RTree.Node[] known) {
+        IdentityHashMap<RTree.Node, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.length; i++) {
+            index.put(nodes[i], i);
+        }
+        FlatTree.Binding binding = null;
+        int[] leaves = new int[df.rowCount()];
+        for (int row = 0; row < df.rowCount(); row++) {
+            Integer leaf = (known[row] == null) ? null : index.get(known[row]);
+            if (leaf != null) {
+                leaves[row] = leaf;
+                continue;
+            }
+            if (binding == null) {
+                binding = flat.bind(df);
+            }
+            int node = binding.walk(row);
+            leaves[row] = flat.isLeaf(node) ? node : -1;
+        }
+        return leaves;
+    }
+
+    void fit(Frame df, Var fit) {
+        FlatTree.Binding binding = flat.bind(df);
+        double[] result = new double[2];
+        for (int row = 0; row < df.rowCount(); row++) {
+            int node = binding.walk(row);
+            if (flat.isLeaf(node)) {
+                fit.setValue(row, values[node]);
+            } else {
+                fitMissing(binding, row, node, result);
+                fit.setValue(row, result[0]);
+            }
+        }
+    }
+
+    private void fitNode(FlatTree.Binding binding, int row, int node, double[] result) {
+        if (flat.isLeaf(node)) {
+            result[0] = values[node];
+            result[1] = weights[node];
+            return;
+        }
+        int child = binding.next(node, row);
+        if (child >= 0) {
+            fitNode(binding, row, child, result);
+        } else {
+            fitMissing(binding, row, node, result);
+        }
+    }
+
+    /**
+     * Combines the predictions of all children when no child accepts the row.
+     */
+    private void fitMissing(FlatTree.Binding binding, int row, int node, double[] result) {
+        Numeric childValues = Numeric.empty();
+        Numeric childWeights = Numeric.empty();
+        int end = flat.childStart(node) + flat.childCount(node);
+        for (int child = flat.childStart(node); child < end; child++) {
+            fitNode(binding, row, child, result);
+            childValues.addValue(result[0]);
+            childWeights.addValue(result[1]);
+        }
+        result[0] = WeightedMean.from(childValues, childWeights).value();
+        result[1] = Mean.from(childWeights).value();
+    }
+}
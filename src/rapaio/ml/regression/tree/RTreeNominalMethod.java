@@ -30,6 +30,7 @@ import rapaio.core.tools.DVector;
 import rapaio.data.Frame;
 import rapaio.data.Mapping;
 import rapaio.data.Var;
+import rapaio.ml.common.RowPredicate;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -130,7 +131,7 @@ public interface RTreeNominalMethod extends Serializable {
             RTree.Candidate candidate = new RTree.Candidate(value, testVarName);
             for (int i = 1; i < testVar.levels().length; i++) {
                 String label = testVar.levels()[i];
-                candidate.addGroup(testVarName + " == " + label, spot -> spot.label(testVarName).equals(label));
+                candidate.addGroup(testVarName + " == " + label, RowPredicate.nomEqual(testVarName, label, false));
             }
             return Optional.of(candidate);
         }
@@ -214,12 +215,115 @@ public interface RTreeNominalMethod extends Serializable {
                     bestScore = value;
                     best = new RTree.Candidate(value, testVarName);
                     best.addGroup(testVarName + " == " + testLabel,
-                            spot -> !spot.missing(testVarName) && spot.label(testVarName).equals(testLabel));
+                            RowPredicate.nomEqual(testVarName, testLabel, true));
                     best.addGroup(testVarName + " != " + testLabel,
-                            spot -> !spot.missing(testVarName) && !spot.label(testVarName).equals(testLabel));
+                            RowPredicate.nomNotEqual(testVarName, testLabel, true));
                 }
             }
             return (best == null) ? Optional.empty() : Optional.of(best);
         }
     };
+
+    /**
+     * Builds the best binary partition of the labels of the test variable.
+     * Labels are sorted by the weighted mean of the target and only the prefixes
+     * of that ordering are evaluated, which is known to contain the partition
+     * with the smallest within variance (Breiman et al., 1984). Rows with missing
+     * test values are sent to the missing handler.
+     */
+    RTreeNominalMethod PARTITION = new RTreeNominalMethod() {
+
+        private static final long serialVersionUID = 3092758313734529518L;
+
+        @Override
+        public String name() {
+            return "PARTITION";
+        }
+
+        @Override
+        public Optional<RTree.Candidate> computeCandidate(RTree tree, Frame df, Var weights, String testVarName, String targetVarName, RTreeTestFunction testFunction) {
+            Var testVar = df.var(testVarName);
+            Var targetVar = df.var(targetVarName);
+            String[] levels = testVar.levels();
+
+            // for each label the row count, weight sum, weighted target sum and weighted square sum
+            double[][] hist = new double[levels.length][4];
+            for (int i = 0; i < df.rowCount(); i++) {
+                int index = testVar.index(i);
+                if (index == 0) {
+                    continue;
+                }
+                double w = weights.value(i);
+                double y = targetVar.value(i);
+                hist[index][0]++;
+                hist[index][1] += w;
+                hist[index][2] += w * y;
+                hist[index][3] += w * y * y;
+            }
+            List<Integer> present = new ArrayList<>();
+            double[] total = new double[4];
+            for (int i = 1; i < levels.length; i++) {
+                if (hist[i][0] > 0) {
+                    present.add(i);
+                    for (int j = 0; j < 4; j++) {
+                        total[j] += hist[i][j];
+                    }
+                }
+            }
+            if (present.size() < 2) {
+                return Optional.empty();
+            }
+            present.sort((a, b) -> Double.compare(mean(hist[a]), mean(hist[b])));
+
+            RTreeTestPayload p = new RTreeTestPayload(2);
+            p.totalVar = variance(total[1], total[2], total[3]);
+
+            double[] left = new double[4];
+            int bestPrefix = -1;
+            double bestScore = 0.0;
+            int minCount = Math.max(1, tree.minCount);
+            for (int k = 0; k < present.size() - 1; k++) {
+                double[] h = hist[present.get(k)];
+                for (int j = 0; j < 4; j++) {
+                    left[j] += h[j];
+                }
+                if (left[0] < minCount || total[0] - left[0] < minCount) {
+                    continue;
+                }
+                p.splitWeight[0] = left[1];
+                p.splitWeight[1] = total[1] - left[1];
+                p.splitVar[0] = variance(left[1], left[2], left[3]);
+                p.splitVar[1] = variance(total[1] - left[1], total[2] - left[2], total[3] - left[3]);
+                double value = tree.function.computeTestValue(p);
+                if (bestPrefix < 0 || value > bestScore) {
+                    bestScore = value;
+                    bestPrefix = k;
+                }
+            }
+            if (bestPrefix < 0) {
+                return Optional.empty();
+            }
+            List<String> labels = new ArrayList<>();
+            for (int k = 0; k <= bestPrefix; k++) {
+                labels.add(levels[present.get(k)]);
+            }
+            RTree.Candidate best = new RTree.Candidate(bestScore, testVarName);
+            String text = RowPredicate.formatLabels(labels);
+            best.addGroup(testVarName + " in " + text, RowPredicate.nomIn(testVarName, labels, true));
+            best.addGroup(testVarName + " not in " + text, RowPredicate.nomNotIn(testVarName, labels, true));
+            return Optional.of(best);
+        }
+
+        private double mean(double[] h) {
+            return h[1] > 0 ? h[2] / h[1] : 0.0;
+        }
+
+        private double variance(double w, double wy, double wy2) {
+            if (w <= 0) {
+                return 0.0;
+            }
+            double mean = wy / w;
+            return Math.max(0.0, wy2 / w - mean * mean);
+        }
+    };
 }
\ No newline at end of file
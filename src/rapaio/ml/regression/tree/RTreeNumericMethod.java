@@ -31,6 +31,9 @@ import rapaio.data.Mapping;
 import rapaio.data.Var;
 import rapaio.data.filter.Filters;
 import rapaio.data.stream.VSpot;
+import rapaio.ml.common.BinHistograms;
+import rapaio.ml.common.BinMatrix;
+import rapaio.ml.common.RowPredicate;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -68,6 +71,24 @@ public interface RTreeNumericMethod extends Serializable {
                                                String testVarName, String targetVarName,
                                                RTreeTestFunction testFunction);
 
+    /**
+     * Computes a candidate using histograms of quantized variables available for the current node.
+     *
+     * @param histograms histograms of the current node, or null if not available
+     */
+    default Optional<RTree.Candidate> computeCandidate(RTree tree, Frame df, Var w,
+                                                       String testVarName, String targetVarName,
+                                                       RTreeTestFunction testFunction, BinHistograms histograms) {
+        return computeCandidate(tree, df, w, testVarName, targetVarName, testFunction);
+    }
+
+    /**
+     * @return true if the method uses numeric variables quantized once before the tree is grown
+     */
+    default boolean usesBins() {
+        return false;
+    }
+
     /**
      * Ignore all numeric variables and produces no candidates.
      */
@@ -143,13 +164,121 @@ public interface RTreeNumericMethod extends Serializable {
                     double testValue = test.value(i);
                     best.addGroup(
                             String.format("%s <= %.6f", testVarName, testValue),
-                            spot -> !spot.missing(testVarName) && spot.value(testVarName) <= testValue);
+                            RowPredicate.numLessEqual(testVarName, testValue));
+                    best.addGroup(
+                            String.format("%s > %.6f", testVarName, testValue),
+                            RowPredicate.numGreater(testVarName, testValue));
+                }
+            }
+            return (best != null) ? Optional.of(best) : Optional.empty();
+        }
+    };
+
+    /**
+     * Binary split search over numeric variables quantized in bins before the tree is grown.
+     * For each bin it accumulates the row count and the weighted sums of target values and
+     * squared target values, the split points being the thresholds between bins.
+     * Variables which were not quantized are handled as in {@link #BINARY}.
+     */
+    RTreeNumericMethod BINNED = new RTreeNumericMethod() {
+        private static final long serialVersionUID = -3214766853126309524L;
+
+        @Override
+        public String name() {
+            return "BINNED";
+        }
+
+        @Override
+        public Optional<RTree.Candidate> computeCandidate(RTree c, Frame df, Var weights, String testVarName, String targetVarName, RTreeTestFunction function) {
+            return computeCandidate(c, df, weights, testVarName, targetVarName, function, null);
+        }
+
+        @Override
+        public Optional<RTree.Candidate> computeCandidate(RTree c, Frame df, Var weights, String testVarName, String targetVarName,
+                                                          RTreeTestFunction function, BinHistograms histograms) {
+            BinMatrix.Column column = (c.bins() == null) ? null : c.bins().column(testVarName);
+            int[] bins = (column == null) ? null : column.bins(df.var(testVarName));
+            if (bins == null) {
+                return BINARY.computeCandidate(c, df, weights, testVarName, targetVarName, function);
+            }
+            Var target = df.var(targetVarName);
+
+            // for each bin: row count, sum of weights, weighted sum of values and of squared values
+            double[] hist = (histograms == null) ? null : histograms.subtract(testVarName, 4);
+            if (hist == null) {
+                hist = new double[column.binCount() * 4];
+                for (int i = 0; i < bins.length; i++) {
+                    int pos = bins[i] * 4;
+                    double w = weights.value(i);
+                    double y = target.value(i);
+                    hist[pos]++;
+                    hist[pos + 1] += w;
+                    hist[pos + 2] += w * y;
+                    hist[pos + 3] += w * y * y;
+                }
+            }
+            if (histograms != null) {
+                histograms.put(testVarName, hist);
+            }
+
+            double[] total = new double[4];
+            for (int bin = 0; bin < column.missingBin(); bin++) {
+                for (int j = 0; j < 4; j++) {
+                    total[j] += hist[bin * 4 + j];
+                }
+            }
+            double[] left = new double[4];
+
+            RTree.Candidate best = null;
+            double bestScore = 0.0;
+
+            RTreeTestPayload p = new RTreeTestPayload(2);
+            p.totalVar = variance(total[1], total[2], total[3]);
+
+            int minCount = Math.max(1, c.minCount);
+            for (int bin = 0; bin < column.missingBin() - 1; bin++) {
+                int pos = bin * 4;
+                if (hist[pos] == 0) {
+                    continue;
+                }
+                for (int j = 0; j < 4; j++) {
+                    left[j] += hist[pos + j];
+                }
+                if (left[0] < minCount || total[0] - left[0] < minCount) {
+                    continue;
+                }
+                p.splitWeight[0] = left[1];
+                p.splitWeight[1] = total[1] - left[1];
+                p.splitVar[0] = variance(left[1], left[2], left[3]);
+                p.splitVar[1] = variance(total[1] - left[1], total[2] - left[2], total[3] - left[3]);
+                double value = function.computeTestValue(p);
+                if (value > bestScore) {
+                    bestScore = value;
+                    best = new RTree.Candidate(value, testVarName);
+
+                    double testValue = column.threshold(bin);
+                    best.addGroup(
+                            String.format("%s <= %.6f", testVarName, testValue),
+                            RowPredicate.numLessEqual(testVarName, testValue));
                     best.addGroup(
                             String.format("%s > %.6f", testVarName, testValue),
-                            spot -> !spot.missing(testVarName) && spot.value(testVarName) > testValue);
+                            RowPredicate.numGreater(testVarName, testValue));
                 }
             }
             return (best != null) ? Optional.of(best) : Optional.empty();
         }
+
+        private double variance(double w, double wy, double wy2) {
+            if (w <= 0) {
+                return 0.0;
+            }
+            double mean = wy / w;
+            return Math.max(0.0, wy2 / w - mean * mean);
+        }
+
+        @Override
+        public boolean usesBins() {
+            return true;
+        }
     };
 }
@@ -32,6 +32,7 @@ import rapaio.util.func.SPredicate;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -65,8 +66,41 @@ public interface RTreeSplitter extends Serializable {
      * @return a pair of lists, one with mapped instances for each rule and
      * one with corresponding weights
      */
-    Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights,
-                                              RTree.Candidate candidate);
+    default Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights,
+                                                      RTree.Candidate candidate) {
+        Pair<List<Mapping>, List<Var>> split = performMapping(df, weights, candidate);
+        return Pair.from(split._1.stream().map(df::mapRows).collect(Collectors.toList()), split._2);
+    }
+
+    /**
+     * Distributes the rows of a node to the rules of a candidate.
+     *
+     * @param df        initial set of instances
+     * @param weights   weights corresponding to each instance
+     * @param candidate the node candidate which contains the rules
+     * @return a pair of lists, one with row mappings of the given data frame
+     * for each rule and one with corresponding weights
+     */
+    Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate);
+
+    /**
+     * Distributes the rows of a node like {@link #performMapping(Frame, Var, RTree.Candidate)}
+     * and writes for each rule the number of rows which matched that rule. Those rows
+     * are placed first in the mapping of the rule, followed by the rows which matched
+     * no rule and were distributed by the splitter. The default implementation does not
+     * know which rows matched and reports zero for each rule.
+     *
+     * @param df        initial set of instances
+     * @param weights   weights corresponding to each instance
+     * @param candidate the node candidate which contains the rules
+     * @param matched   array with one slot for each rule, filled with the matched row counts
+     * @return a pair of lists, one with row mappings of the given data frame
+     * for each rule and one with corresponding weights
+     */
+    default Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate, int[] matched) {
+        Arrays.fill(matched, 0);
+        return performMapping(df, weights, candidate);
+    }
 
     /**
      * Do the regular split of instances and simply ingores the ones which do not
@@ -81,11 +115,15 @@ public interface RTreeSplitter extends Serializable {
         }
 
         @Override
-        public Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights, RTree.Candidate candidate) {
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate) {
+            return performMapping(df, weights, candidate, new int[candidate.getGroupPredicates().size()]);
+        }
+
+        @Override
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate, int[] matched) {
             RegularSplitting s = new RegularSplitting(df, weights, candidate);
-            List<Frame> frames = new ArrayList<>();
-            s.mappings.forEach(mapping -> frames.add(df.mapRows(mapping)));
-            return Pair.from(frames, s.weightsList);
+            s.matchedCounts(matched);
+            return Pair.from(s.mappings, s.weightsList);
         }
     };
 
@@ -103,8 +141,14 @@ public interface RTreeSplitter extends Serializable {
         }
 
         @Override
-        public Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights, RTree.Candidate candidate) {
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate) {
+            return performMapping(df, weights, candidate, new int[candidate.getGroupPredicates().size()]);
+        }
+
+        @Override
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate, int[] matched) {
             RegularSplitting s = new RegularSplitting(df, weights, candidate);
+            s.matchedCounts(matched);
             int majorityGroup = 0;
             int majoritySize = 0;
             for (int i = 0; i < s.mappings.size(); i++) {
@@ -118,9 +162,7 @@ public interface RTreeSplitter extends Serializable {
                 s.mappings.get(index).add(spot.row());
                 s.weightsList.get(index).addValue(weights.value(spot.row()));
             }
-            List<Frame> frames = new ArrayList<>();
-            s.mappings.forEach(mapping -> frames.add(MappedFrame.byRow(df, mapping)));
-            return Pair.from(frames, s.weightsList);
+            return Pair.from(s.mappings, s.weightsList);
         }
     };
 
@@ -139,8 +181,14 @@ public interface RTreeSplitter extends Serializable {
         }
 
         @Override
-        public Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights, RTree.Candidate candidate) {
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate) {
+            return performMapping(df, weights, candidate, new int[candidate.getGroupPredicates().size()]);
+        }
+
+        @Override
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate, int[] matched) {
             RegularSplitting s = new RegularSplitting(df, weights, candidate);
+            s.matchedCounts(matched);
 
             final double[] p = new double[s.mappings.size()];
             double sum = 0;
@@ -157,11 +205,7 @@ public interface RTreeSplitter extends Serializable {
                     s.weightsList.get(i).addValue(weights.value(spot.row()) * p[i]);
                 }
             }
-            List<Frame> frames = new ArrayList<>();
-            for (Mapping mapping : s.mappings) {
-                frames.add(MappedFrame.byRow(df, mapping));
-            }
-            return Pair.from(frames, s.weightsList);
+            return Pair.from(s.mappings, s.weightsList);
         }
     };
 
@@ -178,16 +222,20 @@ public interface RTreeSplitter extends Serializable {
         }
 
         @Override
-        public Pair<List<Frame>, List<Var>> performSplit(Frame df, Var weights, RTree.Candidate candidate) {
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate) {
+            return performMapping(df, weights, candidate, new int[candidate.getGroupPredicates().size()]);
+        }
+
+        @Override
+        public Pair<List<Mapping>, List<Var>> performMapping(Frame df, Var weights, RTree.Candidate candidate, int[] matched) {
             RegularSplitting s = new RegularSplitting(df, weights, candidate);
+            s.matchedCounts(matched);
             for (FSpot spot : s.missingSpots) {
                 int next = RandomSource.nextInt(s.mappings.size());
                 s.mappings.get(next).add(spot.row());
                 s.weightsList.get(next).addValue(weights.value(spot.row()));
             }
-            ;
-            List<Frame> frameList = s.mappings.stream().map(df::mapRows).collect(Collectors.toList());
-            return Pair.from(frameList, s.weightsList);
+            return Pair.from(s.mappings, s.weightsList);
         }
     };
 }
@@ -222,4 +270,13 @@ class RegularSplitting {
                 missingSpots.add(s);
         }
     }
+
+    /**
+     * Writes the number of rows matched by each rule, before any remaining rows are added.
+     */
+    public void matchedCounts(int[] counts) {
+        for (int i = 0; i < mappings.size(); i++) {
+            counts[i] = mappings.get(i).size();
+        }
+    }
 }
\ No newline at end of file
@@ -27,9 +27,11 @@ package rapaio.data;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -94,4 +96,72 @@ public class MappingTest {
         assertEquals(101, m.get(5));
         assertEquals(3, m.get(2));
     }
+
+    @Test
+    public void testEmptyMappingStaysInterval() {
+        Mapping m = Mapping.empty();
+        for (int i = 10; i < 20; i++) {
+            m.add(i);
+        }
+        assertTrue(m instanceof IntervalMapping);
+        assertEquals(10, m.size());
+        assertEquals(10, m.get(0));
+        assertEquals(19, m.get(9));
+
+        m.add(100);
+        assertEquals(11, m.size());
+        assertEquals(100, m.get(10));
+        assertEquals(15, m.get(5));
+    }
+
+    @Test
+    public void testCompactForms() {
+        assertTrue(Mapping.copy(3, 4, 5, 6) instanceof IntervalMapping);
+        assertTrue(Mapping.copy(0, 2, 4, 6, 8, 10, 12, 14) instanceof BitSetMapping);
+        assertTrue(Mapping.copy(10, 2, 4) instanceof ArrayMapping);
+        assertTrue(Mapping.copy(0, 10_000) instanceof ArrayMapping);
+    }
+
+    @Test
+    public void testBitSetMapping() {
+        Random random = new Random(1234);
+        int[] rows = IntStream.range(0, 10_000).filter(i -> random.nextDouble() < 0.5).toArray();
+        Mapping m = Mapping.copy(rows);
+        assertTrue(m instanceof BitSetMapping);
+        assertEquals(rows.length, m.size());
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(rows[i], m.get(i));
+        }
+        assertArrayEquals(rows, m.rowStream().toArray());
+        assertArrayEquals(rows, m.toArray());
+
+        m.add(20_000);
+        assertEquals(rows.length + 1, m.size());
+        assertEquals(20_000, m.get(rows.length));
+        assertEquals(rows[rows.length - 1], m.get(rows.length - 1));
+
+        m.add(5);
+        assertEquals(rows.length + 2, m.size());
+        assertEquals(5, m.get(rows.length + 1));
+        assertEquals(rows[100], m.get(100));
+    }
+
+    @Test
+    public void testRemovePositions() {
+        Mapping m = Mapping.copy(7, 3, 5, 1, 9);
+        m.remove(1);
+        assertArrayEquals(new int[]{7, 5, 1, 9}, m.toArray());
+        m.removeAll(Arrays.asList(0, 3));
+        assertArrayEquals(new int[]{5, 1}, m.toArray());
+
+        m = Mapping.range(0, 10);
+        m.remove(0);
+        m.remove(8);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, m.toArray());
+        m.removeAll(Arrays.asList(1, 2));
+        assertArrayEquals(new int[]{1, 4, 5, 6, 7, 8}, m.toArray());
+
+        m.clear();
+        assertEquals(0, m.size());
+    }
 }
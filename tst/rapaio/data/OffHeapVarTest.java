@@ -0,0 +1,133 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.data;
+
+import org.junit.Test;
+import rapaio.datasets.Datasets;
+import rapaio.io.JavaIO;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>.
+ */
+public class OffHeapVarTest {
+
+    @Test
+    public void testNumeric() throws IOException {
+        Numeric source = Numeric.copy(1, 2.5, Double.NaN, -4, 1e10).withName("x");
+        File file = File.createTempFile("offheap-", ".num");
+        file.deleteOnExit();
+
+        OffHeapNumeric x = OffHeapNumeric.copy(source, file);
+        assertEquals("x", x.name());
+        assertEquals(VarType.NUMERIC, x.type());
+        assertTrue(x.deepEquals(source));
+        assertTrue(x.missing(2));
+
+        x.setValue(0, 10);
+        assertEquals(10, x.value(0), 1e-20);
+
+        OffHeapNumeric ro = OffHeapNumeric.map(file, true).withName("x");
+        assertTrue(ro.isReadOnly());
+        assertEquals(10, ro.value(0), 1e-20);
+        assertEquals(source.value(4), ro.value(4), 1e-20);
+        try {
+            ro.setValue(0, 1);
+            assertTrue("should raise an exception", false);
+        } catch (ReadOnlyBufferException ignored) {
+        }
+        try {
+            ro.addValue(1);
+            assertTrue("should raise an exception", false);
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        Index source = Index.copy(1, 2, 3, 4).withName("y");
+        source.setMissing(1);
+        File file = File.createTempFile("offheap-", ".idx");
+        file.deleteOnExit();
+
+        OffHeapIndex y = OffHeapIndex.copy(source, file);
+        assertEquals(VarType.INDEX, y.type());
+        assertTrue(y.deepEquals(source));
+        assertTrue(y.missing(1));
+        assertTrue(Double.isNaN(y.value(1)));
+        assertTrue(y.solidCopy().deepEquals(source));
+    }
+
+    @Test
+    public void testNominal() throws IOException {
+        Nominal source = Nominal.copy("a", "b", "?", "c", "a").withName("z");
+        File file = File.createTempFile("offheap-", ".nom");
+        file.deleteOnExit();
+
+        OffHeapNominal z = OffHeapNominal.copy(source, file);
+        assertEquals(VarType.NOMINAL, z.type());
+        assertArrayEquals(source.levels(), z.levels());
+        assertTrue(z.deepEquals(source));
+
+        z.setLevels("?", "x", "y", "x");
+        assertEquals("x", z.label(0));
+        assertEquals("x", z.label(3));
+        assertEquals(1, z.index(3));
+
+        z.setLabel(2, "d");
+        assertEquals("d", z.label(2));
+        assertEquals(4, z.levels().length);
+    }
+
+    @Test
+    public void testFrame() throws IOException, URISyntaxException, ClassNotFoundException {
+        Frame iris = Datasets.loadIrisDataset();
+        Var[] vars = new Var[iris.varCount()];
+        for (int i = 0; i < iris.varCount(); i++) {
+            File file = File.createTempFile("offheap-", ".var");
+            file.deleteOnExit();
+            Var var = iris.var(i);
+            vars[i] = var.type().isNominal() ? OffHeapNominal.copy(var, file) : OffHeapNumeric.copy(var, file);
+        }
+        Frame df = SolidFrame.byVars(vars);
+        assertTrue(df.deepEquals(iris));
+
+        int[] rows = new int[]{3, 7, 100, 0};
+        assertTrue(df.mapRows(rows).deepEquals(iris.mapRows(rows)));
+
+        File ser = File.createTempFile("offheap-", ".ser");
+        ser.deleteOnExit();
+        JavaIO.storeToFile(df, ser);
+        Frame restore = (Frame) JavaIO.restoreFromFile(ser);
+        assertTrue(restore.deepEquals(iris));
+        assertTrue(restore.var(0) instanceof Numeric);
+    }
+}
@@ -76,6 +76,27 @@ public class RowSamplerTest {
         Assert.assertEquals(0.63328, CoreTools.mean(count).value(), 1e-5);
     }
 
+    @Test
+    public void weightedBootstrapTest() {
+        for (int i = 0; i < 100; i++) {
+            RandomSource.setSeed(i);
+            Sample bootstrap = RowSampler.bootstrap().nextSample(df, w);
+            RandomSource.setSeed(i);
+            Sample weighted = RowSampler.weightedBootstrap().nextSample(df, w);
+
+            // same draws, each row only once and weighted with its multiplicity
+            Assert.assertEquals(bootstrap.mapping.rowStream().distinct().count(), weighted.df.rowCount());
+            Assert.assertEquals(bootstrap.weights.stream().mapToDouble().sum(),
+                    weighted.weights.stream().mapToDouble().sum(), 1e-10);
+            int[] rows = weighted.mapping.rowStream().toArray();
+            for (int j = 1; j < rows.length; j++) {
+                Assert.assertTrue(rows[j - 1] < rows[j]);
+            }
+            Assert.assertEquals(bootstrap.outOfBag(df.rowCount()), weighted.outOfBag(df.rowCount()));
+            Assert.assertEquals(df.rowCount() - rows.length, weighted.outOfBag(df.rowCount()).cardinality());
+        }
+    }
+
     @Test
     public void subsampleTest() {
         RandomSource.setSeed(123);
@@ -108,6 +129,7 @@ public class RowSamplerTest {
         Assert.assertEquals("Identity", RowSampler.identity().name());
         Assert.assertEquals("Bootstrap(p=1)", RowSampler.bootstrap().name());
         Assert.assertEquals("Bootstrap(p=0.2)", RowSampler.bootstrap(0.2).name());
+        Assert.assertEquals("WeightedBootstrap(p=1)", RowSampler.weightedBootstrap().name());
         Assert.assertEquals("SubSampler(p=1)", RowSampler.subsampler(1.0).name());
         Assert.assertEquals("SubSampler(p=0.2)", RowSampler.subsampler(0.2).name());
     }
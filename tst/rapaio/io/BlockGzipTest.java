@@ -0,0 +1,117 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class BlockGzipTest {
+
+    private static byte[] content(int size) {
+        Random random = new Random(11);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + random.nextInt(i % 1000 < 500 ? 4 : 26));
+        }
+        return content;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[10_000];
+        int len;
+        while ((len = is.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        is.close();
+        return out.toByteArray();
+    }
+
+    private static File write(byte[] content, int threads) throws IOException {
+        File file = File.createTempFile("block-gzip-", ".gz");
+        file.deleteOnExit();
+        try (OutputStream os = new BlockGzipOutputStream(new FileOutputStream(file), threads)) {
+            // write in uneven pieces to cross block boundaries
+            int pos = 0;
+            int step = 1;
+            while (pos < content.length) {
+                int len = Math.min(step, content.length - pos);
+                os.write(content, pos, len);
+                pos += len;
+                step = step * 3 + 1;
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int size : new int[]{0, 1, BlockGzipOutputStream.BLOCK_SIZE, 3 * BlockGzipOutputStream.BLOCK_SIZE + 17}) {
+            byte[] content = content(size);
+            for (int threads : new int[]{1, 4}) {
+                File file = write(content, threads);
+                // any gzip reader understands multi member files
+                assertArrayEquals(content, readAll(new GZIPInputStream(new FileInputStream(file))));
+                assertArrayEquals(content, readAll(BlockGzipInputStream.open(file, 3)));
+                assertArrayEquals(content, readAll(BlockGzipInputStream.open(file, 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testPlainGzip() throws IOException {
+        byte[] content = content(100_000);
+        File file = File.createTempFile("plain-gzip-", ".gz");
+        file.deleteOnExit();
+        try (OutputStream os = new GZIPOutputStream(new FileOutputStream(file))) {
+            os.write(content);
+        }
+        assertArrayEquals(content, readAll(BlockGzipInputStream.open(file, 4)));
+    }
+
+    @Test
+    public void testCorruptedBlock() throws IOException {
+        File file = write(content(2 * BlockGzipOutputStream.BLOCK_SIZE), 2);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length - 20] ^= 0x55;
+        Files.write(file.toPath(), bytes);
+        try {
+            readAll(BlockGzipInputStream.open(file, 2));
+            fail("corrupted content should not be read");
+        } catch (IOException ex) {
+            assertNotNull(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import org.junit.Test;
+import rapaio.data.*;
+import rapaio.datasets.Datasets;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class ColumnarPersistenceTest {
+
+    private Frame buildFrame() {
+        Numeric num = Numeric.copy(1.5, Double.NaN, -3, 1e-7, 4).withName("num");
+        Index idx = Index.copy(1, 2, 3, 4, 5).withName("idx");
+        idx.setMissing(2);
+        Stamp stamp = Stamp.copy(10, 20, Stamp.MISSING_VALUE, 40, 50);
+        stamp.withName("stamp");
+        Nominal nom = Nominal.copy("a", "b", "?", "a", "c").withName("nom");
+        Ordinal ord = Ordinal.empty(5, "low", "mid", "high");
+        ord.withName("ord");
+        ord.setLabel(0, "high");
+        ord.setLabel(1, "low");
+        ord.setLabel(3, "mid");
+        Binary bin = Binary.copy(1, 0, 1, 1, 0).withName("bin");
+        bin.setMissing(4);
+        Text text = Text.copy("ana", "are", "mere", "ț", "x").withName("text");
+        return SolidFrame.byVars(num, idx, stamp, nom, ord, bin, text);
+    }
+
+    @Test
+    public void testAllTypes() throws IOException {
+        Frame df = buildFrame();
+        File file = File.createTempFile("columnar-", ".rcf");
+        file.deleteOnExit();
+        new ColumnarPersistence().write(df, file);
+
+        Frame mapped = new ColumnarPersistence().read(file);
+        assertTrue(mapped.deepEquals(df));
+        assertTrue(mapped.var("num") instanceof OffHeapNumeric);
+        assertTrue(mapped.var("nom") instanceof OffHeapNominal);
+        assertArrayEquals(df.var("nom").levels(), mapped.var("nom").levels());
+        assertArrayEquals(df.var("ord").levels(), mapped.var("ord").levels());
+        assertTrue(mapped.var("bin").missing(4));
+
+        Frame heap = new ColumnarPersistence().withMemoryMapped(false).read(file);
+        assertTrue(heap.deepEquals(df));
+        assertTrue(heap.var("num") instanceof Numeric);
+        assertTrue(heap.var("stamp") instanceof Stamp);
+    }
+
+    @Test
+    public void testMissingText() throws IOException {
+        Text text = Text.copy("ana", "are", "mere").withName("text");
+        text.setMissing(1);
+        File file = File.createTempFile("columnar-", ".rcf");
+        file.deleteOnExit();
+        new ColumnarPersistence().write(SolidFrame.byVars(text), file);
+
+        Var restore = new ColumnarPersistence().read(file).var("text");
+        assertEquals(3, restore.rowCount());
+        assertEquals("ana", restore.label(0));
+        assertTrue(restore.missing(1));
+        assertEquals("mere", restore.label(2));
+    }
+
+    @Test
+    public void testDatasets() throws IOException, URISyntaxException {
+        Frame[] frames = new Frame[]{Datasets.loadIrisDataset(), Datasets.loadCarMpgDataset(), Datasets.loadMushrooms(), Datasets.loadRandom()};
+        for (Frame df : frames) {
+            File file = File.createTempFile("columnar-", ".rcf");
+            file.deleteOnExit();
+            new ColumnarPersistence().write(df, file);
+            assertTrue(new ColumnarPersistence().read(file).deepEquals(df));
+
+            Frame sample = df.mapRows(1, 3, 5);
+            new ColumnarPersistence().write(sample, file);
+            assertTrue(new ColumnarPersistence().read(file).deepEquals(sample));
+        }
+    }
+
+    @Test
+    public void testWritableMapping() throws IOException {
+        Frame df = buildFrame();
+        File file = File.createTempFile("columnar-", ".rcf");
+        file.deleteOnExit();
+        new ColumnarPersistence().write(df, file);
+
+        Frame writable = new ColumnarPersistence().withReadOnly(false).read(file);
+        writable.setValue(0, "num", 100);
+        writable.setLabel(0, "nom", "c");
+
+        Frame restore = new ColumnarPersistence().read(file);
+        assertEquals(100, restore.value(0, "num"), 1e-20);
+        assertEquals("c", restore.label(0, "nom"));
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException, URISyntaxException {
+        File file = File.createTempFile("columnar-", ".rcf");
+        file.deleteOnExit();
+        new Csv().write(Datasets.loadIrisDataset(), file);
+        try {
+            new ColumnarPersistence().read(file);
+            assertTrue("should raise an exception", false);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class CsvNumberFormatTest {
+
+    private final byte[] buf = new byte[CsvNumberFormat.MAX_LENGTH];
+
+    private String format(double value) {
+        return new String(buf, 0, CsvNumberFormat.format(value, buf, 0));
+    }
+
+    @Test
+    public void testKnownValues() {
+        assertEquals("0", format(0.0));
+        assertEquals("-0", format(-0.0));
+        assertEquals("1", format(1.0));
+        assertEquals("-17", format(-17.0));
+        assertEquals("0.1", format(0.1));
+        assertEquals("0.3", format(0.3));
+        assertEquals("0.30000000000000004", format(0.1 + 0.2));
+        assertEquals("123456.789", format(123456.789));
+        assertEquals("0.000123", format(1.23e-4));
+        assertEquals("1.5E-7", format(1.5e-7));
+        assertEquals("10000000000000000", format(1e16));
+        assertEquals("1E22", format(1e22));
+        assertEquals("5E-324", format(Double.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", format(Double.MAX_VALUE));
+        assertEquals("Inf", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Inf", format(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testShortestRoundTrip() {
+        Random random = new Random(1234);
+        for (int i = 0; i < 200_000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 1:
+                    value = random.nextDouble();
+                    break;
+                case 2:
+                    value = random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20);
+                    break;
+                default:
+                    value = Math.round(random.nextDouble() * 1e6) / 1e3;
+            }
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            String text = format(value);
+            assertEquals(text, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(text)));
+
+            // no decimal with one digit less reads back to the same value
+            String digits = text.replaceAll("E.*", "").replaceAll("[-.]", "").replaceAll("^0+", "").replaceAll("0+$", "");
+            if (digits.length() > 1) {
+                BigDecimal exact = new BigDecimal(value);
+                for (RoundingMode mode : new RoundingMode[]{RoundingMode.FLOOR, RoundingMode.CEILING}) {
+                    double shorter = exact.round(new MathContext(digits.length() - 1, mode)).doubleValue();
+                    assertNotEquals(text, Double.doubleToLongBits(value), Double.doubleToLongBits(shorter));
+                }
+            }
+        }
+    }
+}
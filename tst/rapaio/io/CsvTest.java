@@ -31,11 +31,19 @@ import org.junit.Test;
 import rapaio.data.*;
 import rapaio.datasets.Datasets;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -261,4 +269,284 @@ public class CsvTest {
         Frame na4 = new Csv().withNAValues("virginica", "5").withTypes(VarType.NOMINAL, "sepal-length").read(Datasets.class, "iris-r.csv");
         Assert.assertEquals(89, na4.stream().complete().count());
     }
+
+    private File writeLargeFile() throws IOException {
+        File file = File.createTempFile("csv-parallel-", ".csv");
+        file.deleteOnExit();
+        Random random = new Random(42);
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println("bin,num,nom,late,short");
+            for (int i = 0; i < 30_000; i++) {
+                writer.print(i == 25_000 ? "2.5" : String.valueOf(random.nextInt(2)));
+                writer.print(",");
+                writer.print(i % 1000 == 0 ? "?" : String.valueOf(random.nextDouble()));
+                writer.print(",");
+                writer.print("level" + random.nextInt(20));
+                writer.print(",");
+                writer.print(i == 29_000 ? "x" : String.valueOf(random.nextInt(100)));
+                if (i % 3 != 0) {
+                    writer.print(",");
+                    writer.print(random.nextInt(2));
+                }
+                writer.println();
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testParallelRead() throws IOException {
+        File file = writeLargeFile();
+
+        Frame seq = new Csv().read(file);
+        Frame par = new Csv().withPoolSize(4).read(file);
+        assertEquals(30_000, par.rowCount());
+        assertArrayEquals(seq.varNames(), par.varNames());
+        assertEquals(VarType.NUMERIC, par.var("bin").type());
+        assertEquals(VarType.NOMINAL, par.var("late").type());
+        assertEquals(VarType.BINARY, par.var("short").type());
+        assertArrayEquals(seq.var("nom").levels(), par.var("nom").levels());
+        assertArrayEquals(seq.var("late").levels(), par.var("late").levels());
+        assertTrue(seq.deepEquals(par));
+
+        seq = new Csv().withSkipRows(row -> row % 7 == 0).withStartRow(1000).withEndRow(20_000).read(file);
+        par = new Csv().withSkipRows(row -> row % 7 == 0).withStartRow(1000).withEndRow(20_000).withPoolSize(4).read(file);
+        assertEquals(19_000, par.rowCount());
+        assertEquals(VarType.BINARY, par.var("bin").type());
+        assertTrue(seq.deepEquals(par));
+
+        seq = new Csv().withTemplate(seq).withEndRow(10).read(file);
+        par = new Csv().withTemplate(par).withEndRow(10).withPoolSize(-1).read(file);
+        assertEquals(VarType.BINARY, par.var("bin").type());
+        assertTrue(seq.deepEquals(par));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        File file = writeLargeFile();
+        Frame full = new Csv().read(file);
+
+        List<Frame> batches;
+        try (Stream<Frame> stream = new Csv().withTemplate(full).stream(file, 7_000)) {
+            batches = stream.collect(Collectors.toList());
+        }
+        assertEquals(5, batches.size());
+        assertEquals(2_000, batches.get(4).rowCount());
+        int row = 0;
+        String[] levels = new String[0];
+        for (Frame batch : batches) {
+            assertArrayEquals(full.varNames(), batch.varNames());
+            String[] batchLevels = batch.var("nom").levels();
+            assertArrayEquals(levels, Arrays.copyOf(batchLevels, levels.length));
+            levels = batchLevels;
+            for (int i = 0; i < batch.rowCount(); i++) {
+                for (int j = 0; j < full.varCount(); j++) {
+                    assertEquals(full.var(j).type(), batch.var(j).type());
+                    assertEquals(full.label(row, j), batch.label(i, j));
+                }
+                row++;
+            }
+        }
+        assertEquals(full.rowCount(), row);
+
+        // types are inferred from the first batch
+        try (Stream<Frame> stream = new Csv().withEndRow(20_000).stream(file, 5_000)) {
+            List<Frame> inferred = stream.collect(Collectors.toList());
+            assertEquals(4, inferred.size());
+            for (Frame batch : inferred) {
+                assertEquals(VarType.BINARY, batch.var("bin").type());
+                assertEquals(VarType.NUMERIC, batch.var("late").type());
+                assertEquals(VarType.NOMINAL, batch.var("nom").type());
+            }
+        }
+        try (Stream<Frame> stream = new Csv().stream(file, 5_000)) {
+            stream.count();
+            assertTrue("value with other type than the inferred one should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("2.5"));
+        }
+
+        // batches share the sampled types, even if promotion is enabled
+        try (Stream<Frame> stream = new Csv().withSampleRows(1_000).withTypePromotion(true).stream(file, 5_000)) {
+            stream.count();
+            assertTrue("value with other type than the sampled one should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("name: bin"));
+        }
+        try (Stream<Frame> stream = new Csv().withTypePromotion(true)
+                .stream(new ByteArrayInputStream("a,b\n0,x\n1,y\n7,z\n".getBytes()), 2)) {
+            stream.count();
+            assertTrue("value with other type than the first batch should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("line 4"));
+            assertTrue(ex.getMessage().contains("name: a"));
+        }
+
+        // columns with all values missing in the first batch are inferred later
+        try (Stream<Frame> stream = new Csv().stream(new ByteArrayInputStream("a,b\n1,?\n2,?\n3,x\n4,y\n".getBytes()), 2)) {
+            List<Frame> missing = stream.collect(Collectors.toList());
+            assertEquals(2, missing.size());
+            assertEquals(VarType.NOMINAL, missing.get(1).var("b").type());
+            assertEquals("x", missing.get(1).label(0, "b"));
+            assertEquals("y", missing.get(1).label(1, "b"));
+        }
+    }
+
+    @Test
+    public void testSampleInference() throws IOException {
+        File file = writeLargeFile();
+        Frame full = new Csv().read(file);
+
+        Frame sampled = new Csv().withSampleRows(30_000).read(file);
+        assertTrue(full.deepEquals(sampled));
+        assertArrayEquals(full.var("late").levels(), sampled.var("late").levels());
+
+        sampled = new Csv().withSampleRows(100).withSampleReservoir(true).withEndRow(20_000).withPoolSize(4).read(file);
+        assertTrue(new Csv().withEndRow(20_000).read(file).deepEquals(sampled));
+
+        sampled = new Csv().withSampleRows(50_000).withSampleReservoir(true).withPoolSize(3).read(file);
+        assertTrue(full.deepEquals(sampled));
+
+        // values outside of the inferred types fail, unless promotion is enabled
+        try {
+            new Csv().withSampleRows(1_000).read(file);
+            assertTrue("value outside of inferred type should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("2.5"));
+            assertTrue(ex.getMessage().contains("name: bin"));
+        }
+        assertTrue(full.deepEquals(new Csv().withSampleRows(1_000).withTypePromotion(true).read(file)));
+        assertTrue(full.deepEquals(new Csv().withSampleRows(1_000).withTypePromotion(true).withPoolSize(4).read(file)));
+
+        File small = File.createTempFile("csv-sample-", ".csv");
+        small.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(small)) {
+            writer.print("a\n0\n1\n0\n1\n7\n");
+        }
+        try {
+            new Csv().withSampleRows(3).read(small);
+            assertTrue("value outside of inferred type should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("line 6"));
+            assertTrue(ex.getMessage().contains("name: a"));
+        }
+        Frame promoted = new Csv().withSampleRows(3).withTypePromotion(true).read(small);
+        assertEquals(VarType.NUMERIC, promoted.var("a").type());
+        assertTrue(new Csv().read(small).deepEquals(promoted));
+
+        try {
+            new Csv().withSampleRows(3).withTypes(VarType.BINARY, "a").read(small);
+            assertTrue("value outside of a given type should fail", false);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("name: a"));
+        }
+
+        try (Stream<Frame> stream = new Csv().withSampleRows(30_000).stream(file, 10_000)) {
+            stream.forEach(batch -> {
+                assertEquals(VarType.NUMERIC, batch.var("bin").type());
+                assertEquals(VarType.NOMINAL, batch.var("late").type());
+            });
+        }
+    }
+
+    @Test
+    public void testWriteRoundTrip() throws IOException {
+        Random random = new Random(7);
+        int rows = 20_000;
+        Numeric num = Numeric.empty();
+        Index idx = Index.empty();
+        Binary bin = Binary.empty();
+        Nominal nom = Nominal.empty();
+        for (int i = 0; i < rows; i++) {
+            num.addValue(i % 100 == 0 ? Double.NaN : random.nextGaussian() * Math.pow(10, random.nextInt(12) - 6));
+            idx.addIndex(random.nextInt(2_000_000) - 1_000_000);
+            bin.addBinary(random.nextBoolean());
+            nom.addLabel(i % 50 == 0 ? "?" : (i % 7 == 0 ? "say \"hi\"" : "l\u00e9vel" + random.nextInt(10)));
+        }
+        Frame df = SolidFrame.byVars(num.withName("num"), idx.withName("idx"), bin.withName("bin"), nom.withName("nom"));
+
+        File seqFile = File.createTempFile("csv-write-", ".csv");
+        seqFile.deleteOnExit();
+        File parFile = File.createTempFile("csv-write-", ".csv");
+        parFile.deleteOnExit();
+        Csv csv = new Csv().withQuotes(true).withTypes(VarType.INDEX, "idx").withCharset(StandardCharsets.UTF_8);
+        csv.write(df, seqFile);
+        csv.withPoolSize(3).write(df, parFile);
+        assertArrayEquals(Files.readAllBytes(seqFile.toPath()), Files.readAllBytes(parFile.toPath()));
+
+        Frame back = new Csv().withQuotes(true).withTypes(VarType.INDEX, "idx").withCharset(StandardCharsets.UTF_8).read(seqFile);
+        assertTrue(df.deepEquals(back));
+
+        // content is written with the given charset
+        assertTrue(new String(Files.readAllBytes(seqFile.toPath()), StandardCharsets.UTF_8).contains("l\u00e9vel"));
+        csv.withPoolSize(0).withCharset(StandardCharsets.ISO_8859_1).write(df, seqFile);
+        assertTrue(new String(Files.readAllBytes(seqFile.toPath()), StandardCharsets.ISO_8859_1).contains("l\u00e9vel"));
+        back = new Csv().withQuotes(true).withTypes(VarType.INDEX, "idx").withCharset(StandardCharsets.ISO_8859_1).read(seqFile);
+        assertTrue(df.deepEquals(back));
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        File file = writeLargeFile();
+        Frame df = new Csv().read(file);
+
+        File gz = File.createTempFile("csv-gzip-", ".csv.gz");
+        gz.deleteOnExit();
+        new Csv().withPoolSize(4).writeGz(df, gz);
+        assertTrue(df.deepEquals(new Csv().readGz(gz)));
+        assertTrue(df.deepEquals(new Csv().withPoolSize(4).readGz(gz)));
+
+        new Csv().writeGz(df, gz);
+        assertTrue(df.deepEquals(new Csv().withPoolSize(-1).readGz(gz)));
+    }
+
+    @Test
+    public void testFastNumberParsing() {
+        Random random = new Random(42);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            values.add(String.valueOf(random.nextGaussian() * Math.pow(10, random.nextInt(10) - 5)));
+            values.add(String.valueOf(random.nextInt(2_000_000) - 1_000_000));
+        }
+        values.add("0");
+        values.add("-0.0");
+        values.add(".5");
+        values.add("1.");
+        values.add("+12e-3");
+        values.add("123456789012345");
+        values.add("0.000000000000000000001");
+        for (String value : values) {
+            char[] buf = value.toCharArray();
+            double x = CsvTokenizer.parseDouble(buf, 0, buf.length);
+            if (!Double.isNaN(x)) {
+                assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(x));
+            }
+        }
+        for (String value : new String[]{"", ".", "-", "1e", "1.2.3", "abc", "1x", "12345678901234567", "1e400"}) {
+            char[] buf = value.toCharArray();
+            assertTrue(value, Double.isNaN(CsvTokenizer.parseDouble(buf, 0, buf.length)));
+        }
+
+        for (String value : new String[]{"0", "-1", "+17", "999999999"}) {
+            char[] buf = value.toCharArray();
+            assertEquals(Integer.parseInt(value), CsvTokenizer.parseInt(buf, 0, buf.length));
+        }
+        for (String value : new String[]{"", "-", "1.0", "a", "1234567890"}) {
+            char[] buf = value.toCharArray();
+            assertEquals(Integer.MIN_VALUE, CsvTokenizer.parseInt(buf, 0, buf.length));
+        }
+    }
+
+    @Test
+    public void testLineTerminators() throws IOException {
+        String content = "a,b\nx,1\ry,2\r\nz,3\n\nw,4";
+        Frame df = new Csv().read(new ByteArrayInputStream(content.getBytes()));
+        assertEquals(5, df.rowCount());
+        assertEquals("x", df.label(0, "a"));
+        assertEquals("y", df.label(1, "a"));
+        assertEquals("z", df.label(2, "a"));
+        assertTrue(df.missing(3, "a"));
+        assertEquals("w", df.label(4, "a"));
+        assertEquals(4, df.value(4, "b"), 1e-20);
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.io;
+
+import org.junit.Before;
+import org.junit.Test;
+import rapaio.core.RandomSource;
+import rapaio.data.Frame;
+import rapaio.data.VRange;
+import rapaio.data.VarType;
+import rapaio.data.filter.frame.FFStandardize;
+import rapaio.datasets.Datasets;
+import rapaio.ml.classifier.CFit;
+import rapaio.ml.classifier.Classifier;
+import rapaio.ml.classifier.bayes.NaiveBayes;
+import rapaio.ml.classifier.bayes.estimator.KernelPdf;
+import rapaio.ml.classifier.boost.GBTClassifier;
+import rapaio.ml.classifier.ensemble.CForest;
+import rapaio.ml.classifier.svm.BinarySMO;
+import rapaio.ml.classifier.svm.kernel.RBFKernel;
+import rapaio.ml.classifier.tree.CTree;
+import rapaio.ml.classifier.tree.CTreePurityTest;
+import rapaio.ml.common.RowPredicate;
+import rapaio.ml.regression.RFit;
+import rapaio.ml.regression.tree.RTree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for binary model persistence.
+ *
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class ModelIOTest {
+
+    private Frame iris;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        RandomSource.setSeed(1234);
+        iris = Datasets.loadIrisDataset();
+    }
+
+    private static byte[] store(ModelWritable model) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ModelIO.write(model, bos);
+        return bos.toByteArray();
+    }
+
+    private static <T> T restore(byte[] bytes) throws IOException {
+        return ModelIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertSameFit(Classifier expected, Classifier actual, Frame df) {
+        CFit fit1 = expected.fit(df.solidCopy());
+        CFit fit2 = actual.fit(df.solidCopy());
+        for (int i = 0; i < df.rowCount(); i++) {
+            assertEquals(fit1.firstClasses().label(i), fit2.firstClasses().label(i));
+            for (int j = 0; j < fit1.firstDensity().varCount(); j++) {
+                assertEquals(fit1.firstDensity().value(i, j), fit2.firstDensity().value(i, j), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testCTree() throws IOException {
+        Frame mushrooms = Datasets.loadMushrooms();
+        CTree[] trees = new CTree[]{CTree.newCART(), CTree.newC45(), CTree.newID3(),
+                CTree.newCART().withTest(VarType.NOMINAL, CTreePurityTest.NominalPartition)};
+        for (CTree tree : trees) {
+            tree.train(mushrooms, "classes");
+            CTree copy = restore(store(tree));
+            assertEquals(tree.countNodes(false), copy.countNodes(false));
+            assertSameFit(tree, copy, mushrooms);
+        }
+        CTree tree = CTree.newC45();
+        tree.train(iris, "class");
+        CTree copy = restore(store(tree));
+        assertEquals(tree.countNodes(true), copy.countNodes(true));
+        assertSameFit(tree, copy, iris);
+    }
+
+    @Test
+    public void testRTree() throws IOException {
+        Frame df = Datasets.loadISLAdvertising().removeVars("ID");
+        RTree tree = RTree.buildCART().withMaxDepth(6);
+        tree.train(df, "Sales");
+        RTree copy = restore(store(tree));
+        RFit fit1 = tree.fit(df);
+        RFit fit2 = copy.fit(df);
+        for (int i = 0; i < df.rowCount(); i++) {
+            assertEquals(fit1.firstFit().value(i), fit2.firstFit().value(i), 1e-12);
+        }
+    }
+
+    @Test
+    public void testCForest() throws IOException {
+        CForest rf = CForest.newRF().withRuns(50).withGainVIComp(true);
+        rf.train(iris, "class");
+        byte[] bytes = store(rf);
+        CForest copy = restore(bytes);
+        assertEquals(rf.getClassifiers().size(), copy.getClassifiers().size());
+        assertSameFit(rf, copy, iris);
+        assertEquals(rf.getGainVIInfo().summary(), copy.getGainVIInfo().summary());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(rf);
+        }
+        assertTrue(bytes.length < bos.size());
+    }
+
+    @Test
+    public void testGBTClassifier() throws IOException {
+        GBTClassifier gbt = (GBTClassifier) new GBTClassifier().withRuns(5);
+        gbt.train(iris, "class");
+        GBTClassifier copy = restore(store(gbt));
+        assertSameFit(gbt, copy, iris);
+    }
+
+    @Test
+    public void testNaiveBayes() throws IOException {
+        NaiveBayes nb = new NaiveBayes();
+        nb.train(iris, "class");
+        assertSameFit(nb, restore(store(nb)), iris);
+
+        nb = new NaiveBayes().withNumEstimator(new KernelPdf());
+        nb.train(iris, "class");
+        assertSameFit(nb, restore(store(nb)), iris);
+
+        Frame mushrooms = Datasets.loadMushrooms();
+        nb = new NaiveBayes();
+        nb.train(mushrooms, "classes");
+        assertSameFit(nb, restore(store(nb)), mushrooms);
+    }
+
+    @Test
+    public void testBinarySMO() throws IOException {
+        Frame df = Datasets.loadSonar();
+        BinarySMO linear = new BinarySMO().withInputFilters(new FFStandardize(VRange.all())).withMaxRuns(100);
+        linear.train(df, "Class");
+        assertSameFit(linear, restore(store(linear)), df);
+
+        BinarySMO rbf = new BinarySMO().withKernel(new RBFKernel(1)).withMaxRuns(100);
+        rbf.train(df, "Class");
+        assertSameFit(rbf, restore(store(rbf)), df);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCustomPredicate() throws IOException {
+        RowPredicate.writeAll(new ModelOutput(new ByteArrayOutputStream()),
+                Collections.singletonList(spot -> true));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongHeader() throws IOException {
+        ModelIO.read(new ByteArrayInputStream("not a model file".getBytes()));
+    }
+}
@@ -25,11 +25,14 @@
 package rapaio.ml.classifier.boost;
 
 import org.junit.Test;
+import rapaio.core.RandomSource;
 import rapaio.core.SamplingTools;
 import rapaio.data.Frame;
 import rapaio.data.Numeric;
 import rapaio.datasets.Datasets;
+import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.Classifier;
+import rapaio.ml.classifier.rule.OneRule;
 import rapaio.ml.classifier.tree.CTree;
 import rapaio.ml.eval.Confusion;
 import rapaio.printer.IdeaPrinter;
@@ -37,7 +40,11 @@ import rapaio.sys.WS;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static rapaio.graphics.Plotter.color;
 
 public class AdaBoostSAMMETest {
@@ -70,4 +77,71 @@ public class AdaBoostSAMMETest {
 
         new Confusion(tr.var(target), ab.fit(tr).firstClasses()).printSummary();
     }
+
+    @Test
+    public void testStagesAndEarlyStopping() throws IOException, URISyntaxException {
+        RandomSource.setSeed(123);
+        Frame df = Datasets.loadIrisDataset();
+        int[] rows = SamplingTools.sampleWOR(df.rowCount(), 100);
+        Frame tr = df.mapRows(rows);
+        Frame te = df.removeRows(rows);
+
+        AdaBoostSAMME ab = new AdaBoostSAMME()
+                .withClassifier(CTree.newCART().withMaxDepth(2))
+                .withValidation(te, 3)
+                .withRuns(100);
+        ab.train(tr, "class");
+
+        List<CFit> stages = ab.fitStages(te, true, true);
+        assertTrue(stages.size() > 0);
+        assertTrue(stages.size() < 100);
+
+        // last stage is the fit of the whole model
+        CFit fit = ab.fit(te);
+        CFit last = stages.get(stages.size() - 1);
+        for (int i = 0; i < te.rowCount(); i++) {
+            assertEquals(fit.firstClasses().index(i), last.firstClasses().index(i));
+            for (int k = 1; k < fit.firstDensity().varCount(); k++) {
+                assertEquals(fit.firstDensity().value(i, k), last.firstDensity().value(i, k), 1e-12);
+            }
+        }
+
+        // stages can be built with classes only
+        List<CFit> classStages = ab.fitStages(te, true, false);
+        assertEquals(stages.size(), classStages.size());
+        assertFalse(classStages.get(0).isWithDensities());
+        for (int i = 0; i < te.rowCount(); i++) {
+            assertEquals(last.firstClasses().index(i), classStages.get(stages.size() - 1).firstClasses().index(i));
+        }
+
+        // no earlier stage has a smaller validation error than the retained model
+        double lastError = new Confusion(te.var("class"), last.firstClasses()).error();
+        for (CFit stage : stages) {
+            assertTrue(new Confusion(te.var("class"), stage.firstClasses()).error() >= lastError);
+        }
+    }
+
+    @Test
+    public void testParallelScoring() throws IOException {
+        RandomSource.setSeed(123);
+        Frame df = Datasets.loadSpamBase();
+
+        Classifier[] weaks = new Classifier[]{CTree.newDecisionStump(), new OneRule()};
+        for (Classifier weak : weaks) {
+            AdaBoostSAMME ab = new AdaBoostSAMME().withClassifier(weak).withRuns(20);
+            ab.withRunPoolSize(0);
+            ab.train(df, "spam");
+            CFit expected = ab.fit(df);
+
+            // rows are scored in blocks which share the same accumulator
+            ab.withRunPoolSize(4);
+            CFit fit = ab.fit(df);
+            for (int i = 0; i < df.rowCount(); i++) {
+                assertEquals(expected.firstClasses().index(i), fit.firstClasses().index(i));
+                for (int k = 1; k < fit.firstDensity().varCount(); k++) {
+                    assertEquals(expected.firstDensity().value(i, k), fit.firstDensity().value(i, k), 1e-12);
+                }
+            }
+        }
+    }
 }
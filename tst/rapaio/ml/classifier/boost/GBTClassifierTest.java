@@ -0,0 +1,129 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.boost;
+
+import org.junit.Test;
+import rapaio.core.RandomSource;
+import rapaio.core.SamplingTools;
+import rapaio.data.Frame;
+import rapaio.datasets.Datasets;
+import rapaio.ml.classifier.CFit;
+import rapaio.ml.regression.tree.RTree;
+import rapaio.ml.regression.tree.RTreeNumericMethod;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class GBTClassifierTest {
+
+    @Test
+    public void testTrainingScores() throws IOException, URISyntaxException {
+        RandomSource.setSeed(123);
+        Frame df = Datasets.loadIrisDataset().solidCopy();
+        for (int i = 0; i < 30; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(4));
+        }
+
+        RTree[] trees = new RTree[]{
+                RTree.buildCART().withMaxDepth(3),
+                RTree.buildCART().withMaxDepth(3).withNumericMethod(RTreeNumericMethod.BINNED).withMaxBins(16)};
+        for (RTree tree : trees) {
+            GBTClassifier gbt = new GBTClassifier().withTree(tree).withShrinkage(0.5);
+            gbt.withRuns(20);
+            gbt.train(df, "class");
+
+            // scores updated from leaf assignments are the same as the predicted ones
+            CFit fit = gbt.fit(df);
+            int accepted = 0;
+            for (int i = 0; i < df.rowCount(); i++) {
+                double total = 0;
+                for (int k = 0; k < gbt.K; k++) {
+                    total += Math.exp(gbt.f[k][i]);
+                }
+                for (int k = 0; k < gbt.K; k++) {
+                    assertEquals(Math.exp(gbt.f[k][i]) / total, fit.firstDensity().value(i, k + 1), 1e-10);
+                }
+                if (fit.firstClasses().index(i) == df.var("class").index(i)) {
+                    accepted++;
+                }
+            }
+            assertTrue(accepted > 0.9 * df.rowCount());
+        }
+    }
+
+    @Test
+    public void testStagesAndEarlyStopping() throws IOException, URISyntaxException {
+        RandomSource.setSeed(1234);
+        Frame df = Datasets.loadIrisDataset().solidCopy();
+        int[] rows = SamplingTools.sampleWOR(df.rowCount(), 100);
+        Frame tr = df.mapRows(rows);
+        Frame te = df.removeRows(rows);
+
+        GBTClassifier gbt = new GBTClassifier()
+                .withTree(RTree.buildCART().withMaxDepth(3))
+                .withShrinkage(0.5)
+                .withValidation(te, 5);
+        gbt.withRuns(200);
+        gbt.train(tr, "class");
+
+        // stages are the same as the fit of the model with all rounds
+        List<CFit> stages = gbt.fitStages(te, true, true);
+        assertTrue(stages.size() > 0);
+        assertTrue(stages.size() < 200);
+        CFit fit = gbt.fit(te);
+        CFit last = stages.get(stages.size() - 1);
+        for (int i = 0; i < te.rowCount(); i++) {
+            assertEquals(fit.firstClasses().index(i), last.firstClasses().index(i));
+            for (int k = 1; k < fit.firstDensity().varCount(); k++) {
+                assertEquals(fit.firstDensity().value(i, k), last.firstDensity().value(i, k), 1e-10);
+            }
+        }
+
+        // stages can be built with classes only
+        List<CFit> classStages = gbt.fitStages(te, true, false);
+        assertEquals(stages.size(), classStages.size());
+        assertFalse(classStages.get(0).isWithDensities());
+        for (int i = 0; i < te.rowCount(); i++) {
+            assertEquals(last.firstClasses().index(i), classStages.get(stages.size() - 1).firstClasses().index(i));
+        }
+
+        // the model is truncated to the round with the smallest validation deviance
+        double[] deviances = new double[stages.size()];
+        for (int m = 0; m < stages.size(); m++) {
+            for (int i = 0; i < te.rowCount(); i++) {
+                deviances[m] -= Math.log(stages.get(m).firstDensity().value(i, te.var("class").label(i)));
+            }
+        }
+        for (int m = 0; m < stages.size() - 1; m++) {
+            assertTrue(deviances[m] > deviances[stages.size() - 1]);
+        }
+    }
+}
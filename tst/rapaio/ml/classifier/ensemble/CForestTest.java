@@ -0,0 +1,167 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.ensemble;
+
+import org.junit.Before;
+import org.junit.Test;
+import rapaio.core.RandomSource;
+import rapaio.data.Frame;
+import rapaio.data.Nominal;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
+import rapaio.data.sample.RowSampler;
+import rapaio.datasets.Datasets;
+import rapaio.ml.classifier.CFit;
+import rapaio.ml.classifier.Classifier;
+import rapaio.ml.classifier.rule.OneRule;
+import rapaio.ml.classifier.tree.CTree;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class CForestTest {
+
+    private Frame iris;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        RandomSource.setSeed(1234);
+        iris = Datasets.loadIrisDataset();
+    }
+
+    @Test
+    public void testWeightedBootstrap() {
+        CForest rf = CForest.newRF()
+                .withRuns(100)
+                .withOobComp(true)
+                .withSampler(RowSampler.weightedBootstrap());
+        rf.train(iris, "class");
+        assertEquals(100, rf.getClassifiers().size());
+        assertTrue(rf.getOobError() < 0.1);
+        assertEquals(iris.rowCount(), rf.getOobInfo().completeCases());
+    }
+
+    @Test
+    public void testParallelAccumulators() {
+        List<Integer> hookCounts = Collections.synchronizedList(new ArrayList<>());
+        CForest rf = CForest.newRF()
+                .withRuns(40)
+                .withOobComp(true)
+                .withFreqVIComp(true)
+                .withGainVIComp(true)
+                .withPermVIComp(true)
+                .withRunningHook((c, run) -> hookCounts.add(run))
+                .withRunPoolSize(4);
+        rf.train(iris, "class");
+
+        assertEquals(40, rf.getClassifiers().size());
+        assertEquals(40, hookCounts.size());
+        for (int i = 0; i < hookCounts.size(); i++) {
+            assertEquals(i + 1, hookCounts.get(i).intValue());
+        }
+        assertTrue(rf.getOobError() < 0.1);
+        assertEquals(iris.rowCount(), rf.getOobInfo().completeCases());
+        assertEquals(4, rf.getFreqVIInfo().rowCount());
+        assertEquals(4, rf.getGainVIInfo().rowCount());
+        assertEquals(4, rf.getPermVIInfo().rowCount());
+        assertTrue(rf.getGainVIInfo().label(0, "name").startsWith("petal-"));
+    }
+
+    @Test
+    public void testBlockFit() {
+        Numeric x1 = Numeric.empty().withName("x1");
+        Numeric x2 = Numeric.empty().withName("x2");
+        Nominal y = Nominal.empty(0, "a", "b", "c").withName("y");
+        for (int i = 0; i < 1_500; i++) {
+            double a = RandomSource.nextDouble();
+            double b = RandomSource.nextDouble();
+            x1.addValue(a);
+            x2.addValue(b);
+            double noise = RandomSource.nextDouble() * 0.4;
+            y.addLabel(a + noise < 0.6 ? "a" : (b + noise < 0.7 ? "b" : "c"));
+        }
+        Frame df = SolidFrame.byVars(x1, x2, y);
+
+        Classifier[] weak = new Classifier[]{CTree.newCART(), new OneRule()};
+        for (Classifier c : weak) {
+            for (BaggingMode mode : BaggingMode.values()) {
+                CForest rf = CForest.newRF().withRuns(10).withClassifier(c).withBaggingMode(mode);
+                rf.train(df, "y");
+                CFit fit = rf.fit(df);
+
+                List<CFit> fits = new ArrayList<>();
+                for (Classifier tree : rf.getClassifiers()) {
+                    fits.add(tree.fit(df));
+                }
+                for (int i = 0; i < df.rowCount(); i++) {
+                    double[] expected = new double[4];
+                    for (CFit treeFit : fits) {
+                        if (mode == BaggingMode.VOTING) {
+                            expected[treeFit.firstClasses().index(i)]++;
+                        } else {
+                            for (int j = 0; j < 4; j++) {
+                                expected[j] += treeFit.firstDensity().value(i, j);
+                            }
+                        }
+                    }
+                    double best = 0;
+                    for (int j = 1; j < 4; j++) {
+                        assertEquals(expected[j] / fits.size(), fit.firstDensity().value(i, j), 1e-12);
+                        best = Math.max(best, expected[j] / fits.size());
+                    }
+                    assertEquals(best, fit.firstDensity().value(i, fit.firstClasses().index(i)), 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPermVIEarlyStop() {
+        // with a large precision all variables stop after the minimum number of runs,
+        // so further trees do not change the importance scores
+        RandomSource.setSeed(42);
+        CForest short10 = CForest.newRF().withRuns(10).withPermVIComp(true).withPermVIPrecision(1e6).withRunPoolSize(0);
+        short10.train(iris, "class");
+        RandomSource.setSeed(42);
+        CForest long30 = CForest.newRF().withRuns(30).withPermVIComp(true).withPermVIPrecision(1e6).withRunPoolSize(0);
+        long30.train(iris, "class");
+        assertEquals(short10.getPermVIInfo().summary(), long30.getPermVIInfo().summary());
+
+        // most important variables are the petal ones
+        CForest rf = CForest.newRF().withRuns(100).withPermVIComp(true).withPermVIPrecision(0.5).withRunPoolSize(4);
+        rf.train(iris, "class");
+        Frame vi = rf.getPermVIInfo();
+        assertEquals(4, vi.rowCount());
+        assertTrue(vi.label(0, "name").startsWith("petal-"));
+    }
+}
@@ -31,7 +31,9 @@ import rapaio.core.RandomSource;
 import rapaio.data.*;
 import rapaio.data.filter.frame.FFStandardize;
 import rapaio.datasets.Datasets;
+import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.svm.kernel.*;
+import rapaio.ml.classifier.svm.kernel.cache.LRUKernelCache;
 import rapaio.experiment.ml.eval.CEvaluation;
 import rapaio.sys.WS;
 
@@ -174,4 +176,31 @@ public class BinarySMOTest {
         WS.println("\nSummary of the scores for various kernels:\n=====================\n");
         String out = SolidFrame.byVars(name, score).lines(name.rowCount());
     }
+
+    @Test
+    public void testKernelCacheSize() throws IOException {
+
+        Frame df = Datasets.loadSpamBase().mapRows(Mapping.range(1_550, 2_050));
+        df = new FFStandardize(VRange.all()).fitApply(df.solidCopy());
+
+        // with one megabyte only about half of the kernel rows are cached
+        CFit[] fits = new CFit[2];
+        int[] cacheSizes = new int[]{1, 100};
+        for (int i = 0; i < fits.length; i++) {
+            RandomSource.setSeed(1);
+            BinarySMO smo = new BinarySMO()
+                    .withKernel(new RBFKernel(10))
+                    .withKernelCacheSize(cacheSizes[i]);
+            smo.train(df, "spam");
+            fits[i] = smo.fit(df);
+            if (cacheSizes[i] == 1) {
+                // support vectors do not fit in cache, their kernel rows are evicted during training
+                assertTrue(smo.supportVectors.cardinality() > new LRUKernelCache(df, 1).capacity());
+            }
+        }
+        for (int i = 0; i < df.rowCount(); i++) {
+            assertEquals(fits[0].firstClasses().index(i), fits[1].firstClasses().index(i));
+            assertEquals(fits[0].firstDensity().value(i, 1), fits[1].firstDensity().value(i, 1), 1e-12);
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.classifier.svm.kernel.cache;
+
+import org.junit.Test;
+import rapaio.data.Frame;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class LRUKernelCacheTest {
+
+    @Test
+    public void testRows() {
+        Frame df = SolidFrame.byVars(Numeric.fill(1 << 16, 0).withName("x"));
+        Frame other = df.solidCopy();
+
+        // one megabyte holds two rows of 512 kilobytes
+        LRUKernelCache cache = new LRUKernelCache(df, 1);
+        assertEquals(2, cache.capacity());
+
+        assertNull(cache.retrieve(df, 1, df, 2));
+        assertNull(cache.row(other, 1));
+
+        double[] row1 = cache.row(df, 1);
+        assertTrue(Double.isNaN(row1[2]));
+        cache.store(df, 1, df, 2, 0.5);
+        assertEquals(0.5, cache.retrieve(df, 1, df, 2), 1e-20);
+        assertEquals(0.5, cache.retrieve(df, 2, df, 1), 1e-20);
+        assertNull(cache.retrieve(df, 1, other, 2));
+
+        // when no row is cached the value is not stored
+        cache.store(df, 3, df, 4, 0.25);
+        assertNull(cache.retrieve(df, 4, df, 3));
+        cache.row(df, 3);
+        cache.store(df, 3, df, 4, 0.25);
+        assertEquals(0.25, cache.retrieve(df, 4, df, 3), 1e-20);
+
+        // peeks do not change recency, row 1 was used less recently than row 3
+        assertEquals(0.5, cache.peek(df, 2, df, 1), 1e-20);
+        cache.row(df, 5);
+        assertNull(cache.retrieve(df, 1, df, 2));
+        assertEquals(0.25, cache.retrieve(df, 3, df, 4), 1e-20);
+
+        cache.clear();
+        assertNull(cache.retrieve(df, 3, df, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new LRUKernelCache(SolidFrame.byVars(Numeric.fill(10, 0).withName("x")), 0);
+    }
+}
@@ -25,14 +25,24 @@
 package rapaio.ml.classifier.tree.ctree;
 
 import org.junit.Test;
+import rapaio.core.RandomSource;
+import rapaio.core.tools.DTable;
+import rapaio.core.tools.DVector;
 import rapaio.data.Frame;
+import rapaio.data.Nominal;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
 import rapaio.data.VarType;
+import rapaio.data.stream.FSpot;
 import rapaio.data.filter.frame.FFRetainTypes;
 import rapaio.datasets.Datasets;
 import rapaio.ml.classifier.CFit;
 import rapaio.ml.classifier.tree.CTree;
 import rapaio.ml.classifier.tree.CTreeCandidate;
+import rapaio.ml.classifier.tree.CTreeMissingHandler;
 import rapaio.ml.classifier.tree.CTreeNode;
+import rapaio.ml.classifier.tree.CTreePurityFunction;
+import rapaio.ml.classifier.tree.CTreePurityTest;
 import rapaio.printer.Summary;
 
 import java.io.IOException;
@@ -120,4 +130,205 @@ public class CTreeTest {
     }
 
 
+
+    @Test
+    public void testPresort() throws IOException, URISyntaxException {
+        Frame df = Datasets.loadIrisDataset().solidCopy();
+        RandomSource.setSeed(42);
+        for (int i = 0; i < 40; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(4));
+        }
+        CTreeMissingHandler[] handlers = new CTreeMissingHandler[]{
+                CTreeMissingHandler.Ignored, CTreeMissingHandler.ToMajority,
+                CTreeMissingHandler.ToAllWeighted, CTreeMissingHandler.ToRandom};
+        for (CTreeMissingHandler handler : handlers) {
+            for (CTree model : new CTree[]{CTree.newCART(), CTree.newC45().withMinCount(3)}) {
+                CTree presorted = model.newInstance().withPresort(true).withMissingHandler(handler);
+                presorted.withRunPoolSize(0);
+                RandomSource.setSeed(1);
+                presorted.train(df, "class");
+
+                CTree sorted = model.newInstance().withPresort(false).withMissingHandler(handler);
+                sorted.withRunPoolSize(0);
+                RandomSource.setSeed(1);
+                sorted.train(df, "class");
+
+                assertEquals(sorted.summary(), presorted.summary());
+            }
+        }
+    }
+
+    @Test
+    public void testBinned() throws IOException, URISyntaxException {
+        Frame df = Datasets.loadIrisDataset().solidCopy();
+        RandomSource.setSeed(42);
+        for (int i = 0; i < 40; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(4));
+        }
+        CTreeMissingHandler[] handlers = new CTreeMissingHandler[]{
+                CTreeMissingHandler.Ignored, CTreeMissingHandler.ToMajority,
+                CTreeMissingHandler.ToAllWeighted, CTreeMissingHandler.ToRandom};
+        for (CTreeMissingHandler handler : handlers) {
+            CTree tree = CTree.newCART()
+                    .withTest(VarType.NUMERIC, CTreePurityTest.NumericBinned)
+                    .withMissingHandler(handler);
+            tree.withRunPoolSize(0);
+            tree.train(df, "class");
+            CFit fit = tree.fit(df);
+            double accuracy = 0;
+            for (int i = 0; i < df.rowCount(); i++) {
+                if (fit.firstClasses().index(i) == df.var("class").index(i)) {
+                    accuracy++;
+                }
+            }
+            assertTrue(accuracy / df.rowCount() > 0.95);
+        }
+
+        // with few bins only few thresholds can be tested
+        CTree tree = CTree.newCART()
+                .withTest(VarType.NUMERIC, CTreePurityTest.NumericBinned)
+                .withMaxBins(3);
+        tree.train(df, "class");
+        assertTrue(tree.getRoot().getChildren().size() == 2);
+        for (CTreeNode node : tree.getRoot().getChildren()) {
+            assertTrue(node.getGroupName().startsWith("petal-"));
+        }
+    }
+
+    @Test
+    public void testCompiledFit() throws IOException, URISyntaxException {
+        Frame df = Datasets.loadIrisDataset().solidCopy();
+        RandomSource.setSeed(42);
+        CTree tree = CTree.newC45().withMinCount(3);
+        tree.train(df, "class");
+        for (int i = 0; i < 60; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(4));
+        }
+        CFit fit = tree.fit(df, true, true);
+        for (int i = 0; i < df.rowCount(); i++) {
+            DVector expected = fitNode(tree.getRoot(), new FSpot(df, i));
+            for (int j = 0; j < tree.firstTargetLevels().length; j++) {
+                assertEquals(expected.get(j), fit.firstDensity().value(i, j), 1e-12);
+            }
+        }
+
+        int[] classes = new int[df.rowCount() - 10];
+        assertTrue(tree.fitClassesInto(df, 10, df.rowCount(), classes));
+        for (int i = 10; i < df.rowCount(); i++) {
+            assertEquals(fit.firstClasses().index(i), classes[i - 10]);
+        }
+    }
+
+    private DVector fitNode(CTreeNode node, FSpot spot) {
+        if (node.isLeaf()) {
+            return node.getDensity().solidCopy().normalize();
+        }
+        for (CTreeNode child : node.getChildren()) {
+            if (child.getPredicate().test(spot)) {
+                return fitNode(child, spot);
+            }
+        }
+        DVector dv = DVector.empty(false, node.getDensity().levels());
+        double w = 0.0;
+        for (CTreeNode child : node.getChildren()) {
+            dv.increment(fitNode(child, spot), child.getDensity().sum());
+            w += child.getDensity().sum();
+        }
+        for (int i = 0; i < dv.rowCount(); i++) {
+            dv.set(i, dv.get(i) / w);
+        }
+        return dv;
+    }
+
+    @Test
+    public void testParallelSubtrees() {
+        RandomSource.setSeed(1234);
+        Numeric x1 = Numeric.empty().withName("x1");
+        Numeric x2 = Numeric.empty().withName("x2");
+        Nominal y = Nominal.empty(0, "a", "b", "c").withName("y");
+        for (int i = 0; i < 3_000; i++) {
+            double a = RandomSource.nextDouble();
+            double b = RandomSource.nextDouble();
+            x1.addValue(a);
+            x2.addValue(b);
+            double noise = RandomSource.nextDouble() * 0.4;
+            y.addLabel(a + noise < 0.6 ? "a" : (b + noise < 0.7 ? "b" : "c"));
+        }
+        Frame df = SolidFrame.byVars(x1, x2, y);
+
+        CTree sequential = CTree.newCART().withMinCount(50).withMaxDepth(4);
+        sequential.withRunPoolSize(0);
+        sequential.train(df, "y");
+
+        CTree parallel = CTree.newCART().withMinCount(50).withMaxDepth(4).withParallelSubtrees(true);
+        parallel.withRunPoolSize(4);
+        parallel.train(df, "y");
+
+        CFit seqFit = sequential.fit(df, false, true);
+        CFit parFit = parallel.fit(df, false, true);
+        for (int i = 0; i < df.rowCount(); i++) {
+            for (int j = 0; j < 4; j++) {
+                assertEquals(seqFit.firstDensity().value(i, j), parFit.firstDensity().value(i, j), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testNominalPartition() {
+        RandomSource.setSeed(4321);
+        String[] ids = new String[8];
+        double[] rates = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "id" + i;
+            rates[i] = RandomSource.nextDouble();
+        }
+        Nominal x = Nominal.empty(0, ids).withName("x");
+        Nominal y = Nominal.empty(0, "a", "b").withName("y");
+        for (int i = 0; i < 800; i++) {
+            int id = RandomSource.nextInt(ids.length);
+            x.addLabel(ids[id]);
+            y.addLabel(RandomSource.nextDouble() < rates[id] ? "a" : "b");
+        }
+        Frame df = SolidFrame.byVars(x, y);
+        Numeric w = Numeric.fill(df.rowCount(), 1);
+
+        CTree tree = CTree.newCART().withMinCount(1);
+        CTreeCandidate candidate = CTreePurityTest.NominalPartition.computeCandidate(
+                tree, df, w, "x", "y", CTreePurityFunction.GiniGain);
+        assertNotNull(candidate);
+        assertEquals(2, candidate.getGroupNames().size());
+
+        // for binary targets the sorted prefixes contain the optimal partition
+        double best = Double.NaN;
+        for (int mask = 1; mask < (1 << ids.length) - 1; mask++) {
+            DTable dt = DTable.empty(new String[]{"?", "in", "not-in"}, y.levels(), false);
+            for (int i = 0; i < df.rowCount(); i++) {
+                dt.update(((mask >> (x.index(i) - 1)) & 1) == 1 ? 1 : 2, y.index(i), 1);
+            }
+            double score = CTreePurityFunction.GiniGain.compute(dt);
+            if (Double.isNaN(best) || score > best) {
+                best = score;
+            }
+        }
+        assertEquals(best, candidate.getScore(), 1e-12);
+
+        // high cardinality multi class data is split into groups of labels
+        Nominal id = Nominal.empty().withName("id");
+        Nominal z = Nominal.empty(0, "a", "b", "c").withName("z");
+        for (int i = 0; i < 3_000; i++) {
+            int level = RandomSource.nextInt(1_000);
+            id.addLabel("user" + level);
+            z.addLabel(level % 3 == 0 ? "a" : (level % 3 == 1 ? "b" : "c"));
+        }
+        Frame high = SolidFrame.byVars(id, z);
+        CTree partition = CTree.newCART().withTest(VarType.NOMINAL, CTreePurityTest.NominalPartition);
+        partition.train(high, "z");
+        assertEquals(2, partition.getRoot().getChildren().size());
+        assertTrue(partition.getRoot().getChildren().get(0).getGroupName().startsWith("id in {"));
+
+        CFit fit = partition.fit(high);
+        for (int i = 0; i < high.rowCount(); i++) {
+            assertEquals(z.label(i), fit.firstClasses().label(i));
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import org.junit.Test;
+import rapaio.core.RandomSource;
+import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
+import rapaio.data.Var;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class BinMatrixTest {
+
+    private static final double TOL = 1e-12;
+
+    @Test
+    public void testFewDistinctValues() {
+        Var x = Numeric.copy(3, 1, 2, 2, Double.NaN, 3, 1).withName("x");
+        Frame df = SolidFrame.byVars(x);
+        BinMatrix.Column column = BinMatrix.build(df, Collections.singletonList("x"), BinMatrix.MAX_BINS).column("x");
+
+        assertEquals(4, column.binCount());
+        assertEquals(3, column.missingBin());
+        assertEquals(1.5, column.threshold(0), TOL);
+        assertEquals(2.5, column.threshold(1), TOL);
+        assertArrayEquals(new int[]{2, 0, 1, 1, 3, 2, 0}, column.bins(x));
+        assertNull(BinMatrix.build(df, Collections.singletonList("x"), BinMatrix.MAX_BINS).column("y"));
+    }
+
+    @Test
+    public void testQuantiles() {
+        RandomSource.setSeed(123);
+        Var x = Numeric.empty().withName("x");
+        for (int i = 0; i < 10_000; i++) {
+            x.addValue(Math.floor(RandomSource.nextDouble() * 1000));
+        }
+        Frame df = SolidFrame.byVars(x);
+        BinMatrix.Column column = BinMatrix.build(df, Collections.singletonList("x"), 16).column("x");
+
+        assertTrue(column.binCount() <= 16);
+        int[] bins = column.bins(x);
+        int[] counts = new int[column.binCount()];
+        for (int i = 0; i < x.rowCount(); i++) {
+            int bin = bins[i];
+            counts[bin]++;
+            assertTrue(bin == column.missingBin() - 1 || x.value(i) <= column.threshold(bin));
+            assertTrue(bin == 0 || x.value(i) > column.threshold(bin - 1));
+        }
+        for (int bin = 0; bin < column.missingBin(); bin++) {
+            assertTrue(counts[bin] > 400 && counts[bin] < 1000);
+        }
+    }
+
+    @Test
+    public void testMappedVars() {
+        Var x = Numeric.copy(5, 4, 3, 2, 1).withName("x");
+        Var y = Numeric.copy(5, 4, 3, 2, 1).withName("x");
+        Frame df = SolidFrame.byVars(x).mapRows(1, 2, 4);
+        BinMatrix.Column column = BinMatrix.build(df, Collections.singletonList("x"), BinMatrix.MAX_BINS).column("x");
+
+        assertEquals(4, column.binCount());
+        assertArrayEquals(new int[]{2, 1, 0}, column.bins(df.var("x")));
+        assertArrayEquals(new int[]{0, 2}, column.bins(df.var("x").mapRows(Mapping.copy(2, 0))));
+        assertNull(column.bins(y));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBins() {
+        BinMatrix.build(SolidFrame.byVars(Numeric.copy(1, 2).withName("x")), Collections.singletonList("x"), 257);
+    }
+
+    @Test
+    public void testHistogramSubtraction() {
+        BinHistograms root = BinHistograms.root();
+        root.put("x", new double[]{3, 1.5, 2, 0.1, 0, 0});
+
+        List<BinHistograms> children = root.children(5, 2, 3);
+        assertNull(children.get(0).subtract("x", 2));
+        assertNull(children.get(1).subtract("x", 2));
+
+        children.get(0).put("x", new double[]{1, 0.5, 2, 0.1, 0, 0});
+        assertArrayEquals(new double[]{2, 1, 0, 0, 0, 0}, children.get(1).subtract("x", 2), TOL);
+        assertNull(children.get(1).subtract("y", 2));
+
+        List<BinHistograms> partial = root.children(5, 2, 2);
+        partial.get(0).put("x", new double[]{1, 0.5, 2, 0.1, 0, 0});
+        assertNull(partial.get(1).subtract("x", 2));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Apache License
+ * Version 2.0, January 2004
+ * http://www.apache.org/licenses/
+ *
+ *    Copyright 2013 Aurelian Tutuianu
+ *    Copyright 2014 Aurelian Tutuianu
+ *    Copyright 2015 Aurelian Tutuianu
+ *    Copyright 2016 Aurelian Tutuianu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package rapaio.ml.common;
+
+import org.junit.Test;
+import rapaio.data.Frame;
+import rapaio.data.Mapping;
+import rapaio.data.Numeric;
+import rapaio.data.SolidFrame;
+import rapaio.data.Var;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:padreati@yahoo.com">Aurelian Tutuianu</a>
+ */
+public class RowPartitionTest {
+
+    private static final double TOL = 1e-12;
+
+    @Test
+    public void testDisjointSplit() {
+        Frame df = SolidFrame.byVars(
+                Numeric.copy(10, 11, 12, 13, 14, 15, 16).withName("x"),
+                Numeric.copy(0, 1, 2, 3, 4, 5, 6).withName("y"));
+        RowPartition root = RowPartition.of(df.mapRows(1, 2, 3, 4, 5, 6), Numeric.copy(1, 2, 3, 4, 5, 6));
+        assertEquals(6, root.rowCount());
+        assertEquals(11, root.frame().value(0, "x"), TOL);
+
+        Mapping left = Mapping.copy(4, 0, 2);
+        Mapping right = Mapping.copy(1, 5);
+        Var wl = Numeric.copy(5, 1, 3);
+        Var wr = Numeric.copy(0.5, 6);
+        List<RowPartition> children = root.split(Arrays.asList(left, right), Arrays.asList(wl, wr));
+
+        assertEquals(3, children.get(0).rowCount());
+        assertEquals(2, children.get(1).rowCount());
+        assertArrayEquals(new double[]{15, 11, 13}, values(children.get(0).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{5, 1, 3}, values(children.get(0).weights()), TOL);
+        assertArrayEquals(new double[]{12, 16}, values(children.get(1).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{0.5, 6}, values(children.get(1).weights()), TOL);
+
+        List<RowPartition> grandChildren = children.get(1).split(
+                Arrays.asList(Mapping.copy(1), Mapping.copy(0)), Arrays.asList(Numeric.copy(6), Numeric.copy(0.5)));
+        assertArrayEquals(new double[]{16}, values(grandChildren.get(0).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{12}, values(grandChildren.get(1).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{15, 11, 13}, values(children.get(0).frame().var("x")), TOL);
+        assertEquals(2, grandChildren.get(0).frame().varCount());
+    }
+
+    @Test
+    public void testSharedRows() {
+        Frame df = SolidFrame.byVars(Numeric.copy(10, 11, 12, 13).withName("x"));
+        RowPartition root = RowPartition.of(df, Numeric.fill(4, 1));
+
+        List<RowPartition> children = root.split(
+                Arrays.asList(Mapping.copy(0, 1, 3), Mapping.copy(2, 3)),
+                Arrays.asList(Numeric.copy(1, 1, 0.4), Numeric.copy(1, 0.6)));
+        assertArrayEquals(new double[]{10, 11, 13}, values(children.get(0).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{1, 1, 0.4}, values(children.get(0).weights()), TOL);
+        assertArrayEquals(new double[]{12, 13}, values(children.get(1).frame().var("x")), TOL);
+        assertArrayEquals(new double[]{1, 0.6}, values(children.get(1).weights()), TOL);
+        assertArrayEquals(new double[]{10, 11, 12, 13}, values(root.frame().var("x")), TOL);
+    }
+
+    private static double[] values(Var var) {
+        return var.stream().mapToDouble().toArray();
+    }
+}
@@ -26,6 +26,7 @@ package rapaio.ml.regression.tree;
 
 import org.junit.Before;
 import org.junit.Test;
+import rapaio.core.stat.OnlineStat;
 import rapaio.data.Frame;
 import rapaio.data.Numeric;
 import rapaio.data.Var;
@@ -109,4 +110,45 @@ public class RTreeNominalMethodTest {
         assertEquals("Candidate{score=-3.323565323565319, testName='outlook', groupNames=[outlook == overcast, outlook != overcast]}",
                 cs.get().toString());
     }
+
+    @Test
+    public void partitionTest() {
+        RTreeNominalMethod m = RTreeNominalMethod.PARTITION;
+
+        assertEquals("PARTITION", m.name());
+
+        Optional<RTree.Candidate> cs = m.computeCandidate(tree, df, w,
+                NOM_TEST, TARGET, RTreeTestFunction.WEIGHTED_VAR_GAIN);
+        assertTrue(cs.isPresent());
+        assertEquals("Candidate{score=4.3183673469363555, testName='outlook', groupNames=[outlook in {overcast}, outlook not in {overcast}]}",
+                cs.get().toString());
+
+        // exhaustive search over all binary partitions of the labels
+        String[] levels = df.var(NOM_TEST).levels();
+        int labels = levels.length - 1;
+        double best = Double.NaN;
+        for (int mask = 1; mask < (1 << labels) - 1; mask++) {
+            OnlineStat[] os = new OnlineStat[]{OnlineStat.empty(), OnlineStat.empty(), OnlineStat.empty()};
+            for (int i = 0; i < df.rowCount(); i++) {
+                int side = ((mask >> (df.var(NOM_TEST).index(i) - 1)) & 1);
+                os[side].update(df.value(i, TARGET));
+                os[2].update(df.value(i, TARGET));
+            }
+            RTreeTestPayload p = new RTreeTestPayload(2);
+            p.totalVar = populationVariance(os[2]);
+            for (int j = 0; j < 2; j++) {
+                p.splitWeight[j] = os[j].n();
+                p.splitVar[j] = populationVariance(os[j]);
+            }
+            double value = tree.function.computeTestValue(p);
+            if (Double.isNaN(best) || value > best) {
+                best = value;
+            }
+        }
+        assertEquals(best, cs.get().getScore(), 1e-10);
+    }
+
+    private static double populationVariance(OnlineStat os) {
+        return os.variance() * (os.n() - 1) / os.n();
+    }
 }
@@ -74,4 +74,23 @@ public class RTreeNumericMethodTest {
         assertEquals("Candidate{score=20.54116483516485, testName='temp', groupNames=[temp <= 69.000000, temp > 69.000000]}",
                 c.get().toString());
     }
+
+    @Test
+    public void binnedTest() {
+        RTreeNumericMethod m = RTreeNumericMethod.BINNED;
+        assertEquals("BINNED", m.name());
+
+        // without quantized variables the binary method is used
+        Optional<RTree.Candidate> c = m.computeCandidate(tree, df, w, NUM_TEST, TARGET,
+                RTreeTestFunction.WEIGHTED_VAR_GAIN);
+        assertTrue(c.isPresent());
+        assertEquals("Candidate{score=20.54116483516485, testName='temp', groupNames=[temp <= 69.000000, temp > 69.000000]}",
+                c.get().toString());
+
+        RTree binned = RTree.buildDecisionStump().withNumericMethod(RTreeNumericMethod.BINNED);
+        binned.train(df.mapVars(NUM_TEST, TARGET), TARGET);
+        RTree.Candidate root = binned.getRoot().getBestCandidate();
+        assertEquals(32.6576530612245, root.getScore(), 1e-10);
+        assertEquals("[temp <= 69.500000, temp > 69.500000]", root.getGroupNames().toString());
+    }
 }
@@ -26,10 +26,15 @@ package rapaio.ml.regression.tree;
 
 import org.junit.Assert;
 import org.junit.Test;
+import rapaio.core.RandomSource;
 import rapaio.data.Frame;
+import rapaio.data.Numeric;
+import rapaio.data.Var;
 import rapaio.data.filter.frame.FFRefSort;
 import rapaio.data.sample.RowSampler;
+import rapaio.data.stream.FSpot;
 import rapaio.datasets.Datasets;
+import rapaio.experiment.ml.regression.boost.gbt.GBTLossFunction;
 import rapaio.ml.regression.RFit;
 import rapaio.ml.regression.Regression;
 import rapaio.experiment.ml.regression.ensemble.RForest;
@@ -102,4 +107,100 @@ public class RTreeTest {
         fit.printSummary();
     }
 
+    @Test
+    public void testCompiledFit() throws IOException {
+        Frame df = Datasets.loadISLAdvertising().removeVars("ID").solidCopy();
+        RTree tree = RTree.buildCART().withMaxDepth(8).withMinCount(5);
+        tree.train(df, Sales);
+
+        RandomSource.setSeed(123);
+        for (int i = 0; i < 50; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(3));
+        }
+        RFit fit = tree.fit(df);
+        for (int i = 0; i < df.rowCount(); i++) {
+            double expected = RTreePredictor.STANDARD.predict(new FSpot(df, i), tree.getRoot())._1;
+            Assert.assertEquals(expected, fit.firstFit().value(i), 1e-12);
+        }
+    }
+
+    @Test
+    public void testBoostFitCompiled() throws IOException {
+        Frame df = Datasets.loadISLAdvertising().removeVars("ID", "Radio", "Newspaper").solidCopy();
+        RandomSource.setSeed(123);
+        for (int i = 0; i < 20; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), "TV");
+        }
+        Var y = df.var(Sales);
+        Numeric fx = Numeric.from(df.rowCount(), row -> y.value(row) * RandomSource.nextDouble());
+
+        // leaves routed through compiled tree and recursive boosting step
+        RTree[] trees = new RTree[2];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = RTree.buildCART().withMaxDepth(6).withSplitter(RTreeSplitter.REMAINS_TO_ALL_WEIGHTED);
+        }
+        trees[0].train(df, Sales);
+        trees[1].train(df, Sales);
+
+        GBTLossFunction loss = new GBTLossFunction.L1();
+        trees[0].boostFit(df, y, fx, loss);
+        trees[1].getRoot().boostFit(df, y, fx, loss);
+
+        RFit expected = trees[1].fit(df, false);
+        RFit fit = trees[0].fit(df, false);
+        for (int j = 0; j < df.rowCount(); j++) {
+            Assert.assertEquals(expected.firstFit().value(j), fit.firstFit().value(j), 1e-12);
+        }
+    }
+
+    @Test
+    public void testBoostFitLeafCache() throws IOException {
+        Frame df = Datasets.loadISLAdvertising().removeVars("ID", "Newspaper").solidCopy();
+        RandomSource.setSeed(1234);
+        for (int i = 0; i < 30; i++) {
+            df.setMissing(RandomSource.nextInt(df.rowCount()), RandomSource.nextInt(2) == 0 ? "TV" : "Radio");
+        }
+        Var y = df.var(Sales);
+        Numeric fx = Numeric.from(df.rowCount(), row -> y.value(row) * RandomSource.nextDouble());
+        double[] gradients = new double[df.rowCount()];
+        double[] hessians = new double[df.rowCount()];
+        for (int i = 0; i < gradients.length; i++) {
+            gradients[i] = y.value(i) - fx.value(i);
+            hessians[i] = 1 + RandomSource.nextDouble();
+        }
+        GBTLossFunction loss = new GBTLossFunction.L1();
+
+        RTreeSplitter[] splitters = new RTreeSplitter[]{
+                RTreeSplitter.REMAINS_IGNORED,
+                RTreeSplitter.REMAINS_TO_MAJORITY,
+                RTreeSplitter.REMAINS_TO_ALL_WEIGHTED,
+                RTreeSplitter.REMAINS_TO_RANDOM};
+        for (RTreeSplitter splitter : splitters) {
+
+            // leaves recorded while learning and leaves routed through compiled tree
+            RTree[] trees = new RTree[4];
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = RTree.buildCART().withMaxDepth(6).withSplitter(splitter);
+                if (i % 2 == 0) {
+                    trees[i].withLeafCache();
+                }
+                RandomSource.setSeed(42);
+                trees[i].train(df, Sales);
+            }
+
+            trees[0].boostFit(df, y, fx, loss);
+            trees[1].boostFit(df, y, fx, loss);
+            RFit expected = trees[1].fit(df, false);
+            RFit fit = trees[0].fit(df, false);
+            for (int j = 0; j < df.rowCount(); j++) {
+                Assert.assertEquals(splitter.name(), expected.firstFit().value(j), fit.firstFit().value(j), 1e-12);
+            }
+
+            double[] expectedScores = new double[df.rowCount()];
+            double[] scores = new double[df.rowCount()];
+            trees[2].boostFit(df, gradients, hessians, 0.1, scores);
+            trees[3].boostFit(df, gradients, hessians, 0.1, expectedScores);
+            Assert.assertArrayEquals(splitter.name(), expectedScores, scores, 1e-12);
+        }
+    }
 }